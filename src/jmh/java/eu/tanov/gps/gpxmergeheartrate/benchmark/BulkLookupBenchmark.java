@@ -0,0 +1,92 @@
+package eu.tanov.gps.gpxmergeheartrate.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndex;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateLookup;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+
+/**
+ * All track points of a track: {@link HeartRateProvider#getHrForEpochMillis(long[], int[], int)} compared with
+ * {@link HeartRateProvider#getHrForEpochMilli(long)} for each of them, in order (as in a gpx file) and in random order.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Duser.timezone=Europe/Sofia")
+public class BulkLookupBenchmark {
+	public enum Access {
+		SEQUENTIAL, RANDOM
+	}
+
+	@Param({ "10000", "1000000" })
+	private int points;
+
+	@Param
+	private Access access;
+
+	@Param({ "NEAREST" })
+	private HeartRateLookup.Strategy strategy;
+
+	private HeartRateIndex heartRates;
+	private HeartRateLookup lookup;
+	private long[] trackPoints;
+	private int[] rates;
+
+	@Setup
+	public void setUp() {
+		final int count = SyntheticData.heartRatesFor(points);
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder(count);
+		for (int i = 0; i < count; i++) {
+			final int rate = SyntheticData.heartRate(i);
+			builder.add(SyntheticData.heartRateTime(i).toEpochMilli(), rate, Math.min(100, 100 * rate / 190));
+		}
+		heartRates = builder.build();
+		lookup = new HeartRateLookup(strategy, HeartRateLookup.DEFAULT_WINDOW, HeartRateLookup.DEFAULT_TOLERANCE);
+
+		trackPoints = new long[points];
+		for (int i = 0; i < points; i++) {
+			trackPoints[i] = SyntheticData.trackPointTime(i).toEpochMilli();
+		}
+		if (access == Access.RANDOM) {
+			final Random random = new Random(42);
+			for (int i = trackPoints.length - 1; i > 0; i--) {
+				final int other = random.nextInt(i + 1);
+				final long temp = trackPoints[i];
+				trackPoints[i] = trackPoints[other];
+				trackPoints[other] = temp;
+			}
+		}
+		rates = new int[points];
+	}
+
+	@Benchmark
+	public int[] oneByOne() {
+		final HeartRateProvider heartRateProvider = new HeartRateProvider(heartRates, lookup);
+		for (int i = 0; i < trackPoints.length; i++) {
+			rates[i] = heartRateProvider.getHrForEpochMilli(trackPoints[i]);
+		}
+		return rates;
+	}
+
+	@Benchmark
+	public int[] bulk() {
+		new HeartRateProvider(heartRates, lookup).getHrForEpochMillis(trackPoints, rates, trackPoints.length);
+		return rates;
+	}
+}
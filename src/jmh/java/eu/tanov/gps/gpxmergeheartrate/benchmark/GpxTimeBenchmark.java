@@ -0,0 +1,59 @@
+package eu.tanov.gps.gpxmergeheartrate.benchmark;
+
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.tanov.gps.gpxmergeheartrate.GpxTime;
+
+/**
+ * Track point <code>time</code> to epoch millis - {@link GpxTime} against {@link OffsetDateTime#parse}, one time per
+ * operation. Run it with <code>-prof gc</code> for the allocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GpxTimeBenchmark {
+	private static final int TIMES = 1024;
+
+	private final String[] times = new String[TIMES];
+	private int next;
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < TIMES; i++) {
+			times[i] = DateTimeFormatter.ISO_INSTANT.format(SyntheticData.trackPointTime(i));
+		}
+		next = 0;
+	}
+
+	private String nextTime() {
+		final String result = times[next];
+		next = (next + 1) & (TIMES - 1);
+		return result;
+	}
+
+	@Benchmark
+	public long gpxTime() {
+		return GpxTime.parseEpochMilli(nextTime());
+	}
+
+	@Benchmark
+	public long offsetDateTime() {
+		return OffsetDateTime.parse(nextTime()).toInstant().toEpochMilli();
+	}
+}
@@ -0,0 +1,66 @@
+package eu.tanov.gps.gpxmergeheartrate.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateCsvParser;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndex;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+import eu.tanov.gps.gpxmergeheartrate.benchmark.SyntheticData.Dialect;
+
+/**
+ * Parsing of the heart rate CSV files in both formats - from a stream, memory mapped and memory mapped in parallel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Duser.timezone=Europe/Sofia")
+public class HeartRateProviderBenchmark {
+	@Param({ "10000", "1000000" })
+	private int points;
+
+	@Param
+	private Dialect dialect;
+
+	private Path heartRates;
+
+	@Setup
+	public void setUp() throws IOException {
+		heartRates = SyntheticData.createHeartRates(dialect, points);
+	}
+
+	@Benchmark
+	public HeartRateProvider parse() throws IOException {
+		try (InputStream source = Files.newInputStream(heartRates)) {
+			return new HeartRateProvider(source);
+		}
+	}
+
+	@Benchmark
+	public HeartRateProvider parseMapped() throws IOException {
+		return new HeartRateProvider(heartRates);
+	}
+
+	@Benchmark
+	public HeartRateIndex parseMappedParallel() throws IOException {
+		return new HeartRateCsvParser().parseFiles(Collections.singletonList(heartRates), true);
+	}
+}
@@ -0,0 +1,103 @@
+package eu.tanov.gps.gpxmergeheartrate.benchmark;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndex;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateLookup;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+
+/**
+ * {@link HeartRateProvider#getHrForEpochMilli(long)} for track points in order (as in a gpx file), in random order and
+ * in reverse order, with each {@link HeartRateLookup.Strategy} and window width. A single lookup per operation; the track
+ * is replayed from the beginning when it ends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Duser.timezone=Europe/Sofia")
+public class LookupBenchmark {
+	public enum Access {
+		SEQUENTIAL, RANDOM, BACKWARDS
+	}
+
+	@Param({ "10000", "1000000", "10000000" })
+	private int points;
+
+	@Param
+	private Access access;
+
+	@Param({ "NEAREST" })
+	private HeartRateLookup.Strategy strategy;
+
+	@Param({ "30" })
+	private int windowSeconds;
+
+	private HeartRateProvider heartRateProvider;
+	private long[] trackPoints;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		final int heartRates = SyntheticData.heartRatesFor(points);
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder(heartRates);
+		for (int i = 0; i < heartRates; i++) {
+			final int rate = SyntheticData.heartRate(i);
+			builder.add(SyntheticData.heartRateTime(i).toEpochMilli(), rate, Math.min(100, 100 * rate / 190));
+		}
+		heartRateProvider = new HeartRateProvider(builder.build(),
+				new HeartRateLookup(strategy, Duration.ofSeconds(windowSeconds), HeartRateLookup.DEFAULT_TOLERANCE));
+
+		trackPoints = new long[points];
+		for (int i = 0; i < points; i++) {
+			trackPoints[i] = SyntheticData.trackPointTime(i).toEpochMilli();
+		}
+		switch (access) {
+		case SEQUENTIAL:
+			break;
+		case RANDOM:
+			shuffle(trackPoints, new Random(42));
+			break;
+		case BACKWARDS:
+			for (int i = 0, j = points - 1; i < j; i++, j--) {
+				swap(trackPoints, i, j);
+			}
+			break;
+		}
+		next = 0;
+	}
+
+	private static void shuffle(long[] values, Random random) {
+		for (int i = values.length - 1; i > 0; i--) {
+			swap(values, i, random.nextInt(i + 1));
+		}
+	}
+
+	private static void swap(long[] values, int i, int j) {
+		final long temp = values[i];
+		values[i] = values[j];
+		values[j] = temp;
+	}
+
+	@Benchmark
+	public int getHrForEpochMilli() {
+		final long trackPoint = trackPoints[next];
+		next = next + 1 == trackPoints.length ? 0 : next + 1;
+		return heartRateProvider.getHrForEpochMilli(trackPoint);
+	}
+}
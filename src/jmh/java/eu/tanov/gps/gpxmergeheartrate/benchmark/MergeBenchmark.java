@@ -0,0 +1,119 @@
+package eu.tanov.gps.gpxmergeheartrate.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.tanov.gps.gpxmergeheartrate.GpxMergeHeartRate;
+import eu.tanov.gps.gpxmergeheartrate.GpxMergeHeartRate.Engine;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateCsvParser;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndex;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.Statistics;
+import eu.tanov.gps.gpxmergeheartrate.benchmark.SyntheticData.Dialect;
+import eu.tanov.gps.gpxmergeheartrate.sink.CsvTrackPointSink;
+import eu.tanov.gps.gpxmergeheartrate.sink.TcxTrackPointSink;
+import eu.tanov.gps.gpxmergeheartrate.sink.TrackPointSink;
+
+/**
+ * {@link GpxMergeHeartRate#process(InputStream, HeartRateProvider, OutputStream)} from a gpx file to a discarding stream.
+ * Heart rates are parsed once per trial, the CSV parsing is measured by {@link HeartRateProviderBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Duser.timezone=Europe/Sofia")
+public class MergeBenchmark {
+	@Param({ "100", "10000", "1000000" })
+	private int points;
+
+	@Param
+	private Engine engine;
+
+	private Path gpx;
+	private HeartRateIndex heartRates;
+	private GpxMergeHeartRate gpxMergeHeartRate;
+	private GpxMergeHeartRate twoPhase;
+
+	@Setup
+	public void setUp() throws IOException {
+		gpx = SyntheticData.createGpx(points);
+		final Path csv = SyntheticData.createHeartRates(Dialect.MI_BAND_TOOLS, SyntheticData.heartRatesFor(points));
+		try (InputStream source = Files.newInputStream(csv)) {
+			heartRates = new HeartRateCsvParser().parse(source);
+		}
+		Files.delete(csv);
+		gpxMergeHeartRate = new GpxMergeHeartRate(engine);
+		twoPhase = new GpxMergeHeartRate.Builder().engine(engine).twoPhase(true).build();
+	}
+
+	@Benchmark
+	public Statistics process() throws Exception {
+		try (InputStream source = Files.newInputStream(gpx)) {
+			return gpxMergeHeartRate.process(source, new HeartRateProvider(heartRates), new DiscardingOutputStream());
+		}
+	}
+
+	/**
+	 * The times are read first and joined in bulk, compare with {@link #process()}
+	 */
+	@Benchmark
+	public Statistics processTwoPhase() throws Exception {
+		try (InputStream source = Files.newInputStream(gpx)) {
+			return twoPhase.process(source, new HeartRateProvider(heartRates), new DiscardingOutputStream());
+		}
+	}
+
+	/**
+	 * Gpx, TCX and CSV from one parse, compare with three times {@link #process()}
+	 */
+	@Benchmark
+	public Statistics processWithSinks() throws Exception {
+		try (InputStream source = Files.newInputStream(gpx);
+				TrackPointSink tcx = new TcxTrackPointSink(new DiscardingOutputStream());
+				TrackPointSink csv = new CsvTrackPointSink(new DiscardingOutputStream())) {
+			return gpxMergeHeartRate.process(source, new HeartRateProvider(heartRates), new DiscardingOutputStream(),
+					Arrays.asList(tcx, csv));
+		}
+	}
+
+	/**
+	 * As before the factories were created once - looks them up on each call, compare with {@link #process()} for small
+	 * files
+	 */
+	@Benchmark
+	public Statistics processNewInstance() throws Exception {
+		try (InputStream source = Files.newInputStream(gpx)) {
+			return new GpxMergeHeartRate(engine).process(source, new HeartRateProvider(heartRates),
+					new DiscardingOutputStream());
+		}
+	}
+
+	private static class DiscardingOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package eu.tanov.gps.gpxmergeheartrate.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.tanov.gps.gpxmergeheartrate.GpxMergeHeartRate;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateCsvParser;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndexLruCache;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateLookup;
+import eu.tanov.gps.gpxmergeheartrate.MergeServer;
+import eu.tanov.gps.gpxmergeheartrate.benchmark.SyntheticData.Dialect;
+
+/**
+ * Load test of {@link MergeServer} on localhost: <code>MergeServerLoadTest &lt;clients&gt; &lt;requests per client&gt;
+ * &lt;points&gt; [&lt;csv files&gt;] [&lt;server url&gt;]</code>. Each client uploads a synthetic gpx with the points
+ * (chunked) and reads the whole result, the requests take the csv files in turn. Without a server url a server with
+ * the default settings is started in this JVM, the csv files are temporary files, so an external server must run on
+ * the same machine.
+ * <p>
+ * Prints requests and track points per second and the latency percentiles.
+ */
+public class MergeServerLoadTest {
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3 || args.length > 5) {
+			System.err.println(
+					"3 to 5 parameters expected: <clients> <requests per client> <points> [<csv files>] [<server url>]");
+			System.exit(1);
+		}
+		final int clients = Integer.parseInt(args[0]);
+		final int requests = Integer.parseInt(args[1]);
+		final int points = Integer.parseInt(args[2]);
+		final int csvFiles = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+		final ByteArrayOutputStream document = new ByteArrayOutputStream();
+		SyntheticData.writeGpx(document, points);
+		final byte[] gpx = document.toByteArray();
+		final List<Path> csv = new ArrayList<>();
+		for (int i = 0; i < csvFiles; i++) {
+			csv.add(SyntheticData.createHeartRates(Dialect.MI_BAND_TOOLS, SyntheticData.heartRatesFor(points)));
+		}
+
+		final MergeServer server;
+		final String url;
+		if (args.length > 4) {
+			server = null;
+			url = args[4];
+		} else {
+			final HeartRateCsvParser parser = new HeartRateCsvParser();
+			server = new MergeServer(new GpxMergeHeartRate.Builder(),
+					new HeartRateIndexLruCache(files -> parser.parseFiles(files, true), MergeServer.DEFAULT_CACHE_SAMPLES),
+					HeartRateLookup.NEAREST, false, Optional.empty(),
+					new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), Runtime.getRuntime().availableProcessors());
+			url = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+		}
+		try {
+			System.out.printf("%d clients x %d requests, %d points (%d bytes), %d csv files, %s\n", clients, requests, points,
+					gpx.length, csvFiles, url);
+			run(url, csv, gpx, clients, requests, points);
+			if (server != null) {
+				System.out.println("Cache: " + server.getHeartRates());
+			}
+		} finally {
+			if (server != null) {
+				server.close();
+			}
+		}
+	}
+
+	private static void run(String url, List<Path> csv, byte[] gpx, int clients, int requests, int points)
+			throws Exception {
+		final long[] latencies = new long[clients * requests];
+		final AtomicLong bytes = new AtomicLong();
+		final ExecutorService executor = Executors.newFixedThreadPool(clients);
+		final long start = System.nanoTime();
+		try {
+			final List<Future<?>> results = new ArrayList<>();
+			for (int client = 0; client < clients; client++) {
+				final int first = client * requests;
+				results.add(executor.submit(() -> {
+					for (int i = first; i < first + requests; i++) {
+						final long requestStart = System.nanoTime();
+						bytes.addAndGet(merge(url, csv.get(i % csv.size()), gpx));
+						latencies[i] = System.nanoTime() - requestStart;
+					}
+					return null;
+				}));
+			}
+			for (final Future<?> next : results) {
+				next.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		final long elapsed = System.nanoTime() - start;
+
+		final double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+		Arrays.sort(latencies);
+		System.out.printf("Time: %.2f s, %.1f requests/s, %.0f track points/s, %d bytes received\n", seconds,
+				latencies.length / seconds, (double) latencies.length * points / seconds, bytes.get());
+		System.out.printf("Latency: p50 %d ms, p90 %d ms, p99 %d ms, max %d ms\n", percentile(latencies, 50),
+				percentile(latencies, 90), percentile(latencies, 99), percentile(latencies, 100));
+	}
+
+	/**
+	 * @return bytes of the result
+	 */
+	private static long merge(String url, Path csv, byte[] gpx) throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) new URL(url + MergeServer.MERGE_PATH + "?"
+				+ MergeServer.PARAMETER_CSV + "=" + URLEncoder.encode(csv.toString(), "UTF-8")).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setChunkedStreamingMode(CHUNK_SIZE);
+		try (OutputStream output = connection.getOutputStream()) {
+			output.write(gpx);
+		}
+		if (connection.getResponseCode() != 200) {
+			throw new IOException("Status " + connection.getResponseCode() + " for " + csv);
+		}
+		long result = 0;
+		final byte[] buffer = new byte[CHUNK_SIZE];
+		try (InputStream input = connection.getInputStream()) {
+			for (int count = input.read(buffer); count >= 0; count = input.read(buffer)) {
+				result += count;
+			}
+		}
+		return result;
+	}
+
+	private static long percentile(long[] sorted, int percent) {
+		final int index = Math.max(0, (int) Math.ceil(sorted.length * percent / 100.0) - 1);
+		return TimeUnit.NANOSECONDS.toMillis(sorted[index]);
+	}
+}
@@ -0,0 +1,128 @@
+package eu.tanov.gps.gpxmergeheartrate.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateCsvParser;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndex;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.Statistics;
+import eu.tanov.gps.gpxmergeheartrate.benchmark.SyntheticData.Dialect;
+import eu.tanov.gps.gpxmergeheartrate.parsestates.IdentatingStateHandler;
+import eu.tanov.gps.gpxmergeheartrate.parsestates.OutsideTrkptStateHandler;
+import eu.tanov.gps.gpxmergeheartrate.parsestates.StateHandler;
+
+/**
+ * Only the {@link StateHandler}s of the event engine - the events are read once per trial and the writer discards them,
+ * so the allocations are those of the state handlers (and of the heart rate lookup). Run it with the GC profiler for the
+ * allocation rate: <code>java -jar target/benchmarks.jar StateHandlerBenchmark -prof gc</code> and compare
+ * <code>gc.alloc.rate.norm</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Duser.timezone=Europe/Sofia")
+public class StateHandlerBenchmark {
+	@Param({ "10000" })
+	private int points;
+
+	private final List<XMLEvent> events = new ArrayList<>();
+	private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+	private HeartRateIndex heartRates;
+
+	@Setup
+	public void setUp() throws IOException, XMLStreamException {
+		final Path gpx = SyntheticData.createGpx(points);
+		final XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		try (InputStream source = Files.newInputStream(gpx)) {
+			final XMLEventReader reader = factory.createXMLEventReader(source);
+			while (reader.hasNext()) {
+				events.add(reader.nextEvent());
+			}
+			reader.close();
+		}
+		Files.delete(gpx);
+		final Path csv = SyntheticData.createHeartRates(Dialect.MI_BAND_TOOLS, SyntheticData.heartRatesFor(points));
+		heartRates = new HeartRateCsvParser().parse(csv);
+		Files.delete(csv);
+	}
+
+	@Benchmark
+	public Statistics handleEvents() throws Exception {
+		final HeartRateProvider heartRateProvider = new HeartRateProvider(heartRates);
+		StateHandler currentState = new OutsideTrkptStateHandler(heartRateProvider,
+				IdentatingStateHandler.createInitialData(eventFactory, new DiscardingEventWriter()));
+		for (final XMLEvent next : events) {
+			currentState = currentState.handleEvent(next);
+		}
+		return heartRateProvider.getStatistics();
+	}
+
+	private static class DiscardingEventWriter implements XMLEventWriter {
+		@Override
+		public void add(XMLEvent event) {
+		}
+
+		@Override
+		public void add(XMLEventReader reader) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public String getPrefix(String uri) {
+			return null;
+		}
+
+		@Override
+		public void setPrefix(String prefix, String uri) {
+		}
+
+		@Override
+		public void setDefaultNamespace(String uri) {
+		}
+
+		@Override
+		public void setNamespaceContext(NamespaceContext context) {
+		}
+
+		@Override
+		public NamespaceContext getNamespaceContext() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package eu.tanov.gps.gpxmergeheartrate.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Generates gpx tracks and heart rate CSV files of any size. Heart rates are recorded every {@link #HEART_RATE_STEP},
+ * shifted with {@link #HEART_RATE_SHIFT} from the track points, so most of the track points are not an exact match.
+ * <p>
+ * Can be used from the command line too: <code>SyntheticData gpx|mibandtools|notifyfitnessformiband &lt;points&gt;
+ * &lt;result file&gt;</code>
+ */
+public class SyntheticData {
+	public static final Instant START = Instant.parse("2020-05-20T05:00:00Z");
+	public static final Duration TRACK_POINT_STEP = Duration.ofSeconds(1);
+	public static final Duration HEART_RATE_STEP = Duration.ofSeconds(5);
+	public static final Duration HEART_RATE_SHIFT = Duration.ofSeconds(2);
+
+	private static final DateTimeFormatter MI_BAND_TOOLS_DATE_TIME = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss");
+	private static final DateTimeFormatter NOTIFY_DATE = DateTimeFormatter.ofPattern("d MMMM yyyy", Locale.ENGLISH);
+	private static final DateTimeFormatter NOTIFY_TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+	public enum Dialect {
+		/**
+		 * <code>10.11.2018 07:24:58,83,43%</code>
+		 */
+		MI_BAND_TOOLS("mibandtools", "dateTime,rate,rateZone"),
+		/**
+		 * <code>83;1541827498000;10 November 2018;07:24:58</code>
+		 */
+		NOTIFY_FITNESS_FOR_MI_BAND("notifyfitnessformiband", "Heart rate;Timestamp;Date;Time");
+
+		private final String name;
+		private final String header;
+
+		private Dialect(String name, String header) {
+			this.name = name;
+			this.header = header;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("3 parameters expected: gpx|mibandtools|notifyfitnessformiband <points> <result file>");
+			System.exit(1);
+		}
+		final int points = Integer.parseInt(args[1]);
+		try (OutputStream result = Files.newOutputStream(Paths.get(args[2]))) {
+			if (args[0].equals("gpx")) {
+				writeGpx(result, points);
+				return;
+			}
+			for (final Dialect next : Dialect.values()) {
+				if (next.name.equals(args[0])) {
+					writeHeartRates(result, next, points, ZoneId.systemDefault());
+					return;
+				}
+			}
+			throw new IllegalArgumentException("Unknown type: " + args[0]);
+		}
+	}
+
+	/**
+	 * @return count of heart rates that cover a track with <code>trackPoints</code>
+	 */
+	public static int heartRatesFor(int trackPoints) {
+		return (int) (trackPoints * TRACK_POINT_STEP.toMillis() / HEART_RATE_STEP.toMillis()) + 1;
+	}
+
+	public static Instant trackPointTime(int index) {
+		return START.plus(TRACK_POINT_STEP.multipliedBy(index));
+	}
+
+	public static Instant heartRateTime(int index) {
+		return START.plus(HEART_RATE_SHIFT).plus(HEART_RATE_STEP.multipliedBy(index));
+	}
+
+	public static int heartRate(int index) {
+		return 60 + (index * 7) % 120;
+	}
+
+	public static void writeGpx(OutputStream result, int points) throws IOException {
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(result, StandardCharsets.UTF_8), 1 << 16);
+		writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\" ?>\n");
+		writer.write("<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" creator=\"SyntheticData\" version=\"1.1\">\n");
+		writer.write("\t<trk>\n\t\t<name>Synthetic</name>\n\t\t<trkseg>\n");
+		for (int i = 0; i < points; i++) {
+			writer.write("\t\t\t<trkpt lat=\"");
+			writer.write(Double.toString(42.5 + i * 0.000001));
+			writer.write("\" lon=\"");
+			writer.write(Double.toString(23.3 + i * 0.000001));
+			writer.write("\"><ele>");
+			writer.write(Integer.toString(1800 + i % 100));
+			writer.write("</ele><time>");
+			writer.write(DateTimeFormatter.ISO_INSTANT.format(trackPointTime(i)));
+			writer.write("</time></trkpt>\n");
+		}
+		writer.write("\t\t</trkseg>\n\t</trk>\n</gpx>\n");
+		writer.flush();
+	}
+
+	public static void writeHeartRates(OutputStream result, Dialect dialect, int points, ZoneId zone) throws IOException {
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(result, StandardCharsets.UTF_8), 1 << 16);
+		writer.write(dialect.header);
+		writer.write('\n');
+		for (int i = 0; i < points; i++) {
+			final Instant time = heartRateTime(i);
+			final int rate = heartRate(i);
+			final ZonedDateTime local = time.atZone(zone);
+			switch (dialect) {
+			case MI_BAND_TOOLS:
+				writer.write(MI_BAND_TOOLS_DATE_TIME.format(local));
+				writer.write(',');
+				writer.write(Integer.toString(rate));
+				writer.write(',');
+				writer.write(Integer.toString(Math.min(100, 100 * rate / 190)));
+				writer.write("%\n");
+				break;
+			case NOTIFY_FITNESS_FOR_MI_BAND:
+				writer.write(Integer.toString(rate));
+				writer.write(';');
+				writer.write(Long.toString(time.toEpochMilli()));
+				writer.write(';');
+				writer.write(NOTIFY_DATE.format(local));
+				writer.write(';');
+				writer.write(NOTIFY_TIME.format(local));
+				writer.write('\n');
+				break;
+			}
+		}
+		writer.flush();
+	}
+
+	/**
+	 * @return temporary gpx file, deleted on exit
+	 */
+	public static Path createGpx(int points) throws IOException {
+		final Path result = createTempFile(".gpx");
+		try (OutputStream stream = Files.newOutputStream(result)) {
+			writeGpx(stream, points);
+		}
+		return result;
+	}
+
+	/**
+	 * @return temporary CSV file in the default timezone, deleted on exit
+	 */
+	public static Path createHeartRates(Dialect dialect, int points) throws IOException {
+		final Path result = createTempFile(".csv");
+		try (OutputStream stream = Files.newOutputStream(result)) {
+			writeHeartRates(stream, dialect, points, ZoneId.systemDefault());
+		}
+		return result;
+	}
+
+	private static Path createTempFile(String suffix) throws IOException {
+		final Path result = Files.createTempFile("gpxmergeheartrate-", suffix);
+		result.toFile().deleteOnExit();
+		return result;
+	}
+}
@@ -0,0 +1,176 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Output stage in its own thread - the bytes are collected in big direct buffers and a full buffer is passed through a
+ * {@link PipelineStage} to the thread that writes it to the channel, so the merge does not wait for the disk. The buffers
+ * are reused, at most <code>buffers</code> of them are allocated - when all of them wait to be written the writes wait too.
+ * <p>
+ * {@link #flush()} only passes the collected bytes to the thread, {@link #close()} waits until everything is written and
+ * closes the channel. Errors of the thread are thrown by the next write, flush or close. Not thread safe - one thread
+ * writes, the metrics can be read from any thread.
+ */
+public final class AsyncOutputStream extends OutputStream {
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+	public static final int DEFAULT_BUFFERS = 4;
+
+	private final WritableByteChannel channel;
+	private final int bufferSize;
+	private final int buffers;
+	private final PipelineStage<ByteBuffer> stage;
+	private ByteBuffer current;
+	private boolean closed = false;
+
+	private volatile long bytesWritten = 0;
+
+	public AsyncOutputStream(WritableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFERS, "output");
+	}
+
+	/**
+	 * @param buffers
+	 *            at least 2 - one is filled while the other is written
+	 */
+	public AsyncOutputStream(WritableByteChannel channel, int bufferSize, int buffers, String threadName) {
+		if (bufferSize <= 0 || buffers < 2) {
+			throw new IllegalArgumentException("Buffer size must be positive and buffers at least 2, but were: " + bufferSize
+					+ ", " + buffers);
+		}
+		this.channel = channel;
+		this.bufferSize = bufferSize;
+		this.buffers = buffers;
+		this.stage = PipelineStage.consuming(threadName, buffers, () -> ByteBuffer.allocateDirect(bufferSize),
+				ByteBuffer::clear, this::write, channel);
+		this.current = stage.create();
+	}
+
+	/**
+	 * Creates or truncates the file
+	 */
+	public static AsyncOutputStream open(Path file) throws IOException {
+		return new AsyncOutputStream(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING));
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		long written = bytesWritten;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer);
+		}
+		bytesWritten = written;
+	}
+
+	/**
+	 * Passes the current buffer to the thread and takes a free one
+	 */
+	private void passCurrent() throws IOException {
+		stage.checkError();
+		if (current.position() == 0) {
+			return;
+		}
+		current.flip();
+		stage.pass(current);
+		current = stage.allocate();
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		checkOpen();
+		if (!current.hasRemaining()) {
+			passCurrent();
+		}
+		current.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		while (len > 0) {
+			if (!current.hasRemaining()) {
+				passCurrent();
+			}
+			final int count = Math.min(len, current.remaining());
+			current.put(b, off, count);
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Passes the collected bytes to the thread, does not wait for them to be written
+	 */
+	@Override
+	public void flush() throws IOException {
+		checkOpen();
+		passCurrent();
+	}
+
+	/**
+	 * Waits for all bytes to be written and the channel to be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			passCurrent();
+		} finally {
+			stage.finish();
+		}
+	}
+
+	/**
+	 * @return written to the channel so far
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * @return full buffers waiting to be written now
+	 */
+	public int getQueueDepth() {
+		return stage.getQueueDepth();
+	}
+
+	public int getMaximumQueueDepth() {
+		return stage.getMaximumQueueDepth();
+	}
+
+	/**
+	 * @return how long the writes waited for a free buffer - for the disk
+	 */
+	public long getWaitNanos() {
+		return stage.getWaitNanos();
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getBuffers() {
+		return buffers;
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncOutputStream [bytesWritten=" + bytesWritten + ", queueDepth=" + getQueueDepth()
+				+ ", maximumQueueDepth=" + getMaximumQueueDepth() + ", waitMillis=" + getWaitNanos() / 1_000_000
+				+ ", buffers=" + stage.getAllocated() + "/" + buffers + " x " + bufferSize + "]";
+	}
+}
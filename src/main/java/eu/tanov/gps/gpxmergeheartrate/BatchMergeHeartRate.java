@@ -0,0 +1,254 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.Statistics;
+import eu.tanov.gps.gpxmergeheartrate.metrics.LongAdderMetrics;
+import eu.tanov.gps.gpxmergeheartrate.metrics.MetricsRegistry;
+import eu.tanov.gps.gpxmergeheartrate.metrics.MetricsRegistry.Phase;
+
+/**
+ * Merges many gpx files with the same heart rate files. Heart rates are parsed once and the gpx files are processed in
+ * parallel.
+ */
+public class BatchMergeHeartRate {
+	static final String OPTION_BATCH = "batch";
+	private static final String OPTION_THREADS = "threads";
+	static final String OPTION_MAXIMUM_HEART_RATE = "max-heart-rate";
+	private static final String GPX_GLOB = "*.{gpx,gpx.gz,gpx.zip}";
+
+	public static final String USAGE = "--" + OPTION_BATCH
+			+ " <input gpx directory or glob> <result directory> <input csv heart rate file>... "
+			+ "[--" + OPTION_THREADS + "=<count>] [--" + OPTION_MAXIMUM_HEART_RATE + "=<max heart rate>] "
+			+ "[--" + GpxMergeHeartRate.OPTION_ENGINE + "=event|cursor] [--" + GpxMergeHeartRate.OPTION_COMPACT + "] "
+			+ "[--" + GpxMergeHeartRate.OPTION_GZIP + "] [--" + GpxMergeHeartRate.OPTION_METRICS + "] "
+			+ "[--" + GpxMergeHeartRate.OPTION_CACHE + "[=<cache directory>]] "
+			+ "[--" + GpxMergeHeartRate.OPTION_CONFLICT + "=first|average|maximum] " + GpxMergeHeartRate.LOOKUP_USAGE;
+
+	public static class Result {
+		private final Map<Path, Statistics> statistics;
+		private final Map<Path, Exception> errors;
+
+		public Result(Map<Path, Statistics> statistics, Map<Path, Exception> errors) {
+			this.statistics = Collections.unmodifiableMap(statistics);
+			this.errors = Collections.unmodifiableMap(errors);
+		}
+
+		/**
+		 * @return statistics of successfully processed files in input order
+		 */
+		public Map<Path, Statistics> getStatistics() {
+			return statistics;
+		}
+
+		public Map<Path, Exception> getErrors() {
+			return errors;
+		}
+
+		public Statistics getTotal() {
+			return statistics.values().stream().reduce(new Statistics(0, 0), Statistics::add);
+		}
+
+		@Override
+		public String toString() {
+			return "Result [total=" + getTotal() + ", files=" + statistics.size() + ", errors=" + errors.size() + "]";
+		}
+	}
+
+	private final GpxMergeHeartRate gpxMergeHeartRate;
+	private final int threads;
+	private final HeartRateLookup lookup;
+	private final boolean timeLookups;
+
+	public BatchMergeHeartRate(GpxMergeHeartRate gpxMergeHeartRate, int threads) {
+		this(gpxMergeHeartRate, threads, HeartRateLookup.NEAREST);
+	}
+
+	public BatchMergeHeartRate(GpxMergeHeartRate gpxMergeHeartRate, int threads, HeartRateLookup lookup) {
+		this(gpxMergeHeartRate, threads, lookup, false);
+	}
+
+	/**
+	 * @param timeLookups
+	 *            see {@link HeartRateProvider#HeartRateProvider(HeartRateIndex, HeartRateLookup, boolean)}
+	 */
+	public BatchMergeHeartRate(GpxMergeHeartRate gpxMergeHeartRate, int threads, HeartRateLookup lookup,
+			boolean timeLookups) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Threads must be positive, but was: " + threads);
+		}
+		this.gpxMergeHeartRate = gpxMergeHeartRate;
+		this.threads = threads;
+		this.lookup = Objects.requireNonNull(lookup);
+		this.timeLookups = timeLookups;
+	}
+
+	public static void run(CommandLine commandLine) throws Exception {
+		commandLine.checkOptions(OPTION_BATCH, OPTION_THREADS, OPTION_MAXIMUM_HEART_RATE, GpxMergeHeartRate.OPTION_ENGINE,
+				GpxMergeHeartRate.OPTION_CACHE, GpxMergeHeartRate.OPTION_CONFLICT, GpxMergeHeartRate.OPTION_LOOKUP,
+				GpxMergeHeartRate.OPTION_WINDOW, GpxMergeHeartRate.OPTION_TOLERANCE, GpxMergeHeartRate.OPTION_COMPACT,
+				GpxMergeHeartRate.OPTION_GZIP, GpxMergeHeartRate.OPTION_METRICS);
+		final int threads = commandLine.getIntOption(OPTION_THREADS, Runtime.getRuntime().availableProcessors());
+		final int maximumHeartRate =
+				commandLine.getIntOption(OPTION_MAXIMUM_HEART_RATE, HeartRateCsvParser.DEFAULT_MAXIMUM_HEART_RATE);
+		final List<String> arguments = commandLine.getArguments();
+		if (arguments.size() < 3) {
+			System.err.println("At least 3 parameters expected: " + USAGE);
+			System.exit(1);
+		}
+
+		final List<Path> gpxFiles = findGpxFiles(arguments.get(0));
+		final Path resultDirectory = Paths.get(arguments.get(1));
+		final List<Path> heartRateFiles =
+				arguments.subList(2, arguments.size()).stream().map(Paths::get).collect(Collectors.toList());
+		final LongAdderMetrics summary = new LongAdderMetrics();
+		final MetricsRegistry metrics = GpxMergeHeartRate.createMetrics(commandLine, summary);
+		final HeartRateIndex heartRates = GpxMergeHeartRate.loadHeartRates(commandLine, heartRateFiles,
+				new HeartRateCsvParser(maximumHeartRate, metrics), true);
+		GpxMergeHeartRate.printHeartRates(heartRates);
+
+		final GpxMergeHeartRate gpxMergeHeartRate =
+				new GpxMergeHeartRate.Builder().engine(GpxMergeHeartRate.parseEngine(commandLine))
+						.prettyPrint(!commandLine.hasOption(GpxMergeHeartRate.OPTION_COMPACT))
+						.gzipOutput(commandLine.hasOption(GpxMergeHeartRate.OPTION_GZIP)).metrics(metrics).build();
+		final Result result = new BatchMergeHeartRate(gpxMergeHeartRate, threads, GpxMergeHeartRate.parseLookup(commandLine),
+				commandLine.hasOption(GpxMergeHeartRate.OPTION_METRICS)).process(gpxFiles, heartRates, resultDirectory);
+
+		for (final Entry<Path, Statistics> next : result.getStatistics().entrySet()) {
+			printStatistics(next.getKey().toString(), next.getValue());
+		}
+		for (final Entry<Path, Exception> next : result.getErrors().entrySet()) {
+			System.err.printf("Failed %s: %s\n", next.getKey(), next.getValue());
+		}
+		printStatistics("total", result.getTotal());
+		System.out.printf("Search: %s\n", result.getTotal().getSearchCounts());
+		GpxMergeHeartRate.printMetrics(commandLine, summary);
+		if (!result.getErrors().isEmpty()) {
+			System.exit(2);
+		}
+	}
+
+	private static void printStatistics(String name, Statistics statistics) {
+		System.out.printf("Processed %s: %d/%d\n", name, statistics.getCountSucceed(),
+				(statistics.getCountSucceed() + statistics.getCountFailed()));
+	}
+
+	/**
+	 * @param directoryOrGlob
+	 *            all *.gpx (and *.gpx.gz, *.gpx.zip) files in a directory or glob for the file name, e.g. <code>/data/2020-*.gpx</code>
+	 * @return sorted files
+	 */
+	public static List<Path> findGpxFiles(String directoryOrGlob) throws IOException {
+		final Path path = Paths.get(directoryOrGlob);
+		final Path directory;
+		final String glob;
+		if (Files.isDirectory(path)) {
+			directory = path;
+			glob = GPX_GLOB;
+		} else {
+			directory = path.getParent() == null ? Paths.get(".") : path.getParent();
+			glob = path.getFileName().toString();
+		}
+
+		final List<Path> result = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+			for (final Path next : stream) {
+				if (Files.isRegularFile(next)) {
+					result.add(next);
+				}
+			}
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Result files have the same names as the input files without <code>.gz</code> and <code>.zip</code>, with
+	 * <code>.gz</code> for {@link GpxMergeHeartRate#isGzipOutput()}. Inputs with the same result file (e.g.
+	 * <code>a.gpx</code> and <code>a.gpx.gz</code>) are not allowed.
+	 */
+	public Result process(List<Path> gpxFiles, HeartRateIndex heartRates, Path resultDirectory)
+			throws IOException, InterruptedException {
+		Files.createDirectories(resultDirectory);
+
+		final Map<Path, Path> resultFiles = new LinkedHashMap<>();
+		// e.g. x.gpx and x.gpx.gz have the same result file
+		final Map<Path, Path> inputFiles = new HashMap<>();
+		for (final Path gpxFile : gpxFiles) {
+			final Path resultFile = resultDirectory.resolve(getResultFileName(gpxFile));
+			if (Files.exists(resultFile) && Files.isSameFile(gpxFile, resultFile)) {
+				throw new IllegalArgumentException("Result file will overwrite the input: " + gpxFile);
+			}
+			final Path other = inputFiles.putIfAbsent(resultFile, gpxFile);
+			if (other != null) {
+				throw new IllegalArgumentException("Same result file " + resultFile + " for " + other + " and " + gpxFile);
+			}
+			resultFiles.put(gpxFile, resultFile);
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, gpxFiles.size())));
+		try {
+			final Map<Path, Future<Statistics>> futures = new LinkedHashMap<>();
+			for (final Entry<Path, Path> next : resultFiles.entrySet()) {
+				futures.put(next.getKey(), executor.submit(() -> processFile(next.getKey(), heartRates, next.getValue())));
+			}
+
+			final Map<Path, Statistics> statistics = new LinkedHashMap<>();
+			final Map<Path, Exception> errors = new LinkedHashMap<>();
+			for (final Entry<Path, Future<Statistics>> next : futures.entrySet()) {
+				try {
+					statistics.put(next.getKey(), next.getValue().get());
+				} catch (final ExecutionException e) {
+					final Throwable cause = e.getCause();
+					errors.put(next.getKey(), cause instanceof Exception ? (Exception) cause : e);
+				}
+			}
+			return new Result(statistics, errors);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private String getResultFileName(Path gpxFile) {
+		String result = gpxFile.getFileName().toString();
+		for (final String extension : Arrays.asList(Compression.GZIP_EXTENSION, Compression.ZIP_EXTENSION)) {
+			if (result.endsWith(extension)) {
+				result = result.substring(0, result.length() - extension.length());
+			}
+		}
+		return gpxMergeHeartRate.isGzipOutput() ? result + Compression.GZIP_EXTENSION : result;
+	}
+
+	private Statistics processFile(Path gpxFile, HeartRateIndex heartRates, Path resultFile) throws Exception {
+		try (InputStream gpxInputStream = GpxMergeHeartRate.openInput(gpxFile)) {
+			final AsyncOutputStream resultStream = AsyncOutputStream.open(resultFile);
+			final Statistics result;
+			try (OutputStream output = resultStream) {
+				result = gpxMergeHeartRate.process(gpxInputStream, new HeartRateProvider(heartRates, lookup, timeLookups),
+						output);
+			}
+			gpxMergeHeartRate.getMetrics().recordPhase(Phase.OUTPUT_WAIT, resultStream.getWaitNanos());
+			return result;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Positional arguments and <code>--name=value</code> (or just <code>--name</code>) options
+ */
+public class CommandLine {
+	private static final String OPTION_PREFIX = "--";
+
+	private final List<String> arguments = new ArrayList<>();
+	private final Map<String, String> options = new LinkedHashMap<>();
+
+	public CommandLine(String[] args) {
+		for (final String next : args) {
+			if (next.startsWith(OPTION_PREFIX)) {
+				final int separator = next.indexOf('=');
+				if (separator < 0) {
+					options.put(next.substring(OPTION_PREFIX.length()), "");
+				} else {
+					options.put(next.substring(OPTION_PREFIX.length(), separator), next.substring(separator + 1));
+				}
+			} else {
+				arguments.add(next);
+			}
+		}
+	}
+
+	public List<String> getArguments() {
+		return Collections.unmodifiableList(arguments);
+	}
+
+	public boolean hasOption(String name) {
+		return options.containsKey(name);
+	}
+
+	public Optional<String> getOption(String name) {
+		return Optional.ofNullable(options.get(name));
+	}
+
+	public int getIntOption(String name, int defaultValue) {
+		return getOption(name).map(Integer::valueOf).orElse(defaultValue);
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if there is an option that is not in <code>known</code>
+	 */
+	public void checkOptions(String... known) {
+		final Set<String> unknown = new HashSet<>(options.keySet());
+		unknown.removeAll(Arrays.asList(known));
+		if (!unknown.isEmpty()) {
+			throw new IllegalArgumentException("Unknown options: " + unknown);
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if <code>option</code> is given with one of <code>others</code>
+	 */
+	public void checkNotCombined(String option, String... others) {
+		if (!hasOption(option)) {
+			return;
+		}
+		final List<String> combined = new ArrayList<>();
+		for (final String next : others) {
+			if (hasOption(next)) {
+				combined.add(OPTION_PREFIX + next);
+			}
+		}
+		if (!combined.isEmpty()) {
+			throw new IllegalArgumentException(OPTION_PREFIX + option + " can't be combined with " + combined);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Gzip and zip input (recognized by the first bytes, not by the file name) and gzip output. The decompression and the
+ * compression run in their own threads and pass pooled chunks through a {@link PipelineStage}, so they overlap with the
+ * parsing and the writing of the XML - there are no temporary files.
+ * <p>
+ * The streams of the caller are never closed - closing the returned streams stops their thread and finishes the gzip
+ * output.
+ */
+final class Compression {
+	static final String GZIP_EXTENSION = ".gz";
+	static final String ZIP_EXTENSION = ".zip";
+
+	private static final int HEADER_LENGTH = 4;
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int QUEUED_CHUNKS = 16;
+
+	enum Format {
+		PLAIN, GZIP, ZIP
+	}
+
+	private Compression() {
+	}
+
+	static Format detect(byte[] header, int length) {
+		if (length >= 2 && header[0] == (byte) 0x1f && header[1] == (byte) 0x8b) {
+			return Format.GZIP;
+		}
+		if (length >= 4 && header[0] == 'P' && header[1] == 'K' && header[2] == 3 && header[3] == 4) {
+			return Format.ZIP;
+		}
+		return Format.PLAIN;
+	}
+
+	static Format detect(Path file) throws IOException {
+		try (InputStream input = Files.newInputStream(file)) {
+			final byte[] header = new byte[HEADER_LENGTH];
+			return detect(header, readFully(input, header));
+		}
+	}
+
+	/**
+	 * @return the same bytes for plain input, the content for gzip and the first file for zip
+	 */
+	static InputStream decompress(InputStream input) throws IOException {
+		return open(new UnclosableInputStream(input));
+	}
+
+	/**
+	 * Like {@link #decompress(InputStream)}, closing the result closes the file
+	 */
+	static InputStream decompress(Path file) throws IOException {
+		final InputStream input = Files.newInputStream(file);
+		try {
+			return open(input);
+		} catch (final IOException e) {
+			input.close();
+			throw e;
+		}
+	}
+
+	private static InputStream open(InputStream input) throws IOException {
+		final PushbackInputStream result = new PushbackInputStream(input, HEADER_LENGTH);
+		final byte[] header = new byte[HEADER_LENGTH];
+		final int length = readFully(result, header);
+		result.unread(header, 0, length);
+		switch (detect(header, length)) {
+		case GZIP:
+			return new DecompressingInputStream(new GZIPInputStream(result, CHUNK_SIZE));
+		case ZIP:
+			final ZipInputStream zip = new ZipInputStream(result);
+			for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+				if (!entry.isDirectory()) {
+					return new DecompressingInputStream(zip);
+				}
+			}
+			zip.close();
+			throw new IOException("No file in the zip archive");
+		default:
+			return result;
+		}
+	}
+
+	/**
+	 * @return gzip stream to the output, it must be closed to write the end of the gzip - the chunks are compressed in
+	 *         its own thread, see {@link AsyncOutputStream}
+	 */
+	static AsyncOutputStream compress(OutputStream output) throws IOException {
+		return new AsyncOutputStream(
+				Channels.newChannel(new GZIPOutputStream(new UnclosableOutputStream(output), CHUNK_SIZE)), CHUNK_SIZE,
+				QUEUED_CHUNKS, "compression");
+	}
+
+	private static int readFully(InputStream input, byte[] buffer) throws IOException {
+		int result = 0;
+		while (result < buffer.length) {
+			final int count = input.read(buffer, result, buffer.length - result);
+			if (count < 0) {
+				break;
+			}
+			result += count;
+		}
+		return result;
+	}
+
+	/**
+	 * Bytes read from the source - the last one of the source may be partly filled
+	 */
+	private static class Chunk {
+		private final byte[] bytes = new byte[CHUNK_SIZE];
+		private int length = 0;
+	}
+
+	/**
+	 * Reads the source in its own thread, the chunks are read from a {@link PipelineStage} and returned to it when read
+	 */
+	private static class DecompressingInputStream extends InputStream {
+		private final PipelineStage<Chunk> stage;
+		// null before the first chunk and after the last one
+		private Chunk chunk;
+		private int position = 0;
+		private boolean isEnd = false;
+
+		DecompressingInputStream(InputStream source) {
+			stage = PipelineStage.producing("decompression", QUEUED_CHUNKS, Chunk::new, a -> a.length = 0,
+					a -> (a.length = readFully(source, a.bytes)) > 0, source);
+		}
+
+		/**
+		 * @return false at the end
+		 */
+		private boolean nextChunk() throws IOException {
+			if (chunk != null && position < chunk.length) {
+				return true;
+			}
+			if (chunk != null) {
+				stage.recycle(chunk);
+				chunk = null;
+			}
+			if (isEnd) {
+				return false;
+			}
+			// also after an error
+			isEnd = true;
+			chunk = stage.take();
+			position = 0;
+			isEnd = chunk == null;
+			return !isEnd;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return nextChunk() ? chunk.bytes[position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextChunk()) {
+				return -1;
+			}
+			final int result = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk.bytes, position, b, off, result);
+			position += result;
+			return result;
+		}
+
+		@Override
+		public int available() {
+			return chunk == null ? 0 : chunk.length - position;
+		}
+
+		@Override
+		public void close() throws IOException {
+			stage.cancel();
+			chunk = null;
+			isEnd = true;
+		}
+	}
+
+	private static class UnclosableInputStream extends FilterInputStream {
+		UnclosableInputStream(InputStream input) {
+			super(input);
+		}
+
+		@Override
+		public void close() {
+			// the caller closes it
+		}
+	}
+
+	private static class UnclosableOutputStream extends FilterOutputStream {
+		UnclosableOutputStream(OutputStream output) {
+			super(output);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			// the caller closes it
+			flush();
+		}
+	}
+}
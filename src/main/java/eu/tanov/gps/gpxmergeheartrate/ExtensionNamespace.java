@@ -0,0 +1,40 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.util.Objects;
+
+/**
+ * Prefix and URI of the track point extension with the heart rate (<code>TrackPointExtension</code> and <code>hr</code>
+ * elements). The prefix is declared on the root element if it is not declared yet, a declaration with another URI is an
+ * error.
+ */
+public class ExtensionNamespace {
+	/**
+	 * <code>gpxtpx</code> for Garmin TrackPointExtension v1 - as Garmin devices write it
+	 */
+	public static final ExtensionNamespace DEFAULT =
+			new ExtensionNamespace(GpxMergeHeartRate.EXTENSION_PREFIX, GpxMergeHeartRate.EXTENSION_URI);
+
+	private final String prefix;
+	private final String uri;
+
+	public ExtensionNamespace(String prefix, String uri) {
+		this.prefix = Objects.requireNonNull(prefix);
+		this.uri = Objects.requireNonNull(uri);
+		if (prefix.isEmpty() || uri.isEmpty()) {
+			throw new IllegalArgumentException("Prefix and URI must not be empty, but were: " + prefix + ", " + uri);
+		}
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	@Override
+	public String toString() {
+		return "ExtensionNamespace [prefix=" + prefix + ", uri=" + uri + "]";
+	}
+}
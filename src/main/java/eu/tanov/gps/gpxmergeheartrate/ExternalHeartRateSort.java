@@ -0,0 +1,255 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts samples that don't fit in memory. Runs of at most <code>runSize</code> samples are sorted in memory and spilled
+ * to temporary files, then they are merged - at most <code>fanIn</code> at a time - until one file is left. The sort is
+ * stable: samples with the same time stay in the order they were read.
+ * <p>
+ * The files have the records of {@link HeartRateIndexCache} without a header - time, rate and rate zone.
+ */
+final class ExternalHeartRateSort {
+	static final int DEFAULT_RUN_SIZE = 256 * 1024;
+	static final int DEFAULT_FAN_IN = 64;
+
+	private static final int RECORD_SIZE = Long.BYTES + Short.BYTES + Byte.BYTES;
+	private static final int BUFFER_SIZE = 64 * 1024 / RECORD_SIZE * RECORD_SIZE;
+	private static final String PREFIX = "heart-rates-";
+	private static final String SUFFIX = ".run";
+
+	private final int runSize;
+	private final int fanIn;
+	private final Optional<Path> directory;
+	private int spilledRuns = 0;
+
+	ExternalHeartRateSort() {
+		this(DEFAULT_RUN_SIZE, DEFAULT_FAN_IN, Optional.empty());
+	}
+
+	/**
+	 * @param fanIn
+	 *            at least 2
+	 * @param directory
+	 *            of the temporary files, the default temporary directory if empty
+	 */
+	ExternalHeartRateSort(int runSize, int fanIn, Optional<Path> directory) {
+		if (runSize <= 0 || fanIn < 2) {
+			throw new IllegalArgumentException("Run size must be positive and fan-in at least 2, but were: " + runSize + ", " + fanIn);
+		}
+		this.runSize = runSize;
+		this.fanIn = fanIn;
+		this.directory = directory;
+	}
+
+	/**
+	 * @return a temporary file with all samples in time order, read it with {@link #read(Path)} and delete it after that
+	 */
+	Path sort(HeartRateSamples input) throws IOException {
+		spilledRuns = 0;
+		List<Path> runs = new ArrayList<>();
+		try {
+			HeartRateIndex.Builder run = new HeartRateIndex.Builder(Math.min(runSize, 1024));
+			while (input.next()) {
+				run.add(input.getTime(), input.getRate(), input.getRateZone());
+				if (run.size() == runSize) {
+					runs.add(spill(run));
+					run = new HeartRateIndex.Builder(runSize);
+				}
+			}
+			if (run.size() > 0 || runs.isEmpty()) {
+				runs.add(spill(run));
+			}
+			// consecutive runs are merged so the samples with the same time stay in order
+			while (runs.size() > 1) {
+				final List<Path> merged = new ArrayList<>();
+				try {
+					for (int i = 0; i < runs.size(); i += fanIn) {
+						final List<Path> group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+						merged.add(group.size() == 1 ? group.get(0) : merge(group));
+					}
+				} catch (final IOException | RuntimeException e) {
+					delete(merged);
+					throw e;
+				}
+				runs = merged;
+			}
+			return runs.get(0);
+		} catch (final IOException | RuntimeException e) {
+			delete(runs);
+			throw e;
+		}
+	}
+
+	private static void delete(List<Path> files) throws IOException {
+		for (final Path next : files) {
+			Files.deleteIfExists(next);
+		}
+	}
+
+	/**
+	 * @return runs spilled by the last {@link #sort(HeartRateSamples)}
+	 */
+	int getSpilledRuns() {
+		return spilledRuns;
+	}
+
+	private Path spill(HeartRateIndex.Builder run) throws IOException {
+		final HeartRateIndex sorted = run.sort().build();
+		final Path result = createTempFile();
+		spilledRuns++;
+		try (RunWriter writer = new RunWriter(result)) {
+			for (int i = 0; i < sorted.size(); i++) {
+				writer.write(sorted.getTime(i), sorted.getRate(i), sorted.getRateZone(i));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * K-way merge with a heap - on the same time the earlier run is first. The merged runs are deleted.
+	 */
+	private Path merge(List<Path> runs) throws IOException {
+		final Path result = createTempFile();
+		final List<RunReader> readers = new ArrayList<>();
+		try {
+			final PriorityQueue<RunReader> heap = new PriorityQueue<>(runs.size(),
+					(a, b) -> a.time != b.time ? Long.compare(a.time, b.time) : Integer.compare(a.order, b.order));
+			for (final Path next : runs) {
+				final RunReader reader = new RunReader(next, readers.size());
+				readers.add(reader);
+				if (reader.next()) {
+					heap.add(reader);
+				}
+			}
+			try (RunWriter writer = new RunWriter(result)) {
+				while (!heap.isEmpty()) {
+					final RunReader next = heap.poll();
+					writer.write(next.time, next.rate, next.rateZone);
+					if (next.next()) {
+						heap.add(next);
+					}
+				}
+			}
+		} catch (final IOException | RuntimeException e) {
+			Files.deleteIfExists(result);
+			throw e;
+		} finally {
+			for (final RunReader next : readers) {
+				next.close();
+			}
+		}
+		delete(runs);
+		return result;
+	}
+
+	private Path createTempFile() throws IOException {
+		return directory.isPresent() ? Files.createTempFile(directory.get(), PREFIX, SUFFIX)
+				: Files.createTempFile(PREFIX, SUFFIX);
+	}
+
+	/**
+	 * The samples of a file written by {@link #sort(HeartRateSamples)}
+	 */
+	static HeartRateSamples read(Path file) throws IOException {
+		return new RunReader(file, 0);
+	}
+
+	private static class RunWriter implements AutoCloseable {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		RunWriter(Path file) throws IOException {
+			this.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		void write(long time, int rate, int rateZone) throws IOException {
+			if (buffer.remaining() < RECORD_SIZE) {
+				flush();
+			}
+			buffer.putLong(time);
+			buffer.putShort((short) rate);
+			buffer.put((byte) rateZone);
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	private static class RunReader implements HeartRateSamples {
+		private final FileChannel channel;
+		// of the run in the merge
+		private final int order;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private long time;
+		private int rate;
+		private int rateZone;
+
+		RunReader(Path file, int order) throws IOException {
+			this.channel = FileChannel.open(file, StandardOpenOption.READ);
+			this.order = order;
+			buffer.limit(0);
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (buffer.remaining() < RECORD_SIZE) {
+				buffer.compact();
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+					// until the buffer is full or the end
+				}
+				buffer.flip();
+				if (buffer.remaining() < RECORD_SIZE) {
+					return false;
+				}
+			}
+			time = buffer.getLong();
+			rate = buffer.getShort();
+			rateZone = buffer.get() & 0xFF;
+			return true;
+		}
+
+		@Override
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public int getRate() {
+			return rate;
+		}
+
+		@Override
+		public int getRateZone() {
+			return rateZone;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -1,13 +1,27 @@
 package eu.tanov.gps.gpxmergeheartrate;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.stream.XMLEventFactory;
@@ -15,79 +29,799 @@ import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.stream.events.Namespace;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndexMerger.ConflictPolicy;
 import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.Statistics;
+import eu.tanov.gps.gpxmergeheartrate.GpxSegments.Segment;
+import eu.tanov.gps.gpxmergeheartrate.cursor.CursorMerger;
+import eu.tanov.gps.gpxmergeheartrate.metrics.CountingInputStream;
+import eu.tanov.gps.gpxmergeheartrate.metrics.CountingOutputStream;
+import eu.tanov.gps.gpxmergeheartrate.metrics.LongAdderMetrics;
+import eu.tanov.gps.gpxmergeheartrate.metrics.MetricsRegistry;
+import eu.tanov.gps.gpxmergeheartrate.metrics.MetricsRegistry.Phase;
 import eu.tanov.gps.gpxmergeheartrate.parsestates.IdentatingStateHandler;
+import eu.tanov.gps.gpxmergeheartrate.parsestates.Indentation;
 import eu.tanov.gps.gpxmergeheartrate.parsestates.OutsideTrkptStateHandler;
 import eu.tanov.gps.gpxmergeheartrate.parsestates.StateHandler;
+import eu.tanov.gps.gpxmergeheartrate.sink.AsyncTrackPointSink;
+import eu.tanov.gps.gpxmergeheartrate.sink.CsvTrackPointSink;
+import eu.tanov.gps.gpxmergeheartrate.sink.TcxTrackPointSink;
+import eu.tanov.gps.gpxmergeheartrate.sink.TrackPointRecorder;
+import eu.tanov.gps.gpxmergeheartrate.sink.TrackPointSink;
 
+/**
+ * Adds heart rates to gpx files. Immutable and thread safe - create it once and share it, the StAX factories are created
+ * and configured in the constructor and each {@link #process(InputStream, HeartRateProvider, OutputStream)} call only
+ * creates its reader and writer.
+ */
 public class GpxMergeHeartRate {
 	public static final String NAMESPACE_GPX = "http://www.topografix.com/GPX/1/1";
 	public static final String EXTENSION_PREFIX = "gpxtpx";
-	private static final String EXTENSION_URI = "http://www.garmin.com/xmlschemas/TrackPointExtension/v1";
+	public static final String EXTENSION_URI = "http://www.garmin.com/xmlschemas/TrackPointExtension/v1";
+	static final String OPTION_ENGINE = "engine";
+	static final String OPTION_CACHE = "cache";
+	static final String OPTION_CONFLICT = "conflict";
+	static final String OPTION_LOOKUP = "lookup";
+	static final String OPTION_WINDOW = "window";
+	static final String OPTION_TOLERANCE = "tolerance";
+	static final String OPTION_PARALLEL = "parallel";
+	static final String OPTION_TWO_PHASE = "two-phase";
+	static final String OPTION_COMPACT = "compact";
+	static final String OPTION_GZIP = "gzip";
+	static final String OPTION_METRICS = "metrics";
+	static final String OPTION_TCX = "tcx";
+	static final String OPTION_CSV = "csv";
+	static final String OPTION_STREAMING = "streaming";
+	private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+	static final String LOOKUP_USAGE = "[--" + OPTION_LOOKUP + "=nearest|interpolate|average|median] [--" + OPTION_WINDOW
+			+ "=<seconds>] [--" + OPTION_TOLERANCE + "=<seconds>]";
+
+	public enum Engine {
+		/**
+		 * {@link XMLEventReader} and {@link XMLEventWriter} with {@link StateHandler}s
+		 */
+		EVENT,
+		/**
+		 * {@link XMLStreamReader} and {@link XMLStreamWriter} cursors - the same result with less objects. The bytes are
+		 * identical with the StAX implementation of the JDK, with another one the order of the attributes may differ.
+		 */
+		CURSOR
+	}
+
+	private final Engine engine;
+	private final boolean parallelSegments;
+	private final boolean twoPhase;
+	private final boolean prettyPrint;
+	private final boolean gzipOutput;
+	private final MetricsRegistry metrics;
+	private final ExtensionNamespace extensionNamespace;
+	// only read after the constructor - creating readers, writers and events is thread safe
+	private final XMLInputFactory inputFactory;
+	private final XMLOutputFactory outputFactory;
+	private final XMLEventFactory eventFactory;
+
+	public GpxMergeHeartRate() {
+		this(Engine.EVENT);
+	}
+
+	public GpxMergeHeartRate(Engine engine) {
+		this(engine, false);
+	}
+
+	/**
+	 * @param parallelSegments
+	 *            the track segments are merged concurrently in {@link ForkJoinPool#commonPool()} and written in order - the
+	 *            result is the same as without it, see {@link GpxSegments}. The document and the merged segments are kept
+	 *            in byte arrays, so it is limited to documents under 2 GB
+	 */
+	public GpxMergeHeartRate(Engine engine, boolean parallelSegments) {
+		this(new Builder().engine(engine).parallelSegments(parallelSegments));
+	}
+
+	private GpxMergeHeartRate(Builder builder) {
+		this.engine = Objects.requireNonNull(builder.engine);
+		this.parallelSegments = builder.parallelSegments;
+		this.twoPhase = builder.twoPhase;
+		this.prettyPrint = builder.prettyPrint;
+		this.gzipOutput = builder.gzipOutput;
+		this.metrics = Objects.requireNonNull(builder.metrics);
+		this.extensionNamespace = Objects.requireNonNull(builder.extensionNamespace);
+		this.inputFactory = builder.inputFactory != null ? builder.inputFactory : XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		this.outputFactory = builder.outputFactory != null ? builder.outputFactory : XMLOutputFactory.newInstance();
+		this.eventFactory = builder.eventFactory != null ? builder.eventFactory : XMLEventFactory.newInstance();
+	}
+
+	/**
+	 * Options and factories of {@link GpxMergeHeartRate}, by default - as {@link GpxMergeHeartRate#GpxMergeHeartRate()}
+	 */
+	public static class Builder {
+		private Engine engine = Engine.EVENT;
+		private boolean parallelSegments = false;
+		private boolean twoPhase = false;
+		private boolean prettyPrint = true;
+		private boolean gzipOutput = false;
+		private MetricsRegistry metrics = MetricsRegistry.NOOP;
+		private ExtensionNamespace extensionNamespace = ExtensionNamespace.DEFAULT;
+		private XMLInputFactory inputFactory;
+		private XMLOutputFactory outputFactory;
+		private XMLEventFactory eventFactory;
+
+		public Builder engine(Engine engine) {
+			this.engine = engine;
+			return this;
+		}
+
+		/**
+		 * See {@link GpxMergeHeartRate#GpxMergeHeartRate(Engine, boolean)}
+		 */
+		public Builder parallelSegments(boolean parallelSegments) {
+			this.parallelSegments = parallelSegments;
+			return this;
+		}
+
+		/**
+		 * The times of all track points are read first and joined with the heart rates in one pass over both (when the
+		 * times are sorted), then the document is merged with the joined rates - the result is the same as without it.
+		 * The whole document is kept in memory and parsed twice. Segments merged with {@link #parallelSegments(boolean)}
+		 * are looked up as usual.
+		 */
+		public Builder twoPhase(boolean twoPhase) {
+			this.twoPhase = twoPhase;
+			return this;
+		}
+
+		/**
+		 * With pretty print (by default) new line and tabs are added before the elements without whitespace before them -
+		 * all added elements too. Without it nothing is added, e.g. for machine-to-machine use: the whitespace of the input
+		 * is kept and the heart rate elements are written without whitespace.
+		 */
+		public Builder prettyPrint(boolean prettyPrint) {
+			this.prettyPrint = prettyPrint;
+			return this;
+		}
+
+		/**
+		 * The result is gzipped in another thread while it is written. The input is always decompressed if it is gzip or
+		 * zip (the first file in it), see {@link Compression}.
+		 */
+		public Builder gzipOutput(boolean gzipOutput) {
+			this.gzipOutput = gzipOutput;
+			return this;
+		}
+
+		/**
+		 * Receives {@link Phase#GPX_MERGE}, the bytes read and written and {@link MetricsRegistry#recordStatistics} of
+		 * each {@link GpxMergeHeartRate#process} call. For {@link Phase#LOOKUP} the {@link HeartRateProvider} must measure
+		 * it. {@link MetricsRegistry#NOOP} by default.
+		 */
+		public Builder metrics(MetricsRegistry metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+
+		public Builder extensionNamespace(ExtensionNamespace extensionNamespace) {
+			this.extensionNamespace = extensionNamespace;
+			return this;
+		}
+
+		/**
+		 * The factory is configured (coalescing) and MUST not be changed after {@link #build()}, by default
+		 * {@link XMLInputFactory#newInstance()}
+		 */
+		public Builder inputFactory(XMLInputFactory inputFactory) {
+			this.inputFactory = inputFactory;
+			return this;
+		}
+
+		/**
+		 * MUST not be changed after {@link #build()}, by default {@link XMLOutputFactory#newInstance()}
+		 */
+		public Builder outputFactory(XMLOutputFactory outputFactory) {
+			this.outputFactory = outputFactory;
+			return this;
+		}
+
+		/**
+		 * MUST not be changed after {@link #build()}, by default {@link XMLEventFactory#newInstance()}
+		 */
+		public Builder eventFactory(XMLEventFactory eventFactory) {
+			this.eventFactory = eventFactory;
+			return this;
+		}
+
+		public GpxMergeHeartRate build() {
+			return new GpxMergeHeartRate(this);
+		}
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	public boolean isParallelSegments() {
+		return parallelSegments;
+	}
+
+	public boolean isTwoPhase() {
+		return twoPhase;
+	}
+
+	public boolean isPrettyPrint() {
+		return prettyPrint;
+	}
+
+	public boolean isGzipOutput() {
+		return gzipOutput;
+	}
+
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	public ExtensionNamespace getExtensionNamespace() {
+		return extensionNamespace;
+	}
 
 	public static void main(String[] args) throws Exception {
-		if (args.length != 3 && args.length != 4) {
-			System.err.println(
-					"3 or 4 parameters expected: <input gpx file> <input csv heart rate file> <result gpx file> [<max heart rate>]");
+		final CommandLine commandLine = new CommandLine(args);
+		if (commandLine.hasOption(BatchMergeHeartRate.OPTION_BATCH)) {
+			BatchMergeHeartRate.run(commandLine);
+			return;
+		}
+		if (commandLine.hasOption(MergeServer.OPTION_SERVE)) {
+			MergeServer.run(commandLine);
+			return;
+		}
+		commandLine.checkOptions(OPTION_ENGINE, OPTION_CACHE, OPTION_CONFLICT, OPTION_LOOKUP, OPTION_WINDOW, OPTION_TOLERANCE,
+				OPTION_PARALLEL, OPTION_TWO_PHASE, OPTION_COMPACT, OPTION_GZIP, OPTION_METRICS, OPTION_TCX, OPTION_CSV,
+				OPTION_STREAMING);
+		// the heart rates are read from a single file from the beginning for each segment
+		commandLine.checkNotCombined(OPTION_STREAMING, OPTION_PARALLEL, OPTION_CACHE, OPTION_CONFLICT);
+		final List<String> arguments = commandLine.getArguments();
+		if (arguments.size() != 3 && arguments.size() != 4) {
+			System.err.println("3 or 4 parameters expected: [--" + OPTION_ENGINE + "=event|cursor] "
+					+ "[--" + OPTION_PARALLEL + "] [--" + OPTION_TWO_PHASE + "] [--" + OPTION_STREAMING + "] "
+					+ "[--" + OPTION_COMPACT + "] [--" + OPTION_GZIP + "] [--" + OPTION_METRICS + "] "
+					+ "[--" + OPTION_TCX + "=<tcx file>] [--" + OPTION_CSV + "=<csv file>] "
+					+ "[--" + OPTION_CACHE + "[=<cache directory>]] [--" + OPTION_CONFLICT + "=first|average|maximum] "
+					+ LOOKUP_USAGE + " <input gpx file> <input csv heart rate file> <result gpx file> "
+					+ "[<max heart rate>]\n"
+					+ "or for many files: " + BatchMergeHeartRate.USAGE + "\n"
+					+ "or as a local HTTP server: " + MergeServer.USAGE);
 			System.exit(1);
 		}
-		final String gpxInputFile = args[0];
-		final String heartRateFile = args[1];
-		final String resultFile = args[2];
-		final Optional<Integer> maximumHeartRate = Optional.ofNullable(args.length == 4 ? Integer.valueOf(args[3]) : null);
-		final GpxMergeHeartRate gpxMergeHeartRate = new GpxMergeHeartRate();
-		try (FileInputStream gpxInputStream = new FileInputStream(gpxInputFile)) {
-			try (FileInputStream heartRateStream = new FileInputStream(heartRateFile)) {
-				try (FileOutputStream resultStream = new FileOutputStream(resultFile)) {
-					final Statistics statistics =
-							gpxMergeHeartRate.process(gpxInputStream, heartRateStream, resultStream, maximumHeartRate);
-
-					System.out.printf("Processed: %d/%d\n", statistics.getCountSucceed(),
-							(statistics.getCountSucceed() + statistics.getCountFailed()));
+		final String gpxInputFile = arguments.get(0);
+		final String heartRateFile = arguments.get(1);
+		final String resultFile = arguments.get(2);
+		final Optional<Integer> maximumHeartRate =
+				Optional.ofNullable(arguments.size() == 4 ? Integer.valueOf(arguments.get(3)) : null);
+		final LongAdderMetrics summary = new LongAdderMetrics();
+		final MetricsRegistry metrics = createMetrics(commandLine, summary);
+		final boolean streaming = commandLine.hasOption(OPTION_STREAMING);
+		final GpxMergeHeartRate gpxMergeHeartRate = new GpxMergeHeartRate.Builder().engine(parseEngine(commandLine))
+				.parallelSegments(commandLine.hasOption(OPTION_PARALLEL))
+				.twoPhase(commandLine.hasOption(OPTION_TWO_PHASE)).prettyPrint(!commandLine.hasOption(OPTION_COMPACT))
+				.gzipOutput(commandLine.hasOption(OPTION_GZIP) || resultFile.endsWith(Compression.GZIP_EXTENSION))
+				.metrics(metrics).build();
+		final HeartRateCsvParser parser =
+				new HeartRateCsvParser(maximumHeartRate.orElse(HeartRateCsvParser.DEFAULT_MAXIMUM_HEART_RATE), metrics);
+		final StreamingHeartRateProvider streamingProvider;
+		final HeartRateProvider heartRateProvider;
+		if (streaming) {
+			streamingProvider = new StreamingHeartRateProvider(Paths.get(heartRateFile), parser, parseLookup(commandLine),
+					commandLine.hasOption(OPTION_METRICS));
+			System.out.printf("Heart rates: streamed, %s\n", streamingProvider.isSortedOnDisk() ? "sorted on disk" : "sorted");
+			heartRateProvider = streamingProvider;
+		} else {
+			streamingProvider = null;
+			final HeartRateIndex heartRates =
+					loadHeartRates(commandLine, Collections.singletonList(Paths.get(heartRateFile)), parser, false);
+			printHeartRates(heartRates);
+			heartRateProvider = new HeartRateProvider(heartRates, parseLookup(commandLine), commandLine.hasOption(OPTION_METRICS));
+		}
+		try (InputStream gpxInputStream = openInput(Paths.get(gpxInputFile))) {
+			final AsyncOutputStream resultStream = AsyncOutputStream.open(Paths.get(resultFile));
+			final Statistics statistics;
+			// closed before the statistics of the output are printed
+			try (OutputStream output = resultStream) {
+				final List<TrackPointSink> sinks = openSinks(commandLine);
+				try {
+					statistics = gpxMergeHeartRate.process(gpxInputStream, heartRateProvider, output, sinks);
+				} finally {
+					closeSinks(sinks);
+				}
+			}
+
+			System.out.printf("Processed: %d/%d\n", statistics.getCountSucceed(),
+					(statistics.getCountSucceed() + statistics.getCountFailed()));
+			System.out.printf("Search: %s\n", statistics.getSearchCounts());
+			if (streamingProvider != null) {
+				System.out.printf("Heart rate passes: %d\n", streamingProvider.getPasses());
+			}
+			printOutput(resultStream);
+			metrics.recordPhase(Phase.OUTPUT_WAIT, resultStream.getWaitNanos());
+		} finally {
+			if (streamingProvider != null) {
+				streamingProvider.close();
+			}
+		}
+		printMetrics(commandLine, summary);
+	}
+
+	/**
+	 * <code>--tcx=&lt;file&gt;</code> and <code>--csv=&lt;file&gt;</code>, each serialized in its own thread. On error the
+	 * already opened ones are closed.
+	 */
+	static List<TrackPointSink> openSinks(CommandLine commandLine) throws IOException {
+		final List<TrackPointSink> result = new ArrayList<>();
+		try {
+			final Optional<String> tcx = commandLine.getOption(OPTION_TCX);
+			if (tcx.isPresent()) {
+				result.add(openSink(tcx.get(), TcxTrackPointSink::new, OPTION_TCX));
+			}
+			final Optional<String> csv = commandLine.getOption(OPTION_CSV);
+			if (csv.isPresent()) {
+				result.add(openSink(csv.get(), CsvTrackPointSink::new, OPTION_CSV));
+			}
+			return result;
+		} catch (final IOException | RuntimeException e) {
+			try {
+				closeSinks(result);
+			} catch (final IOException closeError) {
+				e.addSuppressed(closeError);
+			}
+			throw e;
+		}
+	}
+
+	private interface SinkFactory {
+		TrackPointSink create(OutputStream output) throws IOException;
+	}
+
+	private static TrackPointSink openSink(String file, SinkFactory factory, String threadName) throws IOException {
+		final OutputStream output = AsyncOutputStream.open(Paths.get(file));
+		try {
+			return new AsyncTrackPointSink(factory.create(output), threadName);
+		} catch (final IOException | RuntimeException e) {
+			output.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes all of them, throws the first error
+	 */
+	static void closeSinks(List<TrackPointSink> sinks) throws IOException {
+		IOException error = null;
+		for (final TrackPointSink next : sinks) {
+			try {
+				next.close();
+			} catch (final IOException e) {
+				if (error == null) {
+					error = e;
 				}
 			}
 		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * @return the JFR events if the JVM has them, with <code>--metrics</code> also the summary - only then the lookups are
+	 *         timed, it costs two {@link System#nanoTime()} per track point
+	 */
+	static MetricsRegistry createMetrics(CommandLine commandLine, LongAdderMetrics summary) {
+		final MetricsRegistry jfr = MetricsRegistry.jfrIfAvailable();
+		if (!commandLine.hasOption(OPTION_METRICS)) {
+			return jfr;
+		}
+		return jfr == MetricsRegistry.NOOP ? summary : MetricsRegistry.of(summary, jfr);
+	}
+
+	static void printMetrics(CommandLine commandLine, LongAdderMetrics summary) {
+		if (commandLine.hasOption(OPTION_METRICS)) {
+			System.out.println(summary.report());
+		}
+	}
+
+	/**
+	 * The readers read small pieces - bigger reads from the file
+	 */
+	static InputStream openInput(Path file) throws IOException {
+		return new BufferedInputStream(Files.newInputStream(file), INPUT_BUFFER_SIZE);
+	}
+
+	static void printOutput(AsyncOutputStream output) {
+		System.out.printf("Written: %d bytes, waited for the disk %d ms, maximum queue %d/%d\n", output.getBytesWritten(),
+				TimeUnit.NANOSECONDS.toMillis(output.getWaitNanos()), output.getMaximumQueueDepth(), output.getBuffers());
+	}
+
+	/**
+	 * With <code>--cache</code> the index is cached beside the CSV files, with <code>--cache=&lt;directory&gt;</code> - in
+	 * the directory. With <code>--conflict=&lt;policy&gt;</code> the files are loaded separately and merged with
+	 * {@link HeartRateIndexMerger}, otherwise all samples are kept.
+	 */
+	static HeartRateIndex loadHeartRates(CommandLine commandLine, List<Path> files, HeartRateCsvParser parser,
+			boolean parallel) throws IOException {
+		final Optional<ConflictPolicy> conflict =
+				commandLine.getOption(OPTION_CONFLICT).map(a -> ConflictPolicy.valueOf(a.toUpperCase(Locale.ROOT)));
+		if (conflict.isPresent()) {
+			final List<HeartRateIndex> sources = new ArrayList<>();
+			for (final Path next : files) {
+				sources.add(loadCombined(commandLine, Collections.singletonList(next), parser, parallel));
+			}
+			return new HeartRateIndexMerger(conflict.get()).merge(sources);
+		}
+		return loadCombined(commandLine, files, parser, parallel);
+	}
+
+	private static HeartRateIndex loadCombined(CommandLine commandLine, List<Path> files, HeartRateCsvParser parser,
+			boolean parallel) throws IOException {
+		final Optional<String> cache = commandLine.getOption(OPTION_CACHE);
+		if (cache.isPresent()) {
+			final Optional<Path> directory = cache.filter(a -> !a.isEmpty()).map(Paths::get);
+			return new HeartRateIndexCache(parser, directory).load(files);
+		}
+		return parser.parseFiles(files, parallel);
+	}
+
+	static void printHeartRates(HeartRateIndex heartRates) {
+		final String order;
+		switch (heartRates.getInputOrder()) {
+		case REVERSED:
+			order = "reversed";
+			break;
+		case MERGED_RUNS:
+			order = "merged from " + heartRates.getRuns() + " sorted runs";
+			break;
+		default:
+			order = "sorted";
+			break;
+		}
+		System.out.printf("Heart rates: %d, %s\n", heartRates.size(), order);
+	}
+
+	static Engine parseEngine(CommandLine commandLine) {
+		return commandLine.getOption(OPTION_ENGINE).map(a -> Engine.valueOf(a.toUpperCase(Locale.ROOT))).orElse(Engine.EVENT);
+	}
+
+	/**
+	 * <code>--lookup</code> (nearest by default), <code>--window</code> and <code>--tolerance</code> in seconds
+	 */
+	static HeartRateLookup parseLookup(CommandLine commandLine) {
+		final HeartRateLookup.Strategy strategy = commandLine.getOption(OPTION_LOOKUP)
+				.map(a -> HeartRateLookup.Strategy.valueOf(a.toUpperCase(Locale.ROOT))).orElse(HeartRateLookup.Strategy.NEAREST);
+		final Duration window = commandLine.getOption(OPTION_WINDOW).map(a -> Duration.ofSeconds(Long.parseLong(a)))
+				.orElse(HeartRateLookup.DEFAULT_WINDOW);
+		final Duration tolerance = commandLine.getOption(OPTION_TOLERANCE).map(a -> Duration.ofSeconds(Long.parseLong(a)))
+				.orElse(HeartRateLookup.DEFAULT_TOLERANCE);
+		return new HeartRateLookup(strategy, window, tolerance);
 	}
 
 	public Statistics process(InputStream gpxInputFile, InputStream heartRateFile, OutputStream resultFile,
 			Optional<Integer> maximumHeartRate) throws Exception {
-		final HeartRateProvider heartRateProvider = maximumHeartRate.map(a -> new HeartRateProvider(heartRateFile, a))
-				.orElseGet(() -> new HeartRateProvider(heartRateFile));
+		final HeartRateCsvParser parser =
+				new HeartRateCsvParser(maximumHeartRate.orElse(HeartRateCsvParser.DEFAULT_MAXIMUM_HEART_RATE), metrics);
+		final HeartRateProvider heartRateProvider =
+				new HeartRateProvider(parser.parse(heartRateFile), HeartRateLookup.NEAREST, metrics != MetricsRegistry.NOOP);
 
-		final XMLInputFactory factory = XMLInputFactory.newInstance();
-		factory.setProperty("javax.xml.stream.isCoalescing", true);
+		return process(gpxInputFile, heartRateProvider, resultFile);
+	}
+
+	/**
+	 * @param heartRateProvider
+	 *            used only for this call - create a new one (on a shared {@link HeartRateIndex}) for each call. With parallel
+	 *            segments it merges only the track points outside of segments, each segment uses its
+	 *            {@link HeartRateProvider#copy()} and the returned statistics are the sum.
+	 * @param gpxInputFile
+	 *            plain, gzip or zip, not closed
+	 * @param resultFile
+	 *            gzip with {@link Builder#gzipOutput(boolean)}, not closed
+	 */
+	public Statistics process(InputStream gpxInputFile, HeartRateProvider heartRateProvider, OutputStream resultFile)
+			throws Exception {
+		return process(gpxInputFile, heartRateProvider, resultFile, Collections.emptyList());
+	}
+
+	/**
+	 * The same as {@link #process(InputStream, HeartRateProvider, OutputStream)}, the merged track points are passed to
+	 * the sinks too - from the same parse and heart rate lookups, e.g. to export them as TCX and CSV. With sinks the
+	 * segments are not merged in parallel.
+	 *
+	 * @param sinks
+	 *            not closed, wrap them in {@link eu.tanov.gps.gpxmergeheartrate.sink.AsyncTrackPointSink} to serialize each
+	 *            in its own thread
+	 */
+	public Statistics process(InputStream gpxInputFile, HeartRateProvider heartRateProvider, OutputStream resultFile,
+			List<TrackPointSink> sinks) throws Exception {
+		final TrackPointRecorder recorder = sinks.isEmpty() ? null : new TrackPointRecorder(sinks);
+		try {
+			return processAndRecord(gpxInputFile, heartRateProvider, resultFile, recorder);
+		} catch (final UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
 
-		final XMLEventReader reader = factory.createXMLEventReader(gpxInputFile);
-		final XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(resultFile);
+	private Statistics processAndRecord(InputStream gpxInputFile, HeartRateProvider heartRateProvider,
+			OutputStream resultFile, TrackPointRecorder recorder) throws Exception {
+		if (metrics == MetricsRegistry.NOOP) {
+			return decompressAndMerge(gpxInputFile, heartRateProvider, resultFile, recorder);
+		}
+		final CountingInputStream input = new CountingInputStream(gpxInputFile);
+		final CountingOutputStream output = new CountingOutputStream(resultFile);
+		final long start = System.nanoTime();
+		final Statistics result = decompressAndMerge(input, heartRateProvider, output, recorder);
+		metrics.recordPhase(Phase.GPX_MERGE, System.nanoTime() - start);
+		metrics.addBytesRead(input.getCount());
+		metrics.addBytesWritten(output.getCount());
+		metrics.recordStatistics(result);
+		return result;
+	}
 
-		final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+	private Statistics decompressAndMerge(InputStream gpxInputFile, HeartRateProvider heartRateProvider,
+			OutputStream resultFile, TrackPointRecorder recorder) throws Exception {
+		try (InputStream input = Compression.decompress(gpxInputFile)) {
+			if (!gzipOutput) {
+				return merge(input, heartRateProvider, resultFile, recorder);
+			}
+			try (OutputStream output = Compression.compress(resultFile)) {
+				return merge(input, heartRateProvider, output, recorder);
+			}
+		}
+	}
+
+	/**
+	 * @param recorder
+	 *            <code>null</code> without sinks
+	 */
+	private Statistics merge(InputStream gpxInputFile, HeartRateProvider heartRateProvider, OutputStream resultFile,
+			TrackPointRecorder recorder) throws Exception {
+		byte[] document = null;
+		// the sinks need the track points in document order
+		if (parallelSegments && recorder == null) {
+			document = readAll(gpxInputFile);
+			final Optional<GpxSegments> segments = GpxSegments.split(document);
+			if (segments.isPresent()) {
+				return processSegments(segments.get(), heartRateProvider, resultFile);
+			}
+		}
+		if (twoPhase) {
+			if (document == null) {
+				document = readAll(gpxInputFile);
+			}
+			heartRateProvider =
+					TrackPointTimes.read(inputFactory, new ByteArrayInputStream(document)).join(heartRateProvider);
+		}
+		if (document != null) {
+			gpxInputFile = new ByteArrayInputStream(document);
+		}
 
-		StateHandler currentState =
-				new OutsideTrkptStateHandler(heartRateProvider, IdentatingStateHandler.createInitialData(eventFactory, writer));
+		switch (engine) {
+		case CURSOR:
+			processCursor(gpxInputFile, heartRateProvider, resultFile, recorder);
+			break;
+		case EVENT:
+			processEvents(gpxInputFile, heartRateProvider, resultFile, recorder);
+			break;
+		}
+
+		return heartRateProvider.getStatistics();
+	}
+
+	private void processEvents(InputStream gpxInputFile, HeartRateProvider heartRateProvider, OutputStream resultFile,
+			TrackPointRecorder recorder) throws Exception {
+		final XMLEventReader reader = inputFactory.createXMLEventReader(gpxInputFile);
+		final XMLEventWriter writer = outputFactory.createXMLEventWriter(resultFile, "UTF-8");
+
+		StateHandler currentState = new OutsideTrkptStateHandler(heartRateProvider,
+				IdentatingStateHandler.createInitialData(eventFactory, writer, new Indentation(prettyPrint), extensionNamespace),
+				recorder);
 		while (reader.hasNext()) {
 			final XMLEvent event = (XMLEvent) reader.next();
-			currentState = currentState.handleEvent(addNamespacesIfRootElement(eventFactory, event));
+			currentState = currentState.handleEvent(addNamespacesIfRootElement(event));
 		}
 
 		reader.close();
 		writer.flush();
 		writer.close();
+	}
 
-		return heartRateProvider.getStatistics();
+	private void processCursor(InputStream gpxInputFile, HeartRateProvider heartRateProvider, OutputStream resultFile,
+			TrackPointRecorder recorder) throws Exception {
+		final XMLStreamReader reader = inputFactory.createXMLStreamReader(gpxInputFile);
+		final XMLStreamWriter writer = outputFactory.createXMLStreamWriter(resultFile, "UTF-8");
+
+		new CursorMerger(reader, writer, heartRateProvider, new Indentation(prettyPrint), extensionNamespace, recorder)
+				.merge();
+
+		reader.close();
+		writer.flush();
+		writer.close();
+	}
+
+	private static byte[] readAll(InputStream input) throws IOException {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream(Math.max(8192, input.available()));
+		final byte[] buffer = new byte[8192];
+		int read;
+		while ((read = input.read(buffer)) >= 0) {
+			result.write(buffer, 0, read);
+		}
+		return result.toByteArray();
+	}
+
+	/**
+	 * The merged segment and the statistics of its track points
+	 */
+	private static class MergedSegment {
+		private final byte[] result;
+		private final Statistics statistics;
+
+		MergedSegment(byte[] result, Statistics statistics) {
+			this.result = result;
+			this.statistics = statistics;
+		}
+	}
+
+	/**
+	 * The segments are submitted first, then the skeleton is merged in this thread and the result of each segment is written
+	 * in the place of its placeholder - waiting for it if it is not ready yet
+	 */
+	private Statistics processSegments(GpxSegments segments, HeartRateProvider heartRateProvider, OutputStream resultFile)
+			throws Exception {
+		final List<CompletableFuture<MergedSegment>> futures = new ArrayList<>();
+		for (final Segment next : segments.getSegments()) {
+			final HeartRateProvider segmentProvider = heartRateProvider.copy();
+			futures.add(CompletableFuture.supplyAsync(() -> processSegment(next, segmentProvider), ForkJoinPool.commonPool()));
+		}
+		final Iterator<CompletableFuture<MergedSegment>> results = futures.iterator();
+		final InputStream skeleton = new ByteArrayInputStream(segments.getSkeleton());
+		final Indentation indentation = new Indentation(prettyPrint);
+		Statistics result = new Statistics(0, 0);
+		try {
+			switch (engine) {
+			case CURSOR:
+				final XMLStreamReader reader = inputFactory.createXMLStreamReader(skeleton);
+				final XMLStreamWriter writer = outputFactory.createXMLStreamWriter(resultFile, "UTF-8");
+				final CursorMerger merger = new CursorMerger(reader, writer, heartRateProvider, indentation, extensionNamespace);
+				while (true) {
+					if (reader.isStartElement() && reader.getLocalName().equals(GpxSegments.ELEMENT_TRACK_SEGMENT)) {
+						// closes the start tag of the parent
+						writer.writeCharacters("");
+						writer.flush();
+						result = result.add(writeSegment(results.next(), resultFile, indentation));
+						// end of the placeholder
+						reader.next();
+					} else {
+						merger.mergeEvent();
+					}
+					if (!reader.hasNext()) {
+						break;
+					}
+					reader.next();
+				}
+				reader.close();
+				writer.flush();
+				writer.close();
+				break;
+			case EVENT:
+				final XMLEventReader eventReader = inputFactory.createXMLEventReader(skeleton);
+				final XMLEventWriter eventWriter = outputFactory.createXMLEventWriter(resultFile, "UTF-8");
+				StateHandler currentState = new OutsideTrkptStateHandler(heartRateProvider,
+						IdentatingStateHandler.createInitialData(eventFactory, eventWriter, indentation, extensionNamespace));
+				while (eventReader.hasNext()) {
+					final XMLEvent event = eventReader.nextEvent();
+					if (event.isStartElement()
+							&& event.asStartElement().getName().getLocalPart().equals(GpxSegments.ELEMENT_TRACK_SEGMENT)) {
+						eventWriter.add(eventFactory.createCharacters(""));
+						eventWriter.flush();
+						result = result.add(writeSegment(results.next(), resultFile, indentation));
+						eventReader.nextEvent();
+					} else {
+						currentState = currentState.handleEvent(addNamespacesIfRootElement(event));
+					}
+				}
+				eventReader.close();
+				eventWriter.flush();
+				eventWriter.close();
+				break;
+			}
+		} finally {
+			// nothing waits for the rest after a failure
+			futures.forEach(a -> a.cancel(false));
+		}
+		return heartRateProvider.getStatistics().add(result);
+	}
+
+	private static Statistics writeSegment(CompletableFuture<MergedSegment> future, OutputStream resultFile,
+			Indentation indentation) throws Exception {
+		final MergedSegment segment;
+		try {
+			segment = future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+		resultFile.write(segment.result);
+		// as if the segment was written by this writer
+		indentation.after(XMLStreamConstants.START_ELEMENT);
+		indentation.after(XMLStreamConstants.END_ELEMENT);
+		return segment.statistics;
+	}
+
+	/**
+	 * Merges the segment with its own reader and writer
+	 */
+	private MergedSegment processSegment(Segment segment, HeartRateProvider heartRateProvider) {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream(segment.getDocument().length + 8192);
+		final Indentation indentation = new Indentation(segment.getDepth(), segment.isPreviousCharacter(), prettyPrint);
+		final InputStream input = new ByteArrayInputStream(segment.getDocument());
+		try {
+			switch (engine) {
+			case CURSOR:
+				final XMLStreamReader reader = inputFactory.createXMLStreamReader(input);
+				while (!reader.isStartElement() || !reader.getLocalName().equals(GpxSegments.ELEMENT_TRACK_SEGMENT)) {
+					reader.next();
+				}
+				final XMLStreamWriter writer = outputFactory.createXMLStreamWriter(result, "UTF-8");
+				new CursorMerger(reader, writer, heartRateProvider, indentation, extensionNamespace).mergeElement();
+				reader.close();
+				writer.flush();
+				writer.close();
+				break;
+			case EVENT:
+				final XMLEventReader eventReader = inputFactory.createXMLEventReader(input);
+				XMLEvent event = eventReader.nextEvent();
+				while (!event.isStartElement()
+						|| !event.asStartElement().getName().getLocalPart().equals(GpxSegments.ELEMENT_TRACK_SEGMENT)) {
+					event = eventReader.nextEvent();
+				}
+				final XMLEventWriter eventWriter = outputFactory.createXMLEventWriter(result, "UTF-8");
+				StateHandler currentState = new OutsideTrkptStateHandler(heartRateProvider,
+						IdentatingStateHandler.createInitialData(eventFactory, eventWriter, indentation, extensionNamespace));
+				int depth = 0;
+				while (true) {
+					if (event.isStartElement()) {
+						depth++;
+					} else if (event.isEndElement()) {
+						depth--;
+					}
+					currentState = currentState.handleEvent(event);
+					if (depth == 0) {
+						break;
+					}
+					event = eventReader.nextEvent();
+				}
+				eventReader.close();
+				eventWriter.flush();
+				eventWriter.close();
+				break;
+			}
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+		return new MergedSegment(result.toByteArray(), heartRateProvider.getStatistics());
 	}
 
-	private XMLEvent addNamespacesIfRootElement(XMLEventFactory eventFactory, XMLEvent event) {
+	private XMLEvent addNamespacesIfRootElement(XMLEvent event) {
 		if (event.isStartElement() && event.asStartElement().getName().getLocalPart().equals("gpx")) {
-			return addNamespaceToRootElement(eventFactory, event.asStartElement());
+			return addNamespaceToRootElement(event.asStartElement());
 		}
 		return event;
 	}
 
-	private XMLEvent addNamespaceToRootElement(XMLEventFactory eventFactory, StartElement startElement) {
+	private XMLEvent addNamespaceToRootElement(StartElement startElement) {
 		final String prefix = startElement.getName().getPrefix();
 		final String namespaceUri = startElement.getName().getNamespaceURI();
 		final String localName = startElement.getName().getLocalPart();
@@ -95,25 +829,27 @@ public class GpxMergeHeartRate {
 		@SuppressWarnings("unchecked")
 		final Iterator<Namespace> oldNamespaces = startElement.getNamespaces();
 
-		final List<Namespace> namespaces = enchanceNamespaces(eventFactory, oldNamespaces);
+		final List<Namespace> namespaces = enchanceNamespaces(oldNamespaces);
 
 		final NamespaceContext context = startElement.getNamespaceContext();
 		return eventFactory.createStartElement(prefix, namespaceUri, localName, attributes, namespaces.iterator(), context);
 	}
 
-	private List<Namespace> enchanceNamespaces(XMLEventFactory eventFactory, final Iterator<Namespace> oldNamespaces) {
+	private List<Namespace> enchanceNamespaces(final Iterator<Namespace> oldNamespaces) {
 		final List<Namespace> result = new ArrayList<>();
 		oldNamespaces.forEachRemaining(result::add);
-		final Optional<Namespace> previous = result.stream().filter(a -> a.getPrefix().equals(EXTENSION_PREFIX)).findFirst();
+		final String extensionPrefix = extensionNamespace.getPrefix();
+		final String extensionUri = extensionNamespace.getUri();
+		final Optional<Namespace> previous = result.stream().filter(a -> a.getPrefix().equals(extensionPrefix)).findFirst();
 		if (previous.isPresent()) {
-			if (!previous.get().getNamespaceURI().equals(EXTENSION_URI)) {
-				throw new IllegalArgumentException("Different URI for " + EXTENSION_PREFIX + ", expecting " + EXTENSION_URI
+			if (!previous.get().getNamespaceURI().equals(extensionUri)) {
+				throw new IllegalArgumentException("Different URI for " + extensionPrefix + ", expecting " + extensionUri
 						+ " but found " + previous.get().getNamespaceURI());
 			}
 			return result;
 		}
 
-		result.add(eventFactory.createNamespace(EXTENSION_PREFIX, EXTENSION_URI));
+		result.add(eventFactory.createNamespace(extensionPrefix, extensionUri));
 		return result;
 	}
 
@@ -0,0 +1,301 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A gpx document split at the bytes of its <code>trkseg</code> elements, so the segments can be merged independently:
+ * <ul>
+ * <li>skeleton - the document with each segment replaced by <code>&lt;trkseg/&gt;</code></li>
+ * <li>segments - each one as a small document: the start tags of its ancestors (for the namespaces), the segment and the
+ * end tags of the ancestors; with the indentation state before it in the whole document</li>
+ * </ul>
+ * Only UTF-8 documents are split - comments and processing instructions are skipped, anything else that a byte scan can't
+ * handle safely (CDATA, DTD, prefixed <code>trkseg</code>, other encodings) is not split at all.
+ */
+class GpxSegments {
+	static final String ELEMENT_TRACK_SEGMENT = "trkseg";
+
+	private static final byte[] PLACEHOLDER = ("<" + ELEMENT_TRACK_SEGMENT + "/>").getBytes(StandardCharsets.UTF_8);
+	private static final byte[] END_TAG = ("</" + ELEMENT_TRACK_SEGMENT).getBytes(StandardCharsets.UTF_8);
+	private static final byte[] BYTE_ORDER_MARK = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+	private static final byte[] COMMENT_START = "<!--".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] COMMENT_END = "-->".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] PROCESSING_INSTRUCTION_END = "?>".getBytes(StandardCharsets.UTF_8);
+
+	static class Segment {
+		private final byte[] document;
+		private final int depth;
+		private final boolean isPreviousCharacter;
+
+		Segment(byte[] document, int depth, boolean isPreviousCharacter) {
+			this.document = document;
+			this.depth = depth;
+			this.isPreviousCharacter = isPreviousCharacter;
+		}
+
+		/**
+		 * @return ancestors, segment and the end of the ancestors
+		 */
+		byte[] getDocument() {
+			return document;
+		}
+
+		/**
+		 * @return count of the ancestors
+		 */
+		int getDepth() {
+			return depth;
+		}
+
+		/**
+		 * @return there is text right before the segment
+		 */
+		boolean isPreviousCharacter() {
+			return isPreviousCharacter;
+		}
+	}
+
+	private final byte[] skeleton;
+	private final List<Segment> segments;
+
+	private GpxSegments(byte[] skeleton, List<Segment> segments) {
+		this.skeleton = skeleton;
+		this.segments = Collections.unmodifiableList(segments);
+	}
+
+	byte[] getSkeleton() {
+		return skeleton;
+	}
+
+	/**
+	 * @return in document order - the same as the order of the placeholders in the skeleton
+	 */
+	List<Segment> getSegments() {
+		return segments;
+	}
+
+	/**
+	 * @return empty if the document can't be split safely or has no segments
+	 */
+	static Optional<GpxSegments> split(byte[] document) {
+		int position = startsWith(document, 0, BYTE_ORDER_MARK) ? BYTE_ORDER_MARK.length : 0;
+		if (startsWith(document, position, "<?xml".getBytes(StandardCharsets.UTF_8))) {
+			final int end = indexOf(document, position, PROCESSING_INSTRUCTION_END);
+			if (end < 0 || !isUtf8(new String(document, position, end - position, StandardCharsets.UTF_8))) {
+				return Optional.empty();
+			}
+			position = end + 2;
+		}
+
+		final ByteArrayOutputStream skeleton = new ByteArrayOutputStream(1024);
+		final List<Segment> segments = new ArrayList<>();
+		// start tags (from, to) of the open elements
+		final List<int[]> ancestors = new ArrayList<>();
+		int copied = 0;
+		int textStart = position;
+		while (true) {
+			final int start = indexOf(document, position, (byte) '<');
+			if (start < 0) {
+				break;
+			}
+			final int skipped = skipCommentOrProcessingInstruction(document, start);
+			if (skipped > start) {
+				position = skipped;
+				// not text - the engines write no indentation before the next element only after text
+				textStart = skipped;
+				continue;
+			}
+			if (skipped < 0 || start + 1 >= document.length || document[start + 1] == '!') {
+				return Optional.empty();
+			}
+			final int end = findTagEnd(document, start);
+			if (end < 0) {
+				return Optional.empty();
+			}
+			final String name = getName(document, start);
+			if (document[start + 1] == '/') {
+				if (ancestors.isEmpty() || !name.equals(getName(document, ancestors.get(ancestors.size() - 1)[0]))) {
+					return Optional.empty();
+				}
+				ancestors.remove(ancestors.size() - 1);
+			} else if (name.equals(ELEMENT_TRACK_SEGMENT)) {
+				final int segmentEnd = document[end - 2] == '/' ? end : findSegmentEnd(document, end);
+				if (segmentEnd < 0 || hasTrackPoint(document, ancestors)) {
+					return Optional.empty();
+				}
+				segments.add(new Segment(createDocument(document, ancestors, start, segmentEnd), ancestors.size(),
+						start > textStart));
+				skeleton.write(document, copied, start - copied);
+				skeleton.write(PLACEHOLDER, 0, PLACEHOLDER.length);
+				copied = segmentEnd;
+				position = segmentEnd;
+				textStart = segmentEnd;
+				continue;
+			} else if (name.endsWith(":" + ELEMENT_TRACK_SEGMENT)) {
+				return Optional.empty();
+			} else if (document[end - 2] != '/') {
+				ancestors.add(new int[] { start, end });
+			}
+			position = end;
+			textStart = end;
+		}
+		if (segments.isEmpty() || !ancestors.isEmpty()) {
+			return Optional.empty();
+		}
+		skeleton.write(document, copied, document.length - copied);
+		return Optional.of(new GpxSegments(skeleton.toByteArray(), segments));
+	}
+
+	private static boolean isUtf8(String declaration) {
+		final int encoding = declaration.indexOf("encoding");
+		if (encoding < 0) {
+			return true;
+		}
+		final String value = declaration.substring(encoding + "encoding".length()).replaceAll("[\\s=\"']", " ").trim();
+		return value.toUpperCase().startsWith("UTF-8");
+	}
+
+	/**
+	 * @return the position after the end of the segment without checking its content, -1 if it is not a simple one
+	 */
+	private static int findSegmentEnd(byte[] document, int from) {
+		int position = from;
+		while (true) {
+			final int start = indexOf(document, position, (byte) '<');
+			if (start < 0) {
+				return -1;
+			}
+			final int skipped = skipCommentOrProcessingInstruction(document, start);
+			if (skipped > start) {
+				position = skipped;
+				continue;
+			}
+			if (skipped < 0 || start + 1 >= document.length || document[start + 1] == '!') {
+				return -1;
+			}
+			final int end = findTagEnd(document, start);
+			if (end < 0) {
+				return -1;
+			}
+			if (startsWith(document, start, END_TAG) && getName(document, start).equals(ELEMENT_TRACK_SEGMENT)) {
+				return end;
+			}
+			if (getName(document, start).equals(ELEMENT_TRACK_SEGMENT)) {
+				// nested
+				return -1;
+			}
+			position = end;
+		}
+	}
+
+	/**
+	 * @return the position after the comment or processing instruction at <code>start</code>, <code>start</code> if there is
+	 *         none, -1 if it is not closed
+	 */
+	private static int skipCommentOrProcessingInstruction(byte[] document, int start) {
+		if (startsWith(document, start, COMMENT_START)) {
+			final int end = indexOf(document, start + COMMENT_START.length, COMMENT_END);
+			return end < 0 ? -1 : end + COMMENT_END.length;
+		}
+		if (start + 1 < document.length && document[start + 1] == '?') {
+			final int end = indexOf(document, start + 2, PROCESSING_INSTRUCTION_END);
+			return end < 0 ? -1 : end + PROCESSING_INSTRUCTION_END.length;
+		}
+		return start;
+	}
+
+	private static boolean hasTrackPoint(byte[] document, List<int[]> ancestors) {
+		for (final int[] next : ancestors) {
+			if (getName(document, next[0]).equals("trkpt")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static byte[] createDocument(byte[] document, List<int[]> ancestors, int start, int end) {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream(end - start + 1024);
+		for (final int[] next : ancestors) {
+			result.write(document, next[0], next[1] - next[0]);
+		}
+		result.write(document, start, end - start);
+		for (int i = ancestors.size() - 1; i >= 0; i--) {
+			final byte[] endTag = ("</" + getName(document, ancestors.get(i)[0]) + ">").getBytes(StandardCharsets.UTF_8);
+			result.write(endTag, 0, endTag.length);
+		}
+		return result.toByteArray();
+	}
+
+	/**
+	 * @return the position after the <code>&gt;</code> of the tag at <code>start</code>, skipping quoted attribute values
+	 */
+	private static int findTagEnd(byte[] document, int start) {
+		byte quote = 0;
+		for (int i = start + 1; i < document.length; i++) {
+			final byte next = document[i];
+			if (quote != 0) {
+				if (next == quote) {
+					quote = 0;
+				}
+			} else if (next == '"' || next == '\'') {
+				quote = next;
+			} else if (next == '>') {
+				return i + 1;
+			} else if (next == '<') {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return qualified name of the start or end tag at <code>start</code>
+	 */
+	private static String getName(byte[] document, int start) {
+		int from = start + 1;
+		if (document[from] == '/') {
+			from++;
+		}
+		int to = from;
+		while (to < document.length && document[to] != '>' && document[to] != '/' && document[to] != ' '
+				&& document[to] != '\t' && document[to] != '\n' && document[to] != '\r') {
+			to++;
+		}
+		return new String(document, from, to - from, StandardCharsets.UTF_8);
+	}
+
+	private static boolean startsWith(byte[] document, int position, byte[] prefix) {
+		if (position + prefix.length > document.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (document[position + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOf(byte[] document, int from, byte value) {
+		for (int i = from; i < document.length; i++) {
+			if (document[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int indexOf(byte[] document, int from, byte[] value) {
+		for (int i = from; i + value.length <= document.length; i++) {
+			if (startsWith(document, i, value)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,154 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.time.OffsetDateTime;
+
+/**
+ * Parses the <code>time</code> of the track points to epoch millis. The devices write them as
+ * <code>yyyy-MM-ddTHH:mm:ss[.fraction](Z|+hh:mm)</code>, e.g. <code>2018-01-27T09:31:24.000Z</code>, these are parsed
+ * directly without any allocations. Everything else (and invalid values) is left to {@link OffsetDateTime#parse}, so the
+ * result and the errors are the same as with it.
+ */
+public final class GpxTime {
+	private static final long MILLIS_PER_SECOND = 1000;
+	private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+	private static final int DAYS_0000_TO_1970 = 719468;
+	private static final int DAYS_PER_CYCLE = 146097;
+
+	private GpxTime() {
+	}
+
+	/**
+	 * @return the same as <code>OffsetDateTime.parse(text).toInstant().toEpochMilli()</code>
+	 * @throws java.time.format.DateTimeParseException
+	 *             if the text is not a date-time with an offset
+	 */
+	public static long parseEpochMilli(CharSequence text) {
+		final long result = parseFast(text);
+		if (result != Long.MIN_VALUE) {
+			return result;
+		}
+		return OffsetDateTime.parse(text).toInstant().toEpochMilli();
+	}
+
+	/**
+	 * @return {@link Long#MIN_VALUE} if the text is not in the usual format
+	 */
+	private static long parseFast(CharSequence text) {
+		final int length = text.length();
+		if (length < 20 || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != 'T' || text.charAt(13) != ':'
+				|| text.charAt(16) != ':') {
+			return Long.MIN_VALUE;
+		}
+		final int year = digits(text, 0, 4);
+		final int month = digits(text, 5, 2);
+		final int day = digits(text, 8, 2);
+		final int hour = digits(text, 11, 2);
+		final int minute = digits(text, 14, 2);
+		final int second = digits(text, 17, 2);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month) || hour < 0 || hour > 23
+				|| minute < 0 || minute > 59 || second < 0 || second > 59) {
+			return Long.MIN_VALUE;
+		}
+
+		int index = 19;
+		int millis = 0;
+		if (text.charAt(index) == '.') {
+			index++;
+			final int fractionStart = index;
+			while (index < length && isDigit(text.charAt(index))) {
+				if (index - fractionStart < 3) {
+					millis = millis * 10 + text.charAt(index) - '0';
+				}
+				index++;
+			}
+			final int fractionLength = index - fractionStart;
+			if (fractionLength == 0 || fractionLength > 9) {
+				return Long.MIN_VALUE;
+			}
+			for (int i = fractionLength; i < 3; i++) {
+				millis *= 10;
+			}
+		}
+
+		final int offsetSeconds = parseOffset(text, index);
+		if (offsetSeconds == Integer.MIN_VALUE) {
+			return Long.MIN_VALUE;
+		}
+
+		final long seconds = toEpochDay(year, month, day) * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second - offsetSeconds;
+		return seconds * MILLIS_PER_SECOND + millis;
+	}
+
+	/**
+	 * @return the offset in seconds for <code>Z</code> or <code>&#177;hh:mm</code> up to the end of the text,
+	 *         {@link Integer#MIN_VALUE} otherwise
+	 */
+	private static int parseOffset(CharSequence text, int index) {
+		final int remaining = text.length() - index;
+		if (remaining == 1 && text.charAt(index) == 'Z') {
+			return 0;
+		}
+		if (remaining != 6 || text.charAt(index + 3) != ':') {
+			return Integer.MIN_VALUE;
+		}
+		final char sign = text.charAt(index);
+		final int hours = digits(text, index + 1, 2);
+		final int minutes = digits(text, index + 4, 2);
+		if ((sign != '+' && sign != '-') || hours < 0 || hours > 18 || minutes < 0 || minutes > 59
+				|| (hours == 18 && minutes != 0)) {
+			return Integer.MIN_VALUE;
+		}
+		final int result = hours * 3600 + minutes * 60;
+		return sign == '-' ? -result : result;
+	}
+
+	/**
+	 * @return -1 if any of the characters is not a digit
+	 */
+	private static int digits(CharSequence text, int from, int count) {
+		int result = 0;
+		for (int i = from; i < from + count; i++) {
+			final char c = text.charAt(i);
+			if (!isDigit(c)) {
+				return -1;
+			}
+			result = result * 10 + c - '0';
+		}
+		return result;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static int lengthOfMonth(int year, int month) {
+		switch (month) {
+		case 2:
+			return isLeapYear(year) ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	private static boolean isLeapYear(int year) {
+		return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+	}
+
+	/**
+	 * Days since 1970-01-01 of a date in the proleptic Gregorian calendar, years from 0 - the year is counted from March
+	 * so the leap day is the last one
+	 */
+	private static long toEpochDay(int year, int month, int day) {
+		final int y = month <= 2 ? year - 1 : year;
+		final int era = (y >= 0 ? y : y - 399) / 400;
+		final int yearOfEra = y - era * 400;
+		final int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return (long) era * DAYS_PER_CYCLE + dayOfEra - DAYS_0000_TO_1970;
+	}
+}
@@ -0,0 +1,599 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.time.Year;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import eu.tanov.gps.gpxmergeheartrate.metrics.MetricsRegistry;
+import eu.tanov.gps.gpxmergeheartrate.metrics.MetricsRegistry.Phase;
+
+/**
+ * Reads heart rate CSV files exported by Mi Band Tools and Notify &amp; Fitness for Mi Band into {@link HeartRateIndex}.
+ * <p>
+ * Lines are scanned as bytes, without splitting them into strings. The usual shapes of the fields are parsed directly;
+ * anything else (e.g. a number with a sign) goes through java.time and {@link Integer#parseInt(String)} like before, so
+ * the results and the errors are the same.
+ */
+public class HeartRateCsvParser {
+	public static final int DEFAULT_MAXIMUM_HEART_RATE = 190;
+
+	private static final DateTimeFormatter MI_BAND_TOOLS_DATE_TIME = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss");
+	// dd.MM.yyyy HH:mm:ss
+	private static final int MI_BAND_TOOLS_DATE_TIME_LENGTH = 19;
+	private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// a mapping can't be bigger than 2GB
+	private static final long SEQUENTIAL_CHUNK_SIZE = 1024 * 1024 * 1024;
+	private static final long PARALLEL_CHUNK_SIZE = 16 * 1024 * 1024;
+	private static final int SEPARATOR_WINDOW_SIZE = 4 * 1024;
+	private static final int ESTIMATED_LINE_LENGTH = 32;
+
+	private final int maximumHeartRate;
+	private final MetricsRegistry metrics;
+
+	public HeartRateCsvParser() {
+		this(DEFAULT_MAXIMUM_HEART_RATE);
+	}
+
+	public HeartRateCsvParser(int maximumHeartRate) {
+		this(maximumHeartRate, MetricsRegistry.NOOP);
+	}
+
+	/**
+	 * @param metrics
+	 *            receives {@link Phase#CSV_INGEST} and {@link Phase#SORT} of each parse and the size of the parsed files
+	 */
+	public HeartRateCsvParser(int maximumHeartRate, MetricsRegistry metrics) {
+		this.maximumHeartRate = maximumHeartRate;
+		this.metrics = Objects.requireNonNull(metrics);
+	}
+
+	public int getMaximumHeartRate() {
+		return maximumHeartRate;
+	}
+
+	public HeartRateIndex parse(InputStream... sources) {
+		return parse(Arrays.asList(sources));
+	}
+
+	/**
+	 * All sources are combined in a single index, gzip and zip sources are decompressed, see {@link Compression}. The
+	 * sources are not closed.
+	 */
+	public HeartRateIndex parse(List<InputStream> sources) {
+		final long start = System.nanoTime();
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder();
+		final LineParser lineParser = new LineParser(ZoneId.systemDefault());
+		for (final InputStream source : sources) {
+			try (InputStream input = Compression.decompress(source)) {
+				lineParser.parse(input, builder);
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		if (builder.size() == 0) {
+			throw new IllegalArgumentException("No records in the input stream");
+		}
+		return sort(builder, start);
+	}
+
+	/**
+	 * Records {@link Phase#CSV_INGEST} from the start and {@link Phase#SORT}
+	 */
+	private HeartRateIndex sort(HeartRateIndex.Builder builder, long start) {
+		final long sortStart = System.nanoTime();
+		metrics.recordPhase(Phase.CSV_INGEST, sortStart - start);
+		final HeartRateIndex result = builder.sort().build();
+		metrics.recordPhase(Phase.SORT, System.nanoTime() - sortStart);
+		return result;
+	}
+
+	public HeartRateIndex parse(Path... files) throws IOException {
+		return parseFiles(Arrays.asList(files), false);
+	}
+
+	/**
+	 * All files are combined in a single index like {@link #parse(List)}. Files are memory mapped and parsed directly from
+	 * the mapped bytes, gzip and zip files are decompressed in another thread while they are parsed.
+	 * 
+	 * @param parallel
+	 *            split the files in chunks at line ends and parse the chunks in parallel, the result is the same
+	 */
+	public HeartRateIndex parseFiles(List<Path> files, boolean parallel) throws IOException {
+		return parseFiles(files, parallel, parallel ? PARALLEL_CHUNK_SIZE : SEQUENTIAL_CHUNK_SIZE);
+	}
+
+	HeartRateIndex parseFiles(List<Path> files, boolean parallel, long chunkSize) throws IOException {
+		final long start = System.nanoTime();
+		final List<FileChannel> channels = new ArrayList<>();
+		try {
+			// the samples are in the order of the files - it matters for the same times
+			HeartRateIndex.Builder builder = null;
+			List<Chunk> chunks = new ArrayList<>();
+			for (final Path file : files) {
+				metrics.addBytesRead(Files.size(file));
+				if (Compression.detect(file) != Compression.Format.PLAIN) {
+					builder = addChunks(builder, chunks, parallel);
+					chunks = new ArrayList<>();
+					try (InputStream input = Compression.decompress(file)) {
+						new LineParser(ZoneId.systemDefault()).parse(input, builder);
+					}
+					continue;
+				}
+				final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+				channels.add(channel);
+				chunks.addAll(split(channel, 0, chunkSize));
+			}
+			builder = addChunks(builder, chunks, parallel);
+
+			if (builder.size() == 0) {
+				throw new IllegalArgumentException("No records in the input stream");
+			}
+			return sort(builder, start);
+		} catch (final UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			for (final FileChannel next : channels) {
+				next.close();
+			}
+		}
+	}
+
+	/**
+	 * Parses only the end of a file, e.g. the lines appended after the last parse. There is no header there.
+	 * 
+	 * @param position
+	 *            start of a line
+	 * @return the records after <code>position</code> as a sorted index, empty if there are none
+	 */
+	public HeartRateIndex parseFrom(Path file, long position) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return parseChunks(split(channel, position, SEQUENTIAL_CHUNK_SIZE), false).sort().build();
+		} catch (final UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Reads the samples of the file lazily in the order of the file - only a buffer of lines is parsed at a time, so the
+	 * memory does not depend on the size of the file. Gzip and zip files are decompressed while they are read.
+	 */
+	HeartRateSamples open(Path file) throws IOException {
+		return new CsvSamples(Compression.decompress(file));
+	}
+
+	/**
+	 * The lines of the current buffer are parsed in a block, the samples are returned from it
+	 */
+	private class CsvSamples implements HeartRateSamples {
+		private final InputStream input;
+		private final LineParser lineParser = new LineParser(ZoneId.systemDefault());
+		private final HeartRateIndex.Builder block = new HeartRateIndex.Builder(BUFFER_SIZE / ESTIMATED_LINE_LENGTH);
+		// the current sample, the block is empty before the first one and at the end
+		private int current = 0;
+		private boolean isEnd = false;
+
+		CsvSamples(InputStream input) {
+			this.input = input;
+			lineParser.startStream();
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (current < block.size()) {
+				current++;
+			}
+			while (current == block.size()) {
+				if (isEnd) {
+					return false;
+				}
+				block.clear();
+				current = 0;
+				isEnd = !lineParser.parseNext(input, block);
+			}
+			return true;
+		}
+
+		@Override
+		public long getTime() {
+			return block.getTime(current);
+		}
+
+		@Override
+		public int getRate() {
+			return block.getRate(current);
+		}
+
+		@Override
+		public int getRateZone() {
+			return block.getRateZone(current);
+		}
+
+		@Override
+		public void close() throws IOException {
+			input.close();
+		}
+	}
+
+	private HeartRateIndex.Builder addChunks(HeartRateIndex.Builder builder, List<Chunk> chunks, boolean parallel) {
+		final HeartRateIndex.Builder result = parseChunks(chunks, parallel);
+		if (builder == null) {
+			return result;
+		}
+		builder.addAll(result);
+		return builder;
+	}
+
+	private HeartRateIndex.Builder parseChunks(List<Chunk> chunks, boolean parallel) {
+		final ZoneId zone = ZoneId.systemDefault();
+		if (parallel) {
+			final List<HeartRateIndex.Builder> results = chunks.parallelStream()
+					.map(a -> parseChunk(a, new LineParser(zone), new HeartRateIndex.Builder(estimateSize(a))))
+					.collect(Collectors.toList());
+			final HeartRateIndex.Builder result = new HeartRateIndex.Builder(
+					results.stream().mapToInt(HeartRateIndex.Builder::size).sum());
+			results.forEach(result::addAll);
+			return result;
+		}
+		final LineParser lineParser = new LineParser(zone);
+		final HeartRateIndex.Builder result = new HeartRateIndex.Builder(
+				chunks.stream().mapToInt(HeartRateCsvParser::estimateSize).sum());
+		chunks.forEach(a -> parseChunk(a, lineParser, result));
+		return result;
+	}
+
+	/**
+	 * A part of a file that starts at the beginning of a line and ends after a line separator (or at the end of the file)
+	 */
+	private static class Chunk {
+		private final FileChannel channel;
+		private final long position;
+		private final long size;
+		private final boolean hasHeader;
+
+		Chunk(FileChannel channel, long position, long size, boolean hasHeader) {
+			this.channel = channel;
+			this.position = position;
+			this.size = size;
+			this.hasHeader = hasHeader;
+		}
+	}
+
+	private static List<Chunk> split(FileChannel channel, long position, long chunkSize) throws IOException {
+		final List<Chunk> result = new ArrayList<>();
+		final long size = channel.size();
+		long start = position;
+		while (start < size) {
+			final long end = start + chunkSize >= size ? size : findNextLine(channel, start + chunkSize, size);
+			result.add(new Chunk(channel, start, end - start, start == 0));
+			start = end;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the position after the first line separator at or after <code>from</code>
+	 */
+	private static long findNextLine(FileChannel channel, long from, long size) throws IOException {
+		final ByteBuffer window = ByteBuffer.allocate(SEPARATOR_WINDOW_SIZE);
+		long position = from;
+		while (position < size) {
+			window.clear();
+			final int read = channel.read(window, position);
+			if (read < 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (window.get(i) == '\n' || window.get(i) == '\r') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+
+	private static int estimateSize(Chunk chunk) {
+		return (int) Math.min(Integer.MAX_VALUE - 8, Math.max(16, chunk.size / ESTIMATED_LINE_LENGTH));
+	}
+
+	private static HeartRateIndex.Builder parseChunk(Chunk chunk, LineParser lineParser, HeartRateIndex.Builder builder) {
+		final MappedByteBuffer bytes;
+		try {
+			bytes = chunk.channel.map(MapMode.READ_ONLY, chunk.position, chunk.size);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		lineParser.isHeader = chunk.hasHeader;
+		lineParser.parseLines(bytes, 0, bytes.limit(), true, builder);
+		return builder;
+	}
+
+	/**
+	 * State of a single parse (or a chunk) - buffer, separators and caches. The result of the last line is in time, rate and rateZone.
+	 */
+	private class LineParser {
+		private final ZoneOffsetCache offsets;
+		// for input streams only - the bytes of the lines that are not parsed yet are [bufferStart; bufferLimit)
+		private ByteBuffer buffer;
+		private int bufferStart;
+		private int bufferLimit;
+		private boolean isHeader;
+		// start of each field and the position of the separator (or the end of the line) after it
+		private int[] fields = new int[8];
+		private int fieldCount;
+
+		private int lastDate = -1;
+		private long lastEpochDay;
+
+		private long time;
+		private int rate;
+		private int rateZone;
+
+		LineParser(ZoneId zone) {
+			this.offsets = new ZoneOffsetCache(zone);
+		}
+
+		void parse(InputStream source, HeartRateIndex.Builder builder) throws IOException {
+			startStream();
+			while (parseNext(source, builder)) {
+				// all lines of the stream
+			}
+		}
+
+		/**
+		 * Starts the parse of an input stream with {@link #parseNext(InputStream, HeartRateIndex.Builder)}
+		 */
+		void startStream() {
+			if (buffer == null) {
+				buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			}
+			isHeader = true;
+			bufferStart = 0;
+			bufferLimit = 0;
+		}
+
+		/**
+		 * Reads the next bytes of the stream and parses the complete lines in them - at most a buffer of lines
+		 *
+		 * @return false at the end of the stream, all lines are parsed then
+		 */
+		boolean parseNext(InputStream source, HeartRateIndex.Builder builder) throws IOException {
+			if (bufferLimit == buffer.capacity()) {
+				if (bufferStart > 0) {
+					System.arraycopy(buffer.array(), bufferStart, buffer.array(), 0, bufferLimit - bufferStart);
+					bufferLimit -= bufferStart;
+					bufferStart = 0;
+				} else {
+					buffer = ByteBuffer.wrap(Arrays.copyOf(buffer.array(), buffer.capacity() * 2));
+				}
+			}
+			final int read = source.read(buffer.array(), bufferLimit, buffer.capacity() - bufferLimit);
+			if (read < 0) {
+				bufferStart = parseLines(buffer, bufferStart, bufferLimit, true, builder);
+				return false;
+			}
+			bufferLimit += read;
+			bufferStart = parseLines(buffer, bufferStart, bufferLimit, false, builder);
+			return true;
+		}
+
+		/**
+		 * Lines end with \n, \r or \r\n. The first line is the header, empty lines are skipped.
+		 * 
+		 * @param isEnd
+		 *            if the last line ends at <code>limit</code> without a line separator
+		 * @return the start of the first line that is not parsed
+		 */
+		int parseLines(ByteBuffer bytes, int start, int limit, boolean isEnd, HeartRateIndex.Builder builder) {
+			int position = start;
+			while (true) {
+				while (position < limit && bytes.get(position) != '\n' && bytes.get(position) != '\r') {
+					position++;
+				}
+				if (position == limit && !isEnd) {
+					return start;
+				}
+
+				if (isHeader) {
+					isHeader = false;
+				} else if (start < position) {
+					parseLine(bytes, start, position);
+					builder.add(time, rate, rateZone);
+				}
+				if (position == limit) {
+					return limit;
+				}
+				position++;
+				start = position;
+			}
+		}
+
+		void parseLine(ByteBuffer line, int start, int end) {
+			boolean hasComma = false;
+			boolean hasSemicolon = false;
+			for (int i = start; i < end; i++) {
+				if (line.get(i) == ',') {
+					hasComma = true;
+				} else if (line.get(i) == ';') {
+					hasSemicolon = true;
+				}
+			}
+
+			if (hasComma && !hasSemicolon) {
+				parseLineMiBandTools(line, start, end);
+			} else if (hasSemicolon) {
+				parseLineNotifyFitnessForMiBand(line, start, end);
+			} else {
+				throw new IllegalArgumentException("Unrecognized format: " + toString(line, start, end));
+			}
+		}
+
+		private void parseLineMiBandTools(ByteBuffer line, int start, int end) {
+			// "04.01.2000 00:00:00,4,1%"
+			split(line, start, end, (byte) ',');
+			if (fieldCount != 3) {
+				throw new IllegalArgumentException("3 expected, but was: " + toString(line, start, end));
+			}
+
+			time = parseMiBandToolsDateTime(line, fieldStart(0), fieldEnd(0));
+			rate = parseInt(line, fieldStart(1), fieldEnd(1));
+			rateZone = parseInt(line, fieldStart(2), fieldEnd(2) - 1);
+		}
+
+		private void parseLineNotifyFitnessForMiBand(ByteBuffer line, int start, int end) {
+			// "60;1589922120000;20 May 2020;00:02:00";
+			split(line, start, end, (byte) ';');
+			if (fieldCount != 4) {
+				throw new IllegalArgumentException("4 expected, but was: " + toString(line, start, end));
+			}
+
+			final long timestamp = parseLong(line, fieldStart(1), fieldEnd(1));
+			// through the local time like LocalDateTime.ofInstant(...).atZone(...) - the earlier offset in overlaps
+			final long second = Math.floorDiv(timestamp, 1000);
+			final long localSecond = second + offsets.getOffset(second);
+			time = offsets.toEpochSecond(localSecond) * 1000 + Math.floorMod(timestamp, 1000);
+
+			rate = parseInt(line, fieldStart(0), fieldEnd(0));
+			rateZone = Math.min(100, 100 * rate / maximumHeartRate);
+		}
+
+		/**
+		 * The same fields as {@link String#split(String)} - trailing empty fields are removed
+		 */
+		private void split(ByteBuffer line, int start, int end, byte separator) {
+			fieldCount = 0;
+			int fieldStart = start;
+			for (int i = start; i <= end; i++) {
+				if (i == end || line.get(i) == separator) {
+					if (fields.length < (fieldCount + 1) * 2) {
+						fields = Arrays.copyOf(fields, fields.length * 2);
+					}
+					fields[fieldCount * 2] = fieldStart;
+					fields[fieldCount * 2 + 1] = i;
+					fieldCount++;
+					fieldStart = i + 1;
+				}
+			}
+			while (fieldCount > 0 && fieldStart(fieldCount - 1) == fieldEnd(fieldCount - 1)) {
+				fieldCount--;
+			}
+		}
+
+		private int fieldStart(int index) {
+			return fields[index * 2];
+		}
+
+		private int fieldEnd(int index) {
+			return fields[index * 2 + 1];
+		}
+
+		/**
+		 * @return epoch millis
+		 */
+		private long parseMiBandToolsDateTime(ByteBuffer line, int start, int end) {
+			if (end - start == MI_BAND_TOOLS_DATE_TIME_LENGTH && line.get(start + 2) == '.' && line.get(start + 5) == '.'
+					&& line.get(start + 10) == ' ' && line.get(start + 13) == ':' && line.get(start + 16) == ':') {
+				final int day = digits(line, start, 2);
+				final int month = digits(line, start + 3, 2);
+				final int year = digits(line, start + 6, 4);
+				final int hour = digits(line, start + 11, 2);
+				final int minute = digits(line, start + 14, 2);
+				final int second = digits(line, start + 17, 2);
+				// digits() is -1 for non digits, year of era starts from 1
+				if (year >= 1 && month >= 1 && month <= 12 && day >= 1 && day <= Month.of(month).length(Year.isLeap(year))
+						&& hour >= 0 && hour <= 23 && minute >= 0 && minute <= 59 && second >= 0 && second <= 59) {
+					final long localSecond = epochDay(year, month, day) * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second;
+					return offsets.toEpochSecond(localSecond) * 1000;
+				}
+			}
+
+			// not the usual shape or not valid - the formatter decides
+			return LocalDateTime.parse(toString(line, start, end), MI_BAND_TOOLS_DATE_TIME).atZone(offsets.getZone())
+					.toInstant().toEpochMilli();
+		}
+
+		private long epochDay(int year, int month, int day) {
+			final int date = (year * 100 + month) * 100 + day;
+			if (date != lastDate) {
+				lastDate = date;
+				lastEpochDay = LocalDate.of(year, month, day).toEpochDay();
+			}
+			return lastEpochDay;
+		}
+
+		/**
+		 * @return the value of <code>count</code> decimal digits or -1 if some of them is not a digit
+		 */
+		private int digits(ByteBuffer line, int start, int count) {
+			int result = 0;
+			for (int i = start; i < start + count; i++) {
+				final int digit = line.get(i) - '0';
+				if (digit < 0 || digit > 9) {
+					return -1;
+				}
+				result = result * 10 + digit;
+			}
+			return result;
+		}
+
+		private int parseInt(ByteBuffer line, int start, int end) {
+			// up to 9 digits can't overflow
+			if (end > start && end - start <= 9) {
+				final int result = digits(line, start, end - start);
+				if (result >= 0) {
+					return result;
+				}
+			}
+			return Integer.parseInt(toString(line, start, end));
+		}
+
+		private long parseLong(ByteBuffer line, int start, int end) {
+			// up to 18 digits can't overflow
+			if (end > start && end - start <= 18) {
+				long result = 0;
+				int i = start;
+				for (; i < end; i++) {
+					final int digit = line.get(i) - '0';
+					if (digit < 0 || digit > 9) {
+						break;
+					}
+					result = result * 10 + digit;
+				}
+				if (i == end) {
+					return result;
+				}
+			}
+			return Long.parseLong(toString(line, start, end));
+		}
+
+		private String toString(ByteBuffer line, int start, int end) {
+			final byte[] bytes = new byte[Math.max(0, end - start)];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = line.get(start + i);
+			}
+			return new String(bytes, Charset.defaultCharset());
+		}
+	}
+
+}
@@ -0,0 +1,423 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.util.Arrays;
+
+/**
+ * Heart rate samples sorted by time and stored in primitive columns - epoch milliseconds, rate and rate zone. Uses ~11 bytes
+ * per sample instead of an object graph per row and all lookups are allocation free.
+ */
+public class HeartRateIndex {
+	private final long[] times;
+	private final short[] rates;
+	private final byte[] rateZones;
+	private final InputOrder inputOrder;
+	private final int runs;
+
+	/**
+	 * Arrays are used as they are (not copied), <code>times</code> MUST be sorted
+	 */
+	protected HeartRateIndex(long[] times, short[] rates, byte[] rateZones, InputOrder inputOrder, int runs) {
+		if (times.length != rates.length || times.length != rateZones.length) {
+			throw new IllegalArgumentException(
+					"Columns must have the same length: " + times.length + ", " + rates.length + ", " + rateZones.length);
+		}
+		this.times = times;
+		this.rates = rates;
+		this.rateZones = rateZones;
+		this.inputOrder = inputOrder;
+		this.runs = runs;
+	}
+
+	public int size() {
+		return times.length;
+	}
+
+	/**
+	 * @return epoch milliseconds of the sample
+	 */
+	public long getTime(int index) {
+		return times[index];
+	}
+
+	public int getRate(int index) {
+		return rates[index];
+	}
+
+	public int getRateZone(int index) {
+		// stored unsigned - rate zone is [0; 150]
+		return rateZones[index] & 0xFF;
+	}
+
+	/**
+	 * Binary search for the sample closest to <code>time</code> in [fromIndex; toIndex]. On equal distance the earlier sample
+	 * wins.
+	 */
+	public int findClosest(int fromIndex, int toIndex, long time) {
+		if (time < times[fromIndex]) {
+			return fromIndex;
+		}
+		if (time > times[toIndex]) {
+			return toIndex;
+		}
+
+		while (fromIndex <= toIndex) {
+			final int middle = (toIndex + fromIndex) >>> 1;
+			final long middleTime = times[middle];
+
+			if (time < middleTime) {
+				toIndex = middle - 1;
+			} else if (time > middleTime) {
+				fromIndex = middle + 1;
+			} else {
+				return middle;
+			}
+		}
+
+		// here times[toIndex] < time < times[fromIndex]
+		if (time - times[toIndex] > times[fromIndex] - time) {
+			return fromIndex;
+		}
+		return toIndex;
+	}
+
+	/**
+	 * @return index of the first sample at or after <code>time</code>, {@link #size()} if there is none
+	 */
+	public int findFirst(long time) {
+		int fromIndex = 0;
+		int toIndex = times.length;
+		while (fromIndex < toIndex) {
+			final int middle = (toIndex + fromIndex) >>> 1;
+			if (times[middle] < time) {
+				fromIndex = middle + 1;
+			} else {
+				toIndex = middle;
+			}
+		}
+		return fromIndex;
+	}
+
+	/**
+	 * @return how the samples were ordered in the input
+	 */
+	public InputOrder getInputOrder() {
+		return inputOrder;
+	}
+
+	/**
+	 * @return count of the sorted runs in the input, 1 if it was sorted or reversed
+	 */
+	public int getRuns() {
+		return runs;
+	}
+
+	@Override
+	public String toString() {
+		return "HeartRateIndex [size=" + times.length + ", inputOrder=" + inputOrder + ", runs=" + runs + "]";
+	}
+
+	/**
+	 * How the samples were ordered when they were added to the {@link Builder}
+	 */
+	public enum InputOrder {
+		/**
+		 * in time order, nothing to sort
+		 */
+		SORTED,
+		/**
+		 * in reverse time order, only reversed
+		 */
+		REVERSED,
+		/**
+		 * sorted runs (some of them may be reversed) were merged
+		 */
+		MERGED_RUNS
+	}
+
+	public static class Builder {
+		private long[] times;
+		private short[] rates;
+		private byte[] rateZones;
+		private int size = 0;
+
+		// neighbours in increasing and decreasing time order
+		private int ascents = 0;
+		private int descents = 0;
+
+		private InputOrder inputOrder = InputOrder.SORTED;
+		private int runs = 1;
+
+		public Builder() {
+			this(1024);
+		}
+
+		public Builder(int initialCapacity) {
+			times = new long[initialCapacity];
+			rates = new short[initialCapacity];
+			rateZones = new byte[initialCapacity];
+		}
+
+		public Builder add(long time, int rate, int rateZone) {
+			if (rate <= 0 || rate > Short.MAX_VALUE) {
+				throw new IllegalArgumentException("Rate must be in [1; " + Short.MAX_VALUE + "], but was: " + rate);
+			}
+			if (rateZone < 0 || rateZone > 150) {
+				throw new IllegalArgumentException("Ratezone must be [0; 150], but was: " + rateZone);
+			}
+			if (size == times.length) {
+				grow();
+			}
+			if (size > 0) {
+				countOrder(times[size - 1], time);
+			}
+			times[size] = time;
+			rates[size] = (short) rate;
+			rateZones[size] = (byte) rateZone;
+			size++;
+			return this;
+		}
+
+		private void countOrder(long previous, long next) {
+			if (previous < next) {
+				ascents++;
+			} else if (previous > next) {
+				descents++;
+			}
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * In the order they were added (or sorted)
+		 */
+		long getTime(int index) {
+			return times[index];
+		}
+
+		int getRate(int index) {
+			return rates[index];
+		}
+
+		int getRateZone(int index) {
+			return rateZones[index] & 0xFF;
+		}
+
+		/**
+		 * Removes all samples and keeps the capacity, e.g. for the next block of a stream
+		 */
+		void clear() {
+			size = 0;
+			ascents = 0;
+			descents = 0;
+			inputOrder = InputOrder.SORTED;
+			runs = 1;
+		}
+
+		/**
+		 * Appends all samples of <code>other</code>
+		 */
+		public Builder addAll(Builder other) {
+			if (other.size == 0) {
+				return this;
+			}
+			final int required = size + other.size;
+			if (required > times.length) {
+				times = Arrays.copyOf(times, required);
+				rates = Arrays.copyOf(rates, required);
+				rateZones = Arrays.copyOf(rateZones, required);
+			}
+			if (size > 0) {
+				countOrder(times[size - 1], other.times[0]);
+			}
+			System.arraycopy(other.times, 0, times, size, other.size);
+			System.arraycopy(other.rates, 0, rates, size, other.size);
+			System.arraycopy(other.rateZones, 0, rateZones, size, other.size);
+			size = required;
+			ascents += other.ascents;
+			descents += other.descents;
+			return this;
+		}
+
+		/**
+		 * Appends all samples of <code>index</code>
+		 */
+		public Builder addAll(HeartRateIndex index) {
+			final int count = index.size();
+			if (count == 0) {
+				return this;
+			}
+			final int required = size + count;
+			if (required > times.length) {
+				times = Arrays.copyOf(times, required);
+				rates = Arrays.copyOf(rates, required);
+				rateZones = Arrays.copyOf(rateZones, required);
+			}
+			if (size > 0) {
+				countOrder(times[size - 1], index.times[0]);
+			}
+			for (int i = 1; i < count; i++) {
+				countOrder(index.times[i - 1], index.times[i]);
+			}
+			System.arraycopy(index.times, 0, times, size, count);
+			System.arraycopy(index.rates, 0, rates, size, count);
+			System.arraycopy(index.rateZones, 0, rateZones, size, count);
+			size = required;
+			return this;
+		}
+
+		private void grow() {
+			final int capacity = Math.max(16, times.length + (times.length >> 1));
+			times = Arrays.copyOf(times, capacity);
+			rates = Arrays.copyOf(rates, capacity);
+			rateZones = Arrays.copyOf(rateZones, capacity);
+		}
+
+		/**
+		 * Stable sort by time - samples with the same time keep the order in which they were added. The order of the input is
+		 * counted while adding, so sorted input costs nothing, reverse sorted input is reversed and anything else is merged
+		 * from its sorted runs, see {@link #getInputOrder()}.
+		 */
+		public Builder sort() {
+			if (descents == 0) {
+				inputOrder = InputOrder.SORTED;
+				runs = 1;
+			} else if (ascents == 0) {
+				reverse(0, size);
+				// samples with the same time back in their order
+				for (int from = 0, to = 1; to <= size; to++) {
+					if (to == size || times[to] != times[from]) {
+						reverse(from, to);
+						from = to;
+					}
+				}
+				inputOrder = InputOrder.REVERSED;
+				runs = 1;
+				ascents = descents;
+			} else {
+				runs = mergeRuns();
+				inputOrder = InputOrder.MERGED_RUNS;
+				ascents = 0;
+				for (int i = 1; i < size; i++) {
+					countOrder(times[i - 1], times[i]);
+				}
+			}
+			descents = 0;
+			return this;
+		}
+
+		/**
+		 * Natural merge sort - finds the sorted runs (strictly decreasing runs are reversed in place) and merges the neighbours
+		 * until a single run is left
+		 * 
+		 * @return count of the initial runs
+		 */
+		private int mergeRuns() {
+			int[] bounds = new int[16];
+			int count = 0;
+			for (int from = 0; from < size;) {
+				int to = from + 1;
+				if (to < size && times[to] < times[from]) {
+					while (to < size && times[to] < times[to - 1]) {
+						to++;
+					}
+					reverse(from, to);
+				} else {
+					while (to < size && times[to] >= times[to - 1]) {
+						to++;
+					}
+				}
+				if (count + 1 == bounds.length) {
+					bounds = Arrays.copyOf(bounds, bounds.length * 2);
+				}
+				bounds[count++] = from;
+				from = to;
+			}
+			bounds[count] = size;
+			final int result = count;
+
+			long[] otherTimes = new long[size];
+			short[] otherRates = new short[size];
+			byte[] otherRateZones = new byte[size];
+			while (count > 1) {
+				int merged = 0;
+				for (int run = 0; run < count; run += 2) {
+					final int from = bounds[run];
+					final int middle = bounds[Math.min(run + 1, count)];
+					final int to = bounds[Math.min(run + 2, count)];
+					int left = from;
+					int right = middle;
+					for (int i = from; i < to; i++) {
+						// <= keeps equal times in order
+						final int next = left < middle && (right >= to || times[left] <= times[right]) ? left++ : right++;
+						otherTimes[i] = times[next];
+						otherRates[i] = rates[next];
+						otherRateZones[i] = rateZones[next];
+					}
+					bounds[merged++] = from;
+				}
+				bounds[merged] = size;
+				count = merged;
+
+				final long[] tempTimes = times;
+				times = otherTimes;
+				otherTimes = tempTimes;
+				final short[] tempRates = rates;
+				rates = otherRates;
+				otherRates = tempRates;
+				final byte[] tempRateZones = rateZones;
+				rateZones = otherRateZones;
+				otherRateZones = tempRateZones;
+			}
+			return result;
+		}
+
+		private void reverse(int from, int to) {
+			for (int i = from, j = to - 1; i < j; i++, j--) {
+				final long time = times[i];
+				times[i] = times[j];
+				times[j] = time;
+				final short rate = rates[i];
+				rates[i] = rates[j];
+				rates[j] = rate;
+				final byte rateZone = rateZones[i];
+				rateZones[i] = rateZones[j];
+				rateZones[j] = rateZone;
+			}
+		}
+
+		/**
+		 * @return how the input was ordered, valid after {@link #sort()}
+		 */
+		public InputOrder getInputOrder() {
+			return inputOrder;
+		}
+
+		/**
+		 * @return count of the sorted runs in the input, valid after {@link #sort()}
+		 */
+		public int getRuns() {
+			return runs;
+		}
+
+		/**
+		 * Samples MUST be in time order - added in order or {@link #sort()}-ed. The builder MUST not be used after this call.
+		 */
+		public HeartRateIndex build() {
+			if (descents > 0) {
+				int unsorted = 1;
+				while (times[unsorted - 1] <= times[unsorted]) {
+					unsorted++;
+				}
+				throw new IllegalStateException("Samples are not sorted at index " + unsorted);
+			}
+			if (size != times.length) {
+				times = Arrays.copyOf(times, size);
+				rates = Arrays.copyOf(rates, size);
+				rateZones = Arrays.copyOf(rateZones, size);
+			}
+			return new HeartRateIndex(times, rates, rateZones, inputOrder, runs);
+		}
+	}
+}
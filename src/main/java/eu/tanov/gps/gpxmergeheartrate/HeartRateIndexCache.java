@@ -0,0 +1,486 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneRulesProvider;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndex.InputOrder;
+
+/**
+ * Keeps the parsed {@link HeartRateIndex} of a CSV file in a binary file - beside the CSV file (
+ * <code>&lt;csv file&gt;.hrindex</code>) or in a cache directory. Later loads read the binary file instead of parsing the
+ * CSV again.
+ * <p>
+ * The cache is used only if it is for the same source (size, modified time and CRC32 of the content), the same time zone
+ * (id and version of the zone rules) and the same maximum heart rate. The content is checked only when the modified time
+ * is different - e.g. the file is copied.
+ * <p>
+ * Exports that only grow (new lines appended at the end) are parsed incrementally - the cache remembers how many bytes of
+ * the source are already parsed and only the lines after them are parsed and added. The source is considered appended if
+ * it is bigger and its first and last {@value #WINDOW_SIZE} bytes of the parsed part are the same. Appended samples that
+ * are not older than the last cached one are appended to the cache file, anything else is merged and the cache is
+ * written again. Gzip and zip sources are always parsed whole.
+ * <p>
+ * Everything else causes parsing and writing a new cache. Failing to write the cache is ignored - it is only a cache.
+ * <p>
+ * Format (big endian): header, padding to 8 bytes, blocks - one for the whole index and one more for each append. A block
+ * is count (long), times (long), rates (short), rate zones (byte) and padding to 8 bytes - the columns are loaded in bulk.
+ * After {@value #MAXIMUM_BLOCKS} blocks the next append writes the whole cache again as a single block.
+ */
+public class HeartRateIndexCache {
+	public static final String EXTENSION = ".hrindex";
+
+	private static final int MAGIC = 0x47485249; // GHRI
+	private static final int VERSION = 3;
+	private static final int MAP_CHUNK_SIZE = 256 * 1024 * 1024;
+	private static final int WINDOW_SIZE = 4 * 1024;
+	private static final int RECORD_SIZE = Long.BYTES + Short.BYTES + Byte.BYTES;
+	private static final int MAXIMUM_BLOCKS = 16;
+	// CRC32 is never negative
+	private static final long UNKNOWN_CHECKSUM = -1;
+
+	private final HeartRateCsvParser parser;
+	private final Optional<Path> directory;
+
+	/**
+	 * Cache files are beside the CSV files
+	 */
+	public HeartRateIndexCache(HeartRateCsvParser parser) {
+		this(parser, Optional.empty());
+	}
+
+	public HeartRateIndexCache(HeartRateCsvParser parser, Optional<Path> directory) {
+		this.parser = Objects.requireNonNull(parser);
+		this.directory = Objects.requireNonNull(directory);
+	}
+
+	/**
+	 * Like {@link HeartRateCsvParser#parseFiles(List, boolean)} - each file is cached separately and they are combined
+	 */
+	public HeartRateIndex load(List<Path> files) throws IOException {
+		if (files.size() == 1) {
+			return load(files.get(0));
+		}
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder();
+		for (final Path file : files) {
+			builder.addAll(load(file));
+		}
+		return builder.sort().build();
+	}
+
+	public HeartRateIndex load(Path file) throws IOException {
+		final Path cacheFile = getCacheFile(file);
+		final Header source = new Header(file, parser.getMaximumHeartRate(), ZoneId.systemDefault());
+
+		final Optional<Cached> cached = Files.isRegularFile(cacheFile) ? read(cacheFile) : Optional.empty();
+		if (cached.isPresent() && cached.get().header.isSameSettings(source)) {
+			final Header header = cached.get().header;
+			if (header.size == source.size) {
+				if (header.lastModified == source.lastModified) {
+					return cached.get().index;
+				}
+				if (header.checksum != UNKNOWN_CHECKSUM && header.checksum == checksum(file)) {
+					updateLastModified(cacheFile, source.lastModified);
+					return cached.get().index;
+				}
+			} else if (header.size < source.size && Compression.detect(file) == Compression.Format.PLAIN
+					&& header.windowsChecksum == windowsChecksum(file, header.size) && isLineStart(file, header.size)) {
+				return append(file, cacheFile, cached.get(), source);
+			}
+		}
+
+		final HeartRateIndex result = parser.parse(file);
+		try {
+			if (isUnchanged(file, source)) {
+				write(cacheFile, source.withChecksums(checksum(file), windowsChecksum(file, source.size)), result);
+			}
+		} catch (final IOException e) {
+			// read only directory, no space, etc. - works without cache
+		}
+		return result;
+	}
+
+	/**
+	 * Parses only the lines after the cached part of the source
+	 */
+	private HeartRateIndex append(Path file, Path cacheFile, Cached cached, Header source) throws IOException {
+		final HeartRateIndex index = cached.index;
+		final HeartRateIndex appended = parser.parseFrom(file, cached.header.size);
+		// the cached samples are before the appended ones in the source, so the stable sort gives the same as a full parse
+		final HeartRateIndex result = new HeartRateIndex.Builder(index.size() + appended.size()).addAll(index)
+				.addAll(appended).sort().build();
+		try {
+			if (!isUnchanged(file, source)) {
+				// still growing - next time
+				return result;
+			}
+			// calculating the checksum of the whole source is not worth it - it is needed only for touched sources
+			final Header header = source.withChecksums(UNKNOWN_CHECKSUM, windowsChecksum(file, source.size));
+			if (cached.blocks < MAXIMUM_BLOCKS
+					&& (appended.size() == 0 || appended.getTime(0) >= index.getTime(index.size() - 1))) {
+				appendBlock(cacheFile, cached.end, header, result, index.size());
+			} else {
+				write(cacheFile, header, result);
+			}
+		} catch (final IOException e) {
+			// works without cache
+		}
+		return result;
+	}
+
+	public Path getCacheFile(Path file) {
+		final Path absolute = file.toAbsolutePath().normalize();
+		if (!directory.isPresent()) {
+			return absolute.resolveSibling(absolute.getFileName() + EXTENSION);
+		}
+		// files with the same name from different directories
+		return directory.get().resolve(
+				absolute.getFileName() + "-" + Integer.toHexString(absolute.getParent().toString().hashCode()) + EXTENSION);
+	}
+
+	private static Optional<Cached> read(Path cacheFile) {
+		try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			final MappedByteBuffer bytes = channel.map(MapMode.READ_ONLY, 0, size);
+
+			final Optional<Header> header = Header.read(bytes);
+			if (!header.isPresent()) {
+				return Optional.empty();
+			}
+			final int count = bytes.getInt(Header.COUNT_POSITION);
+			final InputOrder inputOrder = InputOrder.values()[bytes.getInt(Header.INPUT_ORDER_POSITION)];
+			final int runs = bytes.getInt(Header.RUNS_POSITION);
+			if (count < 0 || count > size / RECORD_SIZE) {
+				return Optional.empty();
+			}
+
+			final long[] times = new long[count];
+			final short[] rates = new short[count];
+			final byte[] rateZones = new byte[count];
+			int position = align(bytes.position());
+			int from = 0;
+			int blocks = 0;
+			while (position < size) {
+				bytes.position(position);
+				final long blockCount = bytes.getLong();
+				if (blockCount <= 0 || blockCount > count - from) {
+					return Optional.empty();
+				}
+				final int length = (int) blockCount;
+				bytes.asLongBuffer().get(times, from, length);
+				bytes.position(bytes.position() + length * Long.BYTES);
+				bytes.asShortBuffer().get(rates, from, length);
+				bytes.position(bytes.position() + length * Short.BYTES);
+				bytes.get(rateZones, from, length);
+				position = align(bytes.position());
+				from += length;
+				blocks++;
+			}
+			// an append that broke before its header was written
+			if (from != count || position != size) {
+				return Optional.empty();
+			}
+			return Optional.of(new Cached(header.get(), new HeartRateIndex(times, rates, rateZones, inputOrder, runs),
+					position, blocks));
+		} catch (final IOException | RuntimeException e) {
+			// broken or not readable file, e.g. BufferUnderflowException
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * The same content with other modified time (e.g. copied) - next time the content is not checked
+	 */
+	private static void updateLastModified(Path cacheFile, long lastModified) {
+		try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.WRITE)) {
+			final ByteBuffer bytes = ByteBuffer.allocate(Long.BYTES).putLong(0, lastModified);
+			channel.write(bytes, Header.LAST_MODIFIED_POSITION);
+		} catch (final IOException e) {
+			// the content will be checked again next time
+		}
+	}
+
+	private static void write(Path cacheFile, Header header, HeartRateIndex index) throws IOException {
+		Files.createDirectories(cacheFile.getParent());
+		final Path temporaryFile = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName().toString(), ".tmp");
+		try {
+			final ByteBuffer headerBytes = header.write(index);
+			final int blocks = align(headerBytes.limit());
+			final long size = blocks + getBlockSize(index.size());
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Too big for a single mapping: " + size);
+			}
+			try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				final MappedByteBuffer bytes = channel.map(MapMode.READ_WRITE, 0, size);
+				bytes.put(headerBytes);
+				bytes.position(blocks);
+				putBlock(bytes, index, 0);
+				bytes.force();
+			}
+			try {
+				Files.move(temporaryFile, cacheFile, StandardCopyOption.ATOMIC_MOVE);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(temporaryFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporaryFile);
+		}
+	}
+
+	/**
+	 * Writes the samples of <code>index</code> from <code>from</code> as a new block at <code>end</code> and then the header.
+	 * The cache is not valid (the count doesn't match) if it breaks in between.
+	 */
+	private static void appendBlock(Path cacheFile, int end, Header header, HeartRateIndex index, int from)
+			throws IOException {
+		final long size = end + getBlockSize(index.size() - from);
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Too big for a single mapping: " + size);
+		}
+		final ByteBuffer bytes = ByteBuffer.allocate((int) (size - end));
+		putBlock(bytes, index, from);
+		bytes.flip();
+		try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.WRITE)) {
+			write(channel, bytes, end);
+			channel.force(false);
+			write(channel, header.writeSource(index), Header.SIZE_POSITION);
+			channel.force(false);
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer bytes, long position) throws IOException {
+		long next = position;
+		while (bytes.hasRemaining()) {
+			next += channel.write(bytes, next);
+		}
+	}
+
+	/**
+	 * @return size of a block of <code>count</code> samples, 0 for none - there are no empty blocks
+	 */
+	private static long getBlockSize(int count) {
+		return count == 0 ? 0 : Long.BYTES + align(count * (long) RECORD_SIZE);
+	}
+
+	private static void putBlock(ByteBuffer bytes, HeartRateIndex index, int from) {
+		if (from == index.size()) {
+			return;
+		}
+		bytes.putLong(index.size() - from);
+		for (int i = from; i < index.size(); i++) {
+			bytes.putLong(index.getTime(i));
+		}
+		for (int i = from; i < index.size(); i++) {
+			bytes.putShort((short) index.getRate(i));
+		}
+		for (int i = from; i < index.size(); i++) {
+			bytes.put((byte) index.getRateZone(i));
+		}
+		bytes.position(align(bytes.position()));
+	}
+
+	private static int align(int position) {
+		return (int) align((long) position);
+	}
+
+	private static long align(long position) {
+		return (position + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+	}
+
+	/**
+	 * Size and modified time are the same as at the start of the load - it was not written in the meantime
+	 */
+	private static boolean isUnchanged(Path file, Header source) throws IOException {
+		return Files.size(file) == source.size && Files.getLastModifiedTime(file).toMillis() == source.lastModified;
+	}
+
+	static long checksum(Path file) throws IOException {
+		final CRC32 result = new CRC32();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			for (long position = 0; position < size; position += MAP_CHUNK_SIZE) {
+				result.update(channel.map(MapMode.READ_ONLY, position, Math.min(MAP_CHUNK_SIZE, size - position)));
+			}
+		}
+		return result.getValue();
+	}
+
+	/**
+	 * @return CRC32 of the first and the last {@link #WINDOW_SIZE} bytes of the first <code>size</code> bytes of the file
+	 */
+	static long windowsChecksum(Path file, long size) throws IOException {
+		final CRC32 result = new CRC32();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			result.update(read(channel, 0, Math.min(WINDOW_SIZE, size)));
+			result.update(read(channel, Math.max(0, size - WINDOW_SIZE), size));
+		}
+		return result.getValue();
+	}
+
+	/**
+	 * @return the first <code>position</code> bytes of the file are whole lines - the byte before or at
+	 *         <code>position</code> is a line separator. Otherwise the last parsed line could have been continued.
+	 */
+	private static boolean isLineStart(Path file, long position) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final ByteBuffer bytes = read(channel, position - 1, position + 1);
+			while (bytes.hasRemaining()) {
+				final byte next = bytes.get();
+				if (next == '\n' || next == '\r') {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long from, long to) throws IOException {
+		final ByteBuffer result = ByteBuffer.allocate((int) (to - from));
+		while (result.hasRemaining() && channel.read(result, from + result.position()) >= 0) {
+			// until the end of the range or the file
+		}
+		result.flip();
+		return result;
+	}
+
+	private static class Cached {
+		private final Header header;
+		private final HeartRateIndex index;
+		// position after the last block
+		private final int end;
+		private final int blocks;
+
+		Cached(Header header, HeartRateIndex index, int end, int blocks) {
+			this.header = header;
+			this.index = index;
+			this.end = end;
+			this.blocks = blocks;
+		}
+	}
+
+	/**
+	 * The fields that change on append have fixed positions
+	 */
+	private static class Header {
+		// after magic and version
+		static final int SIZE_POSITION = 2 * Integer.BYTES;
+		static final int LAST_MODIFIED_POSITION = SIZE_POSITION + Long.BYTES;
+		static final int COUNT_POSITION = SIZE_POSITION + 4 * Long.BYTES;
+		static final int INPUT_ORDER_POSITION = COUNT_POSITION + Integer.BYTES;
+		static final int RUNS_POSITION = INPUT_ORDER_POSITION + Integer.BYTES;
+
+		// parsed bytes of the source
+		private final long size;
+		private final long lastModified;
+		private final long checksum;
+		private final long windowsChecksum;
+		private final int maximumHeartRate;
+		private final String zone;
+		private final String zoneRulesVersion;
+
+		private Header(long size, long lastModified, long checksum, long windowsChecksum, int maximumHeartRate, String zone,
+				String zoneRulesVersion) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.checksum = checksum;
+			this.windowsChecksum = windowsChecksum;
+			this.maximumHeartRate = maximumHeartRate;
+			this.zone = zone;
+			this.zoneRulesVersion = zoneRulesVersion;
+		}
+
+		/**
+		 * Without checksums - they are calculated only when needed
+		 */
+		Header(Path file, int maximumHeartRate, ZoneId zone) throws IOException {
+			this(Files.size(file), Files.getLastModifiedTime(file).toMillis(), UNKNOWN_CHECKSUM, UNKNOWN_CHECKSUM,
+					maximumHeartRate, zone.getId(),
+					zone instanceof ZoneOffset ? "" : ZoneRulesProvider.getVersions(zone.getId()).lastKey());
+		}
+
+		Header withChecksums(long checksum, long windowsChecksum) {
+			return new Header(size, lastModified, checksum, windowsChecksum, maximumHeartRate, zone, zoneRulesVersion);
+		}
+
+		/**
+		 * Parsed in the same way - the source may be different
+		 */
+		boolean isSameSettings(Header other) {
+			return maximumHeartRate == other.maximumHeartRate && zone.equals(other.zone)
+					&& zoneRulesVersion.equals(other.zoneRulesVersion);
+		}
+
+		/**
+		 * @return header without count, input order and runs - they are read with absolute positions
+		 */
+		static Optional<Header> read(ByteBuffer bytes) {
+			if (bytes.getInt() != MAGIC || bytes.getInt() != VERSION) {
+				return Optional.empty();
+			}
+			final long size = bytes.getLong();
+			final long lastModified = bytes.getLong();
+			final long checksum = bytes.getLong();
+			final long windowsChecksum = bytes.getLong();
+			bytes.position(RUNS_POSITION + Integer.BYTES);
+			final int maximumHeartRate = bytes.getInt();
+			final String zone = readString(bytes);
+			final String zoneRulesVersion = readString(bytes);
+			return Optional.of(
+					new Header(size, lastModified, checksum, windowsChecksum, maximumHeartRate, zone, zoneRulesVersion));
+		}
+
+		/**
+		 * @return header with the count, input order and runs of the index, ready to read
+		 */
+		ByteBuffer write(HeartRateIndex index) {
+			final byte[] zoneBytes = zone.getBytes(StandardCharsets.UTF_8);
+			final byte[] zoneRulesVersionBytes = zoneRulesVersion.getBytes(StandardCharsets.UTF_8);
+			final ByteBuffer result = ByteBuffer
+					.allocate(RUNS_POSITION + 4 * Integer.BYTES + zoneBytes.length + zoneRulesVersionBytes.length);
+			result.putInt(MAGIC).putInt(VERSION);
+			result.put(writeSource(index));
+			result.putInt(maximumHeartRate);
+			result.putInt(zoneBytes.length).put(zoneBytes);
+			result.putInt(zoneRulesVersionBytes.length).put(zoneRulesVersionBytes);
+			result.flip();
+			return result;
+		}
+
+		/**
+		 * @return the fields from {@link #SIZE_POSITION} to the end of {@link #RUNS_POSITION}, ready to read
+		 */
+		ByteBuffer writeSource(HeartRateIndex index) {
+			final ByteBuffer result = ByteBuffer.allocate(RUNS_POSITION + Integer.BYTES - SIZE_POSITION);
+			result.putLong(size).putLong(lastModified).putLong(checksum).putLong(windowsChecksum);
+			result.putInt(index.size()).putInt(index.getInputOrder().ordinal()).putInt(index.getRuns());
+			result.flip();
+			return result;
+		}
+
+		private static String readString(ByteBuffer bytes) {
+			final int length = bytes.getInt();
+			if (length < 0 || length > bytes.remaining()) {
+				throw new BufferUnderflowException();
+			}
+			final byte[] result = new byte[length];
+			bytes.get(result);
+			return new String(result, StandardCharsets.UTF_8);
+		}
+	}
+}
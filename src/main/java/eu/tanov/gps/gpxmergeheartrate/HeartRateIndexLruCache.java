@@ -0,0 +1,242 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Keeps the parsed {@link HeartRateIndex}es of CSV files in memory, e.g. for {@link MergeServer}. The key is the list of
+ * the files with their size and modified time - a changed file is loaded again and the old index is dropped.
+ * <p>
+ * Bounded by the count of samples (~11 bytes each, see {@link HeartRateIndex}) - the least recently used indexes are
+ * dropped, the last loaded one is always kept. Thread safe - concurrent requests for the same files wait for a single
+ * load, the loads of different files are concurrent.
+ */
+public class HeartRateIndexLruCache {
+	@FunctionalInterface
+	public interface Loader {
+		HeartRateIndex load(List<Path> files) throws IOException;
+	}
+
+	private final Loader loader;
+	private final long maximumSamples;
+	// access order - the first one is the least recently used
+	private final Map<List<FileIdentity>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long samples = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public HeartRateIndexLruCache(Loader loader, long maximumSamples) {
+		if (maximumSamples <= 0) {
+			throw new IllegalArgumentException("Maximum samples must be positive, but was: " + maximumSamples);
+		}
+		this.loader = Objects.requireNonNull(loader);
+		this.maximumSamples = maximumSamples;
+	}
+
+	private static class FileIdentity {
+		private final Path file;
+		private final long size;
+		private final long lastModified;
+
+		FileIdentity(Path file) throws IOException {
+			this.file = file.toAbsolutePath().normalize();
+			this.size = Files.size(this.file);
+			this.lastModified = Files.getLastModifiedTime(this.file).toMillis();
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(file, size, lastModified);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof FileIdentity)) {
+				return false;
+			}
+			final FileIdentity other = (FileIdentity) obj;
+			return file.equals(other.file) && size == other.size && lastModified == other.lastModified;
+		}
+
+		@Override
+		public String toString() {
+			return file + " (" + size + " bytes, modified " + lastModified + ")";
+		}
+	}
+
+	private static class Entry {
+		private final CompletableFuture<HeartRateIndex> index = new CompletableFuture<>();
+		// 0 while loading, loading entries are never evicted
+		private int samples = 0;
+	}
+
+	/**
+	 * @throws java.nio.file.NoSuchFileException
+	 *             if any of the files does not exist
+	 */
+	public HeartRateIndex get(List<Path> files) throws IOException {
+		final List<FileIdentity> key = new ArrayList<>();
+		for (final Path next : files) {
+			key.add(new FileIdentity(next));
+		}
+		final Entry entry;
+		final boolean load;
+		synchronized (this) {
+			final Entry existing = entries.get(key);
+			if (existing == null) {
+				removeChanged(key);
+				entry = new Entry();
+				entries.put(key, entry);
+				misses++;
+			} else {
+				entry = existing;
+				hits++;
+			}
+			load = existing == null;
+		}
+		if (load) {
+			load(files, key, entry);
+		}
+		return get(entry);
+	}
+
+	private void load(List<Path> files, List<FileIdentity> key, Entry entry) throws IOException {
+		final HeartRateIndex index;
+		try {
+			index = loader.load(files);
+		} catch (IOException | RuntimeException e) {
+			synchronized (this) {
+				entries.remove(key, entry);
+			}
+			entry.index.completeExceptionally(e);
+			throw e;
+		}
+		synchronized (this) {
+			if (entries.get(key) == entry) {
+				entry.samples = index.size();
+				samples += entry.samples;
+				evict(entry);
+			}
+		}
+		entry.index.complete(index);
+	}
+
+	private static HeartRateIndex get(Entry entry) throws IOException {
+		try {
+			return entry.index.join();
+		} catch (final CompletionException e) {
+			// the same error as in the thread that loaded it
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Drops the indexes of the same files with another size or modified time
+	 */
+	private void removeChanged(List<FileIdentity> key) {
+		final Iterator<Map.Entry<List<FileIdentity>, Entry>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Map.Entry<List<FileIdentity>, Entry> next = iterator.next();
+			if (isSameFiles(next.getKey(), key)) {
+				samples -= next.getValue().samples;
+				iterator.remove();
+			}
+		}
+	}
+
+	private static boolean isSameFiles(List<FileIdentity> first, List<FileIdentity> second) {
+		if (first.size() != second.size()) {
+			return false;
+		}
+		for (int i = 0; i < first.size(); i++) {
+			if (!first.get(i).file.equals(second.get(i).file)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void evict(Entry keep) {
+		final Iterator<Entry> iterator = entries.values().iterator();
+		while (samples > maximumSamples && iterator.hasNext()) {
+			final Entry next = iterator.next();
+			if (next != keep && next.samples > 0) {
+				samples -= next.samples;
+				evictions++;
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drops everything, loads in progress are not affected
+	 */
+	public synchronized void clear() {
+		entries.values().removeIf(a -> a.samples > 0);
+		samples = 0;
+	}
+
+	/**
+	 * @return cached indexes, with the loading ones
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getSamples() {
+		return samples;
+	}
+
+	public long getMaximumSamples() {
+		return maximumSamples;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the files of the cached indexes from the least recently used
+	 */
+	public synchronized List<List<Path>> getFiles() {
+		final List<List<Path>> result = new ArrayList<>();
+		for (final List<FileIdentity> next : entries.keySet()) {
+			final List<Path> files = new ArrayList<>();
+			next.forEach(a -> files.add(a.file));
+			result.add(Collections.unmodifiableList(files));
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "HeartRateIndexLruCache [indexes=" + entries.size() + ", samples=" + samples + "/" + maximumSamples
+				+ ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+}
@@ -0,0 +1,169 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Merges the sorted indexes of several heart rate sources (e.g. Mi Band Tools, Notify &amp; Fitness for Mi Band and a chest
+ * strap) into one index without sorting again - k-way merge with a heap of the sources, O(n log k). Samples with the same
+ * time (from different sources or from the same one) become a single sample according to the {@link ConflictPolicy}.
+ */
+public class HeartRateIndexMerger {
+	public enum ConflictPolicy {
+		/**
+		 * The sample of the source that is first in the list of sources wins, within a source - the first sample
+		 */
+		FIRST,
+		/**
+		 * Rounded average of the rates and of the rate zones
+		 */
+		AVERAGE,
+		/**
+		 * The sample with the highest rate, on equal rates - as {@link #FIRST}
+		 */
+		MAXIMUM
+	}
+
+	private final ConflictPolicy policy;
+
+	public HeartRateIndexMerger(ConflictPolicy policy) {
+		this.policy = Objects.requireNonNull(policy);
+	}
+
+	public ConflictPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @param sources
+	 *            in the order of preference for {@link ConflictPolicy#FIRST}
+	 */
+	public HeartRateIndex merge(List<HeartRateIndex> sources) {
+		final int count = sources.size();
+		final HeartRateIndex[] indexes = sources.toArray(new HeartRateIndex[count]);
+		final int[] positions = new int[count];
+		// binary min heap of sources by (time of the next sample, source)
+		final int[] heap = new int[count];
+		int heapSize = 0;
+		int total = 0;
+		for (int i = 0; i < count; i++) {
+			total += indexes[i].size();
+			if (indexes[i].size() > 0) {
+				heap[heapSize++] = i;
+				siftUp(indexes, positions, heap, heapSize - 1);
+			}
+		}
+
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder(total);
+		final Group group = new Group();
+		while (heapSize > 0) {
+			final int source = heap[0];
+			final HeartRateIndex index = indexes[source];
+			final int position = positions[source];
+			final long time = index.getTime(position);
+			if (group.count > 0 && group.time != time) {
+				group.addTo(builder, policy);
+			}
+			group.add(time, index.getRate(position), index.getRateZone(position));
+
+			positions[source]++;
+			if (positions[source] == index.size()) {
+				heap[0] = heap[--heapSize];
+			}
+			siftDown(indexes, positions, heap, heapSize, 0);
+		}
+		if (group.count > 0) {
+			group.addTo(builder, policy);
+		}
+		return builder.sort().build();
+	}
+
+	private static boolean isBefore(HeartRateIndex[] indexes, int[] positions, int source, int other) {
+		final long time = indexes[source].getTime(positions[source]);
+		final long otherTime = indexes[other].getTime(positions[other]);
+		// on equal times the earlier source first - keeps the order of the sources for FIRST
+		return time < otherTime || (time == otherTime && source < other);
+	}
+
+	private static void siftUp(HeartRateIndex[] indexes, int[] positions, int[] heap, int from) {
+		int child = from;
+		while (child > 0) {
+			final int parent = (child - 1) / 2;
+			if (!isBefore(indexes, positions, heap[child], heap[parent])) {
+				return;
+			}
+			swap(heap, child, parent);
+			child = parent;
+		}
+	}
+
+	private static void siftDown(HeartRateIndex[] indexes, int[] positions, int[] heap, int heapSize, int from) {
+		int parent = from;
+		while (true) {
+			final int left = 2 * parent + 1;
+			if (left >= heapSize) {
+				return;
+			}
+			final int right = left + 1;
+			final int child = right < heapSize && isBefore(indexes, positions, heap[right], heap[left]) ? right : left;
+			if (!isBefore(indexes, positions, heap[child], heap[parent])) {
+				return;
+			}
+			swap(heap, child, parent);
+			parent = child;
+		}
+	}
+
+	private static void swap(int[] heap, int first, int second) {
+		final int value = heap[first];
+		heap[first] = heap[second];
+		heap[second] = value;
+	}
+
+	/**
+	 * Samples with the same time, in the order of the sources
+	 */
+	private static class Group {
+		private long time;
+		private int count;
+		private int firstRate;
+		private int firstRateZone;
+		private int maximumRate;
+		private int maximumRateZone;
+		private long rateSum;
+		private long rateZoneSum;
+
+		void add(long time, int rate, int rateZone) {
+			if (count == 0) {
+				this.time = time;
+				firstRate = rate;
+				firstRateZone = rateZone;
+				maximumRate = rate;
+				maximumRateZone = rateZone;
+			} else if (rate > maximumRate) {
+				maximumRate = rate;
+				maximumRateZone = rateZone;
+			}
+			rateSum += rate;
+			rateZoneSum += rateZone;
+			count++;
+		}
+
+		void addTo(HeartRateIndex.Builder builder, ConflictPolicy policy) {
+			switch (policy) {
+			case AVERAGE:
+				builder.add(time, (int) ((rateSum + count / 2) / count), (int) ((rateZoneSum + count / 2) / count));
+				break;
+			case MAXIMUM:
+				builder.add(time, maximumRate, maximumRateZone);
+				break;
+			default:
+				builder.add(time, firstRate, firstRateZone);
+				break;
+			}
+			count = 0;
+			rateSum = 0;
+			rateZoneSum = 0;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * How {@link HeartRateProvider} calculates the heart rate of a track point. The track point matches if the closest sample is
+ * not further than the tolerance, the strategy decides the rate.
+ */
+public class HeartRateLookup {
+	public static final Duration DEFAULT_TOLERANCE = Duration.ofMinutes(1);
+	public static final Duration DEFAULT_WINDOW = Duration.ofSeconds(30);
+
+	/**
+	 * The closest sample within one minute - as before strategies were configurable
+	 */
+	public static final HeartRateLookup NEAREST = new HeartRateLookup(Strategy.NEAREST, DEFAULT_WINDOW, DEFAULT_TOLERANCE);
+
+	public enum Strategy {
+		/**
+		 * The rate of the closest sample
+		 */
+		NEAREST,
+		/**
+		 * Linear interpolation between the samples before and after the track point, if both are within the tolerance
+		 */
+		INTERPOLATE,
+		/**
+		 * Rounded average of the samples in the window around the track point
+		 */
+		AVERAGE,
+		/**
+		 * Median of the samples in the window around the track point, the rounded average of the two middle ones for an even
+		 * count
+		 */
+		MEDIAN
+	}
+
+	private final Strategy strategy;
+	private final Duration window;
+	private final Duration tolerance;
+
+	/**
+	 * @param window
+	 *            [time - window / 2; time + window / 2] for {@link Strategy#AVERAGE} and {@link Strategy#MEDIAN}, the closest
+	 *            sample is used if there are no samples in it
+	 */
+	public HeartRateLookup(Strategy strategy, Duration window, Duration tolerance) {
+		this.strategy = Objects.requireNonNull(strategy);
+		if (window.isNegative() || tolerance.isNegative()) {
+			throw new IllegalArgumentException("Window and tolerance must not be negative, but were: " + window + ", " + tolerance);
+		}
+		this.window = window;
+		this.tolerance = tolerance;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	public Duration getWindow() {
+		return window;
+	}
+
+	public Duration getTolerance() {
+		return tolerance;
+	}
+
+	@Override
+	public String toString() {
+		return "HeartRateLookup [strategy=" + strategy + ", window=" + window + ", tolerance=" + tolerance + "]";
+	}
+}
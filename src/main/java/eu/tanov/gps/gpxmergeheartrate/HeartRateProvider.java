@@ -1,29 +1,94 @@
 package eu.tanov.gps.gpxmergeheartrate;
 
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.time.Duration;
-import java.time.Instant;
-import java.time.LocalDateTime;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.time.OffsetDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.stream.Stream;
+import java.util.function.IntToLongFunction;
+import java.util.stream.Collectors;
 
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndexMerger.ConflictPolicy;
+
+/**
+ * Finds the heart rate for track point times. Keeps a cursor and counters so it is not thread safe - create one per track,
+ * {@link HeartRateIndex} can be shared.
+ */
 public class HeartRateProvider {
-	private static final Duration MAX_DIFFERENCE = Duration.ofMinutes(1);
-	private static final int DEFAULT_MAXIMUM_HEART_RATE = 190;
+	/**
+	 * No sample within the tolerance, see {@link #getHrForEpochMilli(long)}
+	 */
+	public static final int NO_HEART_RATE = Integer.MIN_VALUE;
+
+	/**
+	 * How the closest sample was found, see {@link Statistics#getSearchCount(SearchPath)}
+	 */
+	public enum SearchPath {
+		/**
+		 * The first lookup - binary search in all samples
+		 */
+		FIRST,
+		/**
+		 * The same time as the previous lookup - no search
+		 */
+		SAME,
+		/**
+		 * The closest sample is the previous one or next to it - the usual case for track points in time order
+		 */
+		NEXT,
+		/**
+		 * Galloping (exponential) search forward from the previous sample and binary search in the found range
+		 */
+		FORWARD,
+		/**
+		 * Galloping search backward - out of order track points or the next segment of a track
+		 */
+		BACKWARD,
+		/**
+		 * Linear merge join of sorted times, see {@link HeartRateProvider#getHrForEpochMillis(long[], int[], int)}
+		 */
+		SWEEP
+	}
 
 	public static class Statistics {
+		/**
+		 * Distances from the track points to the closest samples are counted in buckets - up to 1 second, 2, 4... 128 and
+		 * the rest
+		 */
+		public static final int DISTANCE_BUCKETS = 9;
+
 		private final int countSucceed;
 		private final int countFailed;
+		private final int[] searchCounts;
+		private final int[] distanceCounts;
+		private final long lookupNanos;
 
 		public Statistics(int countSucceed, int countFailed) {
+			this(countSucceed, countFailed, new int[SearchPath.values().length], new int[DISTANCE_BUCKETS], 0);
+		}
+
+		private Statistics(int countSucceed, int countFailed, int[] searchCounts, int[] distanceCounts, long lookupNanos) {
 			this.countSucceed = countSucceed;
 			this.countFailed = countFailed;
+			this.searchCounts = searchCounts;
+			this.distanceCounts = distanceCounts;
+			this.lookupNanos = lookupNanos;
+		}
+
+		static int getDistanceBucket(long distanceMillis) {
+			final long seconds = distanceMillis / 1000;
+			return seconds == 0 ? 0 : Math.min(DISTANCE_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(seconds));
+		}
+
+		/**
+		 * @return exclusive upper limit of the bucket in milliseconds, {@link Long#MAX_VALUE} for the last one
+		 */
+		public static long getDistanceBucketLimit(int bucket) {
+			return bucket == DISTANCE_BUCKETS - 1 ? Long.MAX_VALUE : 1000L << bucket;
 		}
 
 		public int getCountSucceed() {
@@ -34,187 +99,480 @@ public class HeartRateProvider {
 			return countFailed;
 		}
 
-		@Override
-		public String toString() {
-			return "Statistics [countSucceed=" + countSucceed + ", countFailed=" + countFailed + "]";
+		public int getSearchCount(SearchPath path) {
+			return searchCounts[path.ordinal()];
 		}
 
-	}
+		/**
+		 * @return track points with the closest sample in the bucket, see {@link #getDistanceBucketLimit(int)}
+		 */
+		public int getDistanceCount(int bucket) {
+			return distanceCounts[bucket];
+		}
 
-	protected static class HeartRateRow {
-		private final OffsetDateTime dateTime;
-		private final int rate;
-		private final int rateZone;
+		/**
+		 * @return time of the lookups, only if the provider measures it - see
+		 *         {@link HeartRateProvider#HeartRateProvider(HeartRateIndex, HeartRateLookup, boolean)}
+		 */
+		public long getLookupNanos() {
+			return lookupNanos;
+		}
 
-		public HeartRateRow(OffsetDateTime dateTime, int rate, int rateZone) {
-			this.dateTime = Objects.requireNonNull(dateTime);
-			if (rate <= 0) {
-				throw new IllegalArgumentException("Rate must be positive, but was: " + rate);
-			}
-			this.rate = rate;
-			if (rateZone < 0 || rateZone > 150) {
-				throw new IllegalArgumentException("Ratezone must be [0; 150], but was: " + rateZone);
+		public Statistics add(Statistics other) {
+			return new Statistics(countSucceed + other.countSucceed, countFailed + other.countFailed,
+					sum(searchCounts, other.searchCounts), sum(distanceCounts, other.distanceCounts),
+					lookupNanos + other.lookupNanos);
+		}
+
+		private static int[] sum(int[] first, int[] second) {
+			final int[] result = new int[first.length];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = first[i] + second[i];
 			}
-			this.rateZone = rateZone;
+			return result;
 		}
 
-		@Override
-		public String toString() {
-			return "HeartRateRow [dateTime=" + dateTime + ", rate=" + rate + ", rateZone=" + rateZone + "]";
+		/**
+		 * @return e.g. <code>FIRST=1, SAME=0, NEXT=998, FORWARD=1, BACKWARD=0</code>
+		 */
+		public String getSearchCounts() {
+			final StringBuilder result = new StringBuilder();
+			for (final SearchPath next : SearchPath.values()) {
+				if (result.length() > 0) {
+					result.append(", ");
+				}
+				result.append(next).append('=').append(searchCounts[next.ordinal()]);
+			}
+			return result.toString();
 		}
 
-		public OffsetDateTime getDateTime() {
-			return dateTime;
+		/**
+		 * @return e.g. <code>&lt;1s=990, &lt;2s=10, &lt;4s=0, ... &gt;=128s=0</code>
+		 */
+		public String getDistanceCounts() {
+			return formatDistanceCounts(a -> distanceCounts[a]);
 		}
 
-		public int getRate() {
-			return rate;
+		/**
+		 * @param counts
+		 *            of each bucket
+		 * @return like {@link #getDistanceCounts()}
+		 */
+		public static String formatDistanceCounts(IntToLongFunction counts) {
+			final StringBuilder result = new StringBuilder();
+			for (int i = 0; i < DISTANCE_BUCKETS; i++) {
+				if (result.length() > 0) {
+					result.append(", ");
+				}
+				if (i == DISTANCE_BUCKETS - 1) {
+					result.append(">=").append(getDistanceBucketLimit(i - 1) / 1000);
+				} else {
+					result.append('<').append(getDistanceBucketLimit(i) / 1000);
+				}
+				result.append("s=").append(counts.applyAsLong(i));
+			}
+			return result.toString();
 		}
 
-		public int getRateZone() {
-			return rateZone;
+		@Override
+		public String toString() {
+			return "Statistics [countSucceed=" + countSucceed + ", countFailed=" + countFailed + ", searchCounts=["
+					+ getSearchCounts() + "], distanceCounts=[" + getDistanceCounts() + "], lookupNanos=" + lookupNanos + "]";
 		}
 
 	}
 
-	protected final HeartRateRow[] heartRates;
-	private OffsetDateTime lastDateTime;
+	protected final HeartRateIndex heartRates;
+	private final HeartRateLookup lookup;
+	private final long toleranceMillis;
+	// for AVERAGE and MEDIAN only
+	private final Window window;
+	private boolean hasLast = false;
+	private long lastTime;
 	private int lastIndex;
 
 	private int countSucceed = 0;
 	private int countFailed = 0;
-	private final int maximumHeartRate;
-
+	private final int[] searchCounts = new int[SearchPath.values().length];
+	private final int[] distanceCounts = new int[Statistics.DISTANCE_BUCKETS];
+	private final boolean timeLookups;
+	private long lookupNanos = 0;
+
+	/**
+	 * Parses and closes the source
+	 */
 	public HeartRateProvider(InputStream source) {
-		this(source, DEFAULT_MAXIMUM_HEART_RATE);
+		this(source, HeartRateCsvParser.DEFAULT_MAXIMUM_HEART_RATE);
 	}
 
+	/**
+	 * Parses and closes the source
+	 */
 	public HeartRateProvider(InputStream source, int maximumHeartRate) {
-		this.maximumHeartRate = maximumHeartRate;
-		try (Stream<String> stream = new BufferedReader(new InputStreamReader(source)).lines()) {
-			heartRates = stream.skip(1).filter(a -> !a.isEmpty()).map(this::parseLine)
-					.sorted((a, b) -> a.getDateTime().compareTo(b.getDateTime())).toArray(HeartRateRow[]::new);
-		}
+		this(parse(source, maximumHeartRate));
+	}
 
-		if (heartRates.length == 0) {
-			throw new IllegalArgumentException("No records in the input stream");
+	private static HeartRateIndex parse(InputStream source, int maximumHeartRate) {
+		try (InputStream input = source) {
+			return new HeartRateCsvParser(maximumHeartRate).parse(input);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
 		}
+	}
 
-		lastIndex = heartRates.length - 1;
+	/**
+	 * Memory maps the file, see {@link HeartRateCsvParser#parseFiles(java.util.List, boolean)}
+	 */
+	public HeartRateProvider(Path file) throws IOException {
+		this(file, HeartRateCsvParser.DEFAULT_MAXIMUM_HEART_RATE);
 	}
 
-	protected HeartRateRow parseLine(String line) {
-		if (line.contains(",") && !line.contains(";")) {
-			return parseLineMiBandTools(line);
-		} else if (line.contains(";")) {
-			return parseLineNotifyFitnessForMiBand(line);
-		}
-		throw new IllegalArgumentException("Unrecognized format: " + line);
+	public HeartRateProvider(Path file, int maximumHeartRate) throws IOException {
+		this(new HeartRateCsvParser(maximumHeartRate).parse(file));
 	}
 
-	private HeartRateRow parseLineMiBandTools(String line) {
-		// "04.01.2000 00:00:00,4,1%"
-		final String[] splitted = line.split(",");
-		if (splitted.length != 3) {
-			throw new IllegalArgumentException("3 expected, but was: " + line);
-		}
+	/**
+	 * Each source is parsed separately and they are merged, samples with the same time are resolved by the policy, see
+	 * {@link HeartRateIndexMerger}
+	 */
+	public HeartRateProvider(List<InputStream> sources, int maximumHeartRate, ConflictPolicy policy) {
+		this(merge(sources, new HeartRateCsvParser(maximumHeartRate), policy));
+	}
 
-		final OffsetDateTime dateTime = LocalDateTime.parse(splitted[0], DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss"))
-				.atZone(ZoneId.systemDefault()).toOffsetDateTime();
+	private static HeartRateIndex merge(List<InputStream> sources, HeartRateCsvParser parser, ConflictPolicy policy) {
+		return new HeartRateIndexMerger(policy).merge(sources.stream().map(a -> parser.parse(a)).collect(Collectors.toList()));
+	}
 
-		final int rate = Integer.parseInt(splitted[1]);
-		final int rateZone = Integer.parseInt(splitted[2].substring(0, splitted[2].length() - 1));
+	/**
+	 * The index is only read so it can be shared between many providers, e.g. one per thread
+	 */
+	public HeartRateProvider(HeartRateIndex heartRates) {
+		this(heartRates, HeartRateLookup.NEAREST);
+	}
 
-		return new HeartRateRow(dateTime, rate, rateZone);
+	public HeartRateProvider(HeartRateIndex heartRates, HeartRateLookup lookup) {
+		this(heartRates, lookup, false);
 	}
 
-	private HeartRateRow parseLineNotifyFitnessForMiBand(String line) {
-		// "60;1589922120000;20 May 2020;00:02:00";
-		final String[] splitted = line.split(";");
-		if (splitted.length != 4) {
-			throw new IllegalArgumentException("4 expected, but was: " + line);
+	/**
+	 * @param timeLookups
+	 *            measure the time of the lookups for {@link Statistics#getLookupNanos()} - it costs two
+	 *            {@link System#nanoTime()} calls per lookup
+	 */
+	public HeartRateProvider(HeartRateIndex heartRates, HeartRateLookup lookup, boolean timeLookups) {
+		this.timeLookups = timeLookups;
+		this.heartRates = Objects.requireNonNull(heartRates);
+		if (heartRates.size() == 0) {
+			throw new IllegalArgumentException("No records in the heart rate index");
+		}
+		this.lookup = Objects.requireNonNull(lookup);
+		this.toleranceMillis = lookup.getTolerance().toMillis();
+		switch (lookup.getStrategy()) {
+		case AVERAGE:
+		case MEDIAN:
+			window = new Window(lookup.getWindow().toMillis() / 2, lookup.getStrategy() == HeartRateLookup.Strategy.MEDIAN);
+			break;
+		default:
+			window = null;
+			break;
 		}
 
-		final OffsetDateTime dateTime =
-				LocalDateTime.ofInstant(Instant.ofEpochMilli(Long.valueOf(splitted[1])), ZoneId.systemDefault())
-						.atZone(ZoneId.systemDefault()).toOffsetDateTime();
+		lastIndex = heartRates.size() - 1;
+	}
 
-		final int rate = Integer.parseInt(splitted[0]);
-		final int rateZone = Math.min(100, 100 * rate / maximumHeartRate);
+	/**
+	 * @return a provider on the same index with the same lookup and with its own cursor and counters, e.g. for another thread
+	 */
+	public HeartRateProvider copy() {
+		return new HeartRateProvider(heartRates, lookup, timeLookups);
+	}
 
-		return new HeartRateRow(dateTime, rate, rateZone);
+	public HeartRateLookup getLookup() {
+		return lookup;
 	}
 
 	public Statistics getStatistics() {
-		return new Statistics(countSucceed, countFailed);
+		return new Statistics(countSucceed, countFailed, searchCounts.clone(), distanceCounts.clone(), lookupNanos);
 	}
 
 	public Optional<Integer> getHrForTime(OffsetDateTime dateTime) {
-		lastIndex = findClosest(dateTime);
-		lastDateTime = dateTime;
-		final HeartRateRow closest = heartRates[lastIndex];
+		final int result = getHrForEpochMilli(dateTime.toInstant().toEpochMilli());
+		return result == NO_HEART_RATE ? Optional.empty() : Optional.of(result);
+	}
 
-		if (MAX_DIFFERENCE.compareTo(Duration.between(dateTime, closest.getDateTime()).abs()) >= 0) {
+	/**
+	 * The same as {@link #getHrForTime(OffsetDateTime)} without boxing, see {@link GpxTime#parseEpochMilli(CharSequence)}
+	 *
+	 * @return {@link #NO_HEART_RATE} if there is no sample within the tolerance
+	 */
+	public int getHrForEpochMilli(long time) {
+		if (!timeLookups) {
+			return findHrForEpochMilli(time);
+		}
+		final long start = System.nanoTime();
+		final int result = findHrForEpochMilli(time);
+		lookupNanos += System.nanoTime() - start;
+		return result;
+	}
+
+	/**
+	 * Bulk {@link #getHrForEpochMilli(long)} of the first <code>count</code> times - the same rates and statistics as
+	 * one call for each time, except that sorted times are counted as {@link SearchPath#SWEEP}: they are joined with the
+	 * samples in a single linear pass (after a binary search for the first one) - O(count + samples between the first and
+	 * the last time). Not sorted times are looked up one by one.
+	 *
+	 * @param rates
+	 *            the result, {@link #NO_HEART_RATE} if there is no sample within the tolerance
+	 */
+	public void getHrForEpochMillis(long[] times, int[] rates, int count) {
+		if (count < 0 || count > times.length || count > rates.length) {
+			throw new IllegalArgumentException(
+					"Count must be [0; " + Math.min(times.length, rates.length) + "], but was: " + count);
+		}
+		final long start = timeLookups ? System.nanoTime() : 0;
+		if (isSorted(times, count)) {
+			sweep(times, rates, count);
+		} else {
+			for (int i = 0; i < count; i++) {
+				rates[i] = findHrForEpochMilli(times[i]);
+			}
+		}
+		if (timeLookups) {
+			lookupNanos += System.nanoTime() - start;
+		}
+	}
+
+	private static boolean isSorted(long[] times, int count) {
+		for (int i = 1; i < count; i++) {
+			if (times[i - 1] > times[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void sweep(long[] times, int[] rates, int count) {
+		if (count == 0) {
+			return;
+		}
+		final int last = heartRates.size() - 1;
+		// the first sample not before the time
+		int next = heartRates.findFirst(times[0]);
+		for (int i = 0; i < count; i++) {
+			final long time = times[i];
+			while (next <= last && heartRates.getTime(next) < time) {
+				next++;
+			}
+			final int closest;
+			if (next > last) {
+				closest = last;
+			} else if (next == 0) {
+				closest = 0;
+			} else {
+				// on equal distance the earlier one, as in HeartRateIndex.findClosest()
+				closest = time - heartRates.getTime(next - 1) <= heartRates.getTime(next) - time ? next - 1 : next;
+			}
+			searchCounts[SearchPath.SWEEP.ordinal()]++;
+			rates[i] = getHrOfClosest(closest, time);
+		}
+	}
+
+	private int findHrForEpochMilli(long time) {
+		return getHrOfClosest(findClosest(time), time);
+	}
+
+	private int getHrOfClosest(int closest, long time) {
+		lastIndex = closest;
+		// the first of the samples with the same time - the result must not depend on the previous lookups
+		while (lastIndex > 0 && heartRates.getTime(lastIndex - 1) == heartRates.getTime(lastIndex)) {
+			lastIndex--;
+		}
+		lastTime = time;
+		hasLast = true;
+
+		final long distance = Math.abs(heartRates.getTime(lastIndex) - time);
+		distanceCounts[Statistics.getDistanceBucket(distance)]++;
+		if (distance <= toleranceMillis) {
 			countSucceed++;
-			return Optional.of(closest.getRate());
+			return getRate(lastIndex, time);
 		}
 
 		countFailed++;
-		return Optional.empty();
-	}
-
-	private int findClosest(OffsetDateTime dateTime) {
-		final int fromIndex;
-		final int toIndex;
-
-		if (lastDateTime != null) {
-			final int compareResult = lastDateTime.compareTo(dateTime);
-			if (compareResult == 0) {
-				// the same as last
-				return lastIndex;
-			} else if (compareResult > 0) {
-				fromIndex = 0;
-				// not -1 (with check max(fromIndex)) because we need to compare with the last
-				// result
-				toIndex = lastIndex;
-			} else {
-				// not +1 (with check min(toIndex)) because we need to compare with the last
-				// result
-				fromIndex = lastIndex;
-				toIndex = heartRates.length - 1;
+		return NO_HEART_RATE;
+	}
+
+	private int getRate(int closest, long time) {
+		switch (lookup.getStrategy()) {
+		case INTERPOLATE:
+			return interpolate(closest, time);
+		case AVERAGE:
+		case MEDIAN:
+			return window.getRate(closest, time);
+		default:
+			return heartRates.getRate(closest);
+		}
+	}
+
+	private int interpolate(int closest, long time) {
+		final long closestTime = heartRates.getTime(closest);
+		// closest is the first of the samples with its time, the one before it has an earlier time
+		int other = closestTime < time ? closest + 1 : closest - 1;
+		while (closestTime < time && other < heartRates.size() && heartRates.getTime(other) == closestTime) {
+			other++;
+		}
+		if (closestTime == time || other < 0 || other >= heartRates.size()
+				|| Math.abs(heartRates.getTime(other) - time) > toleranceMillis) {
+			return heartRates.getRate(closest);
+		}
+
+		final int before = Math.min(closest, other);
+		final int after = Math.max(closest, other);
+		final long beforeTime = heartRates.getTime(before);
+		final long afterTime = heartRates.getTime(after);
+		if (time < beforeTime || time > afterTime || beforeTime == afterTime) {
+			// samples with the same time
+			return heartRates.getRate(closest);
+		}
+		final int beforeRate = heartRates.getRate(before);
+		final int afterRate = heartRates.getRate(after);
+		return (int) Math.round(beforeRate + (afterRate - beforeRate) * (double) (time - beforeTime) / (afterTime - beforeTime));
+	}
+
+	/**
+	 * Merge join of the track points with the samples - the search starts from the previous closest sample. The closest
+	 * sample can only be at or after it for a later time (and at or before it for an earlier one), so the range is found
+	 * with galloping search - steps of 1, 2, 4... - and only that range is searched. It costs O(log d) where d is the
+	 * distance from the previous sample, i.e. O(1) for track points in time order.
+	 */
+	private int findClosest(long time) {
+		if (!hasLast) {
+			searchCounts[SearchPath.FIRST.ordinal()]++;
+			return findClosest(heartRates, 0, heartRates.size() - 1, time);
+		}
+		if (lastTime == time) {
+			searchCounts[SearchPath.SAME.ordinal()]++;
+			return lastIndex;
+		}
+
+		final int size = heartRates.size();
+		int step = 1;
+		if (lastTime < time) {
+			// the last one is included because we need to compare with it
+			int fromIndex = lastIndex;
+			int toIndex = lastIndex + 1;
+			while (toIndex < size && heartRates.getTime(toIndex) < time) {
+				fromIndex = toIndex;
+				step <<= 1;
+				toIndex = lastIndex + step;
 			}
-		} else {
-			fromIndex = 0;
-			toIndex = heartRates.length - 1;
+			searchCounts[(step == 1 ? SearchPath.NEXT : SearchPath.FORWARD).ordinal()]++;
+			return findClosest(heartRates, fromIndex, Math.min(toIndex, size - 1), time);
+		}
+
+		int fromIndex = lastIndex - 1;
+		int toIndex = lastIndex;
+		while (fromIndex >= 0 && heartRates.getTime(fromIndex) > time) {
+			toIndex = fromIndex;
+			step <<= 1;
+			fromIndex = lastIndex - step;
 		}
-		return findClosest(heartRates, fromIndex, toIndex, dateTime);
+		searchCounts[(step == 1 ? SearchPath.NEXT : SearchPath.BACKWARD).ordinal()]++;
+		return findClosest(heartRates, Math.max(fromIndex, 0), toIndex, time);
 	}
 
-	protected int findClosest(HeartRateRow[] heartRates, int fromIndex, int toIndex, OffsetDateTime dateTime) {
-		if (dateTime.isBefore(heartRates[fromIndex].getDateTime())) {
-			return fromIndex;
+	protected int findClosest(HeartRateIndex heartRates, int fromIndex, int toIndex, long time) {
+		return heartRates.findClosest(fromIndex, toIndex, time);
+	}
+
+	/**
+	 * Samples in [time - halfWidth; time + halfWidth] as indexes [from; to) with their sum (and histogram of the rates for
+	 * the median). For track points in time order the window only slides forward, so each sample is added and removed once
+	 * - O(1) per track point, whatever the width of the window. Other moves start it again with a binary search.
+	 */
+	private class Window {
+		private final long halfWidth;
+		private final boolean isMedian;
+		private boolean isEmpty = true;
+		private long low;
+		private int from;
+		private int to;
+		private long sum;
+		// count of samples per rate, grows with the highest rate
+		private int[] histogram;
+
+		Window(long halfWidth, boolean isMedian) {
+			this.halfWidth = halfWidth;
+			this.isMedian = isMedian;
+			this.histogram = isMedian ? new int[256] : null;
 		}
-		if (dateTime.isAfter(heartRates[toIndex].getDateTime())) {
-			return toIndex;
+
+		int getRate(int closest, long time) {
+			move(time - halfWidth, time + halfWidth);
+			final int count = to - from;
+			if (count == 0) {
+				return heartRates.getRate(closest);
+			}
+			if (!isMedian) {
+				return (int) ((sum + count / 2) / count);
+			}
+			return median(count);
 		}
 
-		while (fromIndex <= toIndex) {
-			final int middle = (toIndex + fromIndex) / 2;
+		private void move(long newLow, long high) {
+			if (isEmpty || newLow < low || (to < heartRates.size() && heartRates.getTime(to) < newLow)) {
+				// backwards or after the current window
+				isEmpty = false;
+				from = heartRates.findFirst(newLow);
+				to = from;
+				sum = 0;
+				if (isMedian) {
+					Arrays.fill(histogram, 0);
+				}
+			}
+			low = newLow;
+			while (from < to && heartRates.getTime(from) < newLow) {
+				remove(heartRates.getRate(from++));
+			}
+			while (to < heartRates.size() && heartRates.getTime(to) <= high) {
+				add(heartRates.getRate(to++));
+			}
+		}
 
-			if (dateTime.isBefore(heartRates[middle].getDateTime())) {
-				toIndex = middle - 1;
-			} else if (dateTime.isAfter(heartRates[middle].getDateTime())) {
-				fromIndex = middle + 1;
-			} else {
-				return middle;
+		private void add(int rate) {
+			sum += rate;
+			if (isMedian) {
+				if (rate >= histogram.length) {
+					histogram = Arrays.copyOf(histogram, Math.max(rate + 1, histogram.length * 2));
+				}
+				histogram[rate]++;
 			}
 		}
 
-		final Duration durationFrom = Duration.between(heartRates[fromIndex].getDateTime(), dateTime);
-		final Duration durationTo = Duration.between(dateTime, heartRates[toIndex].getDateTime());
-		if (durationFrom.compareTo(durationTo) > 0) {
-			return fromIndex;
+		private void remove(int rate) {
+			sum -= rate;
+			if (isMedian) {
+				histogram[rate]--;
+			}
+		}
+
+		/**
+		 * A pass over the histogram - bounded by the highest rate, not by the width of the window
+		 */
+		private int median(int count) {
+			final int lower = (count - 1) / 2;
+			final int upper = count / 2;
+			int lowerRate = -1;
+			int seen = 0;
+			for (int rate = 0; rate < histogram.length; rate++) {
+				seen += histogram[rate];
+				if (lowerRate < 0 && seen > lower) {
+					lowerRate = rate;
+				}
+				if (seen > upper) {
+					return (lowerRate + rate + 1) / 2;
+				}
+			}
+			throw new IllegalStateException("Median of " + count + " not found");
 		}
-		return toIndex;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,26 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Heart rate samples read one by one, without keeping them in memory - see
+ * {@link HeartRateCsvParser#open(java.nio.file.Path)} and {@link ExternalHeartRateSort}
+ */
+interface HeartRateSamples extends Closeable {
+	/**
+	 * Moves to the next sample
+	 *
+	 * @return false at the end, there is no current sample then
+	 */
+	boolean next() throws IOException;
+
+	/**
+	 * @return epoch milliseconds of the current sample
+	 */
+	long getTime();
+
+	int getRate();
+
+	int getRateZone();
+}
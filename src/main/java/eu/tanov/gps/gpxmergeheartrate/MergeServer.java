@@ -0,0 +1,339 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import eu.tanov.gps.gpxmergeheartrate.metrics.LongAdderMetrics;
+import eu.tanov.gps.gpxmergeheartrate.metrics.MetricsRegistry;
+
+/**
+ * Merges gpx files sent over HTTP, so the JVM is started and the heart rates are parsed once for many files:
+ * <code>curl -T input.gpx "http://localhost:8080/merge?csv=/data/hr.csv" -o result.gpx</code>. The parsed heart rates are
+ * kept in {@link HeartRateIndexLruCache}.
+ * <p>
+ * <code>POST</code> or <code>PUT /merge?csv=&lt;file&gt;[&amp;csv=&lt;file&gt;...]</code> - the body is the gpx (gzip and
+ * zip too), the result is streamed back while the body is read - nothing is buffered whole. With
+ * <code>Accept-Encoding: gzip</code> the result is gzipped. Errors before the first byte of the result are returned as
+ * <code>400</code> (bad gpx or csv) or <code>404</code> (csv file not found), after it the connection is closed without
+ * the end of the chunked body, so the client sees an incomplete response.
+ * <p>
+ * <code>GET /metrics</code> - the cache and with <code>--metrics</code> the {@link LongAdderMetrics} report.
+ * <p>
+ * The csv files are read from the file system of the server, so by default it listens on the loopback address only.
+ * Requests are handled concurrently by a fixed thread pool.
+ */
+public class MergeServer implements Closeable {
+	static final String OPTION_SERVE = "serve";
+	private static final String OPTION_THREADS = "threads";
+	private static final String OPTION_CACHE_SAMPLES = "cache-samples";
+	public static final int DEFAULT_PORT = 8080;
+	/**
+	 * ~220 MB of heart rates
+	 */
+	public static final long DEFAULT_CACHE_SAMPLES = 20_000_000;
+	public static final String MERGE_PATH = "/merge";
+	public static final String METRICS_PATH = "/metrics";
+	public static final String PARAMETER_CSV = "csv";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String CONTENT_TYPE_GPX = "application/gpx+xml";
+
+	public static final String USAGE = "--" + OPTION_SERVE + "[=<port>] [--" + OPTION_THREADS + "=<count>] [--"
+			+ OPTION_CACHE_SAMPLES + "=<count>] [--" + BatchMergeHeartRate.OPTION_MAXIMUM_HEART_RATE
+			+ "=<max heart rate>] [--" + GpxMergeHeartRate.OPTION_ENGINE + "=event|cursor] [--"
+			+ GpxMergeHeartRate.OPTION_COMPACT + "] [--" + GpxMergeHeartRate.OPTION_METRICS + "] [--"
+			+ GpxMergeHeartRate.OPTION_CACHE + "[=<cache directory>]] [--" + GpxMergeHeartRate.OPTION_CONFLICT
+			+ "=first|average|maximum] " + GpxMergeHeartRate.LOOKUP_USAGE;
+
+	private final GpxMergeHeartRate plain;
+	private final GpxMergeHeartRate gzip;
+	private final HeartRateIndexLruCache heartRates;
+	private final HeartRateLookup lookup;
+	private final boolean timeLookups;
+	private final Optional<LongAdderMetrics> summary;
+	private final ExecutorService executor;
+	private final HttpServer server;
+
+	/**
+	 * Started on the address, port 0 for any free port - see {@link #getAddress()}
+	 *
+	 * @param builder
+	 *            for the merge, the gzip output is set for each request
+	 * @param timeLookups
+	 *            see {@link HeartRateProvider#HeartRateProvider(HeartRateIndex, HeartRateLookup, boolean)}
+	 * @param summary
+	 *            returned by <code>/metrics</code>, it must be in the metrics of the builder to receive anything
+	 */
+	public MergeServer(GpxMergeHeartRate.Builder builder, HeartRateIndexLruCache heartRates, HeartRateLookup lookup,
+			boolean timeLookups, Optional<LongAdderMetrics> summary, InetSocketAddress address, int threads)
+			throws IOException {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Threads must be positive, but was: " + threads);
+		}
+		this.plain = builder.gzipOutput(false).build();
+		this.gzip = builder.gzipOutput(true).build();
+		this.heartRates = Objects.requireNonNull(heartRates);
+		this.lookup = Objects.requireNonNull(lookup);
+		this.timeLookups = timeLookups;
+		this.summary = Objects.requireNonNull(summary);
+		this.server = HttpServer.create(address, 0);
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads, a -> new Thread(a, "merge-" + count.incrementAndGet()));
+		server.setExecutor(executor);
+		server.createContext(MERGE_PATH, this::merge);
+		server.createContext(METRICS_PATH, this::metrics);
+		server.start();
+	}
+
+	public static void run(CommandLine commandLine) throws Exception {
+		commandLine.checkOptions(OPTION_SERVE, OPTION_THREADS, OPTION_CACHE_SAMPLES,
+				BatchMergeHeartRate.OPTION_MAXIMUM_HEART_RATE, GpxMergeHeartRate.OPTION_ENGINE,
+				GpxMergeHeartRate.OPTION_COMPACT, GpxMergeHeartRate.OPTION_METRICS, GpxMergeHeartRate.OPTION_CACHE,
+				GpxMergeHeartRate.OPTION_CONFLICT, GpxMergeHeartRate.OPTION_LOOKUP, GpxMergeHeartRate.OPTION_WINDOW,
+				GpxMergeHeartRate.OPTION_TOLERANCE);
+		if (!commandLine.getArguments().isEmpty()) {
+			System.err.println("No parameters expected: " + USAGE);
+			System.exit(1);
+		}
+		final int port = commandLine.getOption(OPTION_SERVE).filter(a -> !a.isEmpty()).map(Integer::valueOf)
+				.orElse(DEFAULT_PORT);
+		final int threads = commandLine.getIntOption(OPTION_THREADS, Runtime.getRuntime().availableProcessors());
+		final long cacheSamples = commandLine.getOption(OPTION_CACHE_SAMPLES).map(Long::valueOf).orElse(DEFAULT_CACHE_SAMPLES);
+		final int maximumHeartRate = commandLine.getIntOption(BatchMergeHeartRate.OPTION_MAXIMUM_HEART_RATE,
+				HeartRateCsvParser.DEFAULT_MAXIMUM_HEART_RATE);
+
+		final LongAdderMetrics summary = new LongAdderMetrics();
+		final MetricsRegistry metrics = GpxMergeHeartRate.createMetrics(commandLine, summary);
+		final HeartRateCsvParser parser = new HeartRateCsvParser(maximumHeartRate, metrics);
+		final HeartRateIndexLruCache heartRates = new HeartRateIndexLruCache(
+				files -> GpxMergeHeartRate.loadHeartRates(commandLine, files, parser, true), cacheSamples);
+		final GpxMergeHeartRate.Builder builder = new GpxMergeHeartRate.Builder()
+				.engine(GpxMergeHeartRate.parseEngine(commandLine))
+				.prettyPrint(!commandLine.hasOption(GpxMergeHeartRate.OPTION_COMPACT)).metrics(metrics);
+		final boolean printMetrics = commandLine.hasOption(GpxMergeHeartRate.OPTION_METRICS);
+		final MergeServer server = new MergeServer(builder, heartRates, GpxMergeHeartRate.parseLookup(commandLine),
+				printMetrics, printMetrics ? Optional.of(summary) : Optional.empty(),
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads);
+		Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+		System.out.printf("Listening on http://%s:%d%s?%s=<csv file>\n", server.getAddress().getHostString(),
+				server.getAddress().getPort(), MERGE_PATH, PARAMETER_CSV);
+	}
+
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	public HeartRateIndexLruCache getHeartRates() {
+		return heartRates;
+	}
+
+	/**
+	 * Stops accepting requests, waits up to a second for the current ones
+	 */
+	@Override
+	public void close() {
+		server.stop(1);
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void merge(HttpExchange exchange) throws IOException {
+		final String method = exchange.getRequestMethod();
+		if (!method.equals("POST") && !method.equals("PUT")) {
+			exchange.getResponseHeaders().set("Allow", "POST, PUT");
+			sendError(exchange, 405, "POST or PUT the gpx file");
+			return;
+		}
+		final List<Path> files = new ArrayList<>();
+		try {
+			for (final String next : getParameters(exchange.getRequestURI().getRawQuery(), PARAMETER_CSV)) {
+				files.add(Paths.get(next));
+			}
+		} catch (final IllegalArgumentException e) {
+			// malformed % escape or invalid path
+			sendError(exchange, 400, "Invalid " + PARAMETER_CSV + " parameter: " + e.getMessage());
+			return;
+		}
+		if (files.isEmpty()) {
+			sendError(exchange, 400, "At least one " + PARAMETER_CSV + " parameter expected");
+			return;
+		}
+		final HeartRateIndex index;
+		try {
+			index = heartRates.get(files);
+		} catch (final NoSuchFileException e) {
+			sendError(exchange, 404, "Not found: " + e.getFile());
+			return;
+		} catch (IOException | RuntimeException e) {
+			sendError(exchange, 400, "Could not load the heart rates: " + e);
+			return;
+		}
+
+		final boolean gzipOutput = acceptsGzip(exchange);
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE_GPX);
+		if (gzipOutput) {
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		final ResponseStream response = new ResponseStream(exchange);
+		try (InputStream input = new BufferedInputStream(exchange.getRequestBody(), BUFFER_SIZE)) {
+			(gzipOutput ? gzip : plain).process(input, new HeartRateProvider(index, lookup, timeLookups), response);
+		} catch (final Exception e) {
+			if (response.started) {
+				// thrown to the server, it closes the connection - the chunked body has no end
+				throw new IOException("Could not merge after the result was started", e);
+			}
+			exchange.getResponseHeaders().remove("Content-Encoding");
+			sendError(exchange, 400, "Could not merge: " + e);
+			return;
+		}
+		response.finish();
+		exchange.close();
+	}
+
+	private void metrics(HttpExchange exchange) throws IOException {
+		if (!exchange.getRequestMethod().equals("GET")) {
+			exchange.getResponseHeaders().set("Allow", "GET");
+			sendError(exchange, 405, "GET the metrics");
+			return;
+		}
+		final StringBuilder result = new StringBuilder("Cache: ").append(heartRates).append('\n');
+		summary.ifPresent(a -> result.append(a.report()).append('\n'));
+		send(exchange, 200, result.toString());
+	}
+
+	private static boolean acceptsGzip(HttpExchange exchange) {
+		for (final String next : exchange.getRequestHeaders().getOrDefault("Accept-Encoding", new ArrayList<>())) {
+			for (final String encoding : next.split(",")) {
+				if (encoding.trim().toLowerCase(Locale.ROOT).startsWith("gzip")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return decoded values of the parameter in the query, empty values are skipped
+	 * @throws IllegalArgumentException
+	 *             for a malformed % escape
+	 */
+	static List<String> getParameters(String rawQuery, String name) throws UnsupportedEncodingException {
+		final List<String> result = new ArrayList<>();
+		if (rawQuery == null) {
+			return result;
+		}
+		for (final String next : rawQuery.split("&")) {
+			final int separator = next.indexOf('=');
+			if (separator > 0 && URLDecoder.decode(next.substring(0, separator), "UTF-8").equals(name)
+					&& separator < next.length() - 1) {
+				result.add(URLDecoder.decode(next.substring(separator + 1), "UTF-8"));
+			}
+		}
+		return result;
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		// the rest of the body is not needed
+		exchange.getResponseHeaders().set("Connection", "close");
+		send(exchange, status, message + "\n");
+	}
+
+	private static void send(HttpExchange exchange, int status, String message) throws IOException {
+		final byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(body);
+		}
+		exchange.close();
+	}
+
+	/**
+	 * Buffers the beginning of the result and sends the headers (chunked body) only when the buffer is full or at
+	 * {@link #finish()}, so the errors before it can still get another status. {@link #flush()} does not send the
+	 * beginning - the merge flushes and closes its streams on errors too.
+	 */
+	private static class ResponseStream extends OutputStream {
+		private final HttpExchange exchange;
+		private final byte[] beginning = new byte[BUFFER_SIZE];
+		private int count = 0;
+		private volatile boolean started = false;
+		private OutputStream body;
+
+		ResponseStream(HttpExchange exchange) {
+			this.exchange = exchange;
+		}
+
+		private void start() throws IOException {
+			if (!started) {
+				started = true;
+				exchange.sendResponseHeaders(200, 0);
+				body = new BufferedOutputStream(exchange.getResponseBody(), BUFFER_SIZE);
+				body.write(beginning, 0, count);
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!started && count < beginning.length) {
+				beginning[count++] = (byte) b;
+				return;
+			}
+			start();
+			body.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!started && len <= beginning.length - count) {
+				System.arraycopy(b, off, beginning, count, len);
+				count += len;
+				return;
+			}
+			start();
+			body.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (started) {
+				body.flush();
+			}
+		}
+
+		/**
+		 * Sends everything, the headers even for an empty result
+		 */
+		void finish() throws IOException {
+			start();
+			body.flush();
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A stage of a pipeline in its own thread - the items (buffers, batches, chunks) are filled on one side and passed
+ * through a bounded queue to the other side that uses them and returns them for reuse. At most <code>items</code> of them
+ * are created - when all of them wait the filling side waits too. The end is passed as a marker after the last item.
+ * <ul>
+ * <li>{@link #consuming} - the caller fills the items ({@link #allocate()}, {@link #pass(Object)}, {@link #finish()}) and
+ * the thread consumes them, e.g. writes them</li>
+ * <li>{@link #producing} - the thread fills the items, e.g. reads them, and the caller uses them ({@link #take()},
+ * {@link #recycle(Object)}, {@link #cancel()})</li>
+ * </ul>
+ * The first error of the thread (also runtime exceptions) is kept, the next items are only returned, and it is thrown to
+ * the caller as the cause of an {@link IOException} by the next call. Not thread safe for the caller - one thread calls
+ * it, the metrics can be read from any thread.
+ * <p>
+ * The same stage for {@link AsyncOutputStream}, the decompression of {@link Compression} and
+ * {@link eu.tanov.gps.gpxmergeheartrate.sink.AsyncTrackPointSink} - public only because of the other package.
+ *
+ * @param <T>
+ *            type of the items
+ */
+public final class PipelineStage<T> {
+	/**
+	 * Consumes an item in the thread of the stage
+	 */
+	public interface ItemConsumer<T> {
+		void accept(T item) throws Exception;
+	}
+
+	/**
+	 * Fills an item in the thread of the stage
+	 */
+	public interface ItemProducer<T> {
+		/**
+		 * @return false at the end - nothing is filled and the item is not passed
+		 */
+		boolean fill(T item) throws Exception;
+	}
+
+	private static final Object END = new Object();
+
+	private final String name;
+	private final int items;
+	private final Supplier<T> factory;
+	private final Consumer<T> reset;
+	// END has a place even if all items are queued
+	private final BlockingQueue<Object> full;
+	private final BlockingQueue<T> free;
+	private Thread thread;
+	// only by the filling side
+	private int allocated = 0;
+
+	private volatile Throwable error;
+	private volatile int maximumQueueDepth = 0;
+	private volatile long waitNanos = 0;
+
+	private PipelineStage(String name, int items, Supplier<T> factory, Consumer<T> reset) {
+		this.name = name;
+		this.items = items;
+		this.factory = factory;
+		this.reset = reset;
+		this.full = new ArrayBlockingQueue<>(items + 1);
+		this.free = new ArrayBlockingQueue<>(items);
+	}
+
+	/**
+	 * Starts the thread that passes each item to the consumer and closes the resource at the end
+	 *
+	 * @param factory
+	 *            creates the items, only when there is no free one
+	 * @param reset
+	 *            prepares a consumed item for reuse
+	 */
+	public static <T> PipelineStage<T> consuming(String name, int items, Supplier<T> factory, Consumer<T> reset,
+			ItemConsumer<T> consumer, AutoCloseable resource) {
+		final PipelineStage<T> result = new PipelineStage<>(name, items, factory, reset);
+		result.start(() -> result.consume(consumer, resource));
+		return result;
+	}
+
+	/**
+	 * Starts the thread that fills items with the producer until its end and closes the resource
+	 *
+	 * @param factory
+	 *            creates the items, only when there is no free one
+	 * @param reset
+	 *            prepares a recycled item for reuse
+	 */
+	public static <T> PipelineStage<T> producing(String name, int items, Supplier<T> factory, Consumer<T> reset,
+			ItemProducer<T> producer, AutoCloseable resource) {
+		final PipelineStage<T> result = new PipelineStage<>(name, items, factory, reset);
+		result.start(() -> result.produce(producer, resource));
+		return result;
+	}
+
+	private void start(Runnable task) {
+		thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void consume(ItemConsumer<T> consumer, AutoCloseable resource) {
+		try (AutoCloseable closed = resource) {
+			for (Object next = full.take(); next != END; next = full.take()) {
+				final T item = (T) next;
+				if (error == null) {
+					try {
+						consumer.accept(item);
+					} catch (final Throwable e) {
+						// the caller gets it, the next items are only returned
+						fail(e);
+					}
+				}
+				recycle(item);
+			}
+		} catch (final InterruptedException e) {
+			// the caller was interrupted
+		} catch (final Throwable e) {
+			fail(e);
+		}
+	}
+
+	private void produce(ItemProducer<T> producer, AutoCloseable resource) {
+		try (AutoCloseable closed = resource) {
+			while (true) {
+				final T item = nextFree();
+				if (!producer.fill(item)) {
+					recycle(item);
+					break;
+				}
+				put(item);
+			}
+		} catch (final InterruptedException e) {
+			// cancelled - nobody takes END, so the put in finally must not wait
+			Thread.currentThread().interrupt();
+		} catch (final Throwable e) {
+			// the caller gets it with END, otherwise it waits forever
+			fail(e);
+		} finally {
+			try {
+				full.put(END);
+			} catch (final InterruptedException e) {
+				// cancelled
+			}
+		}
+	}
+
+	private void fail(Throwable e) {
+		if (error == null) {
+			error = e;
+		}
+	}
+
+	/**
+	 * Throws the error of the thread if there is one
+	 */
+	public void checkError() throws IOException {
+		final Throwable result = error;
+		if (result != null) {
+			throw new IOException("Failed in " + name, result);
+		}
+	}
+
+	private InterruptedIOException interrupted() {
+		thread.interrupt();
+		Thread.currentThread().interrupt();
+		return new InterruptedIOException("Interrupted while waiting for " + name);
+	}
+
+	/**
+	 * @return a new item, e.g. the first one to fill - it is counted in <code>items</code>
+	 */
+	public T create() {
+		allocated++;
+		return factory.get();
+	}
+
+	private T nextFree() throws InterruptedException {
+		final T result = free.poll();
+		if (result != null) {
+			return result;
+		}
+		if (allocated < items) {
+			return create();
+		}
+		final long start = System.nanoTime();
+		try {
+			return free.take();
+		} finally {
+			waitNanos += System.nanoTime() - start;
+		}
+	}
+
+	private void put(T item) throws InterruptedException {
+		full.put(item);
+		// END is passed only at the end
+		final int depth = full.size();
+		if (depth > maximumQueueDepth) {
+			maximumQueueDepth = depth;
+		}
+	}
+
+	/**
+	 * @return a free item for {@link #consuming} - created if there are less than <code>items</code>, otherwise waits for
+	 *         one
+	 */
+	public T allocate() throws IOException {
+		checkError();
+		try {
+			return nextFree();
+		} catch (final InterruptedException e) {
+			throw interrupted();
+		}
+	}
+
+	/**
+	 * Passes the filled item to the thread, see {@link #allocate()} for the next one
+	 */
+	public void pass(T item) throws IOException {
+		checkError();
+		try {
+			put(item);
+		} catch (final InterruptedException e) {
+			throw interrupted();
+		}
+	}
+
+	/**
+	 * Passes the end and waits until all items are consumed and the resource is closed
+	 */
+	public void finish() throws IOException {
+		try {
+			full.put(END);
+			thread.join();
+		} catch (final InterruptedException e) {
+			throw interrupted();
+		}
+		checkError();
+	}
+
+	/**
+	 * @return the next item of {@link #producing}, <code>null</code> at the end - not called again after it
+	 */
+	@SuppressWarnings("unchecked")
+	public T take() throws IOException {
+		final Object result;
+		try {
+			result = full.take();
+		} catch (final InterruptedException e) {
+			throw interrupted();
+		}
+		if (result == END) {
+			checkError();
+			return null;
+		}
+		return (T) result;
+	}
+
+	/**
+	 * Returns a used item for reuse
+	 */
+	public void recycle(T item) {
+		reset.accept(item);
+		// at most items are created, so there is always a place
+		free.add(item);
+	}
+
+	/**
+	 * Stops the thread of {@link #producing} before its end and waits for it to close the resource
+	 */
+	public void cancel() throws IOException {
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + name);
+		}
+		full.clear();
+	}
+
+	/**
+	 * @return items waiting now
+	 */
+	public int getQueueDepth() {
+		final int result = full.size();
+		return full.contains(END) ? result - 1 : result;
+	}
+
+	public int getMaximumQueueDepth() {
+		return maximumQueueDepth;
+	}
+
+	/**
+	 * @return how long the filling side waited for a free item
+	 */
+	public long getWaitNanos() {
+		return waitNanos;
+	}
+
+	/**
+	 * @return created items so far
+	 */
+	public int getAllocated() {
+		return allocated;
+	}
+
+	public String getName() {
+		return name;
+	}
+}
@@ -0,0 +1,352 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Merge join of the track points with a heart rate CSV file that is read lazily - only a sliding window of the samples
+ * around the current track point is in memory, not the whole file as in {@link HeartRateIndex}. The heart rates and the
+ * matched counts are the same as of {@link HeartRateProvider} on the whole file.
+ * <p>
+ * The samples are read in time order: a first pass checks the order of the file without keeping the samples and if it is
+ * not sorted it is sorted once on disk, see {@link ExternalHeartRateSort}. For track points in time order the samples are
+ * read once. A track point before the dropped samples (out of order, or the next track) reads them again from the
+ * beginning - the memory stays constant, the time grows, see {@link #getPasses()}.
+ * <p>
+ * The lookups are done by a {@link HeartRateProvider} on the samples in memory, a new one each time the window moves - so
+ * each window starts with {@link SearchPath#FIRST}. Close it to delete the sorted file.
+ */
+public class StreamingHeartRateProvider extends HeartRateProvider implements Closeable {
+	/**
+	 * Samples read at a time when the window moves
+	 */
+	static final int DEFAULT_BLOCK_SIZE = 4096;
+
+	private final Source source;
+	// copies share the source, only the first one closes it
+	private final boolean isOwner;
+	private final boolean timeLookups;
+	private final SampleWindow window;
+	private HeartRateProvider current;
+	// of the providers of the previous windows
+	private Statistics previous = new Statistics(0, 0);
+
+	/**
+	 * @param timeLookups
+	 *            see {@link HeartRateProvider#HeartRateProvider(HeartRateIndex, HeartRateLookup, boolean)}, the reads of the
+	 *            samples are not included
+	 */
+	public StreamingHeartRateProvider(Path file, HeartRateCsvParser parser, HeartRateLookup lookup, boolean timeLookups)
+			throws IOException {
+		this(file, parser, new ExternalHeartRateSort(), lookup, timeLookups, DEFAULT_BLOCK_SIZE);
+	}
+
+	StreamingHeartRateProvider(Path file, HeartRateCsvParser parser, ExternalHeartRateSort sort, HeartRateLookup lookup,
+			boolean timeLookups, int blockSize) throws IOException {
+		this(Source.open(file, parser, sort), true, lookup, timeLookups, blockSize);
+	}
+
+	private StreamingHeartRateProvider(Source source, boolean isOwner, HeartRateLookup lookup, boolean timeLookups,
+			int blockSize) throws IOException {
+		this(source, isOwner, SampleWindow.open(source, isOwner, reach(lookup), blockSize), lookup, timeLookups);
+	}
+
+	private StreamingHeartRateProvider(Source source, boolean isOwner, SampleWindow window, HeartRateLookup lookup,
+			boolean timeLookups) {
+		super(window.toIndex(), lookup, timeLookups);
+		this.source = source;
+		this.isOwner = isOwner;
+		this.timeLookups = timeLookups;
+		this.window = window;
+		this.current = new HeartRateProvider(heartRates, lookup, timeLookups);
+	}
+
+	/**
+	 * All samples within it from a track point are needed - for the tolerance and for the window of
+	 * {@link HeartRateLookup.Strategy#AVERAGE} and {@link HeartRateLookup.Strategy#MEDIAN}
+	 */
+	private static long reach(HeartRateLookup lookup) {
+		return Math.max(lookup.getTolerance().toMillis(), lookup.getWindow().toMillis() / 2);
+	}
+
+	/**
+	 * The samples of the file in time order - the file itself or its sorted copy
+	 */
+	private static final class Source implements Closeable {
+		private final HeartRateCsvParser parser;
+		private final Path file;
+		// null if the file is in time order
+		private final Path sorted;
+
+		private Source(HeartRateCsvParser parser, Path file, Path sorted) {
+			this.parser = parser;
+			this.file = file;
+			this.sorted = sorted;
+		}
+
+		static Source open(Path file, HeartRateCsvParser parser, ExternalHeartRateSort sort) throws IOException {
+			boolean isSorted = true;
+			try (HeartRateSamples samples = parser.open(file)) {
+				if (!samples.next()) {
+					throw new IllegalArgumentException("No records in the input stream");
+				}
+				long last = samples.getTime();
+				while (isSorted && samples.next()) {
+					isSorted = last <= samples.getTime();
+					last = samples.getTime();
+				}
+			}
+			if (isSorted) {
+				return new Source(parser, file, null);
+			}
+			try (HeartRateSamples samples = parser.open(file)) {
+				return new Source(parser, file, sort.sort(samples));
+			}
+		}
+
+		HeartRateSamples open() throws IOException {
+			return sorted == null ? parser.open(file) : ExternalHeartRateSort.read(sorted);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (sorted != null) {
+				Files.deleteIfExists(sorted);
+			}
+		}
+	}
+
+	/**
+	 * The samples in [time - reach; time + reach] of the last track point, with the last ones before it (with the same
+	 * time) and the first one after it - the closest sample is one of them. They are read in blocks (at least as many as
+	 * the kept ones), so each sample is copied a constant number of times.
+	 */
+	private static final class SampleWindow {
+		private final Source source;
+		private final long reach;
+		private final int blockSize;
+		private HeartRateSamples samples;
+		private boolean isEnd = false;
+		private int passes = 1;
+
+		// [0; size) in time order
+		private long[] times;
+		private short[] rates;
+		private byte[] rateZones;
+		private int size = 0;
+		// samples before it are dropped
+		private long droppedBefore = Long.MIN_VALUE;
+
+		private SampleWindow(Source source, long reach, int blockSize) throws IOException {
+			this.source = source;
+			this.reach = reach;
+			this.blockSize = blockSize;
+			this.times = new long[blockSize];
+			this.rates = new short[blockSize];
+			this.rateZones = new byte[blockSize];
+			this.samples = source.open();
+		}
+
+		/**
+		 * With the first block of samples
+		 */
+		static SampleWindow open(Source source, boolean closeSource, long reach, int blockSize) throws IOException {
+			if (blockSize <= 0) {
+				throw new IllegalArgumentException("Block size must be positive, but was: " + blockSize);
+			}
+			SampleWindow result = null;
+			try {
+				result = new SampleWindow(source, reach, blockSize);
+				result.read(Long.MIN_VALUE, Long.MIN_VALUE);
+				return result;
+			} catch (final IOException | RuntimeException e) {
+				if (result != null) {
+					result.close();
+				}
+				if (closeSource) {
+					source.close();
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * @return true if the samples changed
+		 */
+		boolean move(long time) throws IOException {
+			final long low = time < Long.MIN_VALUE + reach ? Long.MIN_VALUE : time - reach;
+			final long high = time > Long.MAX_VALUE - reach ? Long.MAX_VALUE : time + reach;
+			if (low < droppedBefore) {
+				restart();
+			} else if (isEnd || high < times[size - 1]) {
+				// all samples up to high are read
+				return false;
+			}
+			drop(low);
+			read(low, high);
+			return true;
+		}
+
+		private void restart() throws IOException {
+			close();
+			samples = source.open();
+			isEnd = false;
+			size = 0;
+			droppedBefore = Long.MIN_VALUE;
+			passes++;
+		}
+
+		/**
+		 * Keeps the samples from the last time before <code>low</code>
+		 */
+		private void drop(long low) {
+			int first = 0;
+			while (first < size && times[first] < low) {
+				first++;
+			}
+			if (first == 0) {
+				return;
+			}
+			int keep = first - 1;
+			while (keep > 0 && times[keep - 1] == times[keep]) {
+				keep--;
+			}
+			if (keep == 0) {
+				return;
+			}
+			size -= keep;
+			System.arraycopy(times, keep, times, 0, size);
+			System.arraycopy(rates, keep, rates, 0, size);
+			System.arraycopy(rateZones, keep, rateZones, 0, size);
+			droppedBefore = low;
+		}
+
+		/**
+		 * Reads at least a block and until a sample after <code>high</code> (or the end). The samples before
+		 * <code>low</code> are dropped when there is no space - e.g. after a jump forward or from the beginning.
+		 */
+		private void read(long low, long high) throws IOException {
+			final int minimum = Math.max(blockSize, size);
+			for (int read = 0; !isEnd && (read < minimum || times[size - 1] <= high); read++) {
+				if (!samples.next()) {
+					isEnd = true;
+					close();
+					return;
+				}
+				if (size == times.length) {
+					drop(low);
+				}
+				add(samples.getTime(), samples.getRate(), samples.getRateZone());
+			}
+		}
+
+		private void add(long time, int rate, int rateZone) {
+			if (size > 0 && times[size - 1] > time) {
+				throw new IllegalStateException("Samples are not sorted after " + times[size - 1] + " - changed file?");
+			}
+			if (size == times.length) {
+				final int capacity = times.length * 2;
+				times = Arrays.copyOf(times, capacity);
+				rates = Arrays.copyOf(rates, capacity);
+				rateZones = Arrays.copyOf(rateZones, capacity);
+			}
+			times[size] = time;
+			rates[size] = (short) rate;
+			rateZones[size] = (byte) rateZone;
+			size++;
+		}
+
+		HeartRateIndex toIndex() {
+			return new HeartRateIndex(Arrays.copyOf(times, size), Arrays.copyOf(rates, size),
+					Arrays.copyOf(rateZones, size), HeartRateIndex.InputOrder.SORTED, 1);
+		}
+
+		void close() throws IOException {
+			if (samples != null) {
+				final HeartRateSamples closed = samples;
+				samples = null;
+				closed.close();
+			}
+		}
+	}
+
+	@Override
+	public int getHrForEpochMilli(long time) {
+		try {
+			if (window.move(time)) {
+				previous = previous.add(current.getStatistics());
+				current = new HeartRateProvider(window.toIndex(), getLookup(), timeLookups);
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return current.getHrForEpochMilli(time);
+	}
+
+	/**
+	 * One by one - there is no sweep over all samples
+	 */
+	@Override
+	public void getHrForEpochMillis(long[] times, int[] rates, int count) {
+		if (count < 0 || count > times.length || count > rates.length) {
+			throw new IllegalArgumentException(
+					"Count must be [0; " + Math.min(times.length, rates.length) + "], but was: " + count);
+		}
+		for (int i = 0; i < count; i++) {
+			rates[i] = getHrForEpochMilli(times[i]);
+		}
+	}
+
+	@Override
+	public Statistics getStatistics() {
+		return previous.add(current.getStatistics());
+	}
+
+	/**
+	 * @return a provider that reads the same (sorted) samples from the beginning - it must be closed before this one
+	 */
+	@Override
+	public StreamingHeartRateProvider copy() {
+		try {
+			return new StreamingHeartRateProvider(source, false, getLookup(), timeLookups, window.blockSize);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return the file was not in time order and was sorted on disk
+	 */
+	public boolean isSortedOnDisk() {
+		return source.sorted != null;
+	}
+
+	/**
+	 * @return reads of the samples from the beginning - one for track points in time order
+	 */
+	public int getPasses() {
+		return window.passes;
+	}
+
+	/**
+	 * @return samples in memory now
+	 */
+	int getWindowSize() {
+		return window.size;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			window.close();
+		} finally {
+			if (isOwner) {
+				source.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static eu.tanov.gps.gpxmergeheartrate.parsestates.HeartRatePlacement.ELEMENT_TRACK_POINT;
+
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import eu.tanov.gps.gpxmergeheartrate.parsestates.InsideTrkptStateHandler;
+
+/**
+ * The first phase of {@link GpxMergeHeartRate.Builder#twoPhase(boolean)} - the times of the track points of a document in
+ * document order, read as the merge engines read them: the text of the first <code>time</code> element in each
+ * <code>trkpt</code>. They are joined with the heart rates in bulk by {@link #join(HeartRateProvider)}.
+ */
+final class TrackPointTimes {
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private long[] times = new long[INITIAL_CAPACITY];
+	private int count = 0;
+
+	private TrackPointTimes() {
+	}
+
+	/**
+	 * @param inputFactory
+	 *            coalescing, as in {@link GpxMergeHeartRate}
+	 */
+	static TrackPointTimes read(XMLInputFactory inputFactory, InputStream input) throws XMLStreamException {
+		final TrackPointTimes result = new TrackPointTimes();
+		final XMLStreamReader reader = inputFactory.createXMLStreamReader(input);
+		boolean isInsideTrackPoint = false;
+		boolean isTimeRead = false;
+		while (reader.hasNext()) {
+			final int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				if (!isInsideTrackPoint && reader.getLocalName().equals(ELEMENT_TRACK_POINT)) {
+					isInsideTrackPoint = true;
+					isTimeRead = false;
+				} else if (isInsideTrackPoint && !isTimeRead
+						&& reader.getLocalName().equals(InsideTrkptStateHandler.ELEMENT_TIME)) {
+					isTimeRead = true;
+					// anything else fails in the second phase
+					if (reader.next() == XMLStreamConstants.CHARACTERS) {
+						result.add(GpxTime.parseEpochMilli(reader.getText()));
+					}
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT && isInsideTrackPoint
+					&& reader.getLocalName().equals(ELEMENT_TRACK_POINT)) {
+				isInsideTrackPoint = false;
+			}
+		}
+		reader.close();
+		return result;
+	}
+
+	private void add(long time) {
+		if (count == times.length) {
+			times = Arrays.copyOf(times, times.length * 2);
+		}
+		times[count++] = time;
+	}
+
+	int size() {
+		return count;
+	}
+
+	long get(int index) {
+		return times[index];
+	}
+
+	/**
+	 * The second phase - all heart rates are found with {@link HeartRateProvider#getHrForEpochMillis(long[], int[], int)}
+	 *
+	 * @return returns them for the times in the same order, the statistics are of <code>heartRateProvider</code>
+	 */
+	HeartRateProvider join(HeartRateProvider heartRateProvider) {
+		return new JoinedHeartRateProvider(heartRateProvider, times, count);
+	}
+
+	/**
+	 * A time that is not the next joined one (not expected) is looked up by the provider
+	 */
+	private static class JoinedHeartRateProvider extends HeartRateProvider {
+		private final HeartRateProvider heartRateProvider;
+		private final long[] times;
+		private final int[] rates;
+		private final int count;
+		private int next = 0;
+
+		JoinedHeartRateProvider(HeartRateProvider heartRateProvider, long[] times, int count) {
+			super(heartRateProvider.heartRates, heartRateProvider.getLookup());
+			this.heartRateProvider = heartRateProvider;
+			this.times = times;
+			this.rates = new int[count];
+			this.count = count;
+			heartRateProvider.getHrForEpochMillis(times, rates, count);
+		}
+
+		@Override
+		public int getHrForEpochMilli(long time) {
+			if (next < count && times[next] == time) {
+				return rates[next++];
+			}
+			return heartRateProvider.getHrForEpochMilli(time);
+		}
+
+		@Override
+		public HeartRateProvider copy() {
+			return heartRateProvider.copy();
+		}
+
+		@Override
+		public Statistics getStatistics() {
+			return heartRateProvider.getStatistics();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Converts between epoch seconds and local date times (as epoch seconds in UTC) of a zone. The offset is cached for the
+ * period between two transitions, so consecutive times usually do not touch {@link ZoneRules}. The results are the same as
+ * of {@link LocalDateTime#atZone(ZoneId)} - a gap moves the time forward and an overlap uses the earlier offset.
+ * <p>
+ * Not thread safe.
+ */
+class ZoneOffsetCache {
+	private final ZoneId zone;
+	private final ZoneRules rules;
+
+	// [instantFrom; instantTo) in epoch seconds, empty at the beginning
+	private long instantFrom = 0;
+	private long instantTo = 0;
+	private int instantOffset;
+
+	// [localFrom; localTo) in local epoch seconds with only one valid offset, empty at the beginning
+	private long localFrom = 0;
+	private long localTo = 0;
+	private int localOffset;
+
+	public ZoneOffsetCache(ZoneId zone) {
+		this.zone = zone;
+		this.rules = zone.getRules();
+	}
+
+	public ZoneId getZone() {
+		return zone;
+	}
+
+	/**
+	 * @return offset in seconds at <code>epochSecond</code>
+	 */
+	public int getOffset(long epochSecond) {
+		if (epochSecond < instantFrom || epochSecond >= instantTo) {
+			final Instant instant = Instant.ofEpochSecond(epochSecond);
+			instantOffset = rules.getOffset(instant).getTotalSeconds();
+			// previousTransition is strictly before the instant
+			final ZoneOffsetTransition previous = rules.previousTransition(instant.plusSeconds(1));
+			final ZoneOffsetTransition next = rules.nextTransition(instant);
+			instantFrom = previous == null ? Long.MIN_VALUE : previous.toEpochSecond();
+			instantTo = next == null ? Long.MAX_VALUE : next.toEpochSecond();
+		}
+		return instantOffset;
+	}
+
+	/**
+	 * @param localSecond
+	 *            local date time as epoch seconds in UTC
+	 * @return epoch seconds of the local date time in this zone
+	 */
+	public long toEpochSecond(long localSecond) {
+		if (localSecond >= localFrom && localSecond < localTo) {
+			return localSecond - localOffset;
+		}
+
+		final LocalDateTime local = LocalDateTime.ofEpochSecond(localSecond, 0, ZoneOffset.UTC);
+		final ZonedDateTime zoned = local.atZone(zone);
+		final long result = zoned.toEpochSecond();
+		if (rules.getValidOffsets(local).size() == 1) {
+			// cache only outside gaps and overlaps
+			final Instant instant = zoned.toInstant();
+			final ZoneOffsetTransition previous = rules.previousTransition(instant.plusSeconds(1));
+			final ZoneOffsetTransition next = rules.nextTransition(instant);
+			localFrom = previous == null ? Long.MIN_VALUE : toLocalSecond(max(previous));
+			localTo = next == null ? Long.MAX_VALUE : toLocalSecond(min(next));
+			localOffset = zoned.getOffset().getTotalSeconds();
+		}
+		return result;
+	}
+
+	private static LocalDateTime max(ZoneOffsetTransition transition) {
+		return transition.isGap() ? transition.getDateTimeAfter() : transition.getDateTimeBefore();
+	}
+
+	private static LocalDateTime min(ZoneOffsetTransition transition) {
+		return transition.isGap() ? transition.getDateTimeBefore() : transition.getDateTimeAfter();
+	}
+
+	private static long toLocalSecond(LocalDateTime local) {
+		return local.toEpochSecond(ZoneOffset.UTC);
+	}
+}
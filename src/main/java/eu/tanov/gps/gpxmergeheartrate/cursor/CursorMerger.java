@@ -0,0 +1,313 @@
+package eu.tanov.gps.gpxmergeheartrate.cursor;
+
+import static eu.tanov.gps.gpxmergeheartrate.parsestates.HeartRatePlacement.ELEMENT_EXTENSIONS;
+import static eu.tanov.gps.gpxmergeheartrate.parsestates.HeartRatePlacement.ELEMENT_HR;
+import static eu.tanov.gps.gpxmergeheartrate.parsestates.HeartRatePlacement.ELEMENT_TRACK_POINT;
+import static eu.tanov.gps.gpxmergeheartrate.parsestates.HeartRatePlacement.ELEMENT_TRACK_POINT_EXTENSION;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import eu.tanov.gps.gpxmergeheartrate.ExtensionNamespace;
+import eu.tanov.gps.gpxmergeheartrate.GpxMergeHeartRate;
+import eu.tanov.gps.gpxmergeheartrate.GpxTime;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+import eu.tanov.gps.gpxmergeheartrate.parsestates.HeartRatePlacement;
+import eu.tanov.gps.gpxmergeheartrate.parsestates.Indentation;
+import eu.tanov.gps.gpxmergeheartrate.parsestates.InsideTrkptStateHandler;
+import eu.tanov.gps.gpxmergeheartrate.sink.TrackPointRecorder;
+
+/**
+ * Merges heart rates using {@link XMLStreamReader} and {@link XMLStreamWriter} cursors instead of creating XMLEvent
+ * objects. The result is the same as the result of the XMLEvent engine in
+ * {@link eu.tanov.gps.gpxmergeheartrate.parsestates}.
+ */
+public class CursorMerger {
+	private static final String ELEMENT_GPX = "gpx";
+
+	private final XMLStreamReader reader;
+	private final XMLStreamWriter writer;
+	private final HeartRateProvider heartRateProvider;
+	private final ExtensionNamespace extensionNamespace;
+	private final TrackPointRecorder recorder;
+
+	private final Indentation indentation;
+	private final HeartRatePlacement placement = new HeartRatePlacement();
+	private final Token current = new Token();
+	/**
+	 * Events of the current track point before its time. Tokens are reused between track points.
+	 */
+	private final List<Token> lookahead = new ArrayList<>();
+	private int lookaheadSize = 0;
+
+	private boolean isInsideTrackPoint = false;
+	private boolean isTimeRead = false;
+	private boolean isInsideTime = false;
+	private int heartRate = HeartRateProvider.NO_HEART_RATE;
+
+	public CursorMerger(XMLStreamReader reader, XMLStreamWriter writer, HeartRateProvider heartRateProvider) {
+		this(reader, writer, heartRateProvider, new Indentation(), ExtensionNamespace.DEFAULT);
+	}
+
+	/**
+	 * @param indentation
+	 *            e.g. the state before a part of a document that is merged separately
+	 */
+	public CursorMerger(XMLStreamReader reader, XMLStreamWriter writer, HeartRateProvider heartRateProvider,
+			Indentation indentation, ExtensionNamespace extensionNamespace) {
+		this(reader, writer, heartRateProvider, indentation, extensionNamespace, null);
+	}
+
+	/**
+	 * @param recorder
+	 *            receives the track points too, <code>null</code> if they are only written
+	 */
+	public CursorMerger(XMLStreamReader reader, XMLStreamWriter writer, HeartRateProvider heartRateProvider,
+			Indentation indentation, ExtensionNamespace extensionNamespace, TrackPointRecorder recorder) {
+		this.reader = reader;
+		this.writer = writer;
+		this.heartRateProvider = heartRateProvider;
+		this.indentation = indentation;
+		this.extensionNamespace = extensionNamespace;
+		this.recorder = recorder;
+	}
+
+	public void merge() throws XMLStreamException {
+		handleEvent();
+		while (reader.hasNext()) {
+			reader.next();
+			handleEvent();
+		}
+	}
+
+	/**
+	 * Merges only the current event, the caller moves the reader - e.g. to handle some elements itself
+	 */
+	public void mergeEvent() throws XMLStreamException {
+		handleEvent();
+	}
+
+	/**
+	 * Merges the element at the current start element up to its end element (included), e.g. a track segment
+	 */
+	public void mergeElement() throws XMLStreamException {
+		int depth = 0;
+		while (true) {
+			if (reader.isStartElement()) {
+				depth++;
+			} else if (reader.isEndElement()) {
+				depth--;
+			}
+			handleEvent();
+			if (depth == 0) {
+				return;
+			}
+			reader.next();
+		}
+	}
+
+	private void handleEvent() throws XMLStreamException {
+		if (!isInsideTrackPoint) {
+			if (reader.isStartElement() && reader.getLocalName().equals(ELEMENT_TRACK_POINT)) {
+				startTrackPoint();
+				return;
+			}
+			if (recorder != null) {
+				recordSegment();
+			}
+			writeIndented(read(current));
+			return;
+		}
+
+		final Token token;
+		if (isTimeRead) {
+			token = read(current);
+			write(token);
+		} else {
+			token = read(nextLookahead());
+			readTime(token);
+		}
+
+		if (token.getEventType() == XMLStreamConstants.END_ELEMENT && token.getLocalName().equals(ELEMENT_TRACK_POINT)) {
+			// no time in this track point
+			writeLookahead();
+			isInsideTrackPoint = false;
+			if (recorder != null) {
+				recorder.endTrackPoint();
+			}
+		} else if (recorder != null) {
+			record(token);
+		}
+	}
+
+	private void recordSegment() {
+		if (reader.isStartElement() && reader.getLocalName().equals(TrackPointRecorder.ELEMENT_TRACK_SEGMENT)) {
+			recorder.startSegment();
+		} else if (reader.isEndElement() && reader.getLocalName().equals(TrackPointRecorder.ELEMENT_TRACK_SEGMENT)) {
+			recorder.endSegment();
+		}
+	}
+
+	private void record(Token token) {
+		switch (token.getEventType()) {
+		case XMLStreamConstants.START_ELEMENT:
+			recorder.startElement(token.getLocalName());
+			break;
+		case XMLStreamConstants.CHARACTERS:
+		case XMLStreamConstants.CDATA:
+		case XMLStreamConstants.SPACE:
+			recorder.characters(token.getText());
+			break;
+		case XMLStreamConstants.END_ELEMENT:
+			recorder.endElement();
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void startTrackPoint() {
+		isInsideTrackPoint = true;
+		isTimeRead = false;
+		isInsideTime = false;
+		heartRate = HeartRateProvider.NO_HEART_RATE;
+		placement.reset();
+		if (recorder != null) {
+			recorder.startTrackPoint(reader.getAttributeValue(null, TrackPointRecorder.ATTRIBUTE_LATITUDE),
+					reader.getAttributeValue(null, TrackPointRecorder.ATTRIBUTE_LONGITUDE));
+		}
+		read(nextLookahead());
+	}
+
+	private Token read(Token token) {
+		token.read(reader);
+		if (token.getEventType() == XMLStreamConstants.START_ELEMENT && token.getLocalName().equals(ELEMENT_GPX)) {
+			addExtensionNamespace(token);
+		}
+		return token;
+	}
+
+	private void addExtensionNamespace(Token token) {
+		final String prefix = extensionNamespace.getPrefix();
+		for (int i = 0; i < token.getNamespaceCount(); i++) {
+			if (token.getNamespacePrefix(i).equals(prefix)) {
+				if (!token.getNamespaceURI(i).equals(extensionNamespace.getUri())) {
+					throw new IllegalArgumentException("Different URI for " + prefix + ", expecting " + extensionNamespace.getUri()
+							+ " but found " + token.getNamespaceURI(i));
+				}
+				return;
+			}
+		}
+		token.addNamespace(prefix, extensionNamespace.getUri());
+	}
+
+	private Token nextLookahead() {
+		if (lookaheadSize == lookahead.size()) {
+			lookahead.add(new Token());
+		}
+		return lookahead.get(lookaheadSize++);
+	}
+
+	private void readTime(Token token) throws XMLStreamException {
+		if (isInsideTime) {
+			if (token.getEventType() != XMLStreamConstants.CHARACTERS) {
+				throw new IllegalStateException("XML file is not supported - can't read time");
+			}
+			final long time = GpxTime.parseEpochMilli(token.getText());
+			heartRate = heartRateProvider.getHrForEpochMilli(time);
+			if (recorder != null) {
+				recorder.time(time, heartRate);
+			}
+			isTimeRead = true;
+			writeLookahead();
+		} else if (token.getEventType() == XMLStreamConstants.START_ELEMENT
+				&& token.getLocalName().equals(InsideTrkptStateHandler.ELEMENT_TIME)) {
+			isInsideTime = true;
+		}
+	}
+
+	private void writeLookahead() throws XMLStreamException {
+		for (int i = 0; i < lookaheadSize; i++) {
+			write(lookahead.get(i));
+		}
+		lookaheadSize = 0;
+	}
+
+	private void write(Token token) throws XMLStreamException {
+		if (heartRate != HeartRateProvider.NO_HEART_RATE) {
+			addHeartRateIfNeeded(token, heartRate);
+		}
+		writeIndented(token);
+	}
+
+	private void addHeartRateIfNeeded(Token token, int heartRate) throws XMLStreamException {
+		if (token.getEventType() == XMLStreamConstants.START_ELEMENT) {
+			placement.startElement(token.getLocalName());
+		} else if (token.getEventType() == XMLStreamConstants.END_ELEMENT) {
+			switch (placement.endElement(token.getLocalName())) {
+			case HEART_RATE:
+				addHeartRate(heartRate);
+				break;
+			case TRACK_POINT_EXTENSION:
+				addTrackPointExtension(heartRate);
+				break;
+			case EXTENSIONS:
+				addExtensions(heartRate);
+				break;
+			case NOTHING:
+				break;
+			}
+		}
+	}
+
+	private void addHeartRate(int heartRate) throws XMLStreamException {
+		writeStartElement(extensionNamespace.getPrefix(), ELEMENT_HR, "");
+		writeCharacters(String.valueOf(heartRate));
+		writeEndElement();
+	}
+
+	private void addTrackPointExtension(int heartRate) throws XMLStreamException {
+		writeStartElement(extensionNamespace.getPrefix(), ELEMENT_TRACK_POINT_EXTENSION, "");
+		addHeartRate(heartRate);
+		writeEndElement();
+	}
+
+	private void addExtensions(int heartRate) throws XMLStreamException {
+		writeStartElement("", ELEMENT_EXTENSIONS, GpxMergeHeartRate.NAMESPACE_GPX);
+		addTrackPointExtension(heartRate);
+		writeEndElement();
+	}
+
+	private void writeIndented(Token token) throws XMLStreamException {
+		indent(token.getEventType());
+		token.write(writer);
+	}
+
+	private void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+		indent(XMLStreamConstants.START_ELEMENT);
+		writer.writeStartElement(prefix, localName, namespaceURI);
+	}
+
+	private void writeCharacters(String text) throws XMLStreamException {
+		indent(XMLStreamConstants.CHARACTERS);
+		writer.writeCharacters(text);
+	}
+
+	private void writeEndElement() throws XMLStreamException {
+		indent(XMLStreamConstants.END_ELEMENT);
+		writer.writeEndElement();
+	}
+
+	private void indent(int eventType) throws XMLStreamException {
+		final String whitespace = indentation.before(eventType);
+		if (whitespace != null) {
+			writer.writeCharacters(whitespace);
+		}
+		indentation.after(eventType);
+	}
+}
@@ -0,0 +1,231 @@
+package eu.tanov.gps.gpxmergeheartrate.cursor;
+
+import java.util.Arrays;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Mutable copy of the current {@link XMLStreamReader} event. Instances are reused so reading the document does not create
+ * an object per event.
+ */
+class Token {
+	private static final int ATTRIBUTE_FIELDS = 4;
+	private static final int NAMESPACE_FIELDS = 2;
+	private static final int DEFAULT_HASH_MAP_CAPACITY = 16;
+	private static final float DEFAULT_HASH_MAP_LOAD_FACTOR = 0.75f;
+
+	private int eventType;
+	private String prefix;
+	private String localName;
+	private String namespaceURI;
+	private String text;
+	private String encoding;
+	private String version;
+
+	private int attributeCount;
+	// prefix, namespace URI, local name, value
+	private String[] attributes = new String[ATTRIBUTE_FIELDS * 4];
+	private int namespaceCount;
+	// prefix, namespace URI
+	private String[] namespaces = new String[NAMESPACE_FIELDS * 4];
+
+	private int[] attributeOrder = new int[4];
+	private int[] attributeBuckets = new int[4];
+
+	public int getEventType() {
+		return eventType;
+	}
+
+	public String getLocalName() {
+		return localName;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public int getNamespaceCount() {
+		return namespaceCount;
+	}
+
+	public String getNamespacePrefix(int index) {
+		return namespaces[index * NAMESPACE_FIELDS];
+	}
+
+	public String getNamespaceURI(int index) {
+		return namespaces[index * NAMESPACE_FIELDS + 1];
+	}
+
+	public void addNamespace(String prefix, String namespaceURI) {
+		if (namespaces.length < (namespaceCount + 1) * NAMESPACE_FIELDS) {
+			namespaces = Arrays.copyOf(namespaces, namespaces.length * 2);
+		}
+		namespaces[namespaceCount * NAMESPACE_FIELDS] = prefix;
+		namespaces[namespaceCount * NAMESPACE_FIELDS + 1] = namespaceURI;
+		namespaceCount++;
+	}
+
+	public void read(XMLStreamReader reader) {
+		eventType = reader.getEventType();
+		prefix = null;
+		localName = null;
+		namespaceURI = null;
+		text = null;
+		encoding = null;
+		version = null;
+		attributeCount = 0;
+		namespaceCount = 0;
+
+		switch (eventType) {
+		case XMLStreamConstants.START_ELEMENT:
+			readName(reader);
+			readNamespaces(reader);
+			readAttributes(reader);
+			break;
+		case XMLStreamConstants.END_ELEMENT:
+			readName(reader);
+			break;
+		case XMLStreamConstants.PROCESSING_INSTRUCTION:
+			localName = reader.getPITarget();
+			text = reader.getPIData();
+			break;
+		case XMLStreamConstants.ENTITY_REFERENCE:
+			localName = reader.getLocalName();
+			break;
+		case XMLStreamConstants.START_DOCUMENT:
+			encoding = reader.getEncoding();
+			version = reader.getVersion();
+			break;
+		case XMLStreamConstants.CHARACTERS:
+		case XMLStreamConstants.CDATA:
+		case XMLStreamConstants.SPACE:
+		case XMLStreamConstants.COMMENT:
+		case XMLStreamConstants.DTD:
+			text = reader.getText();
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void readName(XMLStreamReader reader) {
+		prefix = emptyIfNull(reader.getPrefix());
+		localName = reader.getLocalName();
+		namespaceURI = emptyIfNull(reader.getNamespaceURI());
+	}
+
+	private void readNamespaces(XMLStreamReader reader) {
+		final int count = reader.getNamespaceCount();
+		for (int i = 0; i < count; i++) {
+			addNamespace(emptyIfNull(reader.getNamespacePrefix(i)), reader.getNamespaceURI(i));
+		}
+	}
+
+	private void readAttributes(XMLStreamReader reader) {
+		attributeCount = reader.getAttributeCount();
+		if (attributes.length < attributeCount * ATTRIBUTE_FIELDS) {
+			attributes = new String[attributeCount * ATTRIBUTE_FIELDS];
+			attributeOrder = new int[attributeCount];
+			attributeBuckets = new int[attributeCount];
+		}
+		for (int i = 0; i < attributeCount; i++) {
+			attributes[i * ATTRIBUTE_FIELDS] = emptyIfNull(reader.getAttributePrefix(i));
+			attributes[i * ATTRIBUTE_FIELDS + 1] = emptyIfNull(reader.getAttributeNamespace(i));
+			attributes[i * ATTRIBUTE_FIELDS + 2] = reader.getAttributeLocalName(i);
+			attributes[i * ATTRIBUTE_FIELDS + 3] = reader.getAttributeValue(i);
+		}
+		orderAttributes();
+	}
+
+	/**
+	 * The XMLEvent engine keeps the attributes of a start element in a {@link java.util.HashMap} keyed by
+	 * {@link javax.xml.namespace.QName} and writes them in its iteration order. The same order is calculated here (bucket
+	 * index, then insertion order) so both engines produce identical output. Tree bins are ignored - they need more than 48
+	 * attributes.
+	 * <p>
+	 * Only the StAX implementation of the JDK is emulated - with another one the event engine writes the attributes in the
+	 * order of its {@link javax.xml.stream.events.StartElement} and the attribute order of the engines may differ.
+	 */
+	private void orderAttributes() {
+		int capacity = DEFAULT_HASH_MAP_CAPACITY;
+		while (attributeCount > capacity * DEFAULT_HASH_MAP_LOAD_FACTOR) {
+			capacity *= 2;
+		}
+		for (int i = 0; i < attributeCount; i++) {
+			// QName.hashCode()
+			final int hashCode =
+					attributes[i * ATTRIBUTE_FIELDS + 1].hashCode() ^ attributes[i * ATTRIBUTE_FIELDS + 2].hashCode();
+			// HashMap.hash()
+			final int bucket = (hashCode ^ (hashCode >>> 16)) & (capacity - 1);
+
+			// stable insertion sort by bucket
+			int position = i;
+			while (position > 0 && attributeBuckets[position - 1] > bucket) {
+				attributeBuckets[position] = attributeBuckets[position - 1];
+				attributeOrder[position] = attributeOrder[position - 1];
+				position--;
+			}
+			attributeBuckets[position] = bucket;
+			attributeOrder[position] = i;
+		}
+	}
+
+	/**
+	 * Writes the event the same way as {@link javax.xml.stream.XMLEventWriter} does
+	 */
+	public void write(XMLStreamWriter writer) throws XMLStreamException {
+		switch (eventType) {
+		case XMLStreamConstants.START_DOCUMENT:
+			try {
+				writer.writeStartDocument(encoding, version);
+			} catch (final XMLStreamException e) {
+				writer.writeStartDocument(version);
+			}
+			break;
+		case XMLStreamConstants.START_ELEMENT:
+			writer.writeStartElement(prefix, localName, namespaceURI);
+			for (int i = 0; i < namespaceCount; i++) {
+				writer.writeNamespace(getNamespacePrefix(i), getNamespaceURI(i));
+			}
+			for (int i = 0; i < attributeCount; i++) {
+				final int index = attributeOrder[i] * ATTRIBUTE_FIELDS;
+				writer.writeAttribute(attributes[index], attributes[index + 1], attributes[index + 2], attributes[index + 3]);
+			}
+			break;
+		case XMLStreamConstants.END_ELEMENT:
+			writer.writeEndElement();
+			break;
+		case XMLStreamConstants.CHARACTERS:
+			writer.writeCharacters(text);
+			break;
+		case XMLStreamConstants.CDATA:
+			writer.writeCData(text);
+			break;
+		case XMLStreamConstants.COMMENT:
+			writer.writeComment(text);
+			break;
+		case XMLStreamConstants.PROCESSING_INSTRUCTION:
+			writer.writeProcessingInstruction(localName, text);
+			break;
+		case XMLStreamConstants.ENTITY_REFERENCE:
+			writer.writeEntityRef(localName);
+			break;
+		case XMLStreamConstants.DTD:
+			writer.writeDTD(text);
+			break;
+		case XMLStreamConstants.END_DOCUMENT:
+			writer.writeEndDocument();
+			break;
+		default:
+			// SPACE is skipped by XMLEventWriter too
+			break;
+		}
+	}
+
+	private static String emptyIfNull(String value) {
+		return value == null ? "" : value;
+	}
+}
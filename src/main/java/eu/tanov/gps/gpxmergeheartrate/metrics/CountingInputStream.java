@@ -0,0 +1,55 @@
+package eu.tanov.gps.gpxmergeheartrate.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the read bytes, does not close the stream
+ */
+public class CountingInputStream extends FilterInputStream {
+	private long count = 0;
+
+	public CountingInputStream(InputStream input) {
+		super(input);
+	}
+
+	@Override
+	public int read() throws IOException {
+		final int result = super.read();
+		if (result >= 0) {
+			count++;
+		}
+		return result;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		final int result = super.read(b, off, len);
+		if (result > 0) {
+			count += result;
+		}
+		return result;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		final long result = super.skip(n);
+		count += result;
+		return result;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() {
+		// the caller closes it
+	}
+
+	public long getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,38 @@
+package eu.tanov.gps.gpxmergeheartrate.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the written bytes, does not close the stream
+ */
+public class CountingOutputStream extends FilterOutputStream {
+	private long count = 0;
+
+	public CountingOutputStream(OutputStream output) {
+		super(output);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		count += len;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the caller closes it
+		flush();
+	}
+
+	public long getCount() {
+		return count;
+	}
+}
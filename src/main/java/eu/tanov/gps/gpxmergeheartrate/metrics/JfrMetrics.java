@@ -0,0 +1,122 @@
+package eu.tanov.gps.gpxmergeheartrate.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.Statistics;
+
+/**
+ * Java Flight Recorder events - e.g. <code>java -XX:StartFlightRecording=filename=merge.jfr -jar ...</code> and
+ * <code>jfr print --categories "GPX Merge Heart Rate" merge.jfr</code>. The events are created only while recording.
+ * Create it with {@link MetricsRegistry#jfrIfAvailable()}, the JVM may not have jdk.jfr.
+ */
+public class JfrMetrics implements MetricsRegistry {
+	private static final String CATEGORY = "GPX Merge Heart Rate";
+	private static final String PREFIX = "eu.tanov.gps.gpxmergeheartrate.";
+
+	@Name(PREFIX + "Phase")
+	@Label("Phase")
+	@Category(CATEGORY)
+	@Description("Time of a phase, see MetricsRegistry.Phase")
+	static class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+
+		@Label("Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long time;
+	}
+
+	@Name(PREFIX + "TrackPoints")
+	@Label("Track Points")
+	@Category(CATEGORY)
+	@Description("Track points of a merged file")
+	static class TrackPointsEvent extends Event {
+		@Label("Count")
+		long count;
+	}
+
+	@Name(PREFIX + "Bytes")
+	@Label("Bytes")
+	@Category(CATEGORY)
+	@Description("Bytes read or written by a merge")
+	static class BytesEvent extends Event {
+		@Label("Written")
+		boolean written;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name(PREFIX + "Distance")
+	@Label("Distance to the Closest Sample")
+	@Category(CATEGORY)
+	@Description("Track points of a merged file by the distance to the closest heart rate sample")
+	static class DistanceEvent extends Event {
+		@Label("Less Than")
+		@Timespan(Timespan.MILLISECONDS)
+		long limit;
+
+		@Label("Count")
+		long count;
+	}
+
+	@Override
+	public void recordPhase(Phase phase, long nanos) {
+		final PhaseEvent event = new PhaseEvent();
+		if (event.isEnabled()) {
+			event.phase = phase.name();
+			event.time = nanos;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void addTrackPoints(long count) {
+		final TrackPointsEvent event = new TrackPointsEvent();
+		if (event.isEnabled()) {
+			event.count = count;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void addBytesRead(long bytes) {
+		addBytes(false, bytes);
+	}
+
+	@Override
+	public void addBytesWritten(long bytes) {
+		addBytes(true, bytes);
+	}
+
+	private static void addBytes(boolean written, long bytes) {
+		final BytesEvent event = new BytesEvent();
+		if (event.isEnabled()) {
+			event.written = written;
+			event.bytes = bytes;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void addDistanceCount(int bucket, long count) {
+		final DistanceEvent event = new DistanceEvent();
+		if (event.isEnabled()) {
+			event.limit = Statistics.getDistanceBucketLimit(bucket);
+			event.count = count;
+			event.commit();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "JfrMetrics";
+	}
+}
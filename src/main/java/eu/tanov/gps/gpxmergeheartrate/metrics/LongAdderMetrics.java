@@ -0,0 +1,104 @@
+package eu.tanov.gps.gpxmergeheartrate.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.Statistics;
+
+/**
+ * Sums the metrics in memory with {@link LongAdder}s, e.g. to print them at the end
+ */
+public class LongAdderMetrics implements MetricsRegistry {
+	private final LongAdder[] phaseNanos = create(Phase.values().length);
+	private final LongAdder trackPoints = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder[] distanceCounts = create(Statistics.DISTANCE_BUCKETS);
+
+	private static LongAdder[] create(int count) {
+		final LongAdder[] result = new LongAdder[count];
+		for (int i = 0; i < count; i++) {
+			result[i] = new LongAdder();
+		}
+		return result;
+	}
+
+	@Override
+	public void recordPhase(Phase phase, long nanos) {
+		phaseNanos[phase.ordinal()].add(nanos);
+	}
+
+	@Override
+	public void addTrackPoints(long count) {
+		trackPoints.add(count);
+	}
+
+	@Override
+	public void addBytesRead(long bytes) {
+		bytesRead.add(bytes);
+	}
+
+	@Override
+	public void addBytesWritten(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	@Override
+	public void addDistanceCount(int bucket, long count) {
+		distanceCounts[bucket].add(count);
+	}
+
+	/**
+	 * @return sum of all threads, e.g. more than the elapsed time in batch mode
+	 */
+	public long getPhaseNanos(Phase phase) {
+		return phaseNanos[phase.ordinal()].sum();
+	}
+
+	public long getTrackPoints() {
+		return trackPoints.sum();
+	}
+
+	/**
+	 * @return track points per second of {@link Phase#GPX_MERGE} (of one thread), 0 before the first merge
+	 */
+	public double getTrackPointsPerSecond() {
+		final long nanos = getPhaseNanos(Phase.GPX_MERGE);
+		return nanos == 0 ? 0 : getTrackPoints() * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	public long getDistanceCount(int bucket) {
+		return distanceCounts[bucket].sum();
+	}
+
+	/**
+	 * @return e.g. <code>CSV_INGEST=12 ms, SORT=1 ms, ...</code> and other lines for the counters
+	 */
+	public String report() {
+		final StringBuilder result = new StringBuilder("Phases: ");
+		for (final Phase next : Phase.values()) {
+			if (next.ordinal() > 0) {
+				result.append(", ");
+			}
+			result.append(next).append('=').append(TimeUnit.NANOSECONDS.toMillis(getPhaseNanos(next))).append(" ms");
+		}
+		result.append(String.format("\nTrack points: %d, %.0f/s\nBytes: read %d, written %d\nDistance to the closest sample: ",
+				getTrackPoints(), getTrackPointsPerSecond(), getBytesRead(), getBytesWritten()));
+		result.append(Statistics.formatDistanceCounts(this::getDistanceCount));
+		return result.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "LongAdderMetrics [trackPoints=" + getTrackPoints() + ", bytesRead=" + getBytesRead() + ", bytesWritten="
+				+ getBytesWritten() + "]";
+	}
+}
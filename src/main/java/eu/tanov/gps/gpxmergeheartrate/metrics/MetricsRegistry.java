@@ -0,0 +1,136 @@
+package eu.tanov.gps.gpxmergeheartrate.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.Statistics;
+
+/**
+ * Receives the metrics of the merge - once per phase and per file, not per track point, so an implementation does not
+ * have to be fast. MUST be thread safe - files are merged concurrently in batch mode. All methods do nothing by default.
+ */
+public interface MetricsRegistry {
+	enum Phase {
+		/**
+		 * Parsing of the heart rate CSV files, without {@link #SORT}
+		 */
+		CSV_INGEST,
+		/**
+		 * Sorting of the parsed heart rates
+		 */
+		SORT,
+		/**
+		 * Reading, merging and writing of a gpx file - one streaming pass, so the parsing and the serialization are not
+		 * separated. It includes {@link #LOOKUP}.
+		 */
+		GPX_MERGE,
+		/**
+		 * Heart rate lookups of the track points, part of {@link #GPX_MERGE}
+		 */
+		LOOKUP,
+		/**
+		 * The serialization waited for the disk, see {@link eu.tanov.gps.gpxmergeheartrate.AsyncOutputStream#getWaitNanos()}
+		 */
+		OUTPUT_WAIT
+	}
+
+	MetricsRegistry NOOP = new MetricsRegistry() {
+		@Override
+		public String toString() {
+			return "NOOP";
+		}
+	};
+
+	default void recordPhase(Phase phase, long nanos) {
+	}
+
+	default void addTrackPoints(long count) {
+	}
+
+	default void addBytesRead(long bytes) {
+	}
+
+	default void addBytesWritten(long bytes) {
+	}
+
+	/**
+	 * @param bucket
+	 *            see {@link Statistics#getDistanceBucketLimit(int)}
+	 */
+	default void addDistanceCount(int bucket, long count) {
+	}
+
+	/**
+	 * Track points, lookup time and distances to the closest samples of a merged file
+	 */
+	default void recordStatistics(Statistics statistics) {
+		addTrackPoints(statistics.getCountSucceed() + statistics.getCountFailed());
+		if (statistics.getLookupNanos() > 0) {
+			recordPhase(Phase.LOOKUP, statistics.getLookupNanos());
+		}
+		for (int i = 0; i < Statistics.DISTANCE_BUCKETS; i++) {
+			if (statistics.getDistanceCount(i) > 0) {
+				addDistanceCount(i, statistics.getDistanceCount(i));
+			}
+		}
+	}
+
+	/**
+	 * @return all of them receive everything
+	 */
+	static MetricsRegistry of(MetricsRegistry... registries) {
+		return new CompositeMetrics(Arrays.asList(registries));
+	}
+
+	/**
+	 * @return {@link JfrMetrics} if the JVM has Flight Recorder (8u262+ and 11+), otherwise {@link #NOOP}
+	 */
+	static MetricsRegistry jfrIfAvailable() {
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+			// not referenced directly - jdk.jfr classes are loaded only if they exist
+			return (MetricsRegistry) Class.forName(MetricsRegistry.class.getPackage().getName() + ".JfrMetrics")
+					.newInstance();
+		} catch (final ReflectiveOperationException | LinkageError e) {
+			return NOOP;
+		}
+	}
+
+	class CompositeMetrics implements MetricsRegistry {
+		private final List<MetricsRegistry> registries;
+
+		private CompositeMetrics(List<MetricsRegistry> registries) {
+			this.registries = registries;
+		}
+
+		@Override
+		public void recordPhase(Phase phase, long nanos) {
+			registries.forEach(a -> a.recordPhase(phase, nanos));
+		}
+
+		@Override
+		public void addTrackPoints(long count) {
+			registries.forEach(a -> a.addTrackPoints(count));
+		}
+
+		@Override
+		public void addBytesRead(long bytes) {
+			registries.forEach(a -> a.addBytesRead(bytes));
+		}
+
+		@Override
+		public void addBytesWritten(long bytes) {
+			registries.forEach(a -> a.addBytesWritten(bytes));
+		}
+
+		@Override
+		public void addDistanceCount(int bucket, long count) {
+			registries.forEach(a -> a.addDistanceCount(bucket, count));
+		}
+
+		@Override
+		public String toString() {
+			return "CompositeMetrics " + registries;
+		}
+	}
+}
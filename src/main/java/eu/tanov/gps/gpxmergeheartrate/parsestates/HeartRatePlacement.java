@@ -0,0 +1,51 @@
+package eu.tanov.gps.gpxmergeheartrate.parsestates;
+
+/**
+ * Decides where to add <code>gpxtpx:hr</code> while a track point is written - before the end of the last available of
+ * <code>gpxtpx:TrackPointExtension</code>, <code>extensions</code> or <code>trkpt</code>.
+ */
+public class HeartRatePlacement {
+	public static final String ELEMENT_TRACK_POINT = "trkpt";
+	public static final String ELEMENT_HR = "hr";
+	public static final String ELEMENT_TRACK_POINT_EXTENSION = "TrackPointExtension";
+	public static final String ELEMENT_EXTENSIONS = "extensions";
+
+	public enum Insert {
+		NOTHING, HEART_RATE, TRACK_POINT_EXTENSION, EXTENSIONS
+	}
+
+	private boolean hasTrackPointExtension = false;
+	private boolean hasExtensions = false;
+
+	/**
+	 * MUST be called for each track point
+	 */
+	public void reset() {
+		hasTrackPointExtension = false;
+		hasExtensions = false;
+	}
+
+	public void startElement(String localName) {
+		if (localName.equals(ELEMENT_HR)) {
+			throw new IllegalArgumentException("Already have '" + ELEMENT_HR + "'");
+		} else if (localName.equals(ELEMENT_TRACK_POINT_EXTENSION)) {
+			hasTrackPointExtension = true;
+		} else if (localName.equals(ELEMENT_EXTENSIONS)) {
+			hasExtensions = true;
+		}
+	}
+
+	/**
+	 * @return what to write before this end element
+	 */
+	public Insert endElement(String localName) {
+		if (localName.equals(ELEMENT_TRACK_POINT_EXTENSION)) {
+			return Insert.HEART_RATE;
+		} else if (localName.equals(ELEMENT_EXTENSIONS) && !hasTrackPointExtension) {
+			return Insert.TRACK_POINT_EXTENSION;
+		} else if (localName.equals(ELEMENT_TRACK_POINT) && !hasExtensions && !hasTrackPointExtension) {
+			return Insert.EXTENSIONS;
+		}
+		return Insert.NOTHING;
+	}
+}
@@ -3,57 +3,70 @@ package eu.tanov.gps.gpxmergeheartrate.parsestates;
 import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Characters;
 import javax.xml.stream.events.XMLEvent;
 
+import eu.tanov.gps.gpxmergeheartrate.ExtensionNamespace;
+
 public abstract class IdentatingStateHandler implements StateHandler {
 	protected final XMLEventFactory eventFactory;
+	protected final ExtensionNamespace extensionNamespace;
 	private final XMLEventWriter writer;
 
-	private boolean isPreviousCharacter;
-	private int ident;
+	/**
+	 * Shared by all states - only the current one is writing
+	 */
+	private final Indentation indentation;
+	/**
+	 * Whitespace events by depth - events are immutable, so they are created once and shared by all states
+	 */
+	private final Characters[] whitespaces;
 
 	protected IdentatingStateHandler(IdentatingStateHandler handler) {
-		this(handler.eventFactory, handler.writer, handler.ident, handler.isPreviousCharacter);
+		this(handler.eventFactory, handler.writer, handler.indentation, handler.extensionNamespace, handler.whitespaces);
 	}
 
-	protected IdentatingStateHandler(XMLEventFactory eventFactory, XMLEventWriter writer, int ident,
-			boolean isPreviousCharacter) {
+	private IdentatingStateHandler(XMLEventFactory eventFactory, XMLEventWriter writer, Indentation indentation,
+			ExtensionNamespace extensionNamespace, Characters[] whitespaces) {
 		this.eventFactory = eventFactory;
 		this.writer = writer;
-		this.ident = ident;
-		this.isPreviousCharacter = isPreviousCharacter;
+		this.indentation = indentation;
+		this.extensionNamespace = extensionNamespace;
+		this.whitespaces = whitespaces;
 	}
 
 	private void addIdentation(XMLEvent event) throws XMLStreamException {
-		final int effectiveIdent = ident - (event.isEndElement() ? 1 : 0);
-		if (effectiveIdent == 0 || isPreviousCharacter || event.isCharacters()) {
+		final int ident = indentation.getIdent(event.getEventType());
+		if (ident == 0) {
 			return;
 		}
-
-		final StringBuilder result = new StringBuilder(effectiveIdent + 1);
-
-		result.append("\n");
-
-		for (int i = 0; i < effectiveIdent; i++) {
-			result.append("\t");
+		if (ident >= whitespaces.length) {
+			writer.add(eventFactory.createCharacters(Indentation.getWhitespace(ident)));
+			return;
 		}
-		writer.add(eventFactory.createCharacters(result.toString()));
-
+		if (whitespaces[ident] == null) {
+			whitespaces[ident] = eventFactory.createCharacters(Indentation.getWhitespace(ident));
+		}
+		writer.add(whitespaces[ident]);
 	}
 
 	protected void handleIdent(XMLEvent event) throws XMLStreamException {
 		addIdentation(event);
-		if (event.isStartElement()) {
-			ident++;
-		} else if (event.isEndElement()) {
-			ident--;
-		}
-		isPreviousCharacter = event.isCharacters();
+		indentation.after(event.getEventType());
 		writer.add(event);
 	}
 
 	public static IdentatingStateHandler createInitialData(XMLEventFactory eventFactory, XMLEventWriter writer) {
-		return new IdentatingStateHandler(eventFactory, writer, 0, false) {
+		return createInitialData(eventFactory, writer, new Indentation(), ExtensionNamespace.DEFAULT);
+	}
+
+	/**
+	 * @param indentation
+	 *            e.g. the state before a part of a document that is written separately
+	 */
+	public static IdentatingStateHandler createInitialData(XMLEventFactory eventFactory, XMLEventWriter writer,
+			Indentation indentation, ExtensionNamespace extensionNamespace) {
+		return new IdentatingStateHandler(eventFactory, writer, indentation, extensionNamespace, new Characters[16]) {
 
 			@Override
 			public StateHandler handleEvent(XMLEvent event) throws Exception {
@@ -63,4 +76,4 @@ public abstract class IdentatingStateHandler implements StateHandler {
 		};
 
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,101 @@
+package eu.tanov.gps.gpxmergeheartrate.parsestates;
+
+import javax.xml.stream.XMLStreamConstants;
+
+/**
+ * Tracks the element depth and decides where to add new line and tabs. Elements that already have whitespace before them
+ * are not touched. Without pretty print nothing is added - the whitespace of the input is kept as it is.
+ */
+public class Indentation {
+	/**
+	 * New line and tabs for the usual depths, deeper ones are created when needed
+	 */
+	private static final String[] WHITESPACES = new String[16];
+
+	static {
+		final StringBuilder whitespace = new StringBuilder("\n");
+		for (int i = 0; i < WHITESPACES.length; i++) {
+			WHITESPACES[i] = whitespace.toString();
+			whitespace.append('\t');
+		}
+	}
+
+	private final boolean isPrettyPrint;
+	private boolean isPreviousCharacter;
+	private int ident;
+
+	public Indentation() {
+		this(true);
+	}
+
+	public Indentation(boolean isPrettyPrint) {
+		this(0, false, isPrettyPrint);
+	}
+
+	/**
+	 * The state in the middle of a document, e.g. before a part of it that is written separately
+	 * 
+	 * @param ident
+	 *            count of the open elements
+	 * @param isPreviousCharacter
+	 *            the previous event was text
+	 */
+	public Indentation(int ident, boolean isPreviousCharacter, boolean isPrettyPrint) {
+		this.ident = ident;
+		this.isPreviousCharacter = isPreviousCharacter;
+		this.isPrettyPrint = isPrettyPrint;
+	}
+
+	/**
+	 * @param eventType
+	 *            one of {@link XMLStreamConstants}
+	 * @return count of tabs to write (after new line) before the event, 0 if nothing is written
+	 */
+	public int getIdent(int eventType) {
+		final int effectiveIdent = ident - (eventType == XMLStreamConstants.END_ELEMENT ? 1 : 0);
+		if (!isPrettyPrint || effectiveIdent <= 0 || isPreviousCharacter || eventType == XMLStreamConstants.CHARACTERS) {
+			return 0;
+		}
+		return effectiveIdent;
+	}
+
+	/**
+	 * @param eventType
+	 *            one of {@link XMLStreamConstants}
+	 * @return whitespace to write before the event or <code>null</code> if none
+	 */
+	public String before(int eventType) {
+		final int effectiveIdent = getIdent(eventType);
+		return effectiveIdent == 0 ? null : getWhitespace(effectiveIdent);
+	}
+
+	/**
+	 * MUST be called after {@link #before(int)} for each written event
+	 */
+	public void after(int eventType) {
+		if (eventType == XMLStreamConstants.START_ELEMENT) {
+			ident++;
+		} else if (eventType == XMLStreamConstants.END_ELEMENT) {
+			ident--;
+		}
+		isPreviousCharacter = eventType == XMLStreamConstants.CHARACTERS;
+	}
+
+	public boolean isPrettyPrint() {
+		return isPrettyPrint;
+	}
+
+	/**
+	 * @return new line and <code>ident</code> tabs
+	 */
+	public static String getWhitespace(int ident) {
+		if (ident < WHITESPACES.length) {
+			return WHITESPACES[ident];
+		}
+		final StringBuilder result = new StringBuilder(ident + 1).append(WHITESPACES[WHITESPACES.length - 1]);
+		for (int i = WHITESPACES.length - 1; i < ident; i++) {
+			result.append('\t');
+		}
+		return result.toString();
+	}
+}
@@ -1,129 +1,187 @@
 package eu.tanov.gps.gpxmergeheartrate.parsestates;
 
-import static java.util.Arrays.asList;
-import static java.util.Collections.unmodifiableMap;
-import static java.util.stream.Stream.concat;
-import static java.util.stream.Stream.of;
+import static eu.tanov.gps.gpxmergeheartrate.parsestates.HeartRatePlacement.ELEMENT_EXTENSIONS;
+import static eu.tanov.gps.gpxmergeheartrate.parsestates.HeartRatePlacement.ELEMENT_HR;
+import static eu.tanov.gps.gpxmergeheartrate.parsestates.HeartRatePlacement.ELEMENT_TRACK_POINT;
+import static eu.tanov.gps.gpxmergeheartrate.parsestates.HeartRatePlacement.ELEMENT_TRACK_POINT_EXTENSION;
 
-import java.time.OffsetDateTime;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.function.BiFunction;
-import java.util.stream.Stream;
 
-import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.XMLEvent;
 
 import eu.tanov.gps.gpxmergeheartrate.GpxMergeHeartRate;
+import eu.tanov.gps.gpxmergeheartrate.GpxTime;
 import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+import eu.tanov.gps.gpxmergeheartrate.sink.TrackPointRecorder;
 
+/**
+ * Writes the track point while reading it. Only the events before the track point time are kept (usually
+ * <code>&lt;trkpt&gt;&lt;ele&gt;...&lt;/ele&gt;&lt;time&gt;</code>) - after that the heart rate is known and it is added
+ * where {@link HeartRatePlacement} decides. One instance is reused for all track points, see {@link #start(XMLEvent)}.
+ */
 public class InsideTrkptStateHandler extends IdentatingStateHandler {
-	private static final String ELEMENT_HR = "hr";
-	private static final String ELEMENT_TRACK_POINT_EXTENSION = "TrackPointExtension";
-	private static final String ELEMENT_EXTENSIONS = "extensions";
+	public static final String ELEMENT_TIME = "time";
 
-	private static final Map<String, BiFunction<XMLEventFactory, Integer, Stream<XMLEvent>>> SUPPLIERS = initSuppliers();
-
-	private final List<XMLEvent> events = new ArrayList<>();
 	private final HeartRateProvider heartRateProvider;
+	private final OutsideTrkptStateHandler outside;
+	private final TrackPointRecorder recorder;
+	/**
+	 * Events of the current track point before its time, the list is reused between track points
+	 */
+	private final List<XMLEvent> lookahead = new ArrayList<>();
+
+	private boolean isTimeRead = false;
+	private boolean isInsideTime = false;
+	private int heartRate = HeartRateProvider.NO_HEART_RATE;
+	private final HeartRatePlacement placement = new HeartRatePlacement();
+
+	/**
+	 * @param outside
+	 *            returned at the end of each track point
+	 */
+	public InsideTrkptStateHandler(HeartRateProvider heartRateProvider, OutsideTrkptStateHandler outside) {
+		this(heartRateProvider, outside, null);
+	}
 
-	public InsideTrkptStateHandler(HeartRateProvider heartRateProvider, IdentatingStateHandler identatingStateHandler,
-			XMLEvent event) {
-		super(identatingStateHandler);
+	/**
+	 * @param recorder
+	 *            receives the track points too, <code>null</code> if they are only written
+	 */
+	public InsideTrkptStateHandler(HeartRateProvider heartRateProvider, OutsideTrkptStateHandler outside,
+			TrackPointRecorder recorder) {
+		super(outside);
 		this.heartRateProvider = heartRateProvider;
-		events.add(event);
+		this.outside = outside;
+		this.recorder = recorder;
 	}
 
-	private static Map<String, BiFunction<XMLEventFactory, Integer, Stream<XMLEvent>>> initSuppliers() {
-		final Map<String, BiFunction<XMLEventFactory, Integer, Stream<XMLEvent>>> result = new HashMap<>();
-		result.put(ELEMENT_TRACK_POINT_EXTENSION,
-				(eventFactory, heartRate) -> of(
-						eventFactory.createStartElement(GpxMergeHeartRate.EXTENSION_PREFIX, "", ELEMENT_HR),
-						eventFactory.createCharacters(String.valueOf(heartRate)),
-						eventFactory.createEndElement(GpxMergeHeartRate.EXTENSION_PREFIX, "", ELEMENT_HR)));
-
-		result.put(ELEMENT_EXTENSIONS, (eventFactory, heartRate) -> concat(
-				concat(of(eventFactory.createStartElement(GpxMergeHeartRate.EXTENSION_PREFIX, "", ELEMENT_TRACK_POINT_EXTENSION)),
-						result.get(ELEMENT_TRACK_POINT_EXTENSION).apply(eventFactory, heartRate)),
-				of(eventFactory.createEndElement(GpxMergeHeartRate.EXTENSION_PREFIX, "", ELEMENT_TRACK_POINT_EXTENSION))));
-
-		result.put(OutsideTrkptStateHandler.ELEMENT_TRACK_POINT,
-				(eventFactory, heartRate) -> concat(
-						concat(of(eventFactory.createStartElement("", GpxMergeHeartRate.NAMESPACE_GPX, ELEMENT_EXTENSIONS)),
-								result.get(ELEMENT_EXTENSIONS).apply(eventFactory, heartRate)),
-						of(eventFactory.createEndElement("", GpxMergeHeartRate.NAMESPACE_GPX, ELEMENT_EXTENSIONS))));
-		return unmodifiableMap(result);
+	/**
+	 * Starts the next track point
+	 * 
+	 * @param event
+	 *            start of the track point
+	 * @return this
+	 */
+	public StateHandler start(XMLEvent event) {
+		lookahead.clear();
+		isTimeRead = false;
+		isInsideTime = false;
+		heartRate = HeartRateProvider.NO_HEART_RATE;
+		placement.reset();
+		lookahead.add(event);
+		return this;
 	}
 
 	@Override
 	public StateHandler handleEvent(XMLEvent event) throws XMLStreamException {
-		events.add(event);
-		if (event.isEndElement()
-				&& event.asEndElement().getName().getLocalPart().equals(OutsideTrkptStateHandler.ELEMENT_TRACK_POINT)) {
-			handleEvents();
-			return new OutsideTrkptStateHandler(heartRateProvider, this);
+		if (isTimeRead) {
+			write(event);
+		} else {
+			lookahead.add(event);
+			readTime(event);
+		}
+
+		if (isEndElement(event, ELEMENT_TRACK_POINT)) {
+			// no time in this track point
+			writeLookahead();
+			if (recorder != null) {
+				recorder.endTrackPoint();
+			}
+			return outside;
+		}
+		if (recorder != null) {
+			record(event);
 		}
 
 		return this;
 	}
 
-	private void handleEvents() throws XMLStreamException {
-		final Optional<OffsetDateTime> time = getTimeFromEvents();
-
-		final Optional<Integer> hrForTime = time.map(heartRateProvider::getHrForTime).orElse(Optional.empty());
+	private void record(XMLEvent event) {
+		if (event.isStartElement()) {
+			recorder.startElement(event.asStartElement().getName().getLocalPart());
+		} else if (event.isCharacters()) {
+			recorder.characters(event.asCharacters().getData());
+		} else if (event.isEndElement()) {
+			recorder.endElement();
+		}
+	}
 
-		for (final XMLEvent event : hrForTime.map(this::addHeartRateToEvents).orElse(events)) {
-			handleIdent(event);
+	private void readTime(XMLEvent event) throws XMLStreamException {
+		if (isInsideTime) {
+			if (!event.isCharacters()) {
+				throw new IllegalStateException("XML file is not supported - can't read time");
+			}
+			final long time = GpxTime.parseEpochMilli(event.asCharacters().getData());
+			heartRate = heartRateProvider.getHrForEpochMilli(time);
+			if (recorder != null) {
+				recorder.time(time, heartRate);
+			}
+			isTimeRead = true;
+			writeLookahead();
+		} else if (isStartElement(event, ELEMENT_TIME)) {
+			isInsideTime = true;
 		}
 	}
 
-	private List<XMLEvent> addHeartRateToEvents(int heartRate) {
-		if (events.stream().anyMatch(a -> a.isStartElement() && a.asStartElement().getName().getLocalPart().equals(ELEMENT_HR))) {
-			throw new IllegalArgumentException("Already have '" + ELEMENT_HR + "'");
+	private void writeLookahead() throws XMLStreamException {
+		for (final XMLEvent next : lookahead) {
+			write(next);
 		}
-		final String lastAvailable = addHeartRateToEventsLastAvailable();
+		lookahead.clear();
+	}
 
-		final List<XMLEvent> result = new ArrayList<>(events.size() + 5);
+	private void write(XMLEvent event) throws XMLStreamException {
+		if (heartRate != HeartRateProvider.NO_HEART_RATE) {
+			addHeartRateIfNeeded(event, heartRate);
+		}
+		handleIdent(event);
+	}
 
-		for (final XMLEvent next : events) {
-			if (next.isEndElement() && next.asEndElement().getName().getLocalPart().equals(lastAvailable)) {
-				SUPPLIERS.get(lastAvailable).apply(eventFactory, heartRate).forEach(result::add);
+	private void addHeartRateIfNeeded(XMLEvent event, int heartRate) throws XMLStreamException {
+		if (event.isStartElement()) {
+			placement.startElement(event.asStartElement().getName().getLocalPart());
+		} else if (event.isEndElement()) {
+			switch (placement.endElement(event.asEndElement().getName().getLocalPart())) {
+			case HEART_RATE:
+				addHeartRate(heartRate);
+				break;
+			case TRACK_POINT_EXTENSION:
+				addTrackPointExtension(heartRate);
+				break;
+			case EXTENSIONS:
+				addExtensions(heartRate);
+				break;
+			case NOTHING:
+				break;
 			}
-			result.add(next);
 		}
+	}
 
-		return result;
+	private void addHeartRate(int heartRate) throws XMLStreamException {
+		handleIdent(eventFactory.createStartElement(extensionNamespace.getPrefix(), "", ELEMENT_HR));
+		handleIdent(eventFactory.createCharacters(String.valueOf(heartRate)));
+		handleIdent(eventFactory.createEndElement(extensionNamespace.getPrefix(), "", ELEMENT_HR));
 	}
 
-	private String addHeartRateToEventsLastAvailable() {
-		final List<String> options = asList(ELEMENT_TRACK_POINT_EXTENSION, ELEMENT_EXTENSIONS);
-		for (final String next : options) {
-			if (events.stream().anyMatch(a -> a.isStartElement() && a.asStartElement().getName().getLocalPart().equals(next))) {
-				return next;
-			}
-		}
-		return OutsideTrkptStateHandler.ELEMENT_TRACK_POINT;
+	private void addTrackPointExtension(int heartRate) throws XMLStreamException {
+		handleIdent(eventFactory.createStartElement(extensionNamespace.getPrefix(), "", ELEMENT_TRACK_POINT_EXTENSION));
+		addHeartRate(heartRate);
+		handleIdent(eventFactory.createEndElement(extensionNamespace.getPrefix(), "", ELEMENT_TRACK_POINT_EXTENSION));
 	}
 
-	private Optional<OffsetDateTime> getTimeFromEvents() {
-		boolean found = false;
-		for (final XMLEvent event : events) {
-			if (found) {
-				if (event.isCharacters()) {
-					return Optional.of(OffsetDateTime.parse(event.asCharacters().getData()));
-				}
-				throw new IllegalStateException("XML file is not supported - can't read time");
-			}
+	private void addExtensions(int heartRate) throws XMLStreamException {
+		handleIdent(eventFactory.createStartElement("", GpxMergeHeartRate.NAMESPACE_GPX, ELEMENT_EXTENSIONS));
+		addTrackPointExtension(heartRate);
+		handleIdent(eventFactory.createEndElement("", GpxMergeHeartRate.NAMESPACE_GPX, ELEMENT_EXTENSIONS));
+	}
 
-			if (event.isStartElement() && (event.asStartElement().getName().getLocalPart().equals("time"))) {
-				found = true;
-			}
-		}
-		return Optional.empty();
+	private static boolean isStartElement(XMLEvent event, String localPart) {
+		return event.isStartElement() && event.asStartElement().getName().getLocalPart().equals(localPart);
 	}
 
-}
\ No newline at end of file
+	private static boolean isEndElement(XMLEvent event, String localPart) {
+		return event.isEndElement() && event.asEndElement().getName().getLocalPart().equals(localPart);
+	}
+}
@@ -1,28 +1,72 @@
 package eu.tanov.gps.gpxmergeheartrate.parsestates;
 
+import static eu.tanov.gps.gpxmergeheartrate.parsestates.HeartRatePlacement.ELEMENT_TRACK_POINT;
+
+import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
 import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+import eu.tanov.gps.gpxmergeheartrate.sink.TrackPointRecorder;
 
+/**
+ * The initial state. It and its {@link InsideTrkptStateHandler} are created once per document and switch to each other -
+ * no state objects are created per event or per track point.
+ */
 public class OutsideTrkptStateHandler extends IdentatingStateHandler {
-	protected static final String ELEMENT_TRACK_POINT = "trkpt";
+	private static final QName ATTRIBUTE_LATITUDE = new QName(TrackPointRecorder.ATTRIBUTE_LATITUDE);
+	private static final QName ATTRIBUTE_LONGITUDE = new QName(TrackPointRecorder.ATTRIBUTE_LONGITUDE);
 
-	private final HeartRateProvider heartRateProvider;
+	private final InsideTrkptStateHandler inside;
+	private final TrackPointRecorder recorder;
 
 	public OutsideTrkptStateHandler(HeartRateProvider heartRateProvider, IdentatingStateHandler identatingStateHandler) {
+		this(heartRateProvider, identatingStateHandler, null);
+	}
+
+	/**
+	 * @param recorder
+	 *            receives the track points too, <code>null</code> if they are only written
+	 */
+	public OutsideTrkptStateHandler(HeartRateProvider heartRateProvider, IdentatingStateHandler identatingStateHandler,
+			TrackPointRecorder recorder) {
 		super(identatingStateHandler);
-		this.heartRateProvider = heartRateProvider;
+		this.recorder = recorder;
+		this.inside = new InsideTrkptStateHandler(heartRateProvider, this, recorder);
 	}
 
 	@Override
 	public StateHandler handleEvent(XMLEvent event) throws XMLStreamException {
 		if (event.isStartElement() && (event.asStartElement().getName().getLocalPart().equals(ELEMENT_TRACK_POINT))) {
-			return new InsideTrkptStateHandler(heartRateProvider, this, event);
+			if (recorder != null) {
+				final StartElement element = event.asStartElement();
+				recorder.startTrackPoint(getAttribute(element, ATTRIBUTE_LATITUDE), getAttribute(element, ATTRIBUTE_LONGITUDE));
+			}
+			return inside.start(event);
+		}
+		if (recorder != null) {
+			recordSegment(event);
 		}
 		handleIdent(event);
 
-		return new OutsideTrkptStateHandler(heartRateProvider, this);
+		return this;
+	}
+
+	private void recordSegment(XMLEvent event) {
+		if (event.isStartElement()
+				&& event.asStartElement().getName().getLocalPart().equals(TrackPointRecorder.ELEMENT_TRACK_SEGMENT)) {
+			recorder.startSegment();
+		} else if (event.isEndElement()
+				&& event.asEndElement().getName().getLocalPart().equals(TrackPointRecorder.ELEMENT_TRACK_SEGMENT)) {
+			recorder.endSegment();
+		}
+	}
+
+	private static String getAttribute(StartElement element, QName name) {
+		final Attribute result = element.getAttributeByName(name);
+		return result == null ? null : result.getValue();
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,160 @@
+package eu.tanov.gps.gpxmergeheartrate.sink;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import eu.tanov.gps.gpxmergeheartrate.PipelineStage;
+
+/**
+ * Runs a sink in its own thread, so its serialization overlaps with the merge and with the other sinks - as
+ * {@link eu.tanov.gps.gpxmergeheartrate.AsyncOutputStream} does for bytes. The calls are collected in batches and a full
+ * batch is passed through a {@link PipelineStage} to the thread that replays it on the sink. At most
+ * <code>batches</code> are allocated and reused - when all of them wait the calls wait too.
+ * <p>
+ * {@link #close()} waits until the sink is closed in its thread. Errors of the sink (also runtime exceptions) are thrown
+ * as {@link IOException} by the next call or close.
+ */
+public final class AsyncTrackPointSink implements TrackPointSink {
+	public static final int DEFAULT_BATCH_SIZE = 4096;
+	public static final int DEFAULT_BATCHES = 4;
+
+	private static final byte START_SEGMENT = 0;
+	private static final byte TRACK_POINT = 1;
+	private static final byte END_SEGMENT = 2;
+
+	private final PipelineStage<Batch> stage;
+	private Batch current;
+	private boolean closed = false;
+
+	/**
+	 * Calls of the sink, the track points are in parallel arrays
+	 */
+	private static class Batch {
+		private final byte[] calls;
+		private final long[] times;
+		private final String[] latitudes;
+		private final String[] longitudes;
+		private final String[] elevations;
+		private final int[] heartRates;
+		private int size = 0;
+
+		Batch(int capacity) {
+			this.calls = new byte[capacity];
+			this.times = new long[capacity];
+			this.latitudes = new String[capacity];
+			this.longitudes = new String[capacity];
+			this.elevations = new String[capacity];
+			this.heartRates = new int[capacity];
+		}
+
+		boolean isFull() {
+			return size == calls.length;
+		}
+
+		void replay(TrackPointSink sink) throws IOException {
+			for (int i = 0; i < size; i++) {
+				switch (calls[i]) {
+				case START_SEGMENT:
+					sink.startSegment();
+					break;
+				case TRACK_POINT:
+					sink.trackPoint(times[i], latitudes[i], longitudes[i], elevations[i], heartRates[i]);
+					break;
+				default:
+					sink.endSegment();
+					break;
+				}
+			}
+		}
+
+		void clear() {
+			// no references to the strings of the processed track points
+			Arrays.fill(latitudes, 0, size, null);
+			Arrays.fill(longitudes, 0, size, null);
+			Arrays.fill(elevations, 0, size, null);
+			size = 0;
+		}
+	}
+
+	public AsyncTrackPointSink(TrackPointSink sink, String threadName) {
+		this(sink, DEFAULT_BATCH_SIZE, DEFAULT_BATCHES, threadName);
+	}
+
+	/**
+	 * @param batches
+	 *            at least 2 - one is filled while the other is replayed
+	 */
+	public AsyncTrackPointSink(TrackPointSink sink, int batchSize, int batches, String threadName) {
+		if (batchSize <= 0 || batches < 2) {
+			throw new IllegalArgumentException(
+					"Batch size must be positive and batches at least 2, but were: " + batchSize + ", " + batches);
+		}
+		this.stage = PipelineStage.consuming(threadName, batches, () -> new Batch(batchSize), Batch::clear,
+				a -> a.replay(sink), sink);
+		this.current = stage.create();
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Sink closed");
+		}
+	}
+
+	/**
+	 * Passes the current batch to the thread and takes a free one
+	 */
+	private void passCurrent() throws IOException {
+		stage.checkError();
+		if (current.size == 0) {
+			return;
+		}
+		stage.pass(current);
+		current = stage.allocate();
+	}
+
+	private int add(byte call) throws IOException {
+		checkOpen();
+		if (current.isFull()) {
+			passCurrent();
+		}
+		current.calls[current.size] = call;
+		return current.size++;
+	}
+
+	@Override
+	public void startSegment() throws IOException {
+		add(START_SEGMENT);
+	}
+
+	@Override
+	public void trackPoint(long time, String latitude, String longitude, String elevation, int heartRate)
+			throws IOException {
+		final int index = add(TRACK_POINT);
+		current.times[index] = time;
+		current.latitudes[index] = latitude;
+		current.longitudes[index] = longitude;
+		current.elevations[index] = elevation;
+		current.heartRates[index] = heartRate;
+	}
+
+	@Override
+	public void endSegment() throws IOException {
+		add(END_SEGMENT);
+	}
+
+	/**
+	 * Waits for all calls to be replayed and the sink to be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			passCurrent();
+		} finally {
+			stage.finish();
+		}
+	}
+}
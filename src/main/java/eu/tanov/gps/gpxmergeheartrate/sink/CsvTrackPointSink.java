@@ -0,0 +1,76 @@
+package eu.tanov.gps.gpxmergeheartrate.sink;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+
+/**
+ * Flat CSV of the track points: <code>time,lat,lon,ele,hr</code> - UTC time (ISO-8601) and the values as in the gpx file,
+ * empty if missing. The segments are not written.
+ */
+public class CsvTrackPointSink implements TrackPointSink {
+	public static final String HEADER = "time,lat,lon,ele,hr";
+
+	private final Writer writer;
+
+	/**
+	 * @param output
+	 *            closed by {@link #close()}
+	 */
+	public CsvTrackPointSink(OutputStream output) throws IOException {
+		this.writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+		writer.write(HEADER);
+		writer.write('\n');
+	}
+
+	@Override
+	public void startSegment() {
+	}
+
+	@Override
+	public void trackPoint(long time, String latitude, String longitude, String elevation, int heartRate)
+			throws IOException {
+		if (time != NO_TIME) {
+			writer.write(Instant.ofEpochMilli(time).toString());
+		}
+		writer.write(',');
+		writeValue(latitude);
+		writer.write(',');
+		writeValue(longitude);
+		writer.write(',');
+		writeValue(elevation);
+		writer.write(',');
+		if (heartRate != HeartRateProvider.NO_HEART_RATE) {
+			writer.write(Integer.toString(heartRate));
+		}
+		writer.write('\n');
+	}
+
+	private void writeValue(String value) throws IOException {
+		if (value == null) {
+			return;
+		}
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+			writer.write(value);
+			return;
+		}
+		writer.write('"');
+		writer.write(value.replace("\"", "\"\""));
+		writer.write('"');
+	}
+
+	@Override
+	public void endSegment() {
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+}
@@ -0,0 +1,284 @@
+package eu.tanov.gps.gpxmergeheartrate.sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+
+/**
+ * Garmin Training Center (TCX) activity of the track points - one lap per track segment, sport "Other". The lap totals
+ * (time, distance, average and maximum heart rate) are written before its track points, so the track of the current
+ * lap is kept in memory until the end of the segment. Track points without time are skipped - it is required in TCX.
+ */
+public class TcxTrackPointSink implements TrackPointSink {
+	public static final String NAMESPACE_TCX = "http://www.garmin.com/xmlschemas/TrainingCenterDatabase/v2";
+
+	private static final double EARTH_RADIUS_METERS = 6_371_008.8;
+
+	private final OutputStream output;
+	private final XMLOutputFactory outputFactory;
+	private final XMLStreamWriter writer;
+	private boolean isActivityStarted = false;
+
+	private Lap lap;
+	/**
+	 * From the start of the activity, the distance between the laps is not included
+	 */
+	private double distanceMeters = 0;
+
+	/**
+	 * @param output
+	 *            closed by {@link #close()}
+	 */
+	public TcxTrackPointSink(OutputStream output) throws IOException {
+		this(output, XMLOutputFactory.newInstance());
+	}
+
+	public TcxTrackPointSink(OutputStream output, XMLOutputFactory outputFactory) throws IOException {
+		this.output = output;
+		this.outputFactory = outputFactory;
+		try {
+			this.writer = outputFactory.createXMLStreamWriter(output, "UTF-8");
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeCharacters("\n");
+			writer.writeStartElement("TrainingCenterDatabase");
+			writer.writeDefaultNamespace(NAMESPACE_TCX);
+			writer.writeCharacters("\n");
+			writer.writeStartElement("Activities");
+		} catch (final XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * The track and the totals of the current lap
+	 */
+	private static class Lap {
+		private final ByteArrayOutputStream track = new ByteArrayOutputStream();
+		private final XMLStreamWriter writer;
+		/**
+		 * The earliest and the latest time - the track points may be out of order
+		 */
+		private long startTime;
+		private long endTime;
+		private int points = 0;
+		private double distanceMeters = 0;
+		private double lastLatitude = Double.NaN;
+		private double lastLongitude;
+		private long heartRateSum = 0;
+		private int heartRates = 0;
+		private int maximumHeartRate = 0;
+
+		Lap(XMLOutputFactory outputFactory) throws XMLStreamException {
+			this.writer = outputFactory.createXMLStreamWriter(track, "UTF-8");
+		}
+	}
+
+	@Override
+	public void startSegment() throws IOException {
+		endLap();
+	}
+
+	@Override
+	public void trackPoint(long time, String latitude, String longitude, String elevation, int heartRate)
+			throws IOException {
+		if (time == NO_TIME) {
+			return;
+		}
+		try {
+			if (lap == null) {
+				lap = new Lap(outputFactory);
+			}
+			writeTrackPoint(lap, time, latitude, longitude, elevation, heartRate);
+		} catch (final XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void writeTrackPoint(Lap lap, long time, String latitude, String longitude, String elevation, int heartRate)
+			throws XMLStreamException {
+		final XMLStreamWriter track = lap.writer;
+		if (lap.points == 0) {
+			lap.startTime = time;
+			lap.endTime = time;
+			track.writeStartElement("Track");
+			track.writeCharacters("\n");
+		}
+		lap.points++;
+		lap.startTime = Math.min(lap.startTime, time);
+		lap.endTime = Math.max(lap.endTime, time);
+
+		track.writeStartElement("Trackpoint");
+		writeElement(track, "Time", Instant.ofEpochMilli(time).toString());
+		final boolean hasPosition = latitude != null && longitude != null;
+		if (hasPosition) {
+			track.writeStartElement("Position");
+			writeElement(track, "LatitudeDegrees", latitude);
+			writeElement(track, "LongitudeDegrees", longitude);
+			track.writeEndElement();
+		}
+		if (elevation != null && !elevation.isEmpty()) {
+			writeElement(track, "AltitudeMeters", elevation);
+		}
+		if (hasPosition && addDistance(lap, latitude, longitude)) {
+			writeElement(track, "DistanceMeters", format(distanceMeters, 1));
+		}
+		if (heartRate != HeartRateProvider.NO_HEART_RATE) {
+			writeHeartRate(track, "HeartRateBpm", heartRate);
+			lap.heartRateSum += heartRate;
+			lap.heartRates++;
+			lap.maximumHeartRate = Math.max(lap.maximumHeartRate, heartRate);
+		}
+		track.writeEndElement();
+		track.writeCharacters("\n");
+	}
+
+	/**
+	 * @return false if the position is not a number
+	 */
+	private boolean addDistance(Lap lap, String latitude, String longitude) {
+		final double nextLatitude;
+		final double nextLongitude;
+		try {
+			nextLatitude = Double.parseDouble(latitude);
+			nextLongitude = Double.parseDouble(longitude);
+		} catch (final NumberFormatException e) {
+			return false;
+		}
+		if (!Double.isNaN(lap.lastLatitude)) {
+			final double distance = distance(lap.lastLatitude, lap.lastLongitude, nextLatitude, nextLongitude);
+			lap.distanceMeters += distance;
+			distanceMeters += distance;
+		}
+		lap.lastLatitude = nextLatitude;
+		lap.lastLongitude = nextLongitude;
+		return true;
+	}
+
+	/**
+	 * Haversine distance on a sphere with the mean radius of the Earth
+	 */
+	static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+		final double latitudeSin = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+		final double longitudeSin = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+		final double a = latitudeSin * latitudeSin
+				+ Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * longitudeSin * longitudeSin;
+		return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	@Override
+	public void endSegment() throws IOException {
+		endLap();
+	}
+
+	private void endLap() throws IOException {
+		if (lap == null) {
+			return;
+		}
+		final Lap ended = lap;
+		lap = null;
+		try {
+			if (ended.points == 0) {
+				return;
+			}
+			ended.writer.writeEndElement();
+			ended.writer.flush();
+			writeLap(ended);
+		} catch (final XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void writeLap(Lap lap) throws XMLStreamException, IOException {
+		if (!isActivityStarted) {
+			isActivityStarted = true;
+			writer.writeCharacters("\n");
+			writer.writeStartElement("Activity");
+			writer.writeAttribute("Sport", "Other");
+			writer.writeCharacters("\n");
+			writeElement(writer, "Id", Instant.ofEpochMilli(lap.startTime).toString());
+		}
+		writer.writeCharacters("\n");
+		writer.writeStartElement("Lap");
+		writer.writeAttribute("StartTime", Instant.ofEpochMilli(lap.startTime).toString());
+		writer.writeCharacters("\n");
+		writeElement(writer, "TotalTimeSeconds", format((lap.endTime - lap.startTime) / 1000.0, 3));
+		writeElement(writer, "DistanceMeters", format(lap.distanceMeters, 1));
+		writeElement(writer, "Calories", "0");
+		if (lap.heartRates > 0) {
+			writeHeartRate(writer, "AverageHeartRateBpm", (int) Math.round((double) lap.heartRateSum / lap.heartRates));
+			writeHeartRate(writer, "MaximumHeartRateBpm", lap.maximumHeartRate);
+		}
+		writeElement(writer, "Intensity", "Active");
+		writeElement(writer, "TriggerMethod", "Manual");
+		writer.writeCharacters("\n");
+		// the track is already serialized
+		writer.flush();
+		lap.track.writeTo(output);
+		writer.writeCharacters("\n");
+		writer.writeEndElement();
+	}
+
+	private static void writeElement(XMLStreamWriter writer, String localName, String text) throws XMLStreamException {
+		writer.writeStartElement(localName);
+		writer.writeCharacters(text);
+		writer.writeEndElement();
+	}
+
+	private static void writeHeartRate(XMLStreamWriter writer, String localName, int heartRate)
+			throws XMLStreamException {
+		writer.writeStartElement(localName);
+		writeElement(writer, "Value", Integer.toString(heartRate));
+		writer.writeEndElement();
+	}
+
+	/**
+	 * Fixed point, <code>value</code> is not negative - {@link String#format} is too slow for each track point
+	 */
+	static String format(double value, int decimals) {
+		long scale = 1;
+		for (int i = 0; i < decimals; i++) {
+			scale *= 10;
+		}
+		final long scaled = Math.round(value * scale);
+		final StringBuilder result = new StringBuilder(24).append(scaled / scale);
+		if (decimals > 0) {
+			final String fraction = Long.toString(scaled % scale);
+			result.append('.');
+			for (int i = fraction.length(); i < decimals; i++) {
+				result.append('0');
+			}
+			result.append(fraction);
+		}
+		return result.toString();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			endLap();
+			if (isActivityStarted) {
+				writer.writeCharacters("\n");
+				writer.writeEndElement();
+				writer.writeCharacters("\n");
+			}
+			writer.writeEndElement();
+			writer.writeCharacters("\n");
+			writer.writeEndElement();
+			writer.writeCharacters("\n");
+			writer.writeEndDocument();
+			writer.flush();
+			writer.close();
+		} catch (final XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			output.close();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package eu.tanov.gps.gpxmergeheartrate.sink;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+
+/**
+ * Collects the track points while a merge engine reads them and passes them to the {@link TrackPointSink}s. The engines
+ * call it only for the events they read anyway: the segments outside of the track points, the events inside of them and
+ * the time with its heart rate - so the sinks cost no additional parse or lookup. Errors of the sinks are thrown as
+ * {@link UncheckedIOException}.
+ */
+public final class TrackPointRecorder {
+	public static final String ELEMENT_TRACK_SEGMENT = "trkseg";
+	public static final String ELEMENT_ELEVATION = "ele";
+	public static final String ATTRIBUTE_LATITUDE = "lat";
+	public static final String ATTRIBUTE_LONGITUDE = "lon";
+
+	private final List<TrackPointSink> sinks;
+
+	private long time;
+	private String latitude;
+	private String longitude;
+	private String elevation;
+	private int heartRate;
+	/**
+	 * Depth of the current element in the track point
+	 */
+	private int depth;
+	private boolean isInsideElevation;
+
+	public TrackPointRecorder(List<TrackPointSink> sinks) {
+		this.sinks = new ArrayList<>(sinks);
+	}
+
+	public void startSegment() {
+		try {
+			for (final TrackPointSink next : sinks) {
+				next.startSegment();
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void endSegment() {
+		try {
+			for (final TrackPointSink next : sinks) {
+				next.endSegment();
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void startTrackPoint(String latitude, String longitude) {
+		this.time = TrackPointSink.NO_TIME;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.elevation = null;
+		this.heartRate = HeartRateProvider.NO_HEART_RATE;
+		this.depth = 0;
+		this.isInsideElevation = false;
+	}
+
+	/**
+	 * An element in the track point
+	 */
+	public void startElement(String localName) {
+		depth++;
+		isInsideElevation = depth == 1 && elevation == null && localName.equals(ELEMENT_ELEVATION);
+	}
+
+	public void characters(String text) {
+		if (isInsideElevation) {
+			elevation = text;
+			isInsideElevation = false;
+		}
+	}
+
+	public void endElement() {
+		depth--;
+		isInsideElevation = false;
+	}
+
+	/**
+	 * The time of the track point and its heart rate
+	 */
+	public void time(long time, int heartRate) {
+		this.time = time;
+		this.heartRate = heartRate;
+	}
+
+	public void endTrackPoint() {
+		final String trimmedElevation = elevation == null ? null : elevation.trim();
+		try {
+			for (final TrackPointSink next : sinks) {
+				next.trackPoint(time, latitude, longitude, trimmedElevation, heartRate);
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
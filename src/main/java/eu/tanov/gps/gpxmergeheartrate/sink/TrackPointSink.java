@@ -0,0 +1,48 @@
+package eu.tanov.gps.gpxmergeheartrate.sink;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+
+/**
+ * Another output of the merged track points, fed from the same parse and heart rate lookups as the gpx result, see
+ * {@link eu.tanov.gps.gpxmergeheartrate.GpxMergeHeartRate#process(java.io.InputStream, HeartRateProvider, java.io.OutputStream, java.util.List)}.
+ * Called in document order from one thread, {@link AsyncTrackPointSink} moves a sink to its own thread.
+ */
+public interface TrackPointSink extends Closeable {
+	/**
+	 * The time of a track point without time
+	 */
+	long NO_TIME = Long.MIN_VALUE;
+
+	/**
+	 * Start of a <code>trkseg</code>
+	 */
+	void startSegment() throws IOException;
+
+	/**
+	 * @param time
+	 *            epoch milli or {@link #NO_TIME}
+	 * @param latitude
+	 *            as in the gpx file, <code>null</code> if missing
+	 * @param longitude
+	 *            as in the gpx file, <code>null</code> if missing
+	 * @param elevation
+	 *            as in the gpx file, <code>null</code> if missing
+	 * @param heartRate
+	 *            {@link HeartRateProvider#NO_HEART_RATE} if there is no heart rate
+	 */
+	void trackPoint(long time, String latitude, String longitude, String elevation, int heartRate) throws IOException;
+
+	/**
+	 * End of a <code>trkseg</code>
+	 */
+	void endSegment() throws IOException;
+
+	/**
+	 * End of the document - writes the rest and closes the output
+	 */
+	@Override
+	void close() throws IOException;
+}
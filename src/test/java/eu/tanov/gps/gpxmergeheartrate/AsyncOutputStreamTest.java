@@ -0,0 +1,150 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AsyncOutputStreamTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	/**
+	 * Writes at most 3 bytes at once, waits for the latch before the first write
+	 */
+	private static class CollectingChannel implements WritableByteChannel {
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		private final CountDownLatch latch;
+		private volatile boolean open = true;
+
+		CollectingChannel(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		@Override
+		public int write(ByteBuffer source) throws IOException {
+			try {
+				latch.await();
+			} catch (final InterruptedException e) {
+				throw new IOException(e);
+			}
+			final int result = Math.min(3, source.remaining());
+			for (int i = 0; i < result; i++) {
+				content.write(source.get());
+			}
+			return result;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			open = false;
+		}
+	}
+
+	private static byte[] createContent(int length) {
+		final byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = (byte) i;
+		}
+		return result;
+	}
+
+	@Test
+	public void shouldWriteInOrder() throws IOException {
+		final CollectingChannel channel = new CollectingChannel(new CountDownLatch(0));
+		final byte[] content = createContent(1000);
+
+		final AsyncOutputStream actual = new AsyncOutputStream(channel, 16, 3, "test");
+		actual.write(content, 0, 1);
+		actual.write(content[1]);
+		actual.flush();
+		actual.write(content, 2, 100);
+		actual.write(content, 102, content.length - 102);
+		actual.close();
+
+		assertArrayEquals(content, channel.content.toByteArray());
+		assertEquals(content.length, actual.getBytesWritten());
+		assertEquals(0, actual.getQueueDepth());
+		assertFalse(channel.isOpen());
+		// closing twice is allowed, writing after it - not
+		actual.close();
+		try {
+			actual.write(1);
+			fail("Written after close");
+		} catch (final IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void shouldWaitForFreeBuffers() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final CollectingChannel channel = new CollectingChannel(latch);
+		final Thread releaser = new Thread(() -> {
+			try {
+				TimeUnit.MILLISECONDS.sleep(100);
+			} catch (final InterruptedException e) {
+				// release now
+			}
+			latch.countDown();
+		});
+		releaser.start();
+		final AsyncOutputStream actual = new AsyncOutputStream(channel, 10, 2, "test");
+		// the first buffer is taken by the blocked thread, the second waits in the queue and there is no free one
+		actual.write(createContent(30));
+		actual.close();
+		releaser.join();
+
+		assertEquals(30, actual.getBytesWritten());
+		assertTrue(actual.toString(), actual.getWaitNanos() > 0);
+		assertTrue(actual.toString(), actual.getMaximumQueueDepth() >= 1);
+	}
+
+	@Test
+	public void shouldFailAfterChannelError() {
+		final WritableByteChannel failing = new CollectingChannel(new CountDownLatch(0)) {
+			@Override
+			public int write(ByteBuffer source) throws IOException {
+				throw new IOException("disk full");
+			}
+		};
+		try (AsyncOutputStream actual = new AsyncOutputStream(failing, 16, 2, "test")) {
+			actual.write(createContent(1000));
+			fail("Written to a failing channel");
+		} catch (final IOException e) {
+			// expected - from write or close
+		}
+	}
+
+	@Test
+	public void shouldWriteFile() throws IOException {
+		final Path file = temporaryFolder.newFile().toPath();
+		Files.write(file, createContent(5000));
+		final byte[] content = createContent(3 * AsyncOutputStream.DEFAULT_BUFFER_SIZE + 1);
+
+		try (AsyncOutputStream actual = AsyncOutputStream.open(file)) {
+			actual.write(content);
+		}
+
+		assertArrayEquals(content, Files.readAllBytes(file));
+	}
+}
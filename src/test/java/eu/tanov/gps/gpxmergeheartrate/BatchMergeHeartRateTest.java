@@ -0,0 +1,127 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import eu.tanov.gps.gpxmergeheartrate.BatchMergeHeartRate.Result;
+
+public class BatchMergeHeartRateTest {
+	private static final List<String> INPUTS = Arrays.asList("input.gpx", "inputExtensions.gpx", "inputTrackPointExtension.gpx");
+	private static final List<String> OUTPUTS =
+			Arrays.asList("output.gpx", "outputExtensions.gpx", "outputTrackPointExtension.gpx");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path copyInputs() throws Exception {
+		final Path inputDirectory = folder.newFolder("in").toPath();
+		for (final String next : INPUTS) {
+			try (InputStream source = getClass().getResourceAsStream(next)) {
+				Files.copy(source, inputDirectory.resolve(next));
+			}
+		}
+		Files.createFile(inputDirectory.resolve("ignored.csv"));
+		return inputDirectory;
+	}
+
+	@Test
+	public void shouldFindGpxFiles() throws Exception {
+		final Path inputDirectory = copyInputs();
+
+		assertEquals(3, BatchMergeHeartRate.findGpxFiles(inputDirectory.toString()).size());
+		assertEquals(Arrays.asList(inputDirectory.resolve("inputExtensions.gpx")),
+				BatchMergeHeartRate.findGpxFiles(inputDirectory.resolve("inputE*.gpx").toString()));
+	}
+
+	@Test
+	public void shouldProcessAllFiles() throws Exception {
+		final Path inputDirectory = copyInputs();
+		final Path resultDirectory = folder.getRoot().toPath().resolve("out");
+		final HeartRateIndex heartRates;
+		try (InputStream source = getClass().getResourceAsStream("input-mibandtools.csv")) {
+			heartRates = new HeartRateCsvParser().parse(source);
+		}
+
+		final Result actual = new BatchMergeHeartRate(new GpxMergeHeartRate(), 2)
+				.process(BatchMergeHeartRate.findGpxFiles(inputDirectory.toString()), heartRates, resultDirectory);
+
+		assertTrue(actual.getErrors().isEmpty());
+		assertEquals(3, actual.getStatistics().size());
+		assertEquals(3, actual.getTotal().getCountSucceed());
+		assertEquals(0, actual.getTotal().getCountFailed());
+		for (int i = 0; i < INPUTS.size(); i++) {
+			final String expected = IOUtils.toString(getClass().getResourceAsStream(OUTPUTS.get(i)));
+			assertEquals(expected,
+					new String(Files.readAllBytes(resultDirectory.resolve(INPUTS.get(i))), StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	public void shouldProcessCompressedFiles() throws Exception {
+		final Path inputDirectory = folder.newFolder("in").toPath();
+		final byte[] document = IOUtils.toByteArray(getClass().getResourceAsStream("input.gpx"));
+		Files.write(inputDirectory.resolve("a.gpx.gz"), CompressionTest.gzip(document));
+		Files.write(inputDirectory.resolve("b.gpx.zip"), CompressionTest.zip("b.gpx", document));
+		Files.write(inputDirectory.resolve("c.gpx"), document);
+		final Path resultDirectory = folder.getRoot().toPath().resolve("out");
+		final HeartRateIndex heartRates;
+		try (InputStream source = getClass().getResourceAsStream("input-mibandtools.csv")) {
+			heartRates = new HeartRateCsvParser().parse(source);
+		}
+
+		final Result actual = new BatchMergeHeartRate(new GpxMergeHeartRate.Builder().gzipOutput(true).build(), 2)
+				.process(BatchMergeHeartRate.findGpxFiles(inputDirectory.toString()), heartRates, resultDirectory);
+
+		assertTrue(actual.getErrors().isEmpty());
+		assertEquals(3, actual.getTotal().getCountSucceed());
+		final String expected = IOUtils.toString(getClass().getResourceAsStream("output.gpx"), "UTF-8");
+		for (final String next : Arrays.asList("a.gpx.gz", "b.gpx.gz", "c.gpx.gz")) {
+			try (InputStream result = new GZIPInputStream(Files.newInputStream(resultDirectory.resolve(next)))) {
+				assertEquals(next, expected, IOUtils.toString(result, "UTF-8"));
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldNotOverwriteInputs() throws Exception {
+		final Path inputDirectory = copyInputs();
+		final HeartRateIndex heartRates = new HeartRateIndex.Builder().add(0, 60, 30).build();
+
+		new BatchMergeHeartRate(new GpxMergeHeartRate(), 2).process(BatchMergeHeartRate.findGpxFiles(inputDirectory.toString()),
+				heartRates, inputDirectory);
+	}
+
+	@Test
+	public void shouldNotWriteTheSameResultFileTwice() throws Exception {
+		final Path inputDirectory = folder.newFolder("in").toPath();
+		final byte[] document = IOUtils.toByteArray(getClass().getResourceAsStream("input.gpx"));
+		Files.write(inputDirectory.resolve("a.gpx"), document);
+		Files.write(inputDirectory.resolve("a.gpx.gz"), CompressionTest.gzip(document));
+		final Path resultDirectory = folder.getRoot().toPath().resolve("out");
+		final HeartRateIndex heartRates = new HeartRateIndex.Builder().add(0, 60, 30).build();
+
+		try {
+			new BatchMergeHeartRate(new GpxMergeHeartRate(), 2)
+					.process(BatchMergeHeartRate.findGpxFiles(inputDirectory.toString()), heartRates, resultDirectory);
+			fail("Expected an error for the same result file");
+		} catch (final IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("a.gpx and ") && e.getMessage().contains("a.gpx.gz"));
+		}
+		assertFalse(Files.exists(resultDirectory.resolve("a.gpx")));
+	}
+}
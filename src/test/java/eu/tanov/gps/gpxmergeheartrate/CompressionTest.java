@@ -0,0 +1,187 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class CompressionTest {
+	static byte[] gzip(byte[] content) throws IOException {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		try (OutputStream output = new GZIPOutputStream(result)) {
+			output.write(content);
+		}
+		return result.toByteArray();
+	}
+
+	static byte[] zip(String name, byte[] content) throws IOException {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		try (ZipOutputStream output = new ZipOutputStream(result)) {
+			output.putNextEntry(new ZipEntry("directory/"));
+			output.closeEntry();
+			output.putNextEntry(new ZipEntry("directory/" + name));
+			output.write(content);
+			output.closeEntry();
+		}
+		return result.toByteArray();
+	}
+
+	/**
+	 * Bigger than the queue of chunks, text-like so it is compressed
+	 */
+	private static byte[] createContent() {
+		final Random random = new Random(42);
+		final byte[] result = new byte[3 * 1024 * 1024 + 17];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (byte) ('a' + random.nextInt(4));
+		}
+		return result;
+	}
+
+	private static class CloseCountingInputStream extends ByteArrayInputStream {
+		private int closed = 0;
+
+		CloseCountingInputStream(byte[] buffer) {
+			super(buffer);
+		}
+
+		@Override
+		public void close() {
+			closed++;
+		}
+	}
+
+	private static byte[] decompress(byte[] input) throws IOException {
+		final CloseCountingInputStream source = new CloseCountingInputStream(input);
+		try (InputStream actual = Compression.decompress(source)) {
+			return IOUtils.toByteArray(actual);
+		} finally {
+			assertEquals("the stream of the caller is not closed", 0, source.closed);
+		}
+	}
+
+	@Test
+	public void shouldDetectFormat() {
+		assertEquals(Compression.Format.GZIP, Compression.detect(new byte[] { 0x1f, (byte) 0x8b, 8, 0 }, 4));
+		assertEquals(Compression.Format.ZIP, Compression.detect(new byte[] { 'P', 'K', 3, 4 }, 4));
+		assertEquals(Compression.Format.PLAIN, Compression.detect("<?xm".getBytes(), 4));
+		assertEquals(Compression.Format.PLAIN, Compression.detect(new byte[] { 'P', 'K', 3, 4 }, 3));
+		assertEquals(Compression.Format.PLAIN, Compression.detect(new byte[0], 0));
+	}
+
+	@Test
+	public void shouldDecompress() throws IOException {
+		final byte[] content = createContent();
+
+		assertArrayEquals(content, decompress(content));
+		assertArrayEquals(content, decompress(gzip(content)));
+		assertArrayEquals(content, decompress(zip("a.gpx", content)));
+		assertArrayEquals(new byte[] { 1 }, decompress(new byte[] { 1 }));
+		assertArrayEquals(new byte[0], decompress(new byte[0]));
+	}
+
+	@Test
+	public void shouldStopWhenClosedBeforeTheEnd() throws IOException {
+		final byte[] content = createContent();
+		try (InputStream actual = Compression.decompress(new ByteArrayInputStream(gzip(content)))) {
+			final byte[] start = new byte[10];
+			assertEquals(10, actual.read(start));
+			assertArrayEquals(Arrays.copyOf(content, 10), start);
+		}
+	}
+
+	@Test
+	public void shouldFailForCorruptedInput() throws IOException {
+		final byte[] input = gzip(createContent());
+		Arrays.fill(input, 100, 200, (byte) 0);
+		try {
+			decompress(input);
+			fail("Corrupted gzip is decompressed");
+		} catch (final IOException e) {
+			// expected
+		}
+
+		final ByteArrayOutputStream empty = new ByteArrayOutputStream();
+		try (ZipOutputStream output = new ZipOutputStream(empty)) {
+			output.putNextEntry(new ZipEntry("directory/"));
+			output.closeEntry();
+		}
+		try {
+			decompress(empty.toByteArray());
+			fail("Zip without files is decompressed");
+		} catch (final IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void shouldFailForUncheckedErrorOfTheSource() throws IOException {
+		final byte[] input = gzip(createContent());
+		final IllegalStateException error = new IllegalStateException("broken source");
+		final InputStream source = new ByteArrayInputStream(input) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				if (pos > input.length / 2) {
+					throw error;
+				}
+				return super.read(b, off, len);
+			}
+		};
+		try (InputStream actual = Compression.decompress(source)) {
+			IOUtils.toByteArray(actual);
+			fail("Broken source is decompressed");
+		} catch (final IOException e) {
+			assertEquals(error, e.getCause());
+		}
+	}
+
+	@Test
+	public void shouldCompress() throws IOException {
+		final byte[] content = createContent();
+		final ByteArrayOutputStream result = new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				fail("the stream of the caller is closed");
+			}
+		};
+		try (OutputStream actual = Compression.compress(result)) {
+			actual.write(content, 0, 5);
+			actual.write(content[5]);
+			actual.flush();
+			actual.write(content, 6, content.length - 6);
+		}
+
+		assertArrayEquals(content, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(result.toByteArray()))));
+	}
+
+	@Test
+	public void shouldFailWhenCompressedOutputFails() throws IOException {
+		final OutputStream failing = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("disk full");
+			}
+		};
+		final byte[] content = createContent();
+		try (OutputStream actual = Compression.compress(failing)) {
+			actual.write(content);
+			fail("Compressed to a failing stream");
+		} catch (final IOException e) {
+			// expected - from write or close
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExternalHeartRateSortTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	/**
+	 * The samples of the builder in the order they were added
+	 */
+	private static HeartRateSamples samplesOf(HeartRateIndex.Builder builder) {
+		return new HeartRateSamples() {
+			private int current = -1;
+
+			@Override
+			public boolean next() {
+				return ++current < builder.size();
+			}
+
+			@Override
+			public long getTime() {
+				return builder.getTime(current);
+			}
+
+			@Override
+			public int getRate() {
+				return builder.getRate(current);
+			}
+
+			@Override
+			public int getRateZone() {
+				return builder.getRateZone(current);
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	private void assertSorted(HeartRateIndex.Builder input, int runSize, int fanIn, int expectedRuns) throws IOException {
+		final HeartRateIndex.Builder copy = new HeartRateIndex.Builder().addAll(input);
+		final ExternalHeartRateSort sort = new ExternalHeartRateSort(runSize, fanIn, Optional.of(temporaryFolder.getRoot().toPath()));
+		final Path sorted = sort.sort(samplesOf(input));
+		assertEquals(expectedRuns, sort.getSpilledRuns());
+		// only the result is left
+		final File[] files = temporaryFolder.getRoot().listFiles();
+		assertEquals(1, files.length);
+		assertEquals(sorted, files[0].toPath());
+
+		// the same order as the stable sort in memory
+		final HeartRateIndex expected = copy.sort().build();
+		try (HeartRateSamples actual = ExternalHeartRateSort.read(sorted)) {
+			for (int i = 0; i < expected.size(); i++) {
+				assertTrue(actual.next());
+				assertEquals(expected.getTime(i), actual.getTime());
+				assertEquals(expected.getRate(i), actual.getRate());
+				assertEquals(expected.getRateZone(i), actual.getRateZone());
+			}
+			assertFalse(actual.next());
+			assertFalse(actual.next());
+		}
+		Files.delete(sorted);
+	}
+
+	@Test
+	public void shouldSortStableInRuns() throws IOException {
+		final Random random = new Random(11);
+		final HeartRateIndex.Builder input = new HeartRateIndex.Builder();
+		for (int i = 0; i < 1000; i++) {
+			// many samples with the same time, the rate is the input order
+			input.add(random.nextInt(200) * 1000L, 1 + i, i % 151);
+		}
+
+		// merged in 5 passes: 143 runs -> 48 -> 16 -> 6 -> 2 -> 1
+		assertSorted(input, 7, 3, 143);
+		assertSorted(input, 100, 64, 10);
+		// a single run is not merged
+		assertSorted(input, 1000, 2, 1);
+	}
+
+	@Test
+	public void shouldSortEmptyInput() throws IOException {
+		assertSorted(new HeartRateIndex.Builder(), 10, 2, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldNotAllowFanInOfOne() {
+		new ExternalHeartRateSort(10, 1, Optional.empty());
+	}
+}
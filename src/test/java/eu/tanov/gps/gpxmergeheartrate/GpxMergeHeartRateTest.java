@@ -1,20 +1,70 @@
 package eu.tanov.gps.gpxmergeheartrate;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
 
+import eu.tanov.gps.gpxmergeheartrate.GpxMergeHeartRate.Engine;
 import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.Statistics;
+import eu.tanov.gps.gpxmergeheartrate.metrics.LongAdderMetrics;
+import eu.tanov.gps.gpxmergeheartrate.metrics.MetricsRegistry.Phase;
+import eu.tanov.gps.gpxmergeheartrate.sink.RecordingTrackPointSink;
+import eu.tanov.gps.gpxmergeheartrate.sink.TrackPointSink;
 
+@RunWith(Parameterized.class)
 public class GpxMergeHeartRateTest {
 
+	@Parameters(name = "{0}")
+	public static Engine[] engines() {
+		return Engine.values();
+	}
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Parameter
+	public Engine engine;
+
 	private void assertResult(String inputGpx, String inputHeartRate, String output) throws Exception {
-		final GpxMergeHeartRate gpxMergeHeartRate = new GpxMergeHeartRate();
+		assertResult(inputGpx, inputHeartRate, output, 1, 0);
+	}
+
+	private void assertResult(String inputGpx, String inputHeartRate, String output, int expectedSucceed, int expectedFailed)
+			throws Exception {
+		assertResult(new GpxMergeHeartRate(engine), inputGpx, inputHeartRate, output, expectedSucceed, expectedFailed);
+	}
+
+	private void assertResult(GpxMergeHeartRate gpxMergeHeartRate, String inputGpx, String inputHeartRate, String output,
+			int expectedSucceed, int expectedFailed) throws Exception {
 		try (final InputStream gpxInputFile = getClass().getResourceAsStream(inputGpx)) {
 			try (final InputStream heartRateFile = getClass().getResourceAsStream(inputHeartRate)) {
 				final String expectedResult = IOUtils.toString(getClass().getResourceAsStream(output));
@@ -24,8 +74,8 @@ public class GpxMergeHeartRateTest {
 				final Statistics actualStatistics =
 						gpxMergeHeartRate.process(gpxInputFile, heartRateFile, actualOutput, Optional.empty());
 
-				assertEquals(1, actualStatistics.getCountSucceed());
-				assertEquals(0, actualStatistics.getCountFailed());
+				assertEquals(expectedSucceed, actualStatistics.getCountSucceed());
+				assertEquals(expectedFailed, actualStatistics.getCountFailed());
 
 				assertEquals(expectedResult, actualOutput.toString());
 			}
@@ -53,4 +103,412 @@ public class GpxMergeHeartRateTest {
 		assertResult("inputTrackPointExtension.gpx", "input-notifyfitnessformiband-new.csv", "outputTrackPointExtension.gpx");
 	}
 
+	@Test
+	public void testProcessMultipleTrackPoints() throws Exception {
+		assertResult("inputMultipleTrackPoints.gpx", "input-mibandtools.csv", "outputMultipleTrackPoints.gpx", 2, 1);
+	}
+
+	@Test
+	public void testProcessCompact() throws Exception {
+		final GpxMergeHeartRate compact = new GpxMergeHeartRate.Builder().engine(engine).prettyPrint(false).build();
+		assertResult(compact, "input.gpx", "input-mibandtools.csv", "outputCompact.gpx", 1, 0);
+		assertResult(compact, "inputExtensions.gpx", "input-mibandtools.csv", "outputExtensionsCompact.gpx", 1, 0);
+		assertResult(compact, "inputTrackPointExtension.gpx", "input-mibandtools.csv", "outputTrackPointExtensionCompact.gpx",
+				1, 0);
+		assertResult(compact, "inputMultipleTrackPoints.gpx", "input-mibandtools.csv", "outputMultipleTrackPointsCompact.gpx",
+				2, 1);
+	}
+
+	private static final long START = Instant.parse("2018-11-10T05:00:00Z").toEpochMilli();
+
+	/**
+	 * A sample each 10 seconds for an hour, some of them with the same time
+	 */
+	private static HeartRateIndex createHeartRates() {
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder();
+		for (int i = 0; i < 360; i++) {
+			builder.add(START + i * 10_000L, 60 + i % 100, 30 + i % 50);
+			if (i % 7 == 0) {
+				builder.add(START + i * 10_000L, 160 - i % 100, 80 - i % 50);
+			}
+		}
+		return builder.build();
+	}
+
+	private static String createTrackPoint(int second) {
+		return "<trkpt lat=\"42." + second + "\" lon=\"23." + second + "\"><time>"
+				+ Instant.ofEpochMilli(START + second * 1000L) + "</time></trkpt>";
+	}
+
+	/**
+	 * Tracks with many segments: indented, without whitespace around them, empty, with extensions, with attributes, with
+	 * track points without heart rate or out of order
+	 */
+	private static String createTracks(String beforeRoot) {
+		final StringBuilder result = new StringBuilder();
+		result.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n").append(beforeRoot);
+		result.append("<gpx xmlns=\"http://www.topografix.com/GPX/1/1\"");
+		result.append(" xmlns:gpxx=\"http://www.garmin.com/xmlschemas/GpxExtensions/v3\" version=\"1.1\">\n");
+		result.append("\t<metadata><time>2018-11-10T05:00:00Z</time></metadata>\n");
+		for (int track = 0; track < 4; track++) {
+			result.append("\t<trk>\n\t\t<name>track ").append(track).append(" &amp; more</name>\n");
+			for (int segment = 0; segment < 5; segment++) {
+				final int from = (track * 5 + segment) * 150;
+				result.append("\t\t<trkseg>\n");
+				for (int second = from; second < from + 150; second += 7) {
+					result.append("\t\t\t").append(createTrackPoint(second)).append('\n');
+				}
+				result.append("\t\t</trkseg>\n");
+			}
+			result.append("\t\t<trkseg/>\n\t</trk>\n");
+		}
+		result.append("\t<trk><name>compact</name><trkseg>").append(createTrackPoint(4000)).append(createTrackPoint(50));
+		result.append("<trkpt lat=\"1\" lon=\"2\"><ele>1</ele><time>2018-11-10T05:20:00Z</time><extensions>");
+		result.append("<gpxx:Depth>1.0</gpxx:Depth></extensions></trkpt></trkseg><trkseg id=\"a&gt;b\">");
+		result.append(createTrackPoint(100)).append("<trkpt lat=\"1\" lon=\"2\"><ele>1</ele></trkpt>");
+		result.append("</trkseg></trk>\n</gpx>\n");
+		return result.toString();
+	}
+
+	private String process(String document, GpxMergeHeartRate gpxMergeHeartRate, HeartRateProvider heartRateProvider,
+			Statistics[] statistics) throws Exception {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		statistics[0] = gpxMergeHeartRate.process(new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)),
+				heartRateProvider, result);
+		return new String(result.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private void assertParallelSegments(String document) throws Exception {
+		assertParallelSegments(document, true);
+		assertParallelSegments(document, false);
+	}
+
+	private void assertParallelSegments(String document, boolean prettyPrint) throws Exception {
+		final HeartRateIndex heartRates = createHeartRates();
+		final GpxMergeHeartRate.Builder builder = new GpxMergeHeartRate.Builder().engine(engine).prettyPrint(prettyPrint);
+		for (final HeartRateLookup.Strategy strategy : HeartRateLookup.Strategy.values()) {
+			final HeartRateLookup lookup =
+					new HeartRateLookup(strategy, HeartRateLookup.DEFAULT_WINDOW, HeartRateLookup.DEFAULT_TOLERANCE);
+			final Statistics[] expectedStatistics = new Statistics[1];
+			final String expected = process(document, builder.parallelSegments(false).build(),
+					new HeartRateProvider(heartRates, lookup), expectedStatistics);
+			final Statistics[] actualStatistics = new Statistics[1];
+			final String actual = process(document, builder.parallelSegments(true).build(),
+					new HeartRateProvider(heartRates, lookup), actualStatistics);
+
+			assertEquals(strategy + ", pretty print " + prettyPrint, expected, actual);
+			assertEquals(expectedStatistics[0].getCountSucceed(), actualStatistics[0].getCountSucceed());
+			assertEquals(expectedStatistics[0].getCountFailed(), actualStatistics[0].getCountFailed());
+		}
+	}
+
+	@Test
+	public void shouldMergeSegmentsInParallel() throws Exception {
+		final String document = createTracks("");
+		assertEquals(26, GpxSegments.split(document.getBytes(StandardCharsets.UTF_8)).get().getSegments().size());
+
+		assertParallelSegments(document);
+	}
+
+	@Test
+	public void shouldMergeSegmentsWithCommentsInParallel() throws Exception {
+		final String document = createTracks("<!-- <trkseg> -->\n<?pi <trkseg>?>\n")
+				.replace("\t\t<trkseg>\n", "\t\t<!-- segment -->\n\t\t<trkseg><!-- <trkpt> --><?pi?>\n")
+				.replace("</trkseg><trkseg id", "</trkseg><!-- compact --><trkseg id")
+				.replace("<name>compact</name>", "<name>compact</name>text<?pi?>");
+		assertEquals(26, GpxSegments.split(document.getBytes(StandardCharsets.UTF_8)).get().getSegments().size());
+
+		assertParallelSegments(document);
+	}
+
+	@Test
+	public void shouldMergeNotSplitDocumentInParallelMode() throws Exception {
+		// CDATA is not split
+		final String document = createTracks("").replace("<name>compact</name>", "<name><![CDATA[<trkseg>]]></name>");
+		assertFalse(GpxSegments.split(document.getBytes(StandardCharsets.UTF_8)).isPresent());
+
+		assertParallelSegments(document);
+	}
+
+	@Test
+	public void shouldMergeResourcesInParallelMode() throws Exception {
+		final GpxMergeHeartRate sequential = new GpxMergeHeartRate(engine);
+		final GpxMergeHeartRate parallel = new GpxMergeHeartRate(engine, true);
+		for (final String next : new String[] { "input.gpx", "inputExtensions.gpx", "inputMultipleTrackPoints.gpx" }) {
+			final String document = IOUtils.toString(getClass().getResourceAsStream(next), "UTF-8");
+			final HeartRateIndex heartRates =
+					new HeartRateCsvParser().parse(getClass().getResourceAsStream("input-mibandtools.csv"));
+			assertEquals(next, process(document, sequential, new HeartRateProvider(heartRates), new Statistics[1]),
+					process(document, parallel, new HeartRateProvider(heartRates), new Statistics[1]));
+		}
+	}
+
+	private void assertTwoPhase(String document, boolean parallelSegments, int expectedSweeps) throws Exception {
+		final HeartRateIndex heartRates = createHeartRates();
+		final GpxMergeHeartRate.Builder builder = new GpxMergeHeartRate.Builder().engine(engine);
+		for (final HeartRateLookup.Strategy strategy : HeartRateLookup.Strategy.values()) {
+			final HeartRateLookup lookup =
+					new HeartRateLookup(strategy, HeartRateLookup.DEFAULT_WINDOW, HeartRateLookup.DEFAULT_TOLERANCE);
+			final Statistics[] expectedStatistics = new Statistics[1];
+			final String expected = process(document, builder.twoPhase(false).parallelSegments(false).build(),
+					new HeartRateProvider(heartRates, lookup), expectedStatistics);
+			final Statistics[] actualStatistics = new Statistics[1];
+			final String actual = process(document, builder.twoPhase(true).parallelSegments(parallelSegments).build(),
+					new HeartRateProvider(heartRates, lookup), actualStatistics);
+
+			assertEquals(strategy.toString(), expected, actual);
+			assertEquals(expectedStatistics[0].getCountSucceed(), actualStatistics[0].getCountSucceed());
+			assertEquals(expectedStatistics[0].getCountFailed(), actualStatistics[0].getCountFailed());
+			assertEquals(expectedSweeps, actualStatistics[0].getSearchCount(HeartRateProvider.SearchPath.SWEEP));
+		}
+	}
+
+	@Test
+	public void shouldMergeInTwoPhases() throws Exception {
+		final StringBuilder sorted = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sorted.append("<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" version=\"1.1\"><trk><trkseg>\n");
+		for (int second = 0; second < 4000; second += 3) {
+			sorted.append(createTrackPoint(second)).append('\n');
+		}
+		sorted.append("</trkseg></trk></gpx>\n");
+
+		assertTwoPhase(sorted.toString(), false, 1334);
+		// out of order - looked up one by one
+		assertTwoPhase(createTracks("<!-- not split -->\n"), false, 0);
+		// split - not joined
+		assertTwoPhase(createTracks(""), true, 0);
+	}
+
+	@Test
+	public void shouldMergeResourcesInTwoPhases() throws Exception {
+		final GpxMergeHeartRate sequential = new GpxMergeHeartRate(engine);
+		final GpxMergeHeartRate twoPhase = new GpxMergeHeartRate.Builder().engine(engine).twoPhase(true).build();
+		for (final String next : new String[] { "input.gpx", "inputExtensions.gpx", "inputTrackPointExtension.gpx",
+				"inputMultipleTrackPoints.gpx" }) {
+			final String document = IOUtils.toString(getClass().getResourceAsStream(next), "UTF-8");
+			final HeartRateIndex heartRates =
+					new HeartRateCsvParser().parse(getClass().getResourceAsStream("input-mibandtools.csv"));
+			assertEquals(next, process(document, sequential, new HeartRateProvider(heartRates), new Statistics[1]),
+					process(document, twoPhase, new HeartRateProvider(heartRates), new Statistics[1]));
+		}
+	}
+
+	@Test
+	public void shouldMergeResourcesWithStreamingHeartRates() throws Exception {
+		final Path heartRateFile = temporaryFolder.newFile().toPath();
+		try (InputStream input = getClass().getResourceAsStream("input-mibandtools.csv")) {
+			Files.copy(input, heartRateFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+		final HeartRateIndex heartRates = new HeartRateCsvParser().parse(heartRateFile);
+		final GpxMergeHeartRate gpxMergeHeartRate = new GpxMergeHeartRate(engine);
+		for (final String next : new String[] { "input.gpx", "inputExtensions.gpx", "inputTrackPointExtension.gpx",
+				"inputMultipleTrackPoints.gpx" }) {
+			final String document = IOUtils.toString(getClass().getResourceAsStream(next), "UTF-8");
+			try (StreamingHeartRateProvider streaming = new StreamingHeartRateProvider(heartRateFile,
+					new HeartRateCsvParser(), HeartRateLookup.NEAREST, false)) {
+				assertEquals(next, process(document, gpxMergeHeartRate, new HeartRateProvider(heartRates), new Statistics[1]),
+						process(document, gpxMergeHeartRate, streaming, new Statistics[1]));
+			}
+		}
+	}
+
+	@Test
+	public void shouldNotCombineStreamingWithOptionsForLoadedHeartRates() throws Exception {
+		for (final String next : new String[] { "--parallel", "--cache", "--conflict=maximum" }) {
+			try {
+				GpxMergeHeartRate.main(new String[] { "--streaming", next, "in.gpx", "in.csv", "out.gpx" });
+				fail("Expected an error for " + next);
+			} catch (final IllegalArgumentException e) {
+				assertEquals(
+						"--streaming can't be combined with [" + next.replace("=maximum", "") + "]", e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void shouldCloseOpenedSinksIfTheNextOneFails() throws Exception {
+		final Path tcx = temporaryFolder.getRoot().toPath().resolve("result.tcx");
+		final Path csv = temporaryFolder.getRoot().toPath().resolve("missing").resolve("result.csv");
+		try {
+			GpxMergeHeartRate.openSinks(new CommandLine(new String[] { "--tcx=" + tcx, "--csv=" + csv }));
+			fail("Sink in a missing directory is opened");
+		} catch (final IOException e) {
+			// expected
+		}
+		// the end of the document is written on close
+		assertTrue(new String(Files.readAllBytes(tcx), StandardCharsets.UTF_8).trim().endsWith("</TrainingCenterDatabase>"));
+	}
+
+	@Test
+	public void shouldPassTrackPointsToSinks() throws Exception {
+		final String document = IOUtils.toString(getClass().getResourceAsStream("inputMultipleTrackPoints.gpx"), "UTF-8");
+		final HeartRateIndex heartRates =
+				new HeartRateCsvParser().parse(getClass().getResourceAsStream("input-mibandtools.csv"));
+		final RecordingTrackPointSink first = new RecordingTrackPointSink();
+		final RecordingTrackPointSink second = new RecordingTrackPointSink();
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		// not merged in parallel with sinks
+		final Statistics statistics = new GpxMergeHeartRate(engine, true).process(
+				new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)), new HeartRateProvider(heartRates), result,
+				Arrays.asList(first, second));
+
+		assertEquals(IOUtils.toString(getClass().getResourceAsStream("outputMultipleTrackPoints.gpx"), "UTF-8"),
+				new String(result.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals(2, statistics.getCountSucceed());
+		assertEquals(Arrays.asList("start", "point " + TrackPointSink.NO_TIME + " 42.5831057969 23.2922615111 1807.42 "
+				+ HeartRateProvider.NO_HEART_RATE,
+				"point " + Instant.parse("2018-11-10T05:25:30Z").toEpochMilli() + " 42.5831057970 23.2922615112 1807.50 83",
+				"point " + Instant.parse("2018-11-10T06:00:00Z").toEpochMilli() + " 42.5831057971 23.2922615113 null "
+						+ HeartRateProvider.NO_HEART_RATE,
+				"point " + Instant.parse("2018-11-10T05:24:58Z").toEpochMilli() + " 42.5831057972 23.2922615114 null 83",
+				"end"), first.getCalls());
+		assertEquals(first.getCalls(), second.getCalls());
+		assertFalse(first.isClosed());
+	}
+
+	@Test
+	public void shouldWriteAttributesInTheOrderOfTheOtherEngine() throws Exception {
+		// more attributes than the 12 that fit in the default capacity of the HashMap
+		final StringBuilder attributes = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			attributes.append(" a").append(i * 7919 % 20).append("=\"").append(i).append('"');
+		}
+		final String document = IOUtils.toString(getClass().getResourceAsStream("input.gpx"), "UTF-8")
+				.replace("<trkpt ", "<trkpt" + attributes + " ").replace("<gpx\n", "<gpx" + attributes + "\n");
+		final HeartRateIndex heartRates =
+				new HeartRateCsvParser().parse(getClass().getResourceAsStream("input-mibandtools.csv"));
+		final List<String> results = new ArrayList<>();
+		for (final Engine next : Arrays.asList(engine, engine == Engine.EVENT ? Engine.CURSOR : Engine.EVENT)) {
+			results.add(process(document, new GpxMergeHeartRate(next), new HeartRateProvider(heartRates), new Statistics[1]));
+		}
+
+		assertTrue(results.get(0), results.get(0).contains(" a13=\""));
+		assertEquals(results.get(0), results.get(1));
+	}
+
+	@Test
+	public void shouldPassTheSameTrackPointsToSinksAsTheOtherEngine() throws Exception {
+		final String document = createTracks("");
+		final List<List<String>> calls = new ArrayList<>();
+		for (final Engine next : Arrays.asList(engine, engine == Engine.EVENT ? Engine.CURSOR : Engine.EVENT)) {
+			final RecordingTrackPointSink sink = new RecordingTrackPointSink();
+			new GpxMergeHeartRate(next).process(new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)),
+					new HeartRateProvider(createHeartRates()), new ByteArrayOutputStream(), Collections.singletonList(sink));
+			calls.add(sink.getCalls());
+		}
+
+		// 4 tracks with 5 segments and an empty one, the last track with 2 segments
+		assertEquals(26, Collections.frequency(calls.get(0), "start"));
+		assertEquals(4 * 5 * 22 + 5, calls.get(0).size() - 2 * 26);
+		assertEquals(calls.get(0), calls.get(1));
+	}
+
+	@Test
+	public void shouldThrowErrorsOfSinks() throws Exception {
+		final TrackPointSink failing = new TrackPointSink() {
+			@Override
+			public void startSegment() {
+			}
+
+			@Override
+			public void trackPoint(long time, String latitude, String longitude, String elevation, int heartRate) {
+			}
+
+			@Override
+			public void endSegment() throws IOException {
+				throw new IOException("disk full");
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		try {
+			new GpxMergeHeartRate(engine).process(getClass().getResourceAsStream("input.gpx"),
+					new HeartRateProvider(createHeartRates()), new ByteArrayOutputStream(), Collections.singletonList(failing));
+			fail("The error of the sink is not thrown");
+		} catch (final IOException e) {
+			assertEquals("disk full", e.getMessage());
+		}
+	}
+
+	@Test
+	public void shouldBeSharedBetweenThreads() throws Exception {
+		final String document = createTracks("");
+		final HeartRateIndex heartRates = createHeartRates();
+		final GpxMergeHeartRate shared = new GpxMergeHeartRate.Builder().engine(engine).build();
+		final String expected = process(document, new GpxMergeHeartRate(engine), new HeartRateProvider(heartRates),
+				new Statistics[1]);
+
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 32; i++) {
+				results.add(executor.submit(() -> process(document, shared, new HeartRateProvider(heartRates), new Statistics[1])));
+			}
+			for (final Future<String> next : results) {
+				assertEquals(expected, next.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldUseExtensionNamespace() throws Exception {
+		final GpxMergeHeartRate gpxMergeHeartRate = new GpxMergeHeartRate.Builder().engine(engine)
+				.extensionNamespace(new ExtensionNamespace("ns3", GpxMergeHeartRate.EXTENSION_URI)).build();
+		final String document = IOUtils.toString(getClass().getResourceAsStream("input.gpx"), "UTF-8");
+		final HeartRateIndex heartRates =
+				new HeartRateCsvParser().parse(getClass().getResourceAsStream("input-mibandtools.csv"));
+
+		final String actual = process(document, gpxMergeHeartRate, new HeartRateProvider(heartRates), new Statistics[1]);
+
+		assertTrue(actual, actual.contains(" xmlns:ns3=\"" + GpxMergeHeartRate.EXTENSION_URI + "\""));
+		assertTrue(actual, actual.contains("<ns3:TrackPointExtension>"));
+		assertTrue(actual, actual.contains("<ns3:hr>83</ns3:hr>"));
+		assertFalse(actual, actual.contains("<gpxtpx:hr>"));
+	}
+
+	@Test
+	public void shouldRecordMetrics() throws Exception {
+		final LongAdderMetrics metrics = new LongAdderMetrics();
+		final GpxMergeHeartRate gpxMergeHeartRate = new GpxMergeHeartRate.Builder().engine(engine).metrics(metrics).build();
+		final byte[] document = IOUtils.toByteArray(getClass().getResourceAsStream("inputMultipleTrackPoints.gpx"));
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		final Statistics actual = gpxMergeHeartRate.process(new ByteArrayInputStream(document),
+				getClass().getResourceAsStream("input-mibandtools.csv"), output, Optional.empty());
+
+		assertEquals(3, metrics.getTrackPoints());
+		assertEquals(document.length, metrics.getBytesRead());
+		assertEquals(output.size(), metrics.getBytesWritten());
+		assertTrue(metrics.getPhaseNanos(Phase.CSV_INGEST) > 0);
+		assertTrue(metrics.getPhaseNanos(Phase.GPX_MERGE) > 0);
+		assertTrue(metrics.getPhaseNanos(Phase.LOOKUP) > 0);
+		assertEquals(actual.getLookupNanos(), metrics.getPhaseNanos(Phase.LOOKUP));
+		long distances = 0;
+		for (int i = 0; i < Statistics.DISTANCE_BUCKETS; i++) {
+			assertEquals(actual.getDistanceCount(i), metrics.getDistanceCount(i));
+			distances += metrics.getDistanceCount(i);
+		}
+		assertEquals(3, distances);
+	}
+
+	@Test
+	public void shouldMergeCompressedInputAndOutput() throws Exception {
+		final byte[] document = IOUtils.toByteArray(getClass().getResourceAsStream("input.gpx"));
+		final byte[] heartRates = IOUtils.toByteArray(getClass().getResourceAsStream("input-mibandtools.csv"));
+		final String expected = IOUtils.toString(getClass().getResourceAsStream("output.gpx"), "UTF-8");
+		final GpxMergeHeartRate gzipOutput = new GpxMergeHeartRate.Builder().engine(engine).gzipOutput(true).build();
+
+		for (final byte[] next : new byte[][] { CompressionTest.gzip(document), CompressionTest.zip("input.gpx", document) }) {
+			final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			final Statistics statistics = gzipOutput.process(new ByteArrayInputStream(next),
+					new ByteArrayInputStream(CompressionTest.gzip(heartRates)), actual, Optional.empty());
+
+			assertEquals(1, statistics.getCountSucceed());
+			assertEquals(expected, IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(actual.toByteArray())), "UTF-8"));
+		}
+	}
 }
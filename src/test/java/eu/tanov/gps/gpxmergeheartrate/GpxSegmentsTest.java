@@ -0,0 +1,78 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import org.junit.Test;
+
+import eu.tanov.gps.gpxmergeheartrate.GpxSegments.Segment;
+
+public class GpxSegmentsTest {
+	private static final String HEADER = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n";
+	private static final String ROOT = "<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" a=\"<x>\">";
+
+	private static Optional<GpxSegments> split(String document) {
+		return GpxSegments.split(document.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String toString(byte[] bytes) {
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void shouldSplitAtSegments() {
+		final GpxSegments actual = split(HEADER + ROOT + "\n\t<trk>\n\t\t<trkseg>\n\t\t\t<trkpt/>\n\t\t</trkseg>"
+				+ "<trkseg id='a>b'><trkpt><time>t</time></trkpt></trkseg><trkseg/></trk>\n</gpx>").get();
+
+		assertEquals(HEADER + ROOT + "\n\t<trk>\n\t\t<trkseg/><trkseg/><trkseg/></trk>\n</gpx>", toString(actual.getSkeleton()));
+		assertEquals(3, actual.getSegments().size());
+
+		final Segment first = actual.getSegments().get(0);
+		assertEquals(ROOT + "<trk><trkseg>\n\t\t\t<trkpt/>\n\t\t</trkseg></trk></gpx>", toString(first.getDocument()));
+		assertEquals(2, first.getDepth());
+		assertTrue(first.isPreviousCharacter());
+
+		final Segment second = actual.getSegments().get(1);
+		assertEquals(ROOT + "<trk><trkseg id='a>b'><trkpt><time>t</time></trkpt></trkseg></trk></gpx>",
+				toString(second.getDocument()));
+		assertFalse(second.isPreviousCharacter());
+
+		assertEquals(ROOT + "<trk><trkseg/></trk></gpx>", toString(actual.getSegments().get(2).getDocument()));
+	}
+
+	@Test
+	public void shouldSkipCommentsAndProcessingInstructions() {
+		final GpxSegments actual = split(HEADER + "<!-- <gpx> -->" + ROOT + "<trk><?pi <trkseg>?><trkseg><!-- </trkseg> -->"
+				+ "<trkpt/></trkseg><!----></trk></gpx>").get();
+
+		assertEquals(HEADER + "<!-- <gpx> -->" + ROOT + "<trk><?pi <trkseg>?><trkseg/><!----></trk></gpx>",
+				toString(actual.getSkeleton()));
+		assertEquals(1, actual.getSegments().size());
+		assertEquals(ROOT + "<trk><trkseg><!-- </trkseg> --><trkpt/></trkseg></trk></gpx>",
+				toString(actual.getSegments().get(0).getDocument()));
+		assertFalse(actual.getSegments().get(0).isPreviousCharacter());
+	}
+
+	@Test
+	public void shouldNotSplitWithoutSegments() {
+		assertFalse(split(HEADER + ROOT + "<wpt/></gpx>").isPresent());
+	}
+
+	@Test
+	public void shouldNotSplitWhatIsNotScanned() {
+		final String segment = "<trk><trkseg><trkpt/></trkseg></trk>";
+		assertTrue(split(HEADER + ROOT + segment + "</gpx>").isPresent());
+
+		assertFalse(split(HEADER + ROOT + "<!-- <trkseg> " + segment + "</gpx>").isPresent());
+		assertFalse(split(HEADER + "<!DOCTYPE gpx>" + ROOT + segment + "</gpx>").isPresent());
+		assertFalse(split(HEADER + ROOT + "<trk><trkseg><![CDATA[<]]></trkseg></trk></gpx>").isPresent());
+		assertFalse(split("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>" + ROOT + segment + "</gpx>").isPresent());
+		assertFalse(split(HEADER + "<x:gpx xmlns:x=\"y\"><x:trk><x:trkseg/></x:trk></x:gpx>").isPresent());
+		assertFalse(split(HEADER + ROOT + "<trk><trkseg><trkpt/></trk></gpx>").isPresent());
+		assertFalse(split(HEADER + ROOT + segment).isPresent());
+	}
+}
@@ -0,0 +1,84 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GpxTimeTest {
+	private static void assertSameAsOffsetDateTime(String text) {
+		assertEquals(text, OffsetDateTime.parse(text).toInstant().toEpochMilli(), GpxTime.parseEpochMilli(text));
+	}
+
+	private static void assertNotParsed(String text) {
+		try {
+			GpxTime.parseEpochMilli(text);
+			fail("Parsed " + text);
+		} catch (DateTimeParseException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void shouldParseAsOffsetDateTime() {
+		assertEquals(1542231864000L, GpxTime.parseEpochMilli("2018-11-14T21:44:24Z"));
+		assertSameAsOffsetDateTime("2018-11-10T05:24:58Z");
+		assertSameAsOffsetDateTime("1970-01-01T00:00:00Z");
+		assertSameAsOffsetDateTime("1969-12-31T23:59:59.999Z");
+		assertSameAsOffsetDateTime("0000-03-01T00:00:00Z");
+		assertSameAsOffsetDateTime("1600-02-29T12:00:00Z");
+		assertSameAsOffsetDateTime("2000-02-29T12:00:00Z");
+		assertSameAsOffsetDateTime("9999-12-31T23:59:59Z");
+	}
+
+	@Test
+	public void shouldParseFractionsAndOffsets() {
+		assertSameAsOffsetDateTime("2018-01-27T09:31:24.5Z");
+		assertSameAsOffsetDateTime("2018-01-27T09:31:24.12Z");
+		assertSameAsOffsetDateTime("2018-01-27T09:31:24.000Z");
+		assertSameAsOffsetDateTime("2018-01-27T09:31:24.123456789Z");
+		assertSameAsOffsetDateTime("1969-12-31T23:59:59.999999+00:00");
+		assertSameAsOffsetDateTime("2018-01-27T09:31:24+02:00");
+		assertSameAsOffsetDateTime("2018-01-27T09:31:24.250-05:30");
+		assertSameAsOffsetDateTime("2018-01-01T00:00:00+18:00");
+	}
+
+	@Test
+	public void shouldFallBackForUnusualFormats() {
+		assertSameAsOffsetDateTime("2018-01-27t09:31:24z");
+		assertSameAsOffsetDateTime("2018-01-27T09:31Z");
+		assertSameAsOffsetDateTime("2018-01-27T09:31:24+02:00:30");
+		assertSameAsOffsetDateTime("+12018-01-27T09:31:24Z");
+		assertSameAsOffsetDateTime("2018-01-01T00:00:00.Z");
+	}
+
+	@Test
+	public void shouldNotParseInvalid() {
+		assertNotParsed("2019-02-29T00:00:00Z");
+		assertNotParsed("1900-02-29T00:00:00Z");
+		assertNotParsed("2018-13-01T00:00:00Z");
+		assertNotParsed("2018-04-31T00:00:00Z");
+		assertNotParsed("2018-01-01T24:00:00Z");
+		assertNotParsed("2018-01-01T00:00:00");
+		assertNotParsed("2018-01-01T00:00:00.1234567890Z");
+		assertNotParsed("2018-01-01T00:00:00+19:00");
+		assertNotParsed("2018-01-01T00:00:00Z ");
+		assertNotParsed(" 2018-01-01T00:00:00Z");
+	}
+
+	@Test
+	public void shouldParseRandomTimes() {
+		final Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			final Instant instant = Instant.ofEpochMilli(random.nextLong() % 200_000_000_000_000L);
+			final ZoneOffset offset = ZoneOffset.ofTotalSeconds((random.nextInt(18 * 4 * 2 + 1) - 18 * 4) * 15 * 60);
+			assertSameAsOffsetDateTime(instant.atOffset(offset).toString());
+		}
+	}
+}
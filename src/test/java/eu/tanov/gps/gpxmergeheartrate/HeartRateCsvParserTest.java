@@ -0,0 +1,248 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static eu.tanov.gps.gpxmergeheartrate.HeartRateProviderTest.parseDateTime;
+import static eu.tanov.gps.gpxmergeheartrate.HeartRateProviderTest.toInputStream;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndex.InputOrder;
+
+public class HeartRateCsvParserTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static final String DEFAULT_HEADER = "a\n";
+
+	private static final String DEFAULT_SMALL_FIRST_LINE_DATE = "10.11.2018 23:15:36";
+	private static final int DEFAULT_SMALL_FIRST_LINE_RATE = 91;
+	private static final int DEFAULT_SMALL_FIRST_LINE_ZONE = 47;
+	private static final String DEFAULT_SMALL_FIRST_LINE =
+			DEFAULT_SMALL_FIRST_LINE_DATE + "," + DEFAULT_SMALL_FIRST_LINE_RATE + "," + DEFAULT_SMALL_FIRST_LINE_ZONE + "%";
+
+	private static HeartRateIndex parseLine(HeartRateCsvParser parser, String line) {
+		return parser.parse(toInputStream(DEFAULT_HEADER + line));
+	}
+
+	private static void assertFirst(String dateTime, int rate, int rateZone, HeartRateIndex actual) {
+		assertEquals(parseDateTime(dateTime).toInstant().toEpochMilli(), actual.getTime(0));
+		assertEquals(rate, actual.getRate(0));
+		assertEquals(rateZone, actual.getRateZone(0));
+	}
+
+	@Test
+	public void souldParseMiBandToolsHeartRateLine() {
+		final HeartRateIndex actual = parseLine(new HeartRateCsvParser(), DEFAULT_SMALL_FIRST_LINE);
+
+		assertFirst(DEFAULT_SMALL_FIRST_LINE_DATE, DEFAULT_SMALL_FIRST_LINE_RATE, DEFAULT_SMALL_FIRST_LINE_ZONE, actual);
+	}
+
+	@Test
+	public void souldParseMiBandToolsHeartRateGreaterThan100() {
+		final String firstLine = DEFAULT_SMALL_FIRST_LINE_DATE + "," + DEFAULT_SMALL_FIRST_LINE_RATE + ",149%";
+
+		final HeartRateIndex actual = parseLine(new HeartRateCsvParser(), firstLine);
+
+		assertFirst(DEFAULT_SMALL_FIRST_LINE_DATE, DEFAULT_SMALL_FIRST_LINE_RATE, 149, actual);
+	}
+
+	@Test
+	public void souldParseNotifyFitnessForMiBandHeartRateLine() {
+		final String line = "60;1589922120000;20 May 2020;00:02:00";
+
+		final HeartRateIndex actual = parseLine(new HeartRateCsvParser(), line);
+
+		assertFirst("20.05.2020 00:02:00", 60, 100 * 60 / 190, actual);
+	}
+
+	@Test
+	public void souldParseNotifyFitnessForMiBandHeartRateLineGreaterThan100() {
+		final String line = "60;1589922120000;20 May 2020;00:02:00";
+
+		final HeartRateIndex actual = parseLine(new HeartRateCsvParser(50), line);
+
+		assertFirst("20.05.2020 00:02:00", 60, 100, actual);
+	}
+
+	@Test
+	public void shouldCombineSources() {
+		final HeartRateIndex actual = new HeartRateCsvParser().parse(
+				toInputStream(DEFAULT_HEADER + "02.01.2000 00:00:00,2,1%\n04.01.2000 00:00:00,4,1%"),
+				toInputStream(DEFAULT_HEADER + "3;946850400000;3 January 2000;00:00:00"));
+
+		assertEquals(3, actual.size());
+		assertEquals(2, actual.getRate(0));
+		assertEquals(3, actual.getRate(1));
+		assertEquals(4, actual.getRate(2));
+	}
+
+	@Test
+	public void shouldParseLikeJavaTime() {
+		// 2 minutes step over both daylight saving changes of 2020 in Europe/Sofia, more than a single read buffer
+		final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss");
+		final ZoneId zone = ZoneId.systemDefault();
+		final StringBuilder miBandTools = new StringBuilder(DEFAULT_HEADER);
+		final StringBuilder notifyFitnessForMiBand = new StringBuilder(DEFAULT_HEADER);
+		final List<long[]> expected = new ArrayList<>();
+		int rate = 40;
+		for (LocalDateTime local = LocalDateTime.of(2020, 3, 28, 12, 0); local.isBefore(LocalDateTime.of(2020, 10, 26, 0, 0));
+				local = local.plusMinutes(2)) {
+			if (local.getMonthValue() > 3 && local.getMonthValue() < 10) {
+				local = local.withMonth(10).withDayOfMonth(24);
+			}
+			rate = rate % 150 + 1;
+			miBandTools.append(formatter.format(local)).append(',').append(rate).append(",1%\r\n");
+			expected.add(new long[] { local.atZone(zone).toInstant().toEpochMilli(), rate });
+
+			final long timestamp = local.toEpochSecond(ZoneOffset.UTC) * 1000 + 123;
+			notifyFitnessForMiBand.append(rate).append(';').append(timestamp).append(";date;time\n");
+			expected.add(new long[] {
+					LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), zone).atZone(zone).toInstant().toEpochMilli(),
+					rate });
+		}
+		expected.sort(Comparator.comparingLong(a -> a[0]));
+
+		final HeartRateIndex actual = new HeartRateCsvParser().parse(toInputStream(miBandTools.toString()),
+				toInputStream(notifyFitnessForMiBand.toString()));
+
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i)[0], actual.getTime(i));
+			assertEquals(expected.get(i)[1], actual.getRate(i));
+		}
+	}
+
+	@Test
+	public void shouldSplitLikeString() {
+		final HeartRateCsvParser parser = new HeartRateCsvParser();
+
+		// trailing empty fields are ignored by String.split
+		assertEquals(DEFAULT_SMALL_FIRST_LINE_RATE, parseLine(parser, DEFAULT_SMALL_FIRST_LINE + ",,").getRate(0));
+		assertEquals(60, parseLine(parser, "60;1589922120000;20 May 2020;00:02:00;").getRate(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectEmptyField() {
+		parseLine(new HeartRateCsvParser(), DEFAULT_SMALL_FIRST_LINE_DATE + ",," + DEFAULT_SMALL_FIRST_LINE_RATE + ",1%");
+	}
+
+	@Test
+	public void shouldParseUnusualNumbers() {
+		final HeartRateIndex actual = parseLine(new HeartRateCsvParser(), DEFAULT_SMALL_FIRST_LINE_DATE + ",+91,0047%");
+
+		assertFirst(DEFAULT_SMALL_FIRST_LINE_DATE, 91, 47, actual);
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void shouldRejectInvalidRate() {
+		parseLine(new HeartRateCsvParser(), DEFAULT_SMALL_FIRST_LINE_DATE + ",9a,1%");
+	}
+
+	@Test(expected = DateTimeParseException.class)
+	public void shouldRejectInvalidDate() {
+		parseLine(new HeartRateCsvParser(), "10.13.2018 23:15:36,91,1%");
+	}
+
+	@Test
+	public void shouldParseFilesLikeStreams() throws IOException {
+		final String miBandTools = DEFAULT_HEADER + "10.11.2018 23:15:36,91,47%\r\n\r\n10.11.2018 23:15:30,92,48%\r\n"
+				+ "09.11.2018 23:15:30,93,49%";
+		final String notifyFitnessForMiBand = "Heart rate;Timestamp;Date;Time\n60;1541884530000;a;b\n\n"
+				+ "61;1541884536000;a;b\r62;1541884530000;a;b\n";
+		final Path miBandToolsFile = temporaryFolder.newFile().toPath();
+		Files.write(miBandToolsFile, miBandTools.getBytes(StandardCharsets.UTF_8));
+		final Path notifyFitnessForMiBandFile = temporaryFolder.newFile().toPath();
+		Files.write(notifyFitnessForMiBandFile, notifyFitnessForMiBand.getBytes(StandardCharsets.UTF_8));
+		final Path headerOnlyFile = temporaryFolder.newFile().toPath();
+		Files.write(headerOnlyFile, DEFAULT_HEADER.getBytes(StandardCharsets.UTF_8));
+		final List<Path> files = Arrays.asList(miBandToolsFile, headerOnlyFile, notifyFitnessForMiBandFile);
+
+		final HeartRateCsvParser parser = new HeartRateCsvParser();
+		final HeartRateIndex expected = parser.parse(toInputStream(miBandTools), toInputStream(DEFAULT_HEADER),
+				toInputStream(notifyFitnessForMiBand));
+		assertEquals(6, expected.size());
+
+		assertIndexEquals(expected, parser.parseFiles(files, false));
+		assertIndexEquals(expected, parser.parseFiles(files, true));
+		// chunks split at all possible places
+		for (int chunkSize = 1; chunkSize < 40; chunkSize++) {
+			assertIndexEquals(expected, parser.parseFiles(files, true, chunkSize));
+			assertIndexEquals(expected, parser.parseFiles(files, false, chunkSize));
+		}
+	}
+
+	@Test
+	public void shouldParseCompressedFiles() throws IOException {
+		final byte[] miBandTools = (DEFAULT_HEADER + "10.11.2018 23:15:36,91,47%\n10.11.2018 23:15:30,92,48%\n")
+				.getBytes(StandardCharsets.UTF_8);
+		final byte[] notifyFitnessForMiBand =
+				"Heart rate;Timestamp;Date;Time\n60;1541884530000;a;b\n".getBytes(StandardCharsets.UTF_8);
+		final Path plainFile = temporaryFolder.newFile().toPath();
+		Files.write(plainFile, miBandTools);
+		final Path gzipFile = temporaryFolder.newFile("heart-rate.csv.gz").toPath();
+		Files.write(gzipFile, CompressionTest.gzip(miBandTools));
+		final Path zipFile = temporaryFolder.newFile("heart-rate.zip").toPath();
+		Files.write(zipFile, CompressionTest.zip("heart-rate.csv", notifyFitnessForMiBand));
+
+		final HeartRateCsvParser parser = new HeartRateCsvParser();
+		final HeartRateIndex expected = parser.parse(new ByteArrayInputStream(miBandTools),
+				new ByteArrayInputStream(miBandTools), new ByteArrayInputStream(notifyFitnessForMiBand));
+		assertEquals(5, expected.size());
+
+		assertIndexEquals(expected, parser.parseFiles(Arrays.asList(plainFile, gzipFile, zipFile), false));
+		// in the order of the files - notifyFitnessForMiBand has the same time as a line of miBandTools
+		assertIndexEquals(
+				parser.parse(new ByteArrayInputStream(notifyFitnessForMiBand), new ByteArrayInputStream(miBandTools),
+						new ByteArrayInputStream(miBandTools)),
+				parser.parseFiles(Arrays.asList(zipFile, plainFile, gzipFile), true));
+		assertIndexEquals(expected, parser.parse(new ByteArrayInputStream(CompressionTest.gzip(miBandTools)),
+				new ByteArrayInputStream(miBandTools), new ByteArrayInputStream(Files.readAllBytes(zipFile))));
+	}
+
+	private static void assertIndexEquals(HeartRateIndex expected, HeartRateIndex actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.getTime(i), actual.getTime(i));
+			assertEquals(expected.getRate(i), actual.getRate(i));
+			assertEquals(expected.getRateZone(i), actual.getRateZone(i));
+		}
+	}
+
+	@Test
+	public void shouldDetectReversedInput() {
+		final HeartRateIndex actual = new HeartRateCsvParser().parse(toInputStream(
+				"Heart rate;Timestamp;Date;Time\n62;1541884536000;a;b\n61;1541884530000;a;b\n60;1541884524000;a;b"));
+
+		assertEquals(InputOrder.REVERSED, actual.getInputOrder());
+		assertEquals(60, actual.getRate(0));
+		assertEquals(62, actual.getRate(2));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectEmptyFile() throws IOException {
+		new HeartRateCsvParser().parse(temporaryFolder.newFile().toPath());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectEmptySource() {
+		new HeartRateCsvParser().parse(toInputStream(DEFAULT_HEADER));
+	}
+}
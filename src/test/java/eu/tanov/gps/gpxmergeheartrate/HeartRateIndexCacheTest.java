@@ -0,0 +1,331 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndex.InputOrder;
+
+public class HeartRateIndexCacheTest {
+	private static final String CSV = "dateTime,rate,rateZone\n10.11.2018 07:24:58,83,43%\n10.11.2018 07:24:59,84,44%\n";
+	private static final String CSV_REVERSED = "Heart rate;Timestamp;Date;Time\n62;1541884536000;a;b\n61;1541884530000;a;b\n";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private int parsed;
+	private int parsedFrom;
+	private HeartRateCsvParser parser;
+	private Path csv;
+
+	@Before
+	public void setUp() throws IOException {
+		parser = new HeartRateCsvParser() {
+			@Override
+			public HeartRateIndex parse(Path... files) throws IOException {
+				parsed++;
+				return super.parse(files);
+			}
+
+			@Override
+			public HeartRateIndex parseFrom(Path file, long position) throws IOException {
+				parsedFrom++;
+				return super.parseFrom(file, position);
+			}
+		};
+		csv = temporaryFolder.newFile("hr.csv").toPath();
+		write(csv, CSV);
+	}
+
+	private static void write(Path file, String content) throws IOException {
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void append(Path file, String content) throws IOException {
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		// the modified time may have a resolution of seconds
+		touch(file);
+	}
+
+	private static void touch(Path file) throws IOException {
+		Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 10_000));
+	}
+
+	private static void assertIndexEquals(HeartRateIndex expected, HeartRateIndex actual) {
+		assertSamplesEquals(expected, actual);
+		assertEquals(expected.getInputOrder(), actual.getInputOrder());
+		assertEquals(expected.getRuns(), actual.getRuns());
+	}
+
+	private static void assertSamplesEquals(HeartRateIndex expected, HeartRateIndex actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.getTime(i), actual.getTime(i));
+			assertEquals(expected.getRate(i), actual.getRate(i));
+			assertEquals(expected.getRateZone(i), actual.getRateZone(i));
+		}
+	}
+
+	@Test
+	public void shouldCacheBesideCsv() throws IOException {
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+
+		final HeartRateIndex first = cache.load(csv);
+		assertTrue(Files.isRegularFile(csv.resolveSibling("hr.csv" + HeartRateIndexCache.EXTENSION)));
+		final HeartRateIndex second = cache.load(csv);
+
+		assertEquals(1, parsed);
+		assertIndexEquals(new HeartRateCsvParser().parse(csv), first);
+		assertIndexEquals(first, second);
+	}
+
+	@Test
+	public void shouldCacheInDirectory() throws IOException {
+		final Path directory = temporaryFolder.getRoot().toPath().resolve("cache");
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser, Optional.of(directory));
+
+		cache.load(csv);
+		cache.load(csv);
+
+		assertEquals(1, parsed);
+		assertTrue(cache.getCacheFile(csv).startsWith(directory));
+		assertTrue(Files.isRegularFile(cache.getCacheFile(csv)));
+	}
+
+	@Test
+	public void shouldParseChangedSource() throws IOException {
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+		cache.load(csv);
+
+		write(csv, CSV.replace("83", "93") + "10.11.2018 07:25:00,85,45%\n");
+		final HeartRateIndex actual = cache.load(csv);
+
+		assertEquals(2, parsed);
+		assertEquals(0, parsedFrom);
+		assertEquals(3, actual.size());
+		assertEquals(93, actual.getRate(0));
+		// the new cache is used
+		cache.load(csv);
+		assertEquals(2, parsed);
+	}
+
+	@Test
+	public void shouldParseAppendedLinesOnly() throws IOException {
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+		cache.load(csv);
+
+		append(csv, "10.11.2018 07:25:00,85,45%\n10.11.2018 07:25:01,86,45%\n");
+		final HeartRateIndex actual = cache.load(csv);
+		append(csv, "10.11.2018 07:25:02,87,46%\n");
+		final HeartRateIndex appendedAgain = cache.load(csv);
+
+		assertEquals(1, parsed);
+		assertEquals(2, parsedFrom);
+		assertEquals(4, actual.size());
+		assertSamplesEquals(new HeartRateCsvParser().parse(csv), appendedAgain);
+		// the appended cache is used
+		assertSamplesEquals(appendedAgain, cache.load(csv));
+		assertEquals(1, parsed);
+		assertEquals(2, parsedFrom);
+	}
+
+	@Test
+	public void shouldCompactAppendedBlocks() throws IOException {
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+		cache.load(csv);
+		final Path cacheFile = cache.getCacheFile(csv);
+
+		final StringBuilder appended = new StringBuilder(CSV);
+		long blocksSize = 0;
+		for (int i = 0; i < 20; i++) {
+			final String line = String.format("10.11.2018 07:25:%02d,%d,45%%\n", i, 90 + i);
+			appended.append(line);
+			append(csv, line);
+			final long before = Files.size(cacheFile);
+			final HeartRateIndex actual = cache.load(csv);
+			assertSamplesEquals(new HeartRateCsvParser().parse(csv), actual);
+			assertSamplesEquals(actual, cache.load(csv));
+			if (Files.size(cacheFile) < before) {
+				blocksSize = before;
+			}
+		}
+
+		assertEquals(1, parsed);
+		assertEquals(20, parsedFrom);
+		// written again as a single block once
+		assertTrue(blocksSize > 0);
+		final Path copy = temporaryFolder.newFolder("copy").toPath().resolve("hr.csv");
+		write(copy, appended.toString());
+		new HeartRateIndexCache(parser).load(copy);
+		assertTrue(Files.size(cache.getCacheFile(copy)) < blocksSize);
+	}
+
+	@Test
+	public void shouldIgnoreBlockAppendedWithoutHeader() throws IOException {
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+		final Path cacheFile = cache.getCacheFile(csv);
+		cache.load(csv);
+		final byte[] content = Files.readAllBytes(cacheFile);
+		append(csv, "10.11.2018 07:25:00,85,45%\n");
+		cache.load(csv);
+		final byte[] appended = Files.readAllBytes(cacheFile);
+		// the new block without the new count in the header
+		System.arraycopy(content, 0, appended, 0, 64);
+		Files.write(cacheFile, appended);
+
+		assertSamplesEquals(new HeartRateCsvParser().parse(csv), cache.load(csv));
+		assertEquals(2, parsed);
+	}
+
+	@Test
+	public void shouldMergeOutOfOrderAppendedLines() throws IOException {
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+		cache.load(csv);
+
+		append(csv, "10.11.2018 07:25:00,85,45%\n10.11.2018 07:24:58,90,47%\n10.11.2018 07:20:00,70,37%\n");
+		final HeartRateIndex actual = cache.load(csv);
+
+		assertEquals(1, parsed);
+		assertEquals(1, parsedFrom);
+		final HeartRateIndex expected = new HeartRateCsvParser().parse(csv);
+		assertSamplesEquals(expected, actual);
+		// equal times keep the order of the source
+		assertEquals(83, actual.getRate(1));
+		assertEquals(90, actual.getRate(2));
+		assertSamplesEquals(expected, cache.load(csv));
+		assertEquals(1, parsedFrom);
+	}
+
+	@Test
+	public void shouldParseAllIfLastLineIsContinued() throws IOException {
+		write(csv, CSV_REVERSED + "63;1541884537000;a;b");
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+		cache.load(csv);
+
+		append(csv, "c\n64;1541884538000;a;b\n");
+		final HeartRateIndex actual = cache.load(csv);
+
+		assertEquals(2, parsed);
+		assertEquals(0, parsedFrom);
+		assertSamplesEquals(new HeartRateCsvParser().parse(csv), actual);
+	}
+
+	@Test
+	public void shouldAppendAfterLastLineWithoutSeparator() throws IOException {
+		write(csv, CSV.substring(0, CSV.length() - 1));
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+		cache.load(csv);
+
+		append(csv, "\r\n10.11.2018 07:25:00,85,45%");
+		final HeartRateIndex actual = cache.load(csv);
+
+		assertEquals(1, parsed);
+		assertEquals(1, parsedFrom);
+		assertSamplesEquals(new HeartRateCsvParser().parse(csv), actual);
+	}
+
+	@Test
+	public void shouldParseAllIfStartIsChanged() throws IOException {
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+		cache.load(csv);
+
+		write(csv, "rateZone,dateTime,rate\n" + CSV.substring(CSV.indexOf('\n') + 1) + "10.11.2018 07:25:00,85,45%\n");
+		touch(csv);
+		cache.load(csv);
+
+		assertEquals(2, parsed);
+		assertEquals(0, parsedFrom);
+	}
+
+	@Test
+	public void shouldParseTouchedSourceAfterAppend() throws IOException {
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+		cache.load(csv);
+		append(csv, "10.11.2018 07:25:00,85,45%\n");
+		cache.load(csv);
+
+		// the checksum of the whole source is not known after append
+		touch(csv);
+		cache.load(csv);
+		touch(csv);
+		cache.load(csv);
+
+		assertEquals(2, parsed);
+		assertEquals(1, parsedFrom);
+	}
+
+	@Test
+	public void shouldParseChangedContentWithTheSameSize() throws IOException {
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+		cache.load(csv);
+
+		write(csv, CSV.replace("83", "93"));
+		Files.setLastModifiedTime(csv, FileTime.fromMillis(Files.getLastModifiedTime(csv).toMillis() + 10_000));
+		final HeartRateIndex actual = cache.load(csv);
+
+		assertEquals(2, parsed);
+		assertEquals(93, actual.getRate(0));
+	}
+
+	@Test
+	public void shouldUseCacheOfTouchedSource() throws IOException {
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+		cache.load(csv);
+
+		Files.setLastModifiedTime(csv, FileTime.fromMillis(Files.getLastModifiedTime(csv).toMillis() + 10_000));
+		cache.load(csv);
+		cache.load(csv);
+
+		assertEquals(1, parsed);
+	}
+
+	@Test
+	public void shouldParseForOtherMaximumHeartRate() throws IOException {
+		write(csv, CSV_REVERSED);
+		new HeartRateIndexCache(parser).load(csv);
+
+		final HeartRateIndex actual = new HeartRateIndexCache(new HeartRateCsvParser(61)).load(csv);
+
+		assertEquals(100, actual.getRateZone(0));
+	}
+
+	@Test
+	public void shouldIgnoreBrokenCache() throws IOException {
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+		final HeartRateIndex expected = cache.load(csv);
+		final Path cacheFile = cache.getCacheFile(csv);
+		final byte[] content = Files.readAllBytes(cacheFile);
+		Files.write(cacheFile, Arrays.copyOf(content, content.length - 1));
+
+		assertIndexEquals(expected, cache.load(csv));
+		assertEquals(2, parsed);
+		// and fixed
+		assertIndexEquals(expected, cache.load(csv));
+		assertEquals(2, parsed);
+	}
+
+	@Test
+	public void shouldCombineFiles() throws IOException {
+		final Path reversed = temporaryFolder.newFile("reversed.csv").toPath();
+		write(reversed, CSV_REVERSED);
+		final HeartRateIndexCache cache = new HeartRateIndexCache(parser);
+
+		final HeartRateIndex actual = cache.load(Arrays.asList(reversed, csv));
+
+		assertIndexEquals(new HeartRateCsvParser().parseFiles(Arrays.asList(reversed, csv), false), actual);
+		assertEquals(InputOrder.MERGED_RUNS, actual.getInputOrder());
+	}
+}
@@ -0,0 +1,174 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HeartRateIndexLruCacheTest {
+	private static final String CSV_TWO = "dateTime,rate,rateZone\n10.11.2018 07:24:58,83,43%\n10.11.2018 07:24:59,84,44%\n";
+	private static final String CSV_ONE = "dateTime,rate,rateZone\n10.11.2018 08:00:00,90,50%\n";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private final AtomicInteger loads = new AtomicInteger();
+	private final HeartRateCsvParser parser = new HeartRateCsvParser();
+	private Path first;
+	private Path second;
+	private Path third;
+
+	@Before
+	public void setUp() throws IOException {
+		first = write("first.csv", CSV_TWO);
+		second = write("second.csv", CSV_TWO);
+		third = write("third.csv", CSV_ONE);
+	}
+
+	private Path write(String name, String content) throws IOException {
+		final Path result = temporaryFolder.getRoot().toPath().resolve(name);
+		Files.write(result, content.getBytes(StandardCharsets.UTF_8));
+		return result;
+	}
+
+	private HeartRateIndexLruCache create(long maximumSamples) {
+		return new HeartRateIndexLruCache(files -> {
+			loads.incrementAndGet();
+			return parser.parse(files.toArray(new Path[0]));
+		}, maximumSamples);
+	}
+
+	@Test
+	public void shouldLoadOnce() throws IOException {
+		final HeartRateIndexLruCache cache = create(100);
+
+		final HeartRateIndex expected = cache.get(Arrays.asList(first, third));
+		assertSame(expected, cache.get(Arrays.asList(first, third)));
+		assertSame(expected, cache.get(Arrays.asList(first.getParent().resolve("x").resolve("..").resolve(first.getFileName()),
+				third)));
+
+		assertEquals(3, expected.size());
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getMisses());
+		assertEquals(2, cache.getHits());
+		assertEquals(3, cache.getSamples());
+		// the order of the files matters
+		assertNotSame(expected, cache.get(Arrays.asList(third, first)));
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsed() throws IOException {
+		final HeartRateIndexLruCache cache = create(4);
+
+		cache.get(Collections.singletonList(first));
+		cache.get(Collections.singletonList(second));
+		// first is used more recently than second
+		cache.get(Collections.singletonList(first));
+		cache.get(Collections.singletonList(third));
+
+		assertEquals(Arrays.asList(Collections.singletonList(first), Collections.singletonList(third)), cache.getFiles());
+		assertEquals(3, cache.getSamples());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(3, loads.get());
+	}
+
+	@Test
+	public void shouldKeepTheLastOneIfTooBig() throws IOException {
+		final HeartRateIndexLruCache cache = create(1);
+
+		cache.get(Collections.singletonList(third));
+		cache.get(Collections.singletonList(first));
+
+		assertEquals(Collections.singletonList(Collections.singletonList(first)), cache.getFiles());
+		assertEquals(2, cache.getSamples());
+	}
+
+	@Test
+	public void shouldReloadChangedFile() throws IOException {
+		final HeartRateIndexLruCache cache = create(100);
+		final HeartRateIndex expected = cache.get(Collections.singletonList(first));
+
+		Files.write(first, CSV_ONE.getBytes(StandardCharsets.UTF_8));
+		Files.setLastModifiedTime(first, FileTime.fromMillis(Files.getLastModifiedTime(first).toMillis() + 10_000));
+		final HeartRateIndex actual = cache.get(Collections.singletonList(first));
+
+		assertNotSame(expected, actual);
+		assertEquals(1, actual.size());
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getSamples());
+	}
+
+	@Test
+	public void shouldNotCacheErrors() throws IOException {
+		final HeartRateIndexLruCache cache = create(100);
+		final Path empty = write("empty.csv", "dateTime,rate,rateZone\n");
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.get(Collections.singletonList(empty));
+				fail("Loaded an empty file");
+			} catch (final IllegalArgumentException e) {
+				// expected
+			}
+		}
+		assertEquals(2, loads.get());
+		assertEquals(0, cache.size());
+
+		try {
+			cache.get(Collections.singletonList(first.resolveSibling("missing.csv")));
+			fail("Loaded a missing file");
+		} catch (final NoSuchFileException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void shouldLoadOnceForConcurrentRequests() throws Exception {
+		final CountDownLatch loading = new CountDownLatch(1);
+		final HeartRateIndexLruCache cache = new HeartRateIndexLruCache(files -> {
+			loads.incrementAndGet();
+			try {
+				loading.await();
+			} catch (final InterruptedException e) {
+				throw new IOException(e);
+			}
+			return parser.parse(files.toArray(new Path[0]));
+		}, 100);
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<HeartRateIndex>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(() -> cache.get(Collections.singletonList(first))));
+			}
+			loading.countDown();
+			final HeartRateIndex expected = results.get(0).get();
+			for (final Future<HeartRateIndex> next : results) {
+				assertSame(expected, next.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, loads.get());
+		assertEquals(7, cache.getHits());
+	}
+}
@@ -0,0 +1,134 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndexMerger.ConflictPolicy;
+
+public class HeartRateIndexMergerTest {
+
+	/**
+	 * @param samples
+	 *            time, rate and rate zone of each sample
+	 */
+	private static HeartRateIndex createIndex(int... samples) {
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder();
+		for (int i = 0; i < samples.length; i += 3) {
+			builder.add(samples[i], samples[i + 1], samples[i + 2]);
+		}
+		return builder.build();
+	}
+
+	private static void assertSamples(HeartRateIndex actual, int... expected) {
+		assertEquals(expected.length / 3, actual.size());
+		for (int i = 0; i < actual.size(); i++) {
+			assertEquals("time " + i, expected[3 * i], actual.getTime(i));
+			assertEquals("rate " + i, expected[3 * i + 1], actual.getRate(i));
+			assertEquals("rate zone " + i, expected[3 * i + 2], actual.getRateZone(i));
+		}
+	}
+
+	private static HeartRateIndex merge(ConflictPolicy policy, HeartRateIndex... sources) {
+		return new HeartRateIndexMerger(policy).merge(Arrays.asList(sources));
+	}
+
+	@Test
+	public void shouldMergeWithoutConflicts() {
+		final HeartRateIndex actual = merge(ConflictPolicy.FIRST, createIndex(1, 61, 31, 5, 65, 35, 6, 66, 36),
+				createIndex(), createIndex(2, 62, 32, 3, 63, 33), createIndex(4, 64, 34, 7, 67, 37));
+
+		assertSamples(actual, 1, 61, 31, 2, 62, 32, 3, 63, 33, 4, 64, 34, 5, 65, 35, 6, 66, 36, 7, 67, 37);
+	}
+
+	@Test
+	public void shouldPreferFirstSource() {
+		final HeartRateIndex actual = merge(ConflictPolicy.FIRST, createIndex(1, 61, 31, 2, 62, 32),
+				createIndex(2, 92, 42, 3, 93, 43), createIndex(2, 82, 52, 3, 83, 53));
+
+		assertSamples(actual, 1, 61, 31, 2, 62, 32, 3, 93, 43);
+	}
+
+	@Test
+	public void shouldAverage() {
+		final HeartRateIndex actual =
+				merge(ConflictPolicy.AVERAGE, createIndex(1, 60, 30, 2, 61, 31), createIndex(1, 63, 33, 2, 62, 31));
+
+		// rounded half up
+		assertSamples(actual, 1, 62, 32, 2, 62, 31);
+	}
+
+	@Test
+	public void shouldTakeMaximum() {
+		final HeartRateIndex actual = merge(ConflictPolicy.MAXIMUM, createIndex(1, 60, 30, 2, 70, 40),
+				createIndex(1, 63, 33, 2, 70, 41), createIndex(1, 62, 35));
+
+		assertSamples(actual, 1, 63, 33, 2, 70, 40);
+	}
+
+	@Test
+	public void shouldResolveSameTimesOfOneSource() {
+		final HeartRateIndex source = new HeartRateIndex.Builder().add(2, 62, 32).add(1, 61, 31).add(2, 64, 34).sort().build();
+
+		assertSamples(merge(ConflictPolicy.FIRST, source), 1, 61, 31, 2, 62, 32);
+		assertSamples(merge(ConflictPolicy.AVERAGE, source), 1, 61, 31, 2, 63, 33);
+	}
+
+	@Test
+	public void shouldMergeLikeStableSort() {
+		final Random random = new Random(42);
+		final List<HeartRateIndex> sources = new ArrayList<>();
+		final HeartRateIndex.Builder all = new HeartRateIndex.Builder();
+		for (int i = 0; i < 7; i++) {
+			final HeartRateIndex.Builder builder = new HeartRateIndex.Builder();
+			for (int j = random.nextInt(1000); j > 0; j--) {
+				// unique times - no conflicts
+				builder.add(random.nextInt(1_000_000) * 7L + i, 40 + random.nextInt(150), random.nextInt(101));
+			}
+			final HeartRateIndex source = builder.sort().build();
+			sources.add(source);
+			all.addAll(source);
+		}
+		final HeartRateIndex expected = all.sort().build();
+
+		final HeartRateIndex actual = new HeartRateIndexMerger(ConflictPolicy.FIRST).merge(sources);
+
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.getTime(i), actual.getTime(i));
+			assertEquals(expected.getRate(i), actual.getRate(i));
+			assertEquals(expected.getRateZone(i), actual.getRateZone(i));
+		}
+	}
+
+	@Test
+	public void shouldMergeEmpty() {
+		assertEquals(0, new HeartRateIndexMerger(ConflictPolicy.FIRST).merge(Collections.emptyList()).size());
+	}
+
+	@Test
+	public void shouldProvideFromManySources() {
+		final String miBandTools = "dateTime,rate,rateZone\n10.11.2018 07:24:58,83,43%\n10.11.2018 07:25:58,90,47%\n";
+		// 10.11.2018 07:24:58 and 07:25:28 in Europe/Sofia
+		final String notifyFitness = "Heart rate;Timestamp;Date;Time\n87;1541827528000;a;b\n85;1541827498000;a;b\n";
+		final List<InputStream> sources = Arrays.asList(
+				new ByteArrayInputStream(miBandTools.getBytes(StandardCharsets.UTF_8)),
+				new ByteArrayInputStream(notifyFitness.getBytes(StandardCharsets.UTF_8)));
+
+		final HeartRateProvider provider = new HeartRateProvider(sources, 190, ConflictPolicy.MAXIMUM);
+
+		assertEquals(85, provider.getHrForTime(OffsetDateTime.parse("2018-11-10T07:24:58+02:00")).get().intValue());
+		assertEquals(87, provider.getHrForTime(OffsetDateTime.parse("2018-11-10T07:25:28+02:00")).get().intValue());
+		assertEquals(90, provider.getHrForTime(OffsetDateTime.parse("2018-11-10T07:25:58+02:00")).get().intValue());
+	}
+}
@@ -0,0 +1,180 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndex.InputOrder;
+
+public class HeartRateIndexTest {
+
+	private static HeartRateIndex createIndex(long... times) {
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder(2);
+		for (int i = 0; i < times.length; i++) {
+			builder.add(times[i], i + 1, 1);
+		}
+		return builder.build();
+	}
+
+	@Test
+	public void shouldStoreColumns() {
+		final HeartRateIndex index = new HeartRateIndex.Builder().add(1000, 91, 47).add(2000, 190, 149).build();
+
+		assertEquals(2, index.size());
+		assertEquals(1000, index.getTime(0));
+		assertEquals(91, index.getRate(0));
+		assertEquals(47, index.getRateZone(0));
+		assertEquals(2000, index.getTime(1));
+		assertEquals(190, index.getRate(1));
+		// greater than Byte.MAX_VALUE
+		assertEquals(149, index.getRateZone(1));
+	}
+
+	@Test
+	public void shouldFindClosest() {
+		final HeartRateIndex index = createIndex(0, 4, 8, 20);
+
+		assertEquals(0, index.findClosest(0, 3, -5));
+		assertEquals(0, index.findClosest(0, 3, 0));
+		assertEquals(0, index.findClosest(0, 3, 1));
+		// equal distance - the earlier wins
+		assertEquals(0, index.findClosest(0, 3, 2));
+		assertEquals(1, index.findClosest(0, 3, 3));
+		assertEquals(1, index.findClosest(0, 3, 4));
+		assertEquals(2, index.findClosest(0, 3, 14));
+		assertEquals(3, index.findClosest(0, 3, 15));
+		assertEquals(3, index.findClosest(0, 3, 100));
+	}
+
+	@Test
+	public void shouldFindFirst() {
+		final HeartRateIndex index = createIndex(0, 4, 4, 8);
+
+		assertEquals(0, index.findFirst(-5));
+		assertEquals(0, index.findFirst(0));
+		assertEquals(1, index.findFirst(1));
+		assertEquals(1, index.findFirst(4));
+		assertEquals(3, index.findFirst(5));
+		assertEquals(4, index.findFirst(9));
+	}
+
+	@Test
+	public void shouldFindClosestInRegion() {
+		final HeartRateIndex index = createIndex(0, 4, 8, 20);
+
+		assertEquals(1, index.findClosest(1, 2, 0));
+		assertEquals(2, index.findClosest(1, 2, 20));
+	}
+
+	@Test
+	public void shouldSortStable() {
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder(2);
+		final long[] times = { 5, 3, 5, 1, 3, 9, 0, 5 };
+		for (int i = 0; i < times.length; i++) {
+			builder.add(times[i], i + 1, i);
+		}
+		final HeartRateIndex index = builder.sort().build();
+
+		final long[] expectedTimes = { 0, 1, 3, 3, 5, 5, 5, 9 };
+		final int[] expectedRates = { 7, 4, 2, 5, 1, 3, 8, 6 };
+		assertEquals(expectedTimes.length, index.size());
+		for (int i = 0; i < expectedTimes.length; i++) {
+			assertEquals(expectedTimes[i], index.getTime(i));
+			assertEquals(expectedRates[i], index.getRate(i));
+			assertEquals(expectedRates[i] - 1, index.getRateZone(i));
+		}
+	}
+
+	private static HeartRateIndex sort(long... times) {
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder(2);
+		for (int i = 0; i < times.length; i++) {
+			builder.add(times[i], i + 1, 1);
+		}
+		return builder.sort().build();
+	}
+
+	private static void assertIndex(HeartRateIndex actual, long[] expectedTimes, int[] expectedRates) {
+		assertEquals(expectedTimes.length, actual.size());
+		for (int i = 0; i < expectedTimes.length; i++) {
+			assertEquals(expectedTimes[i], actual.getTime(i));
+			assertEquals(expectedRates[i], actual.getRate(i));
+		}
+	}
+
+	@Test
+	public void shouldNotSortSortedInput() {
+		final HeartRateIndex actual = sort(1, 2, 2, 3);
+
+		assertEquals(InputOrder.SORTED, actual.getInputOrder());
+		assertEquals(1, actual.getRuns());
+		assertIndex(actual, new long[] { 1, 2, 2, 3 }, new int[] { 1, 2, 3, 4 });
+	}
+
+	@Test
+	public void shouldReverseReversedInput() {
+		final HeartRateIndex actual = sort(9, 7, 7, 5, 5, 5, 1);
+
+		assertEquals(InputOrder.REVERSED, actual.getInputOrder());
+		assertEquals(1, actual.getRuns());
+		// equal times keep their order
+		assertIndex(actual, new long[] { 1, 5, 5, 5, 7, 7, 9 }, new int[] { 7, 4, 5, 6, 2, 3, 1 });
+	}
+
+	@Test
+	public void shouldMergeRuns() {
+		// two reversed files, the second one is partly sorted
+		final HeartRateIndex actual = sort(5, 3, 1, 6, 4, 2, 3, 3);
+
+		assertEquals(InputOrder.MERGED_RUNS, actual.getInputOrder());
+		assertEquals(3, actual.getRuns());
+		assertIndex(actual, new long[] { 1, 2, 3, 3, 3, 4, 5, 6 }, new int[] { 3, 6, 2, 7, 8, 5, 1, 4 });
+	}
+
+	@Test
+	public void shouldSortLikeStableSort() {
+		final Random random = new Random(42);
+		for (int test = 0; test < 200; test++) {
+			final int size = random.nextInt(100);
+			final List<long[]> expected = new ArrayList<>();
+			final HeartRateIndex.Builder builder = new HeartRateIndex.Builder(2);
+			// mostly sorted, reversed or random
+			final int kind = test % 3;
+			for (int i = 0; i < size; i++) {
+				final long time = kind == 2 ? random.nextInt(20) : (kind == 0 ? i : -i) / 4 + (random.nextInt(10) == 0 ? 3 : 0);
+				expected.add(new long[] { time, i + 1 });
+				builder.add(time, i + 1, 1);
+			}
+			expected.sort(Comparator.comparingLong(a -> a[0]));
+			final HeartRateIndex actual = builder.sort().build();
+
+			assertEquals(size, actual.size());
+			for (int i = 0; i < size; i++) {
+				assertEquals(expected.get(i)[0], actual.getTime(i));
+				assertEquals(expected.get(i)[1], actual.getRate(i));
+			}
+		}
+	}
+
+	@Test
+	public void shouldCountOrderOfAppendedSamples() {
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder().add(3, 1, 1);
+		builder.addAll(new HeartRateIndex.Builder().add(2, 2, 1).add(1, 3, 1));
+
+		assertEquals(InputOrder.REVERSED, builder.sort().getInputOrder());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldRejectUnsortedSamples() {
+		createIndex(2, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectInvalidRateZone() {
+		new HeartRateIndex.Builder().add(0, 60, 151);
+	}
+}
@@ -7,14 +7,23 @@ import static org.junit.Assert.assertTrue;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
 
 import org.junit.Test;
 
-import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.HeartRateRow;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.SearchPath;
 import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.Statistics;
 
 public class HeartRateProviderTest {
@@ -68,7 +77,7 @@ public class HeartRateProviderTest {
 		}
 
 		@Override
-		protected int findClosest(HeartRateRow[] heartRates, int fromIndex, int toIndex, OffsetDateTime dateTime) {
+		protected int findClosest(HeartRateIndex heartRates, int fromIndex, int toIndex, long time) {
 			assertTrue(invocation < returns.length);
 
 			final int lastInvocation = invocation;
@@ -84,52 +93,24 @@ public class HeartRateProviderTest {
 		}
 	}
 
-	@Test
-	public void souldParseMiBandToolsHeartRateLine() {
-		final HeartRateProvider heartRateProvider = new HeartRateProvider(toInputStream(DEFAULT_SMALL));
-
-		final HeartRateRow actual = heartRateProvider.parseLine(DEFAULT_SMALL_FIRST_LINE);
-		assertEquals(parseDateTime(DEFAULT_SMALL_FIRST_LINE_DATE), actual.getDateTime());
-		assertEquals(DEFAULT_SMALL_FIRST_LINE_RATE, actual.getRate());
-		assertEquals(DEFAULT_SMALL_FIRST_LINE_ZONE, actual.getRateZone());
-	}
-
-	@Test
-	public void souldParseMiBandToolsHeartRateGreaterThan100() {
-		final String firstLine = DEFAULT_SMALL_FIRST_LINE_DATE + "," + DEFAULT_SMALL_FIRST_LINE_RATE + ",149%";
-		final HeartRateProvider heartRateProvider = new HeartRateProvider(toInputStream(DEFAULT_HEADER + firstLine));
-
-		final HeartRateRow actual = heartRateProvider.parseLine(firstLine);
-		assertEquals(parseDateTime(DEFAULT_SMALL_FIRST_LINE_DATE), actual.getDateTime());
-		assertEquals(DEFAULT_SMALL_FIRST_LINE_RATE, actual.getRate());
-		assertEquals(149, actual.getRateZone());
+	static OffsetDateTime parseDateTime(String dateTime) {
+		return LocalDateTime.parse(dateTime, DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss")).atZone(ZoneId.systemDefault())
+				.toOffsetDateTime();
 	}
 
 	@Test
-	public void souldParseNotifyFitnessForMiBandHeartRateLine() {
-		final String line = "60;1589922120000;20 May 2020;00:02:00";
-		final HeartRateProvider heartRateProvider = new HeartRateProvider(toInputStream(DEFAULT_HEADER + line));
-
-		final HeartRateRow actual = heartRateProvider.parseLine(line);
-		assertEquals(parseDateTime("20.05.2020 00:02:00"), actual.getDateTime());
-		assertEquals(60, actual.getRate());
-		assertEquals(100 * 60 / 190, actual.getRateZone());
-	}
+	public void shouldCloseTheSource() {
+		final boolean[] closed = { false };
+		final InputStream source = new ByteArrayInputStream(DEFAULT_DATA.getBytes(StandardCharsets.UTF_8)) {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
 
-	@Test
-	public void souldParseNotifyFitnessForMiBandHeartRateLineGreaterThan100() {
-		final String line = "60;1589922120000;20 May 2020;00:02:00";
-		final HeartRateProvider heartRateProvider = new HeartRateProvider(toInputStream(DEFAULT_HEADER + line), 50);
-
-		final HeartRateRow actual = heartRateProvider.parseLine(line);
-		assertEquals(parseDateTime("20.05.2020 00:02:00"), actual.getDateTime());
-		assertEquals(60, actual.getRate());
-		assertEquals(100, actual.getRateZone());
-	}
+		new HeartRateProvider(source);
 
-	private static OffsetDateTime parseDateTime(String dateTime) {
-		return LocalDateTime.parse(dateTime, DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss")).atZone(ZoneId.systemDefault())
-				.toOffsetDateTime();
+		assertTrue(closed[0]);
 	}
 
 	@Test
@@ -155,6 +136,56 @@ public class HeartRateProviderTest {
 				.isPresent());
 	}
 
+	@Test
+	public void shouldReturnPrimitiveHrForEpochMilli() {
+		final HeartRateProvider heartRateProvider = new HeartRateProvider(toInputStream(DEFAULT_SMALL));
+		assertEquals(91, heartRateProvider.getHrForEpochMilli(parseDateTime("10.11.2018 23:16:36").toInstant().toEpochMilli()));
+		assertEquals(HeartRateProvider.NO_HEART_RATE,
+				heartRateProvider.getHrForEpochMilli(parseDateTime("10.11.2018 23:16:37").toInstant().toEpochMilli()));
+		final Statistics actual = heartRateProvider.getStatistics();
+		assertEquals(1, actual.getCountSucceed());
+		assertEquals(1, actual.getCountFailed());
+	}
+
+	@Test
+	public void shouldCountDistancesToTheClosestSample() {
+		final long time = parseDateTime(DEFAULT_SMALL_FIRST_LINE_DATE).toInstant().toEpochMilli();
+		final HeartRateProvider heartRateProvider =
+				new HeartRateProvider(new HeartRateCsvParser().parse(toInputStream(DEFAULT_SMALL)), HeartRateLookup.NEAREST);
+		heartRateProvider.getHrForEpochMilli(time);
+		heartRateProvider.getHrForEpochMilli(time + 999);
+		heartRateProvider.getHrForEpochMilli(time - 1000);
+		heartRateProvider.getHrForEpochMilli(time + 3999);
+		heartRateProvider.getHrForEpochMilli(time + 200_000);
+
+		final Statistics actual = heartRateProvider.getStatistics();
+		assertEquals(2, actual.getDistanceCount(0));
+		assertEquals(1, actual.getDistanceCount(1));
+		assertEquals(1, actual.getDistanceCount(2));
+		assertEquals(1, actual.getDistanceCount(Statistics.DISTANCE_BUCKETS - 1));
+		assertEquals(0, actual.getLookupNanos());
+		assertEquals("<1s=2, <2s=1, <4s=1, <8s=0, <16s=0, <32s=0, <64s=0, <128s=0, >=128s=1", actual.getDistanceCounts());
+		assertEquals(4, actual.add(actual).getDistanceCount(0));
+	}
+
+	@Test
+	public void shouldTimeLookups() {
+		final HeartRateProvider heartRateProvider = new HeartRateProvider(
+				new HeartRateCsvParser().parse(toInputStream(DEFAULT_DATA)), HeartRateLookup.NEAREST, true);
+		final long start = System.nanoTime();
+		for (int i = 0; i < 100; i++) {
+			heartRateProvider.getHrForEpochMilli(i * 3_600_000L);
+		}
+		final long elapsed = System.nanoTime() - start;
+
+		final long actual = heartRateProvider.getStatistics().getLookupNanos();
+		assertTrue(String.valueOf(actual), actual > 0 && actual <= elapsed);
+		// the copy measures too
+		final HeartRateProvider copy = heartRateProvider.copy();
+		copy.getHrForEpochMilli(0);
+		assertTrue(copy.getStatistics().getLookupNanos() > 0);
+	}
+
 	@Test
 	public void shouldHandleNewLineAtTheEnd() {
 		assertEquals(91, new HeartRateProvider(toInputStream(DEFAULT_SMALL))
@@ -313,9 +344,9 @@ public class HeartRateProviderTest {
 	public void shouldSearchInSmallerRegion() {
 		final AssertableHeartRateProvider heartRateProvider = new AssertableHeartRateProvider(toInputStream(DEFAULT_DATA),
 
-				new int[] { 0, 7, 0, 0, 0, 0, 3 },
+				new int[] { 0, 7, 0, 4, 4, 3, 5 },
 
-				new int[] { 8, 8, 8, 8, 5, 4, 8 },
+				new int[] { 8, 8, 4, 8, 5, 4, 7 },
 
 				new int[] { 7, 8, 0, 5, 4, 3, 6 });
 
@@ -331,6 +362,62 @@ public class HeartRateProviderTest {
 		assertEquals(7, heartRateProvider.getHrForTime(parseDateTime("07.01.2000 00:00:00")).get().intValue());
 
 		heartRateProvider.assertAllInvocations();
+		final Statistics actual = heartRateProvider.getStatistics();
+		assertEquals(1, actual.getSearchCount(SearchPath.FIRST));
+		assertEquals(1, actual.getSearchCount(SearchPath.SAME));
+		assertEquals(3, actual.getSearchCount(SearchPath.NEXT));
+		assertEquals(2, actual.getSearchCount(SearchPath.FORWARD));
+		assertEquals(1, actual.getSearchCount(SearchPath.BACKWARD));
+	}
+
+	@Test
+	public void shouldGallopLikeFullSearch() {
+		final Random random = new Random(42);
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder();
+		long time = 0;
+		for (int i = 0; i < 5000; i++) {
+			// unique times - the closest is the same whatever the search
+			time += 1 + random.nextInt(10_000);
+			builder.add(time, 1 + random.nextInt(200), 1);
+		}
+		final HeartRateIndex index = builder.build();
+		final HeartRateProvider heartRateProvider = new HeartRateProvider(index,
+				new HeartRateLookup(HeartRateLookup.Strategy.NEAREST, Duration.ZERO, Duration.ofDays(100_000)));
+
+		long trackTime = -100_000;
+		for (int i = 0; i < 20_000; i++) {
+			final int jump = random.nextInt(100);
+			trackTime += jump == 0 ? -random.nextInt(10_000_000) : jump == 1 ? random.nextInt(10_000_000) : random.nextInt(3000);
+			final int expected = index.getRate(index.findClosest(0, index.size() - 1, trackTime));
+
+			final Optional<Integer> actual =
+					heartRateProvider.getHrForTime(OffsetDateTime.ofInstant(Instant.ofEpochMilli(trackTime), ZoneOffset.UTC));
+
+			assertEquals("at " + trackTime, expected, actual.get().intValue());
+		}
+		final Statistics statistics = heartRateProvider.getStatistics();
+		assertTrue(statistics.getSearchCount(SearchPath.NEXT) > 10 * statistics.getSearchCount(SearchPath.FORWARD));
+		assertTrue(statistics.getSearchCount(SearchPath.BACKWARD) > 0);
+	}
+
+	@Test
+	public void shouldPreferFirstOfSameTimesWhateverTheSearch() {
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder();
+		for (int i = 0; i < 100; i++) {
+			builder.add(i * 1000L, 1 + i, 1);
+			builder.add(i * 1000L, 101 + i, 1);
+			builder.add(i * 1000L, 201 + i, 1);
+		}
+		final HeartRateIndex index = builder.build();
+		final HeartRateLookup lookup = new HeartRateLookup(HeartRateLookup.Strategy.NEAREST, Duration.ZERO, Duration.ofSeconds(1));
+		final HeartRateProvider forward = new HeartRateProvider(index, lookup);
+		final HeartRateProvider backward = new HeartRateProvider(index, lookup);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(1 + i, forward.getHrForTime(OffsetDateTime.ofInstant(Instant.ofEpochMilli(i * 1000L), ZoneOffset.UTC))
+					.get().intValue());
+			assertEquals(100 - i, backward
+					.getHrForTime(OffsetDateTime.ofInstant(Instant.ofEpochMilli((99 - i) * 1000L), ZoneOffset.UTC)).get().intValue());
+		}
 	}
 
 	@Test
@@ -356,20 +443,203 @@ public class HeartRateProviderTest {
 				+ "01.01.2000 00:00:00,1,1%";
 
 		final HeartRateProvider heartRateProvider = new HeartRateProvider(toInputStream(heartRateFile));
-		final HeartRateRow[] heartRates = heartRateProvider.heartRates;
-		HeartRateRow previous = null;
-		for (final HeartRateRow next : heartRates) {
-			final HeartRateRow beforePrevious = previous;
-			previous = next;
-			if (beforePrevious == null) {
-				continue;
-			}
-			assertTrue(previous.getDateTime().compareTo(beforePrevious.getDateTime()) > 0);
+		final HeartRateIndex heartRates = heartRateProvider.heartRates;
+		assertEquals(9, heartRates.size());
+		for (int i = 1; i < heartRates.size(); i++) {
+			assertTrue(heartRates.getTime(i) > heartRates.getTime(i - 1));
+			assertEquals(i + 1, heartRates.getRate(i));
 		}
 		assertEquals(6, heartRateProvider.getHrForTime(parseDateTime("06.01.2000 00:00:00")).get().intValue());
 	}
 
-	private static InputStream toInputStream(String s) {
+	private static HeartRateProvider createProvider(HeartRateLookup.Strategy strategy, int windowSeconds, int toleranceSeconds,
+			String data) {
+		return new HeartRateProvider(new HeartRateCsvParser().parse(toInputStream(data)),
+				new HeartRateLookup(strategy, Duration.ofSeconds(windowSeconds), Duration.ofSeconds(toleranceSeconds)));
+	}
+
+	private static final String WINDOW_DATA = DEFAULT_HEADER
+
+			+ "02.01.2000 00:00:00,100,1%\n"
+
+			+ "02.01.2000 00:00:10,110,1%\n"
+
+			+ "02.01.2000 00:00:20,90,1%\n"
+
+			+ "02.01.2000 00:00:30,160,1%\n"
+
+			+ "02.01.2000 00:01:30,60,1%";
+
+	@Test
+	public void shouldUseTolerance() {
+		final HeartRateProvider heartRateProvider = createProvider(HeartRateLookup.Strategy.NEAREST, 0, 5, WINDOW_DATA);
+
+		assertEquals(110, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:15")).get().intValue());
+		assertFalse(heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:36")).isPresent());
+		assertEquals(160, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:35")).get().intValue());
+	}
+
+	@Test
+	public void shouldInterpolate() {
+		final HeartRateProvider heartRateProvider = createProvider(HeartRateLookup.Strategy.INTERPOLATE, 0, 40, WINDOW_DATA);
+
+		assertEquals(100, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:00")).get().intValue());
+		assertEquals(103, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:03")).get().intValue());
+		assertEquals(98, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:16")).get().intValue());
+		assertEquals(139, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:27")).get().intValue());
+		// 02.01.2000 00:01:30 is too far - the closest
+		assertEquals(160, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:45")).get().intValue());
+		// before the first
+		assertEquals(100, heartRateProvider.getHrForTime(parseDateTime("01.01.2000 23:59:50")).get().intValue());
+	}
+
+	@Test
+	public void shouldInterpolateAfterSamplesWithTheSameTime() {
+		final HeartRateProvider heartRateProvider = createProvider(HeartRateLookup.Strategy.INTERPOLATE, 0, 40, DEFAULT_HEADER
+				+ "02.01.2000 00:00:00,100,1%\n" + "02.01.2000 00:00:00,120,1%\n" + "02.01.2000 00:00:10,200,1%\n"
+				+ "02.01.2000 00:00:20,100,1%\n" + "02.01.2000 00:00:20,180,1%");
+
+		// from the first of the samples at 00:00:00
+		assertEquals(150, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:05")).get().intValue());
+		// to the first of the samples at 00:00:20
+		assertEquals(150, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:15")).get().intValue());
+		assertEquals(100, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:25")).get().intValue());
+	}
+
+	@Test
+	public void shouldAverageInWindow() {
+		final HeartRateProvider heartRateProvider = createProvider(HeartRateLookup.Strategy.AVERAGE, 20, 60, WINDOW_DATA);
+
+		// 100, 110
+		assertEquals(105, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:00")).get().intValue());
+		// 100, 110, 90
+		assertEquals(100, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:10")).get().intValue());
+		// 90, 160
+		assertEquals(125, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:25")).get().intValue());
+		// empty window - the closest
+		assertEquals(160, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:55")).get().intValue());
+		// backwards
+		assertEquals(100, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:10")).get().intValue());
+	}
+
+	@Test
+	public void shouldFindMedianInWindow() {
+		final HeartRateProvider heartRateProvider = createProvider(HeartRateLookup.Strategy.MEDIAN, 40, 60, WINDOW_DATA);
+
+		// 100, 110, 90
+		assertEquals(100, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:00")).get().intValue());
+		// 100, 110, 90, 160
+		assertEquals(105, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:15")).get().intValue());
+		// 90, 160
+		assertEquals(125, heartRateProvider.getHrForTime(parseDateTime("02.01.2000 00:00:40")).get().intValue());
+	}
+
+	@Test
+	public void shouldSlideWindowLikeFullScan() {
+		final Random random = new Random(42);
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder();
+		long time = 0;
+		for (int i = 0; i < 2000; i++) {
+			time += random.nextInt(3) * 1000;
+			builder.add(time, 40 + random.nextInt(400), 1);
+		}
+		final HeartRateIndex index = builder.build();
+		final long halfWidth = 7_000;
+
+		for (final HeartRateLookup.Strategy strategy : Arrays.asList(HeartRateLookup.Strategy.AVERAGE,
+				HeartRateLookup.Strategy.MEDIAN)) {
+			final HeartRateProvider heartRateProvider = new HeartRateProvider(index,
+					new HeartRateLookup(strategy, Duration.ofMillis(2 * halfWidth), Duration.ofMinutes(1)));
+			long trackTime = -10_000;
+			for (int i = 0; i < 3000; i++) {
+				// mostly forward with some jumps back
+				trackTime += random.nextInt(10) == 0 ? -random.nextInt(100_000) : random.nextInt(2000);
+				final List<Integer> rates = new ArrayList<>();
+				for (int j = 0; j < index.size(); j++) {
+					if (Math.abs(index.getTime(j) - trackTime) <= halfWidth) {
+						rates.add(index.getRate(j));
+					}
+				}
+				final Optional<Integer> actual = heartRateProvider
+						.getHrForTime(OffsetDateTime.ofInstant(Instant.ofEpochMilli(trackTime), ZoneOffset.UTC));
+				if (rates.isEmpty()) {
+					continue;
+				}
+				final int expected;
+				if (strategy == HeartRateLookup.Strategy.AVERAGE) {
+					expected = (int) Math.round(rates.stream().mapToInt(Integer::intValue).average().getAsDouble());
+				} else {
+					Collections.sort(rates);
+					expected = (rates.get((rates.size() - 1) / 2) + rates.get(rates.size() / 2) + 1) / 2;
+				}
+				assertEquals(strategy + " at " + trackTime, expected, actual.get().intValue());
+			}
+		}
+	}
+
+	@Test
+	public void shouldJoinInBulkLikeOneByOne() {
+		final Random random = new Random(7);
+		final HeartRateIndex.Builder builder = new HeartRateIndex.Builder();
+		long time = 0;
+		for (int i = 0; i < 1000; i++) {
+			// with samples at the same time
+			time += random.nextInt(4) * 1000;
+			builder.add(time, 40 + random.nextInt(400), 1);
+		}
+		final HeartRateIndex index = builder.build();
+		final long[] sorted = new long[1500];
+		long trackTime = -20_000;
+		for (int i = 0; i < sorted.length; i++) {
+			// with gaps and the same times
+			trackTime += random.nextInt(20) == 0 ? 100_000 : random.nextInt(3) * 1000 + random.nextInt(2) * 500;
+			sorted[i] = trackTime;
+		}
+		final long[] shuffled = sorted.clone();
+		for (int i = shuffled.length - 1; i > 0; i--) {
+			final int other = random.nextInt(i + 1);
+			final long swap = shuffled[i];
+			shuffled[i] = shuffled[other];
+			shuffled[other] = swap;
+		}
+
+		for (final HeartRateLookup.Strategy strategy : HeartRateLookup.Strategy.values()) {
+			final HeartRateLookup lookup = new HeartRateLookup(strategy, Duration.ofSeconds(10), Duration.ofSeconds(5));
+			for (final long[] times : Arrays.asList(sorted, shuffled)) {
+				final HeartRateProvider oneByOne = new HeartRateProvider(index, lookup);
+				final HeartRateProvider bulk = new HeartRateProvider(index, lookup);
+				final int[] rates = new int[times.length];
+				bulk.getHrForEpochMillis(times, rates, times.length);
+
+				for (int i = 0; i < times.length; i++) {
+					assertEquals(strategy + " at " + times[i], oneByOne.getHrForEpochMilli(times[i]), rates[i]);
+				}
+				final Statistics expected = oneByOne.getStatistics();
+				final Statistics actual = bulk.getStatistics();
+				assertEquals(expected.getCountSucceed(), actual.getCountSucceed());
+				assertEquals(expected.getCountFailed(), actual.getCountFailed());
+				assertTrue(actual.getCountFailed() > 0);
+				for (int bucket = 0; bucket < Statistics.DISTANCE_BUCKETS; bucket++) {
+					assertEquals(expected.getDistanceCount(bucket), actual.getDistanceCount(bucket));
+				}
+				assertEquals(times == sorted ? times.length : 0, actual.getSearchCount(SearchPath.SWEEP));
+			}
+		}
+	}
+
+	@Test
+	public void shouldJoinEmptyAndPartOfTheTimes() {
+		final HeartRateProvider heartRateProvider = new HeartRateProvider(toInputStream(DEFAULT_DATA));
+		final int[] rates = { -1, -1, -1 };
+		heartRateProvider.getHrForEpochMillis(new long[0], new int[0], 0);
+		heartRateProvider.getHrForEpochMillis(new long[] { parseDateTime("02.01.2000 00:00:00").toInstant().toEpochMilli(),
+				parseDateTime("03.01.2000 00:00:00").toInstant().toEpochMilli(), 0 }, rates, 2);
+
+		assertEquals(Arrays.asList(2, 3, -1), Arrays.asList(rates[0], rates[1], rates[2]));
+		assertEquals(2, heartRateProvider.getStatistics().getCountSucceed());
+	}
+
+	static InputStream toInputStream(String s) {
 		return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
 	}
 }
\ No newline at end of file
@@ -0,0 +1,222 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MergeServerTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private MergeServer server;
+	private Path csv;
+	private byte[] gpx;
+	private String expected;
+
+	@Before
+	public void setUp() throws IOException {
+		csv = temporaryFolder.newFile("hr.csv").toPath();
+		Files.write(csv, IOUtils.toByteArray(getClass().getResourceAsStream("input-mibandtools.csv")));
+		gpx = IOUtils.toByteArray(getClass().getResourceAsStream("input.gpx"));
+		expected = IOUtils.toString(getClass().getResourceAsStream("output.gpx"), "UTF-8");
+		final HeartRateCsvParser parser = new HeartRateCsvParser();
+		server = new MergeServer(new GpxMergeHeartRate.Builder(),
+				new HeartRateIndexLruCache(files -> parser.parseFiles(files, false), 1000), HeartRateLookup.NEAREST, false,
+				Optional.empty(), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4);
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+	}
+
+	private HttpURLConnection open(String path) throws IOException {
+		return (HttpURLConnection) new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), path)
+				.openConnection();
+	}
+
+	private String mergePath(Path file) throws IOException {
+		return MergeServer.MERGE_PATH + "?" + MergeServer.PARAMETER_CSV + "="
+				+ URLEncoder.encode(file.toString(), "UTF-8");
+	}
+
+	private HttpURLConnection post(String path, byte[] body, boolean gzip) throws IOException {
+		final HttpURLConnection result = open(path);
+		result.setRequestMethod("POST");
+		result.setDoOutput(true);
+		result.setChunkedStreamingMode(4096);
+		if (gzip) {
+			result.setRequestProperty("Accept-Encoding", "gzip");
+		}
+		try (OutputStream output = result.getOutputStream()) {
+			output.write(body);
+		}
+		return result;
+	}
+
+	private String merge() throws IOException {
+		final HttpURLConnection connection = post(mergePath(csv), gpx, false);
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("application/gpx+xml", connection.getContentType());
+		try (InputStream input = connection.getInputStream()) {
+			return IOUtils.toString(input, "UTF-8");
+		}
+	}
+
+	private static String readError(HttpURLConnection connection) throws IOException {
+		try (InputStream input = connection.getErrorStream()) {
+			return IOUtils.toString(input, "UTF-8");
+		}
+	}
+
+	@Test
+	public void shouldMerge() throws IOException {
+		assertEquals(expected, merge());
+		assertEquals(expected, merge());
+
+		assertEquals(1, server.getHeartRates().getMisses());
+		assertEquals(1, server.getHeartRates().getHits());
+	}
+
+	@Test
+	public void shouldGzipResult() throws IOException {
+		final HttpURLConnection connection = post(mergePath(csv), CompressionTest.gzip(gpx), true);
+
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("gzip", connection.getContentEncoding());
+		try (InputStream input = new GZIPInputStream(connection.getInputStream())) {
+			assertEquals(expected, IOUtils.toString(input, "UTF-8"));
+		}
+	}
+
+	@Test
+	public void shouldMergeConcurrently() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 32; i++) {
+				results.add(executor.submit(this::merge));
+			}
+			for (final Future<String> next : results) {
+				assertEquals(expected, next.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, server.getHeartRates().getMisses());
+		assertEquals(31, server.getHeartRates().getHits());
+	}
+
+	@Test
+	public void shouldReturnErrors() throws IOException {
+		final HttpURLConnection missingCsv = post(mergePath(csv.resolveSibling("missing.csv")), gpx, false);
+		assertEquals(404, missingCsv.getResponseCode());
+		assertTrue(readError(missingCsv).contains("missing.csv"));
+
+		assertEquals(400, post(MergeServer.MERGE_PATH, gpx, false).getResponseCode());
+
+		// the server rejects malformed % escapes in the URI itself
+		final HttpURLConnection invalidPath = post(MergeServer.MERGE_PATH + "?csv=a%00.csv", gpx, false);
+		assertEquals(400, invalidPath.getResponseCode());
+		assertTrue(readError(invalidPath).startsWith("Invalid csv parameter"));
+
+		final HttpURLConnection invalidGpx = post(mergePath(csv), "no gpx".getBytes(StandardCharsets.UTF_8), true);
+		assertEquals(400, invalidGpx.getResponseCode());
+		assertEquals(null, invalidGpx.getContentEncoding());
+		assertTrue(readError(invalidGpx).startsWith("Could not merge"));
+
+		final HttpURLConnection get = open(mergePath(csv));
+		assertEquals(405, get.getResponseCode());
+		assertEquals("POST, PUT", get.getHeaderField("Allow"));
+
+		// the server still works
+		assertEquals(expected, merge());
+	}
+
+	@Test
+	public void shouldCloseConnectionOnErrorAfterTheResultIsStarted() throws IOException {
+		final StringBuilder document = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		document.append("<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" version=\"1.1\"><trk><trkseg>\n");
+		for (int i = 0; i < 5000; i++) {
+			document.append("<trkpt lat=\"42.5\" lon=\"23.2\"><time>2018-11-10T05:24:58Z</time></trkpt>\n");
+		}
+		document.append("</trkseg></trk></broken>");
+		final HttpURLConnection connection = post(mergePath(csv), document.toString().getBytes(StandardCharsets.UTF_8),
+				false);
+
+		assertEquals(200, connection.getResponseCode());
+		try (InputStream input = connection.getInputStream()) {
+			IOUtils.toByteArray(input);
+			fail("The incomplete result is read as complete");
+		} catch (final IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void shouldReturnMetrics() throws IOException {
+		merge();
+		final HttpURLConnection connection = open(MergeServer.METRICS_PATH);
+
+		assertEquals(200, connection.getResponseCode());
+		try (InputStream input = connection.getInputStream()) {
+			final String actual = IOUtils.toString(input, "UTF-8");
+			assertTrue(actual, actual.startsWith("Cache: HeartRateIndexLruCache [indexes=1, samples=1/1000, hits=0, misses=1"));
+		}
+	}
+
+	@Test
+	public void shouldDecodeParameters() throws IOException {
+		assertEquals(Arrays.asList("/a b/c.csv", "d&e.csv"),
+				MergeServer.getParameters("x=1&csv=%2Fa+b%2Fc.csv&csv=&c%73v=d%26e.csv&csv", "csv"));
+		assertEquals(new ArrayList<>(), MergeServer.getParameters(null, "csv"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldThrowForMalformedEscape() throws IOException {
+		MergeServer.getParameters("csv=%zz", "csv");
+	}
+
+	@Test
+	public void shouldAcceptPutWithContentLength() throws IOException {
+		final HttpURLConnection connection = open(mergePath(csv));
+		connection.setRequestMethod("PUT");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(gpx.length);
+		try (OutputStream output = connection.getOutputStream()) {
+			output.write(gpx);
+		}
+		assertEquals(200, connection.getResponseCode());
+		try (InputStream input = connection.getInputStream()) {
+			assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), IOUtils.toByteArray(input));
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class PipelineStageTest {
+	@Test
+	public void shouldConsumeInOrderAndReuseItems() throws IOException {
+		final List<Integer> consumed = Collections.synchronizedList(new ArrayList<>());
+		final AtomicBoolean closed = new AtomicBoolean();
+		final PipelineStage<int[]> actual = PipelineStage.consuming("test", 2, () -> new int[1], a -> a[0] = -1,
+				a -> consumed.add(a[0]), () -> closed.set(true));
+		int[] current = actual.create();
+		for (int i = 0; i < 100; i++) {
+			current[0] = i;
+			actual.pass(current);
+			current = actual.allocate();
+		}
+		actual.finish();
+
+		assertEquals(100, consumed.size());
+		for (int i = 0; i < consumed.size(); i++) {
+			assertEquals(i, consumed.get(i).intValue());
+		}
+		assertEquals(2, actual.getAllocated());
+		assertEquals(0, actual.getQueueDepth());
+		assertTrue(closed.get());
+	}
+
+	@Test
+	public void shouldThrowTheFirstErrorOfTheThread() throws IOException {
+		final IllegalStateException error = new IllegalStateException("broken");
+		final List<Integer> consumed = Collections.synchronizedList(new ArrayList<>());
+		final AtomicBoolean closed = new AtomicBoolean();
+		final PipelineStage<int[]> actual = PipelineStage.consuming("test", 2, () -> new int[1], a -> a[0] = -1, a -> {
+			consumed.add(a[0]);
+			throw error;
+		}, () -> closed.set(true));
+		try {
+			for (int i = 0; i < 100; i++) {
+				final int[] next = actual.allocate();
+				next[0] = i;
+				actual.pass(next);
+			}
+			actual.finish();
+			fail("The error of the thread is not thrown");
+		} catch (final IOException e) {
+			assertEquals(error, e.getCause());
+		}
+		try {
+			actual.finish();
+		} catch (final IOException e) {
+			// the same error
+		}
+
+		// the next items are only returned
+		assertEquals(Collections.singletonList(0), consumed);
+		assertTrue(closed.get());
+	}
+
+	@Test
+	public void shouldProduceInOrderAndReuseItems() throws IOException {
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicBoolean closed = new AtomicBoolean();
+		final PipelineStage<int[]> actual = PipelineStage.producing("test", 3, () -> new int[1], a -> a[0] = -1, a -> {
+			a[0] = next.getAndIncrement();
+			return a[0] < 100;
+		}, () -> closed.set(true));
+		int expected = 0;
+		for (int[] item = actual.take(); item != null; item = actual.take()) {
+			assertEquals(expected++, item[0]);
+			actual.recycle(item);
+		}
+
+		assertEquals(100, expected);
+		assertEquals(3, actual.getAllocated());
+		assertTrue(closed.get());
+	}
+
+	@Test
+	public void shouldThrowTheErrorOfTheProducerAtTheEnd() throws IOException {
+		final IllegalStateException error = new IllegalStateException("broken");
+		final PipelineStage<int[]> actual = PipelineStage.producing("test", 2, () -> new int[1], a -> a[0] = -1, a -> {
+			throw error;
+		}, () -> {
+		});
+		try {
+			actual.take();
+			fail("The error of the thread is not thrown");
+		} catch (final IOException e) {
+			assertEquals(error, e.getCause());
+		}
+	}
+}
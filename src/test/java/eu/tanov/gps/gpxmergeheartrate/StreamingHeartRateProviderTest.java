@@ -0,0 +1,181 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.Statistics;
+
+public class StreamingHeartRateProviderTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss");
+	private static final LocalDateTime START = LocalDateTime.of(2000, 1, 2, 0, 0);
+	private static final int SAMPLES = 3000;
+	private static final int BLOCK_SIZE = 16;
+
+	/**
+	 * Mi Band Tools lines, a few seconds apart and some at the same time
+	 */
+	private static List<String> createLines(Random random) {
+		final List<String> result = new ArrayList<>();
+		int second = 0;
+		for (int i = 0; i < SAMPLES; i++) {
+			// and a gap of 10 minutes
+			second += i == SAMPLES / 2 ? 600 : random.nextInt(4);
+			result.add(DATE_TIME.format(START.plusSeconds(second)) + "," + (40 + random.nextInt(150)) + "," + random.nextInt(100)
+					+ "%");
+		}
+		return result;
+	}
+
+	private Path writeCsv(List<String> lines) throws IOException {
+		final Path result = temporaryFolder.newFile().toPath();
+		final List<String> file = new ArrayList<>();
+		file.add("header");
+		file.addAll(lines);
+		Files.write(result, file, StandardCharsets.UTF_8);
+		return result;
+	}
+
+	private StreamingHeartRateProvider createProvider(Path file, HeartRateLookup lookup) throws IOException {
+		final ExternalHeartRateSort sort = new ExternalHeartRateSort(100, 4, Optional.of(temporaryFolder.newFolder().toPath()));
+		return new StreamingHeartRateProvider(file, new HeartRateCsvParser(), sort, lookup, false, BLOCK_SIZE);
+	}
+
+	private static List<Long> createTrackTimes(Random random, boolean isOrdered) {
+		final List<Long> result = new ArrayList<>();
+		long time = START.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() - 200_000;
+		for (int i = 0; i < 2000; i++) {
+			// mostly forward with some jumps back
+			time += isOrdered || random.nextInt(50) != 0 ? random.nextInt(6000) : -random.nextInt(300_000);
+			result.add(time);
+		}
+		return result;
+	}
+
+	/**
+	 * The same heart rates and counts as in memory, with a window of samples that does not grow with the file
+	 */
+	private void assertLikeInMemory(Path file, List<Long> trackTimes, int expectedPasses) throws IOException {
+		final HeartRateIndex index = new HeartRateCsvParser().parse(file);
+		for (final HeartRateLookup.Strategy strategy : HeartRateLookup.Strategy.values()) {
+			final HeartRateLookup lookup = new HeartRateLookup(strategy, Duration.ofSeconds(20), Duration.ofSeconds(30));
+			final HeartRateProvider expected = new HeartRateProvider(index, lookup);
+			try (StreamingHeartRateProvider actual = createProvider(file, lookup)) {
+				int maximumWindow = 0;
+				for (final long next : trackTimes) {
+					assertEquals(strategy + " at " + next, expected.getHrForEpochMilli(next), actual.getHrForEpochMilli(next));
+					maximumWindow = Math.max(maximumWindow, actual.getWindowSize());
+				}
+				final Statistics expectedStatistics = expected.getStatistics();
+				final Statistics actualStatistics = actual.getStatistics();
+				assertEquals(expectedStatistics.getCountSucceed(), actualStatistics.getCountSucceed());
+				assertEquals(expectedStatistics.getCountFailed(), actualStatistics.getCountFailed());
+				assertEquals(expectedStatistics.getDistanceCounts(), actualStatistics.getDistanceCounts());
+				assertEquals(expectedPasses, actual.getPasses());
+				// +-30 seconds are ~40 samples, read in blocks
+				assertTrue(strategy + " window " + maximumWindow, maximumWindow < 200);
+			}
+		}
+	}
+
+	@Test
+	public void shouldFindHeartRatesLikeInMemory() throws IOException {
+		final Random random = new Random(3);
+		final Path file = writeCsv(createLines(random));
+
+		assertLikeInMemory(file, createTrackTimes(random, true), 1);
+	}
+
+	@Test
+	public void shouldReadAgainForTrackPointsBack() throws IOException {
+		final Random random = new Random(5);
+		final Path file = writeCsv(createLines(random));
+
+		// the other jumps back are within the samples in memory
+		assertLikeInMemory(file, createTrackTimes(random, false), 17);
+	}
+
+	@Test
+	public void shouldSortOnDiskIfNotInTimeOrder() throws IOException {
+		final Random random = new Random(9);
+		final List<String> lines = createLines(random);
+		// the first half after the second one, samples with the same time keep their order
+		final List<String> unsorted = new ArrayList<>(lines.subList(SAMPLES / 2, SAMPLES));
+		unsorted.addAll(lines.subList(0, SAMPLES / 2));
+		final Path file = writeCsv(unsorted);
+
+		assertLikeInMemory(file, createTrackTimes(random, true), 1);
+	}
+
+	@Test
+	public void shouldDeleteTheSortedFileOnClose() throws IOException {
+		final List<String> lines = createLines(new Random(1));
+		Collections.reverse(lines);
+		final Path file = writeCsv(lines);
+		final File directory = temporaryFolder.newFolder();
+		final StreamingHeartRateProvider provider = new StreamingHeartRateProvider(file, new HeartRateCsvParser(),
+				new ExternalHeartRateSort(100, 4, Optional.of(directory.toPath())), HeartRateLookup.NEAREST, false, BLOCK_SIZE);
+		assertTrue(provider.isSortedOnDisk());
+		assertEquals(1, directory.list().length);
+
+		provider.close();
+
+		assertEquals(0, directory.list().length);
+	}
+
+	@Test
+	public void shouldNotSortFileInTimeOrder() throws IOException {
+		try (StreamingHeartRateProvider provider =
+				createProvider(writeCsv(createLines(new Random(1))), HeartRateLookup.NEAREST)) {
+			assertFalse(provider.isSortedOnDisk());
+		}
+	}
+
+	@Test
+	public void shouldCopyFromTheBeginning() throws IOException {
+		final Path file = writeCsv(createLines(new Random(2)));
+		final HeartRateProvider expected = new HeartRateProvider(new HeartRateCsvParser().parse(file));
+		final List<Long> trackTimes = createTrackTimes(new Random(2), true);
+		try (StreamingHeartRateProvider provider = createProvider(file, HeartRateLookup.NEAREST)) {
+			for (final long next : trackTimes) {
+				provider.getHrForEpochMilli(next);
+			}
+			try (StreamingHeartRateProvider copy = provider.copy()) {
+				final long[] times = trackTimes.stream().mapToLong(Long::longValue).toArray();
+				final int[] actual = new int[times.length];
+				copy.getHrForEpochMillis(times, actual, times.length);
+				for (int i = 0; i < times.length; i++) {
+					assertEquals(expected.getHrForEpochMilli(times[i]), actual[i]);
+				}
+				assertEquals(1, copy.getPasses());
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldThrowForFileWithoutRecords() throws IOException {
+		createProvider(writeCsv(Collections.emptyList()), HeartRateLookup.NEAREST);
+	}
+}
@@ -0,0 +1,55 @@
+package eu.tanov.gps.gpxmergeheartrate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import org.junit.Test;
+
+public class ZoneOffsetCacheTest {
+	private static final long FROM = LocalDateTime.of(2019, 12, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+	private static final long TO = LocalDateTime.of(2021, 2, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+	private static final long STEP = 5 * 60;
+
+	private static void assertSameAsZoneRules(String zoneId) {
+		final ZoneId zone = ZoneId.of(zoneId);
+		final ZoneOffsetCache cache = new ZoneOffsetCache(zone);
+		for (long second = FROM; second < TO; second += STEP) {
+			assertEquals(zone.getRules().getOffset(Instant.ofEpochSecond(second)).getTotalSeconds(), cache.getOffset(second));
+
+			final LocalDateTime local = LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC);
+			assertEquals(local.toString(), local.atZone(zone).toEpochSecond(), cache.toEpochSecond(second));
+		}
+	}
+
+	@Test
+	public void shouldConvertLikeZoneRules() {
+		assertSameAsZoneRules("Europe/Sofia");
+		// southern hemisphere
+		assertSameAsZoneRules("America/Santiago");
+		// 30 minutes saving
+		assertSameAsZoneRules("Australia/Lord_Howe");
+		assertSameAsZoneRules("UTC");
+	}
+
+	@Test
+	public void shouldUseEarlierOffsetInOverlap() {
+		final ZoneOffsetCache cache = new ZoneOffsetCache(ZoneId.of("Europe/Sofia"));
+		// 2020-10-25 03:30 is both +03:00 and +02:00
+		final long local = LocalDateTime.of(2020, 10, 25, 3, 30).toEpochSecond(ZoneOffset.UTC);
+
+		assertEquals(local - 3 * 3600, cache.toEpochSecond(local));
+	}
+
+	@Test
+	public void shouldMoveForwardInGap() {
+		final ZoneOffsetCache cache = new ZoneOffsetCache(ZoneId.of("Europe/Sofia"));
+		// 2020-03-29 03:30 does not exist, it is 04:30 +03:00
+		final long local = LocalDateTime.of(2020, 3, 29, 3, 30).toEpochSecond(ZoneOffset.UTC);
+
+		assertEquals(local + 3600 - 3 * 3600, cache.toEpochSecond(local));
+	}
+}
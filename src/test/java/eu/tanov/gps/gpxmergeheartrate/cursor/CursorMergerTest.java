@@ -0,0 +1,41 @@
+package eu.tanov.gps.gpxmergeheartrate.cursor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import eu.tanov.gps.gpxmergeheartrate.GpxMergeHeartRate;
+import eu.tanov.gps.gpxmergeheartrate.GpxMergeHeartRate.Engine;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateCsvParser;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateIndex;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.Statistics;
+
+public class CursorMergerTest {
+
+	private String process(Engine engine, String inputGpx, HeartRateIndex heartRates, int expectedSucceed) throws Exception {
+		try (InputStream gpxInputFile = getClass().getResourceAsStream(inputGpx)) {
+			final ByteArrayOutputStream actualOutput = new ByteArrayOutputStream();
+			final Statistics actualStatistics =
+					new GpxMergeHeartRate(engine).process(gpxInputFile, new HeartRateProvider(heartRates), actualOutput);
+			assertEquals(expectedSucceed, actualStatistics.getCountSucceed());
+			return actualOutput.toString("UTF-8");
+		}
+	}
+
+	@Test
+	public void shouldWriteTheSameAsEventEngine() throws Exception {
+		final HeartRateIndex heartRates;
+		try (InputStream source = getClass().getResourceAsStream("/eu/tanov/gps/gpxmergeheartrate/input-mibandtools.csv")) {
+			heartRates = new HeartRateCsvParser().parse(source);
+		}
+
+		final String expected = process(Engine.EVENT, "inputMixedContent.gpx", heartRates, 2);
+		final String actual = process(Engine.CURSOR, "inputMixedContent.gpx", heartRates, 2);
+
+		assertEquals(expected, actual);
+	}
+}
@@ -0,0 +1,64 @@
+package eu.tanov.gps.gpxmergeheartrate.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.Statistics;
+import eu.tanov.gps.gpxmergeheartrate.metrics.MetricsRegistry.Phase;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class JfrMetricsTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void shouldRecordEvents() throws Exception {
+		final MetricsRegistry actual = MetricsRegistry.jfrIfAvailable();
+		assumeTrue("No Flight Recorder in this JVM", actual instanceof JfrMetrics && FlightRecorder.isAvailable());
+		final Path file = temporaryFolder.newFile("metrics.jfr").toPath();
+
+		try (Recording recording = new Recording()) {
+			for (final Class<?> next : new Class<?>[] { JfrMetrics.PhaseEvent.class, JfrMetrics.TrackPointsEvent.class,
+					JfrMetrics.BytesEvent.class, JfrMetrics.DistanceEvent.class }) {
+				recording.enable(next.getAnnotation(jdk.jfr.Name.class).value());
+			}
+			recording.start();
+			actual.recordPhase(Phase.SORT, 1234);
+			actual.addTrackPoints(5);
+			actual.addBytesRead(10);
+			actual.addBytesWritten(20);
+			actual.addDistanceCount(1, 3);
+			recording.stop();
+			recording.dump(file);
+		}
+
+		final Map<String, RecordedEvent> events = new HashMap<>();
+		final List<RecordedEvent> recorded = RecordingFile.readAllEvents(file);
+		for (final RecordedEvent next : recorded) {
+			final String name = next.getEventType().getName();
+			events.put(name.equals("eu.tanov.gps.gpxmergeheartrate.Bytes") && next.getBoolean("written") ? name + ".written"
+					: name, next);
+		}
+		assertEquals(recorded.toString(), 5, events.size());
+		assertEquals("SORT", events.get("eu.tanov.gps.gpxmergeheartrate.Phase").getString("phase"));
+		assertEquals(1234, events.get("eu.tanov.gps.gpxmergeheartrate.Phase").getLong("time"));
+		assertEquals(5, events.get("eu.tanov.gps.gpxmergeheartrate.TrackPoints").getLong("count"));
+		assertEquals(10, events.get("eu.tanov.gps.gpxmergeheartrate.Bytes").getLong("bytes"));
+		assertEquals(20, events.get("eu.tanov.gps.gpxmergeheartrate.Bytes.written").getLong("bytes"));
+		assertEquals(Statistics.getDistanceBucketLimit(1),
+				events.get("eu.tanov.gps.gpxmergeheartrate.Distance").getLong("limit"));
+		assertEquals(3, events.get("eu.tanov.gps.gpxmergeheartrate.Distance").getLong("count"));
+	}
+}
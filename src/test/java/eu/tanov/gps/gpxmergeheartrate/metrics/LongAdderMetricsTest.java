@@ -0,0 +1,110 @@
+package eu.tanov.gps.gpxmergeheartrate.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider.Statistics;
+import eu.tanov.gps.gpxmergeheartrate.metrics.MetricsRegistry.Phase;
+
+public class LongAdderMetricsTest {
+
+	@Test
+	public void shouldSumFromManyThreads() throws Exception {
+		final LongAdderMetrics actual = new LongAdderMetrics();
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				results.add(executor.submit(() -> {
+					actual.recordPhase(Phase.GPX_MERGE, 10);
+					actual.addTrackPoints(3);
+					actual.addBytesRead(100);
+					actual.addBytesWritten(200);
+					actual.addDistanceCount(2, 1);
+				}));
+			}
+			for (final Future<?> next : results) {
+				next.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(1000, actual.getPhaseNanos(Phase.GPX_MERGE));
+		assertEquals(0, actual.getPhaseNanos(Phase.SORT));
+		assertEquals(300, actual.getTrackPoints());
+		assertEquals(10_000, actual.getBytesRead());
+		assertEquals(20_000, actual.getBytesWritten());
+		assertEquals(100, actual.getDistanceCount(2));
+		assertEquals(0, actual.getDistanceCount(0));
+	}
+
+	@Test
+	public void shouldCalculateTrackPointsPerSecond() {
+		final LongAdderMetrics actual = new LongAdderMetrics();
+		assertEquals(0, actual.getTrackPointsPerSecond(), 0);
+
+		actual.addTrackPoints(500);
+		actual.recordPhase(Phase.GPX_MERGE, TimeUnit.MILLISECONDS.toNanos(250));
+		assertEquals(2000, actual.getTrackPointsPerSecond(), 0.001);
+	}
+
+	@Test
+	public void shouldRecordStatistics() {
+		final LongAdderMetrics actual = new LongAdderMetrics();
+		final Statistics empty = new Statistics(3, 2);
+
+		actual.recordStatistics(empty);
+
+		assertEquals(5, actual.getTrackPoints());
+		assertEquals(0, actual.getPhaseNanos(Phase.LOOKUP));
+	}
+
+	@Test
+	public void shouldReport() {
+		final LongAdderMetrics actual = new LongAdderMetrics();
+		actual.recordPhase(Phase.CSV_INGEST, TimeUnit.MILLISECONDS.toNanos(12));
+		actual.addTrackPoints(7);
+		actual.addBytesRead(1);
+		actual.addBytesWritten(2);
+		actual.addDistanceCount(0, 6);
+		actual.addDistanceCount(Statistics.DISTANCE_BUCKETS - 1, 1);
+
+		final String report = actual.report();
+
+		assertTrue(report, report.startsWith("Phases: CSV_INGEST=12 ms, SORT=0 ms, GPX_MERGE=0 ms"));
+		assertTrue(report, report.contains("\nTrack points: 7, 0/s\n"));
+		assertTrue(report, report.contains("\nBytes: read 1, written 2\n"));
+		assertTrue(report, report.endsWith("<1s=6, <2s=0, <4s=0, <8s=0, <16s=0, <32s=0, <64s=0, <128s=0, >=128s=1"));
+	}
+
+	@Test
+	public void shouldPassToAllRegistries() {
+		final LongAdderMetrics first = new LongAdderMetrics();
+		final LongAdderMetrics second = new LongAdderMetrics();
+		final MetricsRegistry actual = MetricsRegistry.of(first, MetricsRegistry.NOOP, second);
+
+		actual.recordPhase(Phase.SORT, 5);
+		actual.addTrackPoints(1);
+		actual.addBytesRead(2);
+		actual.addBytesWritten(3);
+		actual.addDistanceCount(1, 4);
+
+		for (final LongAdderMetrics next : new LongAdderMetrics[] { first, second }) {
+			assertEquals(5, next.getPhaseNanos(Phase.SORT));
+			assertEquals(1, next.getTrackPoints());
+			assertEquals(2, next.getBytesRead());
+			assertEquals(3, next.getBytesWritten());
+			assertEquals(4, next.getDistanceCount(1));
+		}
+	}
+}
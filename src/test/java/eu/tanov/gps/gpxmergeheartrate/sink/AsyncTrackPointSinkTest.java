@@ -0,0 +1,68 @@
+package eu.tanov.gps.gpxmergeheartrate.sink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class AsyncTrackPointSinkTest {
+	@Test
+	public void shouldReplayInOrder() throws IOException {
+		final RecordingTrackPointSink expected = new RecordingTrackPointSink();
+		final RecordingTrackPointSink actual = new RecordingTrackPointSink();
+		final List<TrackPointSink> sinks = new ArrayList<>();
+		sinks.add(expected);
+		// small batches - all of them are reused
+		sinks.add(new AsyncTrackPointSink(actual, 3, 2, "test"));
+		for (final TrackPointSink next : sinks) {
+			for (int segment = 0; segment < 10; segment++) {
+				next.startSegment();
+				for (int i = 0; i < segment; i++) {
+					next.trackPoint(segment * 1000 + i, "42." + i, "23." + i, i % 2 == 0 ? null : "5" + i, 60 + i);
+				}
+				next.endSegment();
+			}
+			next.close();
+		}
+
+		assertTrue(actual.isClosed());
+		assertEquals(expected.getCalls(), actual.getCalls());
+	}
+
+	@Test
+	public void shouldThrowErrorsOfTheSink() throws IOException {
+		final RecordingTrackPointSink closed = new RecordingTrackPointSink();
+		final TrackPointSink sink = new AsyncTrackPointSink(new RecordingTrackPointSink() {
+			@Override
+			public void trackPoint(long time, String latitude, String longitude, String elevation, int heartRate) {
+				throw new IllegalStateException("must not be called after the error");
+			}
+
+			@Override
+			public void endSegment() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+				closed.close();
+			}
+		}, 1, 2, "test");
+		try {
+			sink.endSegment();
+			sink.close();
+			fail("The error of the sink is not thrown");
+		} catch (final IOException e) {
+			// expected
+		} catch (final UnsupportedOperationException e) {
+			// thrown in the thread
+			fail("The error is thrown in the caller thread");
+		}
+		assertTrue(closed.isClosed());
+	}
+}
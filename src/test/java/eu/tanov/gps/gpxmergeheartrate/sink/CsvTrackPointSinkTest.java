@@ -0,0 +1,31 @@
+package eu.tanov.gps.gpxmergeheartrate.sink;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+
+public class CsvTrackPointSinkTest {
+	@Test
+	public void shouldWriteTrackPoints() throws IOException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (CsvTrackPointSink sink = new CsvTrackPointSink(output)) {
+			sink.startSegment();
+			sink.trackPoint(1541827498000L, "42.1", "23.2", "512.5", 83);
+			sink.trackPoint(1541827498500L, "42.2", "23.3", null, HeartRateProvider.NO_HEART_RATE);
+			sink.endSegment();
+			sink.startSegment();
+			sink.trackPoint(TrackPointSink.NO_TIME, "1,5", "a\"b", "", 90);
+			sink.endSegment();
+		}
+
+		assertEquals("time,lat,lon,ele,hr\n" + "2018-11-10T05:24:58Z,42.1,23.2,512.5,83\n"
+				+ "2018-11-10T05:24:58.500Z,42.2,23.3,,\n" + ",\"1,5\",\"a\"\"b\",,90\n",
+				new String(output.toByteArray(), StandardCharsets.UTF_8));
+	}
+}
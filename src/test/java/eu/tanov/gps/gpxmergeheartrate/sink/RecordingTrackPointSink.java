@@ -0,0 +1,40 @@
+package eu.tanov.gps.gpxmergeheartrate.sink;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the calls as text, e.g. <code>point 1541827498000 42.1 23.2 512 83</code>
+ */
+public class RecordingTrackPointSink implements TrackPointSink {
+	private final List<String> calls = new ArrayList<>();
+	private volatile boolean closed = false;
+
+	@Override
+	public void startSegment() {
+		calls.add("start");
+	}
+
+	@Override
+	public void trackPoint(long time, String latitude, String longitude, String elevation, int heartRate) {
+		calls.add("point " + time + " " + latitude + " " + longitude + " " + elevation + " " + heartRate);
+	}
+
+	@Override
+	public void endSegment() {
+		calls.add("end");
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+
+	public List<String> getCalls() {
+		return calls;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+}
@@ -0,0 +1,123 @@
+package eu.tanov.gps.gpxmergeheartrate.sink;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import eu.tanov.gps.gpxmergeheartrate.HeartRateProvider;
+
+public class TcxTrackPointSinkTest {
+	private static final long START = 1541827498000L;
+
+	private static Document parse(ByteArrayOutputStream output) throws Exception {
+		final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		return factory.newDocumentBuilder().parse(new ByteArrayInputStream(output.toByteArray()));
+	}
+
+	private static NodeList get(Element element, String localName) {
+		return element.getElementsByTagNameNS(TcxTrackPointSink.NAMESPACE_TCX, localName);
+	}
+
+	private static String getText(Element element, String localName) {
+		return get(element, localName).item(0).getTextContent();
+	}
+
+	@Test
+	public void shouldWriteLapForEachSegment() throws Exception {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (TcxTrackPointSink sink = new TcxTrackPointSink(output)) {
+			sink.startSegment();
+			sink.trackPoint(START, "42.000", "23.0", "500", 80);
+			// no time - skipped
+			sink.trackPoint(TrackPointSink.NO_TIME, "42.0005", "23.0", "500", 81);
+			sink.trackPoint(START + 10_000, "42.001", "23.0", null, 91);
+			sink.trackPoint(START + 20_000, "42.002", "23.0", "502", HeartRateProvider.NO_HEART_RATE);
+			sink.endSegment();
+			// empty - no lap
+			sink.startSegment();
+			sink.endSegment();
+			sink.startSegment();
+			sink.trackPoint(START + 100_000, null, null, null, 100);
+			// out of order
+			sink.trackPoint(START + 90_000, null, null, null, 100);
+			sink.endSegment();
+		}
+
+		final Document document = parse(output);
+		final Element activity = (Element) get(document.getDocumentElement(), "Activity").item(0);
+		assertEquals("Other", activity.getAttribute("Sport"));
+		assertEquals("2018-11-10T05:24:58Z", getText(activity, "Id"));
+		final NodeList laps = get(activity, "Lap");
+		assertEquals(2, laps.getLength());
+
+		final Element first = (Element) laps.item(0);
+		assertEquals("2018-11-10T05:24:58Z", first.getAttribute("StartTime"));
+		assertEquals("20.000", getText(first, "TotalTimeSeconds"));
+		assertEquals(222.4, Double.parseDouble(getText(first, "DistanceMeters")), 0.1);
+		assertEquals("86", getText((Element) get(first, "AverageHeartRateBpm").item(0), "Value"));
+		assertEquals("91", getText((Element) get(first, "MaximumHeartRateBpm").item(0), "Value"));
+		final NodeList points = get(first, "Trackpoint");
+		assertEquals(3, points.getLength());
+		final Element point = (Element) points.item(1);
+		assertEquals("2018-11-10T05:25:08Z", getText(point, "Time"));
+		assertEquals("42.001", getText(point, "LatitudeDegrees"));
+		assertEquals(0, get(point, "AltitudeMeters").getLength());
+		assertEquals("91", getText(point, "Value"));
+		assertEquals(0, get((Element) points.item(2), "HeartRateBpm").getLength());
+
+		final Element second = (Element) laps.item(1);
+		assertEquals("2018-11-10T05:26:28Z", second.getAttribute("StartTime"));
+		assertEquals("10.000", getText(second, "TotalTimeSeconds"));
+		assertEquals("0.0", getText(second, "DistanceMeters"));
+		assertEquals(0, get(second, "Position").getLength());
+	}
+
+	@Test
+	public void shouldWriteTrackPointsOutsideOfSegments() throws Exception {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (TcxTrackPointSink sink = new TcxTrackPointSink(output)) {
+			sink.trackPoint(START, "42", "23", null, 80);
+		}
+
+		assertEquals(1, get(parse(output).getDocumentElement(), "Trackpoint").getLength());
+	}
+
+	@Test
+	public void shouldWriteEmptyActivities() throws Exception {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new TcxTrackPointSink(output).close();
+
+		final Document document = parse(output);
+		assertEquals(1, get(document.getDocumentElement(), "Activities").getLength());
+		assertEquals(0, get(document.getDocumentElement(), "Activity").getLength());
+	}
+
+	@Test
+	public void shouldFormatFixedPoint() {
+		assertEquals("0.0", TcxTrackPointSink.format(0, 1));
+		assertEquals("12.3", TcxTrackPointSink.format(12.34, 1));
+		assertEquals("13.0", TcxTrackPointSink.format(12.96, 1));
+		assertEquals("1.005", TcxTrackPointSink.format(1.005, 3));
+		assertEquals("7.050", TcxTrackPointSink.format(7.05, 3));
+		assertEquals("3", TcxTrackPointSink.format(3.4, 0));
+	}
+
+	@Test
+	public void shouldCalculateDistance() throws IOException {
+		// a degree of latitude
+		assertEquals(111_195, TcxTrackPointSink.distance(42, 23, 43, 23), 1);
+		assertEquals(0, TcxTrackPointSink.distance(42, 23, 42, 23), 0);
+		// around the world
+		assertEquals(Math.PI * 6_371_008.8, TcxTrackPointSink.distance(0, 0, 0, 180), 1);
+	}
+}